@@ -0,0 +1,85 @@
+package bankingsys.bench;
+
+import bankingsys.server.model.BankAccount;
+import bankingsys.server.store.AccountStore;
+import bankingsys.server.store.ConcurrentAccountStore;
+import bankingsys.server.store.OffHeapAccountStore;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+/**
+ * Measures the memory used by an account storage engine holding a number of accounts.
+ *
+ * Run one engine per JVM so the measurements don't disturb each other:
+ * java -Xmx6g bankingsys.bench.AccountStoreFootprint hashmap|heap|off-heap AccountCount
+ */
+public class AccountStoreFootprint {
+
+    public static void main(String[] args) {
+        String engine = args[0];
+        int count = Integer.parseInt(args[1]);
+
+        long heapBefore = usedHeap();
+        long directBefore = usedDirect();
+        Object store;
+        switch (engine) {
+            case "hashmap":
+                // the layout handlers used before the AccountStore abstraction
+                HashMap<Integer, BankAccount> map = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    map.put(i, new BankAccount(i, name(i), password(i), BankAccount.Currency.SGD, i));
+                }
+                store = map;
+                break;
+            case "heap":
+                store = fill(new ConcurrentAccountStore(), count);
+                break;
+            case "off-heap":
+                store = fill(new OffHeapAccountStore(count), count);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine " + engine);
+        }
+        long heap = usedHeap() - heapBefore;
+        long direct = usedDirect() - directBefore;
+        System.out.printf("%s accounts=%d heap=%dMB direct=%dMB total=%dMB bytes/account=%.1f%n",
+                engine, count, heap >> 20, direct >> 20, (heap + direct) >> 20,
+                (heap + direct) / (double) count);
+        // keep the store reachable until measured
+        System.out.println(store.hashCode() != 0 ? "" : " ");
+    }
+
+    private static AccountStore fill(AccountStore store, int count) {
+        for (int i = 0; i < count; i++) {
+            store.create(i, name(i), password(i), BankAccount.Currency.SGD, i);
+        }
+        return store;
+    }
+
+    private static String name(int i) {
+        return "user" + i;
+    }
+
+    private static String password(int i) {
+        return String.format("%06d", i % 1000000);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long usedDirect() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,52 @@
+package bankingsys.bench;
+
+import bankingsys.server.model.Client;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client identity as used for every request by the reply cache, the worker pool and the
+ * monitoring index: hashing, and lookups keyed by a client built from a received datagram.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientBenchmark {
+
+    private static final int CLIENTS = 10000;
+
+    private final HashMap<Client, Integer> clients = new HashMap<>();
+    private final Client key = new Client(null, 0);
+    private InetAddress address;
+    private int port = 0;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        address = InetAddress.getByName("10.0.0.1");
+        for (int i = 0; i < CLIENTS; i++) {
+            clients.put(new Client(address, 1024 + i), i);
+        }
+    }
+
+    @Benchmark
+    public int hashCodeOfClient() {
+        return new Client(address, 1024 + (port++ % CLIENTS)).hashCode();
+    }
+
+    @Benchmark
+    public Integer lookup() {
+        return clients.get(new Client(address, 1024 + (port++ % CLIENTS)));
+    }
+
+    @Benchmark
+    public Integer lookupWithReusedKey() {
+        return clients.get(key.reset(address, 1024 + (port++ % CLIENTS)));
+    }
+}
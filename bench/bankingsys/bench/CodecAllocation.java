@@ -0,0 +1,105 @@
+package bankingsys.bench;
+
+import bankingsys.io.Deserializer;
+import bankingsys.io.Serializer;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the bytes allocated per message by reused serializers and deserializers.
+ *
+ * Each scenario is warmed up first so that buffers reach their steady-state size and the
+ * JIT has compiled the loop, then allocation of the measuring thread is sampled through
+ * com.sun.management.ThreadMXBean.
+ */
+public class CodecAllocation {
+
+    private static final int WARMUP = 2000000;
+    private static final int ITERATIONS = 5000000;
+    private static final String NAME = "J\u00f6rg \u5f20\u4f1f \ud83d\ude00";
+    private static final String PASSWORD = "secret";
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        Serializer serializer = new Serializer();
+        ByteBuffer direct = ByteBuffer.allocateDirect(1024);
+        Serializer directSerializer = new Serializer(direct);
+        Deserializer deserializer = new Deserializer(direct);
+
+        report("encode (heap, reset)", () -> {
+            serializer.reset();
+            encode(serializer);
+            sink += serializer.getBufferLength();
+        });
+        report("encode (direct, reset)", () -> {
+            direct.clear();
+            directSerializer.reset(direct);
+            encode(directSerializer);
+            sink += directSerializer.getBufferLength();
+        });
+        report("encode (thread serializer)", () -> {
+            Serializer threadSerializer = Serializer.forCurrentThread();
+            encode(threadSerializer);
+            sink += threadSerializer.getBufferLength();
+        });
+
+        direct.clear();
+        directSerializer.reset(direct);
+        encode(directSerializer);
+        direct.flip();
+        report("decode primitives (direct, reset)", () -> {
+            direct.rewind();
+            deserializer.reset(direct);
+            sink += deserializer.readChar() + deserializer.readInt() + deserializer.readInt();
+            direct.position(direct.position() + 4 + deserializer.readInt());
+            sink += deserializer.readInt();
+        });
+        report("decode with strings (direct, reset)", () -> {
+            direct.rewind();
+            deserializer.reset(direct);
+            sink += deserializer.readChar() + deserializer.readInt() + deserializer.readInt();
+            sink += deserializer.readString().length() + deserializer.readInt();
+            sink += deserializer.readString().length();
+        });
+
+        direct.rewind();
+        deserializer.reset(direct);
+        deserializer.readChar();
+        deserializer.readInt();
+        deserializer.readInt();
+        String decoded = deserializer.readString();
+        System.out.println("UTF-8 round trip of \"" + NAME + "\": " + (decoded.equals(NAME) ? "ok" : "FAILED"));
+        System.out.println(sink != 0 ? "" : " ");
+    }
+
+    private static void encode(Serializer serializer) {
+        serializer.writeChar('e');
+        serializer.writeInt(42);
+        serializer.writeInt(41);
+        serializer.writeString(NAME);
+        serializer.writeInt(7);
+        serializer.writeString(PASSWORD);
+        serializer.writeFloat(100.0f);
+        serializer.writeInt(0);
+    }
+
+    private static void report(String scenario, Runnable operation) {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run();
+        }
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            operation.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        System.out.printf("%-38s %8.2f bytes/op %8.1f ns/op%n", scenario,
+                allocated / (double) ITERATIONS, elapsed / (double) ITERATIONS);
+    }
+}
@@ -0,0 +1,100 @@
+package bankingsys.bench;
+
+import bankingsys.io.Deserializer;
+import bankingsys.io.Serializer;
+import bankingsys.message.RequestView;
+import bankingsys.message.ServiceRequest;
+import bankingsys.message.ServiceResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of every message type, with request and response objects and
+ * through the flyweight request view the server uses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"a", "b", "c", "d", "e", "f", "h", "i"})
+    public String type;
+
+    private final Serializer serializer = new Serializer();
+    private final Deserializer deserializer = new Deserializer(ByteBuffer.allocate(0));
+    private final RequestView view = new RequestView();
+    private ServiceRequest request;
+    private ServiceResponse response;
+    private ByteBuffer encodedRequest;
+    private ByteBuffer encodedResponse;
+
+    @Setup
+    public void setup() {
+        request = Messages.request(type.charAt(0), 1, 42, 43);
+        response = Messages.response(type.charAt(0));
+        encodedRequest = Messages.encode(request);
+        encodedResponse = ByteBuffer.wrap(Messages.encodedResponse(type.charAt(0)));
+    }
+
+    @Benchmark
+    public int requestWrite() {
+        serializer.reset();
+        request.write(serializer);
+        return serializer.getBufferLength();
+    }
+
+    @Benchmark
+    public ServiceRequest requestRead() {
+        encodedRequest.rewind();
+        deserializer.reset(encodedRequest);
+        ServiceRequest decoded = new ServiceRequest();
+        decoded.read(deserializer);
+        return decoded;
+    }
+
+    @Benchmark
+    public ServiceRequest requestRoundTrip() {
+        serializer.reset();
+        request.write(serializer);
+        deserializer.reset(ByteBuffer.wrap(serializer.getBuffer(), 0, serializer.getBufferLength()));
+        ServiceRequest decoded = new ServiceRequest();
+        decoded.read(deserializer);
+        return decoded;
+    }
+
+    @Benchmark
+    public int requestView() {
+        return view.wrap(encodedRequest, 0).length();
+    }
+
+    @Benchmark
+    public int responseWrite() {
+        serializer.reset();
+        response.write(serializer);
+        return serializer.getBufferLength();
+    }
+
+    @Benchmark
+    public ServiceResponse responseRead() {
+        encodedResponse.rewind();
+        deserializer.reset(encodedResponse);
+        ServiceResponse decoded = new ServiceResponse();
+        decoded.read(deserializer);
+        return decoded;
+    }
+
+    @Benchmark
+    public ServiceResponse responseRoundTrip() {
+        serializer.reset();
+        response.write(serializer);
+        deserializer.reset(ByteBuffer.wrap(serializer.getBuffer(), 0, serializer.getBufferLength()));
+        ServiceResponse decoded = new ServiceResponse();
+        decoded.read(deserializer);
+        return decoded;
+    }
+}
@@ -0,0 +1,124 @@
+package bankingsys.bench;
+
+import bankingsys.io.Serializer;
+import bankingsys.message.RequestView;
+import bankingsys.message.ResponseWriter;
+import bankingsys.message.ServiceRequest;
+import bankingsys.server.RequestReceiver;
+import bankingsys.server.handler.*;
+import bankingsys.server.model.BankAccount.Currency;
+import bankingsys.server.store.AccountStore;
+import bankingsys.server.store.ConcurrentAccountStore;
+import bankingsys.server.store.OffHeapAccountStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static bankingsys.Constant.*;
+
+/**
+ * Service handlers against account stores of different sizes, reading requests through
+ * the request view and writing replies with the response writer as the server does.
+ * Requests are about random accounts, so larger stores show their cache misses.
+ *
+ * The monitoring handler is left out, it prints a line per registration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark {
+
+    private static final int REQUESTS = 1024;
+    // type, id, ack and the "bench" name precede the account of a close request
+    private static final int CLOSE_ACCOUNT_OFFSET = 9 + 4 + 5;
+
+    @Param({"1000", "100000", "1000000"})
+    public int accounts;
+
+    @Param({"heap", "off-heap"})
+    public String store;
+
+    private final Serializer serializer = new Serializer();
+    private final ResponseWriter writer = new ResponseWriter();
+    private final RequestView view = new RequestView();
+    private ServiceHandler create;
+    private ServiceHandler close;
+    private ServiceHandler check;
+    private ServiceHandler update;
+    private ServiceHandler transfer;
+    private ByteBuffer[] checks;
+    private ByteBuffer[] updates;
+    private ByteBuffer[] transfers;
+    private ByteBuffer createRequest;
+    private ByteBuffer closeRequest;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        AccountStore accountStore = store.equals("off-heap") ? new OffHeapAccountStore(accounts)
+                : new ConcurrentAccountStore();
+        RequestReceiver server = new RequestReceiver(accountStore);
+        for (int i = 0; i < accounts; i++) {
+            int account = server.allocateAccountNumber();
+            accountStore.create(account, Messages.name(account), Messages.PASSWORD, Currency.SGD, Messages.BALANCE);
+        }
+        create = new AccountCreationHandler(accountStore, server);
+        close = new AccountCancellationHandler(accountStore, server);
+        check = new BalanceCheckHandler(accountStore, server);
+        update = new BalanceUpdateHandler(accountStore, server);
+        transfer = new TransferHandler(accountStore, server);
+
+        Random random = new Random(42);
+        checks = new ByteBuffer[REQUESTS];
+        updates = new ByteBuffer[REQUESTS];
+        transfers = new ByteBuffer[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            int account = random.nextInt(accounts);
+            int target = random.nextInt(accounts);
+            checks[i] = Messages.encode(Messages.request(BALANCE_CHECK, i, account, target));
+            updates[i] = Messages.encode(Messages.request(BALANCE_UPDATE, i, account, target));
+            transfers[i] = Messages.encode(Messages.request(TRANSFER, i, account, target));
+        }
+        createRequest = Messages.encode(new ServiceRequest(1, ACCOUNT_CANCEL, "bench", null, Messages.PASSWORD,
+                Messages.BALANCE, null, Currency.SGD, null));
+        closeRequest = Messages.encode(new ServiceRequest(2, ACCOUNT_CREATE, "bench", 0, Messages.PASSWORD,
+                null, null, null, null));
+    }
+
+    @Benchmark
+    public int balanceCheck() {
+        return handle(check, checks[next++ & (REQUESTS - 1)]);
+    }
+
+    @Benchmark
+    public int balanceUpdate() {
+        return handle(update, updates[next++ & (REQUESTS - 1)]);
+    }
+
+    @Benchmark
+    public int transfer() {
+        return handle(transfer, transfers[next++ & (REQUESTS - 1)]);
+    }
+
+    /**
+     * Create an account and close it again, so the store keeps its size
+     * @return Encoded reply length
+     */
+    @Benchmark
+    public int createAndClose() {
+        handle(create, createRequest);
+        closeRequest.putInt(CLOSE_ACCOUNT_OFFSET, writer.getAccount());
+        return handle(close, closeRequest);
+    }
+
+    private int handle(ServiceHandler handler, ByteBuffer request) {
+        serializer.reset();
+        handler.handleRequest(view.wrap(request, 0), writer.reset(serializer, request.getInt(1)), false);
+        return serializer.getBufferLength();
+    }
+}
@@ -0,0 +1,140 @@
+package bankingsys.bench;
+
+import bankingsys.io.Deserializer;
+import bankingsys.io.Serializer;
+import bankingsys.message.Amounts;
+import bankingsys.message.ResponseWriter;
+import bankingsys.message.ServiceRequest;
+import bankingsys.message.ServiceResponse;
+import bankingsys.server.model.BankAccount.Currency;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static bankingsys.Constant.*;
+import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
+
+/**
+ * Typical messages of every type, shared by the benchmarks
+ */
+public class Messages {
+
+    public static final String PASSWORD = "secret";
+    public static final long BALANCE = 1000000 * MINOR_UNITS;
+
+    /**
+     * Name of a benchmark account
+     * @param account Account number
+     * @return Account holder name
+     */
+    public static String name(int account) {
+        return "name" + account;
+    }
+
+    /**
+     * Build a request of a type
+     * @param type Request type
+     * @param requestID Request id
+     * @param account Account the request is about
+     * @param target Target account of a transfer
+     * @return Request
+     */
+    public static ServiceRequest request(char type, int requestID, int account, int target) {
+        ServiceRequest request;
+        switch (type) {
+            case ACCOUNT_CREATE:
+            case BALANCE_CHECK:
+                request = new ServiceRequest(requestID, type, name(account), account, PASSWORD, null, null, null, null);
+                break;
+            case ACCOUNT_CANCEL:
+                request = new ServiceRequest(requestID, type, name(account), null, PASSWORD, BALANCE, null,
+                        Currency.SGD, null);
+                break;
+            case ACCOUNT_MONITOR:
+                request = new ServiceRequest(requestID, type, null, null, null, null, null, null, 60);
+                request.setRequestMonitorAccounts(Arrays.asList(account, target));
+                break;
+            case BALANCE_UPDATE:
+                request = new ServiceRequest(requestID, type, name(account), account, PASSWORD, 100L, null,
+                        Currency.SGD, null);
+                break;
+            case TRANSFER:
+                request = new ServiceRequest(requestID, type, name(account), account, PASSWORD, 100L, target, null, null);
+                break;
+            case BATCH:
+                List<ServiceRequest> entries = new ArrayList<>();
+                entries.add(request(BALANCE_UPDATE, requestID + 1, account, target));
+                entries.add(request(TRANSFER, requestID + 2, account, target));
+                entries.add(request(BALANCE_CHECK, requestID + 3, account, target));
+                request = ServiceRequest.batch(requestID, entries);
+                break;
+            case MONITOR_RESYNC:
+                request = ServiceRequest.resync(requestID, 0);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown request type " + type);
+        }
+        request.setRequestAck(requestID - 1);
+        return request;
+    }
+
+    /**
+     * Encode a request
+     * @param request Request
+     * @return Heap buffer holding the request, from position 0
+     */
+    public static ByteBuffer encode(ServiceRequest request) {
+        Serializer serializer = new Serializer();
+        request.write(serializer);
+        return ByteBuffer.wrap(serializer.toByteArray());
+    }
+
+    /**
+     * Encode the successful response to a request of a type, as the server writes it
+     * @param type Request type
+     * @return Encoded response
+     */
+    public static byte[] encodedResponse(char type) {
+        Serializer serializer = new Serializer();
+        ResponseWriter writer = new ResponseWriter().reset(serializer, 1);
+        switch (type) {
+            case ACCOUNT_MONITOR:
+                writer.monitor("", 0, "Monitoring callback registered for 2 accounts");
+                break;
+            case BATCH:
+                writer.beginBatch(3);
+                for (char entry : new char[]{BALANCE_UPDATE, TRANSFER, BALANCE_CHECK}) {
+                    serializer.writeBytes(encodedResponse(entry));
+                }
+                writer.endBatch("Batch of 3 requests handled");
+                break;
+            case MONITOR_RESYNC:
+                byte[] update = encodedResponse(BALANCE_UPDATE);
+                writer.resync(SUCCESS, 0, Collections.nCopies(3, update), "Resent 3 updates");
+                break;
+            case ACCOUNT_CREATE:
+            case END_MONITOR:
+                writer.success(type, "Account closed");
+                break;
+            default:
+                writer.success(type, 42, BALANCE, "Account No.42 belonging to " + name(42)
+                        + " has a new balance of $" + Amounts.format(BALANCE));
+                break;
+        }
+        return serializer.toByteArray();
+    }
+
+    /**
+     * Decode the successful response to a request of a type
+     * @param type Request type
+     * @return Response
+     */
+    public static ServiceResponse response(char type) {
+        ServiceResponse response = new ServiceResponse();
+        response.read(new Deserializer(encodedResponse(type)));
+        return response;
+    }
+}
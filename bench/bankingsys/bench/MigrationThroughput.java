@@ -0,0 +1,284 @@
+package bankingsys.bench;
+
+import bankingsys.client.AsyncBankingClient;
+import bankingsys.message.ServiceRequest;
+import bankingsys.message.ServiceResponse;
+import bankingsys.net.ShardMap;
+import bankingsys.server.model.BankAccount;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import static bankingsys.Constant.*;
+import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
+
+/**
+ * Measures the throughput of a cluster while a shard joins it and the accounts of its ring
+ * segments move to it online, against local server processes.
+ *
+ * Two shards placed by consistent hashing, each with its own log, serve closed-loop clients
+ * depositing to random accounts. After a third of the run a third shard is started with
+ * -join and every shard is told to move to the placement with three shards. The throughput
+ * is printed for every interval, then its mean before, during and after the migration, and
+ * the balances of all accounts are checked against the deposits that succeeded:
+ * java -cp classes:commons-cli.jar bankingsys.bench.MigrationThroughput AccountCount Clients Seconds [Directory]
+ */
+public class MigrationThroughput {
+
+    private static final long INTERVAL = 500;
+    private static final String PASSWORD = "secret";
+    private static final long INITIAL_BALANCE = 1000000;
+
+    private static final List<Process> servers = new ArrayList<>();
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        int accountCount = Integer.parseInt(args[0]);
+        int clients = Integer.parseInt(args[1]);
+        long seconds = Long.parseLong(args[2]);
+        Path directory = Files.createTempDirectory(
+                args.length > 3 ? Paths.get(args[3]) : Paths.get(System.getProperty("java.io.tmpdir")), "migration");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> servers.forEach(Process::destroy)));
+
+        String[] addresses = new String[3];
+        String[] peerAddresses = new String[3];
+        for (int i = 0; i < 3; i++) {
+            addresses[i] = "127.0.0.1:" + freePort();
+            peerAddresses[i] = "127.0.0.1:" + freePort();
+        }
+        Path before = writePlacement(directory.resolve("cluster-1.txt"), 1, addresses, peerAddresses, 2);
+        Path after = writePlacement(directory.resolve("cluster-2.txt"), 2, addresses, peerAddresses, 3);
+        ShardMap from = ShardMap.load(before);
+        ShardMap to = ShardMap.load(after);
+        startServer(directory, before, 0, false);
+        startServer(directory, before, 1, false);
+        awaitReady(from.getShard(0).getAddress());
+        awaitReady(from.getShard(1).getAddress());
+
+        int[] accounts = createAccounts(from, accountCount);
+        LongAdder completed = new LongAdder();
+        LongAdder failed = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        List<AsyncBankingClient> sessions = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            AsyncBankingClient client = new AsyncBankingClient(from, 1);
+            sessions.add(client);
+            Thread thread = new Thread(() -> deposit(client, accounts, completed, failed), "client-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long start = System.currentTimeMillis();
+        long end = start + seconds * 1000;
+        long migrateAt = start + seconds * 1000 / 3;
+        long migrationStart = -1;
+        long migrationEnd = -1;
+        long[] phaseOps = new long[3];
+        long[] phaseTime = new long[3];
+        long last = completed.sum();
+        long lastTime = start;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(INTERVAL);
+            if (migrationStart < 0 && System.currentTimeMillis() >= migrateAt) {
+                startServer(directory, after, 2, true);
+                awaitReady(to.getShard(2).getAddress());
+                // the start of the new shard still counts as before the migration
+                long ops = completed.sum();
+                migrationStart = System.currentTimeMillis();
+                phaseOps[0] += ops - last;
+                phaseTime[0] += migrationStart - lastTime;
+                last = ops;
+                lastTime = migrationStart;
+                for (ShardMap.Shard shard : to.getShards()) {
+                    ServiceResponse response = call(shard.getAddress(),
+                            ServiceRequest.rebalance(null, from.describe(), to.describe()), 5000);
+                    System.out.println(shard.getAddress() + ": " + response.getResponseCode() + " "
+                            + response.getResponseMessage());
+                }
+            } else if (migrationStart >= 0 && migrationEnd < 0 && !moving(to)) {
+                migrationEnd = System.currentTimeMillis();
+            }
+            long now = System.currentTimeMillis();
+            long ops = completed.sum();
+            int phase = migrationStart < 0 ? 0 : migrationEnd < 0 ? 1 : 2;
+            phaseOps[phase] += ops - last;
+            phaseTime[phase] += now - lastTime;
+            System.out.printf("%6.1f s %8.0f ops/s %s%n", (now - start) / 1000.0, rate(ops - last, now - lastTime),
+                    phase == 0 ? "two shards" : phase == 1 ? "migrating" : "three shards");
+            last = ops;
+            lastTime = now;
+        }
+        running = false;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (AsyncBankingClient client : sessions) {
+            client.close();
+        }
+
+        for (ShardMap.Shard shard : to.getShards()) {
+            System.out.println(shard.getAddress() + ":\n" + call(shard.getAddress(), ServiceRequest.stats(null), 5000)
+                    .getResponseMessage());
+        }
+        System.out.printf("accounts=%d clients=%d before=%.0f ops/s during=%.0f ops/s after=%.0f ops/s "
+                        + "migration=%d ms failed=%d%n", accountCount, clients, rate(phaseOps[0], phaseTime[0]),
+                rate(phaseOps[1], phaseTime[1]), rate(phaseOps[2], phaseTime[2]),
+                migrationEnd < 0 ? -1 : migrationEnd - migrationStart, failed.sum());
+        long total = totalBalance(to, accounts);
+        long expected = accountCount * INITIAL_BALANCE + completed.sum();
+        System.out.println(total == expected ? "balances match" : "balance mismatch: " + total + " != " + expected);
+        servers.forEach(Process::destroy);
+    }
+
+    /**
+     * Closed loop of one client depositing to random accounts until the end of the run
+     */
+    private static void deposit(AsyncBankingClient client, int[] accounts, LongAdder completed, LongAdder failed) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            int i = random.nextInt(accounts.length);
+            ServiceRequest request = new ServiceRequest(null, BALANCE_UPDATE, name(i), accounts[i], PASSWORD,
+                    1L, null, BankAccount.Currency.SGD, null);
+            try {
+                if (client.send(request).get().getResponseCode() == SUCCESS) {
+                    completed.increment();
+                } else {
+                    failed.increment();
+                }
+            } catch (Exception e) {
+                failed.increment();
+            }
+        }
+    }
+
+    private static int[] createAccounts(ShardMap placement, int count) throws Exception {
+        int[] accounts = new int[count];
+        try (AsyncBankingClient client = new AsyncBankingClient(placement, 64)) {
+            List<CompletableFuture<ServiceResponse>> created = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                created.add(client.send(new ServiceRequest(null, ACCOUNT_CANCEL, name(i), null, PASSWORD,
+                        INITIAL_BALANCE, null, BankAccount.Currency.SGD, null)));
+            }
+            for (int i = 0; i < count; i++) {
+                ServiceResponse response = created.get(i).get();
+                if (response.getResponseCode() != SUCCESS) {
+                    throw new IOException("Account creation failed: " + response.getResponseMessage());
+                }
+                accounts[i] = response.getResponseAccount();
+            }
+        }
+        return accounts;
+    }
+
+    /**
+     * Sum of the balances of the accounts, asked from the shards of the new placement
+     */
+    private static long totalBalance(ShardMap placement, int[] accounts) throws Exception {
+        long total = 0;
+        try (AsyncBankingClient client = new AsyncBankingClient(placement, 64)) {
+            List<CompletableFuture<ServiceResponse>> balances = new ArrayList<>();
+            for (int i = 0; i < accounts.length; i++) {
+                balances.add(client.send(new ServiceRequest(null, BALANCE_CHECK, name(i), accounts[i], PASSWORD,
+                        null, null, null, null)));
+            }
+            for (CompletableFuture<ServiceResponse> balance : balances) {
+                ServiceResponse response = balance.get();
+                if (response.getResponseCode() != SUCCESS) {
+                    throw new IOException("Balance check failed: " + response.getResponseMessage());
+                }
+                total += response.getResponseAmount();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Check whether a shard still moves accounts, from the placement line of its statistics
+     */
+    private static boolean moving(ShardMap placement) throws Exception {
+        for (ShardMap.Shard shard : placement.getShards()) {
+            if (call(shard.getAddress(), ServiceRequest.stats(null), 5000).getResponseMessage().contains("moving-to")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ServiceResponse call(InetSocketAddress server, ServiceRequest request, long timeout)
+            throws Exception {
+        try (AsyncBankingClient client = new AsyncBankingClient(server.getAddress(), server.getPort(), 1)) {
+            return client.send(request).get(timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void awaitReady(InetSocketAddress server) throws Exception {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                call(server, ServiceRequest.stats(null), 200);
+                return;
+            } catch (TimeoutException e) {
+                // still starting
+            }
+        }
+        throw new IOException("Server " + server + " didn't start");
+    }
+
+    private static void startServer(Path directory, Path placement, int shard, boolean join) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("bankingsys.server.RequestReceiver");
+        command.add("-m");
+        command.add("at-most-once");
+        command.add("-cl");
+        command.add(placement.toString());
+        command.add("-sh");
+        command.add(Integer.toString(shard));
+        command.add("-l");
+        command.add(directory.resolve("wal-" + shard + ".log").toString());
+        if (join) {
+            command.add("-jo");
+        }
+        File output = directory.resolve("server-" + shard + ".out").toFile();
+        servers.add(new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(output).start());
+    }
+
+    private static Path writePlacement(Path file, long epoch, String[] addresses, String[] peerAddresses, int size)
+            throws IOException {
+        StringBuilder text = new StringBuilder("epoch " + epoch + "\n");
+        for (int i = 0; i < size; i++) {
+            text.append(i).append(' ').append(addresses[i]).append(' ').append(peerAddresses[i]).append('\n');
+        }
+        return Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String name(int i) {
+        return "user" + i;
+    }
+
+    private static double rate(long ops, long millis) {
+        return millis == 0 ? 0 : ops * 1000.0 / millis;
+    }
+}
@@ -0,0 +1,213 @@
+package bankingsys.bench;
+
+import bankingsys.client.AsyncBankingClient;
+import bankingsys.message.ServiceRequest;
+import bankingsys.message.ServiceResponse;
+import bankingsys.net.LatencyHistogram;
+import bankingsys.server.RequestReceiver;
+import bankingsys.server.model.BankAccount;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import static bankingsys.Constant.*;
+import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
+
+/**
+ * Compares the ring transport with the plain receive loop of the socket transport, which
+ * handles every request on the receive thread. Each transport serves its own server in
+ * this process, one after the other, under closed-loop clients keeping a window of
+ * deposits to random accounts in flight.
+ *
+ * For each transport the throughput, the latency percentiles and the bytes allocated by the
+ * server threads per request are printed. With a directory both servers write their log
+ * there, so that the journal stage of the ring is measured as well:
+ * java -cp classes:commons-cli.jar bankingsys.bench.PipelineThroughput Clients Window Seconds [LogDirectory]
+ */
+public class PipelineThroughput {
+
+    private static final int ACCOUNTS = 10000;
+    private static final long WARMUP = 3000;
+    private static final String PASSWORD = "secret";
+
+    private static volatile boolean running;
+    private static volatile boolean measuring;
+
+    public static void main(String[] args) throws Exception {
+        int clients = Integer.parseInt(args[0]);
+        int window = Integer.parseInt(args[1]);
+        long seconds = Long.parseLong(args[2]);
+        Path directory = args.length > 3 ? Files.createTempDirectory(Paths.get(args[3]), "pipeline") : null;
+        for (String transport : new String[] {"socket", "ring"}) {
+            int port;
+            try (DatagramSocket probe = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+                port = probe.getLocalPort();
+            }
+            List<String> serverArgs = new ArrayList<>();
+            serverArgs.add("-m");
+            serverArgs.add("at-least-once");
+            serverArgs.add("-t");
+            serverArgs.add(transport);
+            serverArgs.add("-p");
+            serverArgs.add(Integer.toString(port));
+            if (directory != null) {
+                serverArgs.add("-l");
+                serverArgs.add(directory.resolve(transport + ".log").toString());
+            }
+            // the server of the previous transport stays idle on its own port
+            Thread server = new Thread(() -> RequestReceiver.main(serverArgs.toArray(new String[0])),
+                    transport + "-server");
+            server.setDaemon(true);
+            server.start();
+            awaitReady(port);
+            run(transport, port, clients, window, seconds);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Load one server and print its results
+     */
+    private static void run(String transport, int port, int clients, int window, long seconds) throws Exception {
+        InetAddress address = InetAddress.getLoopbackAddress();
+        int[] accounts = createAccounts(address, port);
+        LongAdder completed = new LongAdder();
+        LatencyHistogram latencies = new LatencyHistogram();
+        List<AsyncBankingClient> sessions = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        running = true;
+        measuring = false;
+        for (int i = 0; i < clients; i++) {
+            AsyncBankingClient client = new AsyncBankingClient(address, port, window);
+            sessions.add(client);
+            Thread thread = new Thread(() -> deposit(client, window, accounts, completed, latencies), "load-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        Thread.sleep(WARMUP);
+
+        Map<Long, Long> before = serverAllocations();
+        long start = System.nanoTime();
+        measuring = true;
+        Thread.sleep(seconds * 1000);
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        Map<Long, Long> after = serverAllocations();
+        running = false;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (AsyncBankingClient client : sessions) {
+            client.close();
+        }
+
+        long requests = completed.sum();
+        long allocated = 0;
+        for (Map.Entry<Long, Long> thread : after.entrySet()) {
+            allocated += thread.getValue() - before.getOrDefault(thread.getKey(), 0L);
+        }
+        synchronized (latencies) {
+            System.out.printf("%s clients=%d window=%d requests=%d throughput=%.0f ops/s p50=%d p99=%d p99.9=%d us "
+                            + "server-allocation=%.0f bytes/request%n", transport, clients, window, requests,
+                    requests * 1e9 / elapsed, latencies.getPercentile(50), latencies.getPercentile(99),
+                    latencies.getPercentile(99.9), requests == 0 ? 0.0 : (double) allocated / requests);
+        }
+    }
+
+    /**
+     * Closed loop of one client keeping a window of deposits in flight until the end of the run
+     */
+    private static void deposit(AsyncBankingClient client, int window, int[] accounts, LongAdder completed,
+                                LatencyHistogram latencies) {
+        Semaphore inFlight = new Semaphore(window);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            while (running) {
+                inFlight.acquire();
+                int i = random.nextInt(accounts.length);
+                long start = System.nanoTime();
+                client.send(new ServiceRequest(null, BALANCE_UPDATE, name(i), accounts[i], PASSWORD, 1L, null,
+                        BankAccount.Currency.SGD, null)).whenComplete((response, error) -> {
+                    if (measuring && error == null && response.getResponseCode() == SUCCESS) {
+                        completed.increment();
+                        synchronized (latencies) {
+                            latencies.record((System.nanoTime() - start) / 1000);
+                        }
+                    }
+                    inFlight.release();
+                });
+            }
+            inFlight.acquire(window);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Bytes allocated so far by every thread that is neither a client nor this benchmark
+     * @return Allocated bytes by thread id
+     */
+    private static Map<Long, Long> serverAllocations() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Map<Long, Long> allocated = new HashMap<>();
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && !info.getThreadName().startsWith("client-") && !info.getThreadName().startsWith("load-")
+                    && !info.getThreadName().equals("main")) {
+                allocated.put(info.getThreadId(), Math.max(0, threads.getThreadAllocatedBytes(info.getThreadId())));
+            }
+        }
+        return allocated;
+    }
+
+    private static int[] createAccounts(InetAddress address, int port) throws Exception {
+        int[] accounts = new int[ACCOUNTS];
+        try (AsyncBankingClient client = new AsyncBankingClient(address, port, 64)) {
+            List<CompletableFuture<ServiceResponse>> created = new ArrayList<>();
+            for (int i = 0; i < ACCOUNTS; i++) {
+                created.add(client.send(new ServiceRequest(null, ACCOUNT_CANCEL, name(i), null, PASSWORD,
+                        1000000L, null, BankAccount.Currency.SGD, null)));
+            }
+            for (int i = 0; i < ACCOUNTS; i++) {
+                ServiceResponse response = created.get(i).get();
+                if (response.getResponseCode() != SUCCESS) {
+                    throw new IOException("Account creation failed: " + response.getResponseMessage());
+                }
+                accounts[i] = response.getResponseAccount();
+            }
+        }
+        return accounts;
+    }
+
+    private static void awaitReady(int port) throws Exception {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (AsyncBankingClient client = new AsyncBankingClient(InetAddress.getLoopbackAddress(), port, 1)) {
+                client.send(ServiceRequest.stats(null)).get(200, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                // still starting
+            }
+        }
+        throw new IOException("Server on port " + port + " didn't start");
+    }
+
+    private static String name(int i) {
+        return "user" + i;
+    }
+}
@@ -0,0 +1,87 @@
+package bankingsys.bench;
+
+import bankingsys.server.Snapshot;
+import bankingsys.server.model.BankAccount;
+import bankingsys.server.store.AccountException;
+import bankingsys.server.store.AccountStore;
+import bankingsys.server.store.ConcurrentAccountStore;
+import bankingsys.server.store.OffHeapAccountStore;
+import bankingsys.server.store.WriteAheadLog;
+import bankingsys.server.store.WriteAheadLog.FsyncPolicy;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures the time until a server is ready after a restart, replaying the whole log
+ * against loading a snapshot and replaying the log written after it.
+ *
+ * The log holds the creation of every account and a history of balance updates, then a
+ * snapshot is taken and a tail of balance updates is logged after it:
+ * java -Xmx4g bankingsys.bench.RestartTime heap|off-heap AccountCount HistoryUpdates TailUpdates [Directory]
+ */
+public class RestartTime {
+
+    public static void main(String[] args) throws Exception {
+        String engine = args[0];
+        int count = Integer.parseInt(args[1]);
+        int history = Integer.parseInt(args[2]);
+        int tail = Integer.parseInt(args[3]);
+        Path directory = args.length > 4 ? Paths.get(args[4]) : Paths.get(System.getProperty("java.io.tmpdir"));
+        Path logFile = Files.createTempFile(directory, "wal", ".log");
+        Path snapshotFile = Files.createTempFile(directory, "snapshot", ".bin");
+
+        AccountStore store = newStore(engine, count);
+        WriteAheadLog log = WriteAheadLog.open(logFile, FsyncPolicy.GROUP, 5, store, null, 0);
+        for (int i = 0; i < count; i++) {
+            store.create(i, "name" + i, "secret", BankAccount.Currency.SGD, i);
+        }
+        update(store, count, history);
+        long start = System.currentTimeMillis();
+        Snapshot.write(snapshotFile, store, null, log.getAppendedLsn(), count);
+        long write = System.currentTimeMillis() - start;
+        update(store, count, tail);
+        log.close();
+        store = null;
+        System.gc();
+
+        start = System.currentTimeMillis();
+        AccountStore replayed = newStore(engine, count);
+        WriteAheadLog.open(logFile, FsyncPolicy.GROUP, 5, replayed, null, 0).close();
+        long fullReplay = System.currentTimeMillis() - start;
+        replayed = null;
+        System.gc();
+
+        start = System.currentTimeMillis();
+        AccountStore loaded = newStore(engine, count);
+        Snapshot snapshot = Snapshot.load(snapshotFile, loaded, null, Runtime.getRuntime().availableProcessors());
+        WriteAheadLog.open(logFile, FsyncPolicy.GROUP, 5, loaded, null, snapshot.getLsn()).close();
+        long fromSnapshot = System.currentTimeMillis() - start;
+
+        System.out.printf("%s accounts=%d history=%d tail=%d log=%dMB snapshot=%dMB write=%dms full-replay=%dms "
+                        + "snapshot+tail=%dms cpus=%d%n", engine, count, history, tail, Files.size(logFile) >> 20,
+                Files.size(snapshotFile) >> 20, write, fullReplay, fromSnapshot,
+                Runtime.getRuntime().availableProcessors());
+        System.out.println(loaded.size() == count ? "" : "size mismatch " + loaded.size());
+        Files.delete(logFile);
+        Files.delete(snapshotFile);
+    }
+
+    private static void update(AccountStore store, int count, int updates) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < updates; i++) {
+            int account = random.nextInt(count);
+            try {
+                store.updateBalance(account, "name" + account, "secret", 1);
+            } catch (AccountException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static AccountStore newStore(String engine, int count) {
+        return engine.equals("off-heap") ? new OffHeapAccountStore(count) : new ConcurrentAccountStore();
+    }
+}
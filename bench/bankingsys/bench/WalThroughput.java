@@ -0,0 +1,82 @@
+package bankingsys.bench;
+
+import bankingsys.server.model.BankAccount;
+import bankingsys.server.store.AccountException;
+import bankingsys.server.store.AccountStore;
+import bankingsys.server.store.ConcurrentAccountStore;
+import bankingsys.server.store.WriteAheadLog;
+import bankingsys.server.store.WriteAheadLog.FsyncPolicy;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the throughput of logged balance updates under a fsync policy.
+ *
+ * Every thread plays a client with one request in flight: it updates a random account and
+ * waits until the update is durable, as the server does before releasing the reply.
+ * java bankingsys.bench.WalThroughput always|group|periodic Threads Seconds [LogDirectory]
+ */
+public class WalThroughput {
+
+    private static final int ACCOUNTS = 10000;
+    private static final long PERIODIC_INTERVAL = 5;
+
+    public static void main(String[] args) throws Exception {
+        FsyncPolicy policy = FsyncPolicy.valueOf(args[0].toUpperCase());
+        int threads = Integer.parseInt(args[1]);
+        long seconds = Long.parseLong(args[2]);
+        Path directory = args.length > 3 ? Paths.get(args[3]) : Paths.get(System.getProperty("java.io.tmpdir"));
+        Path file = Files.createTempFile(directory, "wal", ".log");
+
+        AccountStore store = new ConcurrentAccountStore();
+        WriteAheadLog log = WriteAheadLog.open(file, FsyncPolicy.GROUP, PERIODIC_INTERVAL, store, null, 0);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            store.create(i, "name" + i, "secret", BankAccount.Currency.SGD, 0);
+        }
+        log.close();
+        store = new ConcurrentAccountStore();
+        log = WriteAheadLog.open(file, policy, PERIODIC_INTERVAL, store, null, 0);
+
+        LongAdder operations = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        Thread[] clients = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            AccountStore accounts = store;
+            WriteAheadLog wal = log;
+            clients[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    int account = random.nextInt(ACCOUNTS);
+                    try {
+                        accounts.updateBalance(account, "name" + account, "secret", 1);
+                    } catch (AccountException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    CountDownLatch durable = new CountDownLatch(1);
+                    wal.whenDurable(wal.getAppendedLsn(), durable::countDown);
+                    try {
+                        durable.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    operations.increment();
+                }
+            });
+            clients[t].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        long syncs = log.getSyncCount();
+        long records = log.getRecordCount();
+        log.close();
+        Files.delete(file);
+        System.out.printf("%s threads=%d ops/s=%.0f syncs=%d records/sync=%.1f%n",
+                policy, threads, operations.sum() / (double) seconds, syncs, records / (double) Math.max(1, syncs));
+    }
+}
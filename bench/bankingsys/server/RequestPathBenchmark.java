@@ -0,0 +1,72 @@
+package bankingsys.server;
+
+import bankingsys.bench.Messages;
+import bankingsys.io.Serializer;
+import bankingsys.server.model.BankAccount.Currency;
+import bankingsys.server.store.AccountStore;
+import bankingsys.server.store.ConcurrentAccountStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole processing of a request by the server without the socket: decoding through the
+ * request view, duplicate lookup in the reply cache, handling and encoding the reply.
+ * Every invocation is a new request of one client acknowledging the previous reply, as a
+ * client with one request in flight sends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestPathBenchmark {
+
+    private static final int ACCOUNTS = 100000;
+    private static final int REQUESTS = 1024;
+
+    @Param({"at-least-once", "at-most-once"})
+    public String mode;
+
+    @Param({"d", "e", "f"})
+    public String type;
+
+    private final Serializer serializer = new Serializer();
+    private RequestReceiver server;
+    private ByteBuffer[] requests;
+    private InetAddress address;
+    private int requestID = 0;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        AccountStore store = new ConcurrentAccountStore();
+        server = new RequestReceiver(store, mode.equals("at-most-once") ? new ReplyCache(64, 600000, 100000) : null);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            int account = server.allocateAccountNumber();
+            store.create(account, Messages.name(account), Messages.PASSWORD, Currency.SGD, Messages.BALANCE);
+        }
+        Random random = new Random(42);
+        requests = new ByteBuffer[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            requests[i] = Messages.encode(Messages.request(type.charAt(0), 0, random.nextInt(ACCOUNTS),
+                    random.nextInt(ACCOUNTS)));
+        }
+        address = InetAddress.getByName("10.0.0.1");
+    }
+
+    @Benchmark
+    public int process() {
+        ByteBuffer request = requests[requestID & (REQUESTS - 1)];
+        request.putInt(1, requestID);
+        request.putInt(5, requestID - 1);
+        requestID++;
+        serializer.reset();
+        server.processRequest(request, address, 40000, serializer);
+        return serializer.getBufferLength();
+    }
+}
@@ -6,8 +6,14 @@ package bankingsys;
 public class Constant {
     public static final int SERVER_PORT = 8081;
     public static final int BUFFER_SIZE = 1024;
+    public static final int MAX_DATAGRAM_SIZE = 65507;
     public static final int TIMEOUT = 500;
+    public static final int MIN_TIMEOUT = 20;
+    public static final int MAX_TIMEOUT = 8000;
+    public static final int MAX_RETRIES = 8;
+    public static final int MAX_REDIRECTS = 3;
     public static final int PASSWORD_LENGTH = 6;
+    public static final int MINOR_UNITS = 100;
 
     public static final char ACCOUNT_CREATE = 'a';
     public static final char ACCOUNT_CANCEL = 'b';
@@ -16,6 +22,20 @@ public class Constant {
     public static final char BALANCE_UPDATE = 'e';
     public static final char TRANSFER = 'f';
     public static final char END_MONITOR = 'g';
+    public static final char BATCH = 'h';
+    public static final char MONITOR_RESYNC = 'i';
+    public static final char STATS = 'j';
+    public static final char REBALANCE = 'n';
+
+    // exchanged between the shards of a cluster on their peer sockets
+    public static final char SHARD_PREPARE = 'k';
+    public static final char SHARD_COMMIT = 'l';
+    public static final char SHARD_ABORT = 'm';
+
+    // set in the type of messages whose amounts are longs in minor units rather than floats.
+    // Messages without it only come from clients already sending an ack and reading response
+    // ids, the original protocol had neither and is not understood.
+    public static final char FIXED_POINT = 0x80;
 
 
 }
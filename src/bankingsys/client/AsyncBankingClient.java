@@ -0,0 +1,303 @@
+package bankingsys.client;
+
+import bankingsys.io.Deserializer;
+import bankingsys.io.Serializer;
+import bankingsys.message.ServiceRequest;
+import bankingsys.message.ServiceResponse;
+import bankingsys.net.ShardMap;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static bankingsys.Constant.*;
+import static bankingsys.message.ServiceResponse.ResponseStatus.REDIRECT;
+
+/**
+ * Client library keeping several requests in flight on one socket.
+ *
+ * A request is sent once its id is within the window past the oldest unanswered request,
+ * and queued otherwise. Bounding the id spread rather than the number in flight keeps a
+ * request whose datagrams keep getting lost inside the server's reply cache window, so the
+ * window must not exceed the server's cache window. Replies are matched to requests by the
+ * request id the server echoes, and every request is retransmitted on its own timer until
+ * its reply arrives, so a lost datagram only delays its own request. The acknowledgement
+ * piggybacked on each request is the highest id up to which every reply has been received.
+ *
+ * In a cluster every request goes to the shard owning its account, see {@link ShardRouter}.
+ * Request ids stay a single sequence over all shards, each shard only sees gaps in it. A
+ * request redirected by a shard keeps its id and is sent to the shard serving its account.
+ *
+ * Monitoring is not supported, callbacks carry no request id of this client and are ignored.
+ */
+public class AsyncBankingClient implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(AsyncBankingClient.class.getName());
+
+    private final DatagramSocket socket;
+    private final ShardRouter router;
+    private final int window;
+    private final long retransmitTimeout;
+    private final ScheduledExecutorService timers;
+    private final Thread receiver;
+
+    // guarded by this
+    private final HashMap<Integer, Pending> inFlight = new HashMap<>();
+    private final ArrayDeque<Pending> waiting = new ArrayDeque<>();
+    private final TreeSet<Integer> completedAboveAck = new TreeSet<>();
+    private int nextRequestID = 0;
+    private int ackedUpTo = -1;
+    private boolean closed = false;
+
+    /**
+     * Create a client on a new socket
+     * @param serverAddress Server address
+     * @param serverPort Server port
+     * @param window Maximum distance between the oldest unanswered and the newest sent request id
+     * @throws SocketException If the socket can't be opened
+     */
+    public AsyncBankingClient(InetAddress serverAddress, int serverPort, int window) throws SocketException {
+        this(new DatagramSocket(), serverAddress, serverPort, window, TIMEOUT);
+    }
+
+    /**
+     * Create a client
+     * @param socket Socket used for all requests, e.g. an UnreliableDatagramSocket
+     * @param serverAddress Server address
+     * @param serverPort Server port
+     * @param window Maximum distance between the oldest unanswered and the newest sent request id
+     * @param retransmitTimeout Milliseconds to wait for a reply before retransmitting
+     */
+    public AsyncBankingClient(DatagramSocket socket, InetAddress serverAddress, int serverPort,
+                              int window, long retransmitTimeout) {
+        this(socket, new ShardRouter(new InetSocketAddress(serverAddress, serverPort)), window, retransmitTimeout);
+    }
+
+    /**
+     * Create a client of a cluster on a new socket
+     * @param shards Partition of the cluster
+     * @param window Maximum distance between the oldest unanswered and the newest sent request id
+     * @throws SocketException If the socket can't be opened
+     */
+    public AsyncBankingClient(ShardMap shards, int window) throws SocketException {
+        this(new DatagramSocket(), new ShardRouter(shards), window, TIMEOUT);
+    }
+
+    /**
+     * Create a client
+     * @param socket Socket used for all requests, e.g. an UnreliableDatagramSocket
+     * @param router Router picking the server of each request
+     * @param window Maximum distance between the oldest unanswered and the newest sent request id
+     * @param retransmitTimeout Milliseconds to wait for a reply before retransmitting
+     */
+    public AsyncBankingClient(DatagramSocket socket, ShardRouter router, int window, long retransmitTimeout) {
+        this.socket = socket;
+        this.router = router;
+        this.window = window;
+        this.retransmitTimeout = retransmitTimeout;
+        this.timers = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "client-retransmit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.receiver = new Thread(this::receive, "client-receive");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+    }
+
+    /**
+     * Send a request, assigning it the next request id
+     * @param request Request to send, its request id and acknowledgement are overwritten
+     * @return Future completed with the response, or exceptionally if the client is closed
+     */
+    public CompletableFuture<ServiceResponse> send(ServiceRequest request) {
+        Pending pending;
+        synchronized (this) {
+            if (closed) {
+                CompletableFuture<ServiceResponse> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IOException("Client closed"));
+                return failed;
+            }
+            request.setRequestID(nextRequestID++);
+            // routed once, so a retransmission goes to the server that may have executed the request
+            pending = new Pending(request, router.route(request));
+            if (!waiting.isEmpty() || !withinWindow(request.getRequestID())) {
+                waiting.add(pending);
+                return pending.future;
+            }
+            inFlight.put(request.getRequestID(), pending);
+        }
+        transmit(pending);
+        return pending.future;
+    }
+
+    /**
+     * Number of requests sent and not answered yet
+     * @return Requests in flight
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Number of requests waiting for a free slot of the window
+     * @return Queued requests
+     */
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * Close the socket and fail every unanswered request
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            IOException cause = new IOException("Client closed");
+            for (Pending pending : inFlight.values()) {
+                pending.future.completeExceptionally(cause);
+            }
+            for (Pending pending : waiting) {
+                pending.future.completeExceptionally(cause);
+            }
+            inFlight.clear();
+            waiting.clear();
+        }
+        timers.shutdownNow();
+        socket.close();
+    }
+
+    /**
+     * Send or resend a request and arm its retransmission timer
+     * @param pending Request to send
+     */
+    private void transmit(Pending pending) {
+        synchronized (this) {
+            if (closed || pending.future.isDone()) {
+                return;
+            }
+            pending.request.setRequestAck(ackedUpTo);
+            Serializer serializer = new Serializer();
+            pending.request.write(serializer);
+            pending.packet = new DatagramPacket(serializer.getBuffer(), serializer.getBufferLength(),
+                    pending.server);
+            pending.timer = timers.schedule(() -> transmit(pending), retransmitTimeout, TimeUnit.MILLISECONDS);
+        }
+        try {
+            socket.send(pending.packet);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failure on sending request " + pending.request.getRequestID());
+        }
+    }
+
+    /**
+     * Main loop of the receive thread, completes the request matching every reply
+     */
+    private void receive() {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            ServiceResponse response = new ServiceResponse();
+            try {
+                socket.receive(packet);
+                response.read(new Deserializer(buffer));
+            } catch (IOException e) {
+                continue;
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Malformed reply dropped");
+                continue;
+            }
+            Pending pending;
+            ArrayDeque<Pending> next = null;
+            boolean redirected;
+            synchronized (this) {
+                pending = inFlight.get(response.getResponseID());
+                if (pending == null) {
+                    continue; // duplicate reply or callback
+                }
+                pending.timer.cancel(false);
+                // a redirected request wasn't executed, it stays in flight towards the shard serving its account
+                redirected = response.getResponseCode() == REDIRECT && pending.redirects < MAX_REDIRECTS;
+                if (redirected) {
+                    pending.redirects++;
+                    pending.server = router.redirect(response);
+                } else {
+                    inFlight.remove(response.getResponseID());
+                    acknowledge(pending.request.getRequestID());
+                    while (!waiting.isEmpty() && withinWindow(waiting.peek().request.getRequestID())) {
+                        if (next == null) {
+                            next = new ArrayDeque<>();
+                        }
+                        Pending ready = waiting.poll();
+                        inFlight.put(ready.request.getRequestID(), ready);
+                        next.add(ready);
+                    }
+                }
+            }
+            if (redirected) {
+                transmit(pending);
+                continue;
+            }
+            pending.future.complete(response);
+            if (next != null) {
+                for (Pending ready : next) {
+                    transmit(ready);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether a request may be sent without outrunning the oldest unanswered request
+     * @param requestID Id of the request
+     * @return True if the request is inside the window
+     */
+    private boolean withinWindow(int requestID) {
+        return requestID - ackedUpTo <= window;
+    }
+
+    /**
+     * Record a received reply and advance the contiguous acknowledgement
+     * @param requestID Id of the answered request
+     */
+    private void acknowledge(int requestID) {
+        completedAboveAck.add(requestID);
+        while (!completedAboveAck.isEmpty() && completedAboveAck.first() == ackedUpTo + 1) {
+            ackedUpTo = completedAboveAck.pollFirst();
+        }
+    }
+
+    /**
+     * A request waiting for its reply
+     */
+    private static class Pending {
+        private final ServiceRequest request;
+        private InetSocketAddress server; // guarded by the client
+        private int redirects = 0;
+        private final CompletableFuture<ServiceResponse> future = new CompletableFuture<>();
+        private DatagramPacket packet;
+        private ScheduledFuture<?> timer;
+
+        private Pending(ServiceRequest request, InetSocketAddress server) {
+            this.request = request;
+            this.server = server;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package bankingsys.client;
+
+import bankingsys.io.Serializer;
+import bankingsys.message.ServiceRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static bankingsys.Constant.BATCH;
+import static bankingsys.Constant.BUFFER_SIZE;
+
+/**
+ * Packs requests into as few batch requests as possible, each fitting in one datagram.
+ *
+ * Request ids are assigned when the batches are built: every batch takes the next id and
+ * each of its requests the ids after it, so the server can deduplicate every request of a
+ * batch on its own.
+ */
+public class BatchBuilder {
+    private static final int BATCH_HEADER_SIZE = 13; // type, id, ack and count
+
+    private final int maxDatagramSize;
+    private final List<List<ServiceRequest>> batches = new ArrayList<>();
+    private int currentSize = BATCH_HEADER_SIZE;
+    private final Serializer sizer = new Serializer();
+
+    public BatchBuilder() {
+        this(BUFFER_SIZE);
+    }
+
+    /**
+     * Create a builder
+     * @param maxDatagramSize Maximum size of an encoded batch request
+     */
+    public BatchBuilder(int maxDatagramSize) {
+        this.maxDatagramSize = maxDatagramSize;
+    }
+
+    /**
+     * Add a request, starting a new batch if it doesn't fit in the current one
+     * @param request Request to add, its request id is overwritten when building
+     * @return This builder
+     */
+    public BatchBuilder add(ServiceRequest request) {
+        if (request.getRequestType() == BATCH) {
+            throw new IllegalArgumentException("Batches can't be nested");
+        }
+        if (request.getRequestID() == null) {
+            request.setRequestID(0);
+        }
+        sizer.reset();
+        request.write(sizer);
+        int size = sizer.getBufferLength();
+        if (size + BATCH_HEADER_SIZE > maxDatagramSize) {
+            throw new IllegalArgumentException("Request doesn't fit in a datagram");
+        }
+        if (batches.isEmpty() || currentSize + size > maxDatagramSize) {
+            batches.add(new ArrayList<>());
+            currentSize = BATCH_HEADER_SIZE;
+        }
+        batches.get(batches.size() - 1).add(request);
+        currentSize += size;
+        return this;
+    }
+
+    /**
+     * Number of requests added so far
+     * @return Number of requests
+     */
+    public int size() {
+        int size = 0;
+        for (List<ServiceRequest> batch : batches) {
+            size += batch.size();
+        }
+        return size;
+    }
+
+    /**
+     * Build the batch requests, assigning consecutive request ids
+     * @param firstRequestID Id given to the first batch
+     * @return Batch requests, one per datagram
+     */
+    public List<ServiceRequest> build(int firstRequestID) {
+        List<ServiceRequest> requests = new ArrayList<>(batches.size());
+        int requestID = firstRequestID;
+        for (List<ServiceRequest> batch : batches) {
+            ServiceRequest request = ServiceRequest.batch(requestID++, batch);
+            for (ServiceRequest entry : batch) {
+                entry.setRequestID(requestID++);
+            }
+            requests.add(request);
+        }
+        return requests;
+    }
+}
@@ -0,0 +1,543 @@
+package bankingsys.client;
+
+import bankingsys.io.Deserializer;
+import bankingsys.io.Serializer;
+import bankingsys.message.ServiceRequest;
+import bankingsys.message.ServiceResponse;
+import bankingsys.net.LatencyHistogram;
+import bankingsys.net.ShardMap;
+import bankingsys.net.SocketHelper;
+import bankingsys.server.RequestReceiver;
+import bankingsys.server.model.BankAccount;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.*;
+
+import static bankingsys.Constant.*;
+import static bankingsys.message.ServiceResponse.ResponseStatus.REDIRECT;
+import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
+
+/**
+ * Headless load generator for the server
+ *
+ * Simulates virtual clients, each with its own socket, its own request id sequence and one
+ * request in flight, sending a mix of operations on a pool of accounts created up front.
+ * With a target rate the load is open-loop: every client has a fixed send schedule and
+ * latency is measured from the scheduled send time, so a slow server is charged for the
+ * requests that queued up behind a slow reply. Without a rate every client sends its next
+ * request as soon as the previous reply arrives. Latencies go to per-operation histograms.
+ *
+ * java bankingsys.client.LoadGenerator -c 64 -d 30 -r 20000 -k zipf
+ * java bankingsys.client.LoadGenerator --in-process="-m at-most-once -w 4" -c 16 -d 10
+ * java bankingsys.client.LoadGenerator -cl cluster.txt -c 32 -d 10
+ * java bankingsys.client.LoadGenerator -m check=90,deposit=10 -rr localhost:8082,localhost:8083
+ *
+ * With read replicas, balance checks go to the backups in turn with the highest LSN the
+ * client saw, and to the primary when a backup can't answer; the share of checks falling
+ * back is reported.
+ */
+public class LoadGenerator {
+
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+    private static Options options = new Options();
+
+    private static final String DEFAULT_MIX = "check=40,deposit=25,withdraw=15,transfer=15,create=5";
+    private static final double DEFAULT_ZIPF_THETA = 0.99;
+    private static final int CREATE_BATCH = 8;
+    private static final String PASSWORD = "secret";
+    private static final long INITIAL_BALANCE = 1000000 * MINOR_UNITS;
+    private static final long AMOUNT = MINOR_UNITS; // of every deposit, withdrawal and transfer
+    // monitor registrations come from a second socket with ids of their own, far from the
+    // ids of the callbacks that socket receives
+    private static final int MONITOR_ID_BASE = 1 << 30;
+    private static final int MONITOR_INTERVAL = 1;
+
+    /**
+     * Operations of the mix, with the request type they are sent as
+     */
+    enum Operation {
+        CREATE(ACCOUNT_CANCEL), DEPOSIT(BALANCE_UPDATE), WITHDRAW(BALANCE_UPDATE),
+        CHECK(BALANCE_CHECK), TRANSFER(bankingsys.Constant.TRANSFER), MONITOR(ACCOUNT_MONITOR);
+
+        private final char type;
+
+        Operation(char type) {
+            this.type = type;
+        }
+    }
+
+    private final ShardRouter router;
+    private final int clients;
+    private final long duration;
+    private final long warmup;
+    private final double rate;
+    private final int[] mixWeights = new int[Operation.values().length];
+    private final int accountCount;
+    private final ZipfianGenerator zipf;
+    private final int maxRetries;
+
+    private int[] accounts;
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Operation.values().length];
+    private final AtomicLong[] failures = new AtomicLong[Operation.values().length];
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong retransmissions = new AtomicLong();
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong redirects = new AtomicLong();
+
+    /**
+     * Create a load generator
+     * @param router Router picking the server or shard of each request
+     * @param clients Number of virtual clients
+     * @param duration Measured seconds
+     * @param warmup Seconds of load before measuring
+     * @param rate Target requests per second over all clients, 0 for closed-loop clients
+     * @param mix Operation mix, e.g. "check=40,deposit=60"
+     * @param accountCount Number of accounts created up front
+     * @param zipfTheta Skew of the account keys, 0 for uniform keys
+     * @param maxRetries Retransmissions before a request times out
+     */
+    public LoadGenerator(ShardRouter router, int clients, long duration, long warmup, double rate,
+                         String mix, int accountCount, double zipfTheta, int maxRetries) {
+        this.router = router;
+        this.clients = clients;
+        this.duration = duration;
+        this.warmup = warmup;
+        this.rate = rate;
+        this.accountCount = accountCount;
+        this.zipf = zipfTheta > 0 ? new ZipfianGenerator(accountCount, zipfTheta) : null;
+        this.maxRetries = maxRetries;
+        for (String entry : mix.split(",")) {
+            String[] pair = entry.split("=");
+            mixWeights[Operation.valueOf(pair[0].trim().toUpperCase()).ordinal()] = Integer.parseInt(pair[1].trim());
+        }
+        for (int i = 1; i < mixWeights.length; i++) {
+            mixWeights[i] += mixWeights[i - 1];
+        }
+        if (mixWeights[mixWeights.length - 1] == 0) {
+            throw new IllegalArgumentException("Empty operation mix " + mix);
+        }
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+            failures[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Parse input arguments and run the load
+     * @param args CLI arguments
+     */
+    public static void main(String[] args) {
+        options.addOption("h", "help", false, "Show help.");
+        options.addOption("s", "server", true, "Set server to connect to, as host[:port].");
+        options.addOption("c", "clients", true, "Number of virtual clients.");
+        options.addOption("d", "duration", true, "Measured seconds.");
+        options.addOption("wu", "warmup", true, "Seconds of load before measuring.");
+        options.addOption("r", "rate", true, "Target requests per second over all clients, 0 for closed loop.");
+        options.addOption("m", "mix", true, "Operation mix as op=weight,..., ops: create, deposit, withdraw, check, transfer, monitor.");
+        options.addOption("a", "accounts", true, "Number of accounts created before the load starts.");
+        options.addOption("k", "keys", true, "Account key distribution, 'uniform' (default) or 'zipf'.");
+        options.addOption("z", "zipf-theta", true, "Skew of the zipf key distribution.");
+        options.addOption("rt", "retries", true, "Set the number of retransmissions before a request times out.");
+        options.addOption("ip", "in-process", true, "Run the server in this process with the given server arguments.");
+        options.addOption("cl", "cluster", true, "File listing the shards of the cluster, replaces -server.");
+        options.addOption("rr", "read-replicas", true, "Backups of the server balance checks are sent to, as host:port,...");
+
+        ShardRouter router;
+        int clients = 16;
+        long duration = 10;
+        long warmup = 2;
+        double rate = 0;
+        String mix = DEFAULT_MIX;
+        int accountCount = 10000;
+        double zipfTheta = 0;
+        int maxRetries = MAX_RETRIES;
+        try {
+            CommandLine cmd = new DefaultParser().parse(options, args);
+            if (cmd.hasOption("h"))
+                help();
+
+            if (cmd.hasOption("cl")) {
+                logger.log(Level.INFO, "Using cli argument -cluster=" + cmd.getOptionValue("cl"));
+                router = new ShardRouter(ShardMap.load(Paths.get(cmd.getOptionValue("cl"))));
+            } else {
+                String server = cmd.getOptionValue("s", "localhost");
+                InetSocketAddress serverAddress = server.contains(":") ? ShardMap.address(server)
+                        : new InetSocketAddress(InetAddress.getByName(server), SERVER_PORT);
+                logger.log(Level.INFO, "Loading server " + serverAddress);
+                router = new ShardRouter(serverAddress);
+            }
+
+            if (cmd.hasOption("rr")) {
+                logger.log(Level.INFO, "Using cli argument -read-replicas=" + cmd.getOptionValue("rr"));
+                router.setReplicas(ShardRouter.parseAddresses(cmd.getOptionValue("rr")));
+            }
+
+            if (cmd.hasOption("c")) {
+                logger.log(Level.INFO, "Using cli argument -clients=" + cmd.getOptionValue("c"));
+                clients = Integer.parseInt(cmd.getOptionValue("c"));
+            }
+
+            if (cmd.hasOption("d")) {
+                logger.log(Level.INFO, "Using cli argument -duration=" + cmd.getOptionValue("d"));
+                duration = Long.parseLong(cmd.getOptionValue("d"));
+            }
+
+            if (cmd.hasOption("wu")) {
+                logger.log(Level.INFO, "Using cli argument -warmup=" + cmd.getOptionValue("wu"));
+                warmup = Long.parseLong(cmd.getOptionValue("wu"));
+            }
+
+            if (cmd.hasOption("r")) {
+                logger.log(Level.INFO, "Using cli argument -rate=" + cmd.getOptionValue("r"));
+                rate = Double.parseDouble(cmd.getOptionValue("r"));
+            }
+
+            if (cmd.hasOption("m")) {
+                logger.log(Level.INFO, "Using cli argument -mix=" + cmd.getOptionValue("m"));
+                mix = cmd.getOptionValue("m");
+            }
+
+            if (cmd.hasOption("a")) {
+                logger.log(Level.INFO, "Using cli argument -accounts=" + cmd.getOptionValue("a"));
+                accountCount = Integer.parseInt(cmd.getOptionValue("a"));
+            }
+
+            if (cmd.hasOption("k")) {
+                logger.log(Level.INFO, "Using cli argument -keys=" + cmd.getOptionValue("k"));
+                if (cmd.getOptionValue("k").equals("zipf"))
+                    zipfTheta = Double.parseDouble(cmd.getOptionValue("z", Double.toString(DEFAULT_ZIPF_THETA)));
+            }
+
+            if (cmd.hasOption("rt")) {
+                logger.log(Level.INFO, "Using cli argument -retries=" + cmd.getOptionValue("rt"));
+                maxRetries = Integer.parseInt(cmd.getOptionValue("rt"));
+            }
+
+            if (cmd.hasOption("ip")) {
+                logger.log(Level.INFO, "Using cli argument -in-process=" + cmd.getOptionValue("ip"));
+                String[] serverArgs = cmd.getOptionValue("ip").trim().split("\\s+");
+                Thread server = new Thread(() -> RequestReceiver.main(serverArgs), "in-process-server");
+                server.setDaemon(true);
+                server.start();
+            }
+        } catch (ParseException | IllegalArgumentException e) {
+            logger.log(Level.SEVERE, "Failed to parse command line properties", e);
+            help();
+            return;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to parse given server address or cluster file", e);
+            return;
+        }
+
+        // retransmissions are counted and reported instead
+        Logger.getLogger(SocketHelper.class.getName()).setLevel(Level.SEVERE);
+        try {
+            LoadGenerator generator = new LoadGenerator(router, clients, duration, warmup, rate, mix,
+                    accountCount, zipfTheta, maxRetries);
+            generator.createAccounts();
+            generator.run();
+            generator.report();
+        } catch (IOException | InterruptedException e) {
+            logger.log(Level.SEVERE, "Load generation failed", e);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Create the account pool with batch requests
+     * @throws IOException If the server does not answer
+     */
+    private void createAccounts() throws IOException {
+        long start = System.currentTimeMillis();
+        accounts = new int[accountCount];
+        try (DatagramSocket socket = new DatagramSocket()) {
+            SocketHelper helper = new SocketHelper(socket, maxRetries);
+            byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+            int requestID = 0;
+            for (int first = 0; first < accountCount; first += CREATE_BATCH) {
+                List<ServiceRequest> creates = new ArrayList<>();
+                int batchID = requestID++;
+                for (int i = first; i < Math.min(accountCount, first + CREATE_BATCH); i++) {
+                    creates.add(new ServiceRequest(requestID++, ACCOUNT_CANCEL, name(i), null, PASSWORD,
+                            INITIAL_BALANCE, null, BankAccount.Currency.SGD, null));
+                }
+                ServiceRequest batch = ServiceRequest.batch(batchID, creates);
+                batch.setRequestAck(batchID - 1);
+                ServiceResponse response = send(helper, batch, buffer);
+                List<ServiceResponse> created = response.getResponseBatch();
+                for (int i = 0; i < created.size(); i++) {
+                    if (created.get(i).getResponseCode() != SUCCESS) {
+                        throw new IOException("Account creation failed: " + created.get(i).getResponseMessage());
+                    }
+                    accounts[first + i] = created.get(i).getResponseAccount();
+                }
+            }
+        }
+        logger.log(Level.INFO, "Created " + accountCount + " accounts in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Run the virtual clients until the end of the measurement
+     * @throws IOException If a socket can't be opened
+     * @throws InterruptedException If interrupted while waiting for the clients
+     */
+    private void run() throws IOException, InterruptedException {
+        long start = System.nanoTime() + 100000000L; // let every client thread start first
+        long measureFrom = start + warmup * 1000000000L;
+        long end = measureFrom + duration * 1000000000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            VirtualClient client = new VirtualClient(i, start, measureFrom, end);
+            Thread thread = new Thread(client, "virtual-client-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Print throughput and latency percentiles per operation and over all operations
+     */
+    private void report() {
+        System.out.println("Clients: " + clients + ", target rate: " + (rate > 0 ? rate + "/s" : "closed loop")
+                + ", keys: " + (zipf != null ? "zipf" : "uniform") + ", measured: " + duration + " s");
+        System.out.printf("%-10s %10s %10s %10s %9s %9s %9s %9s %9s%n", "operation", "ops/s", "count", "failed",
+                "mean ms", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        LatencyHistogram all = new LatencyHistogram();
+        long allFailures = 0;
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = histograms[operation.ordinal()];
+            if (histogram.getCount() > 0) {
+                printLine(operation.name().toLowerCase(), histogram, failures[operation.ordinal()].get());
+                all.add(histogram);
+                allFailures += failures[operation.ordinal()].get();
+            }
+        }
+        printLine("all", all, allFailures);
+        System.out.println("Timeouts: " + timeouts.get() + ", retransmissions: " + retransmissions.get()
+                + ", redirects: " + redirects.get());
+        if (replicaReads.get() > 0) {
+            System.out.printf("Checks sent to backups: %d, answered by the primary instead: %d (%.2f%%)%n",
+                    replicaReads.get(), fallbacks.get(), 100.0 * fallbacks.get() / replicaReads.get());
+        }
+    }
+
+    private void printLine(String label, LatencyHistogram histogram, long failed) {
+        System.out.printf("%-10s %10.0f %10d %10d %9.3f %9.3f %9.3f %9.3f %9.3f%n", label,
+                (double) histogram.getCount() / duration, histogram.getCount(), failed, histogram.getMean() / 1000,
+                histogram.getPercentile(50) / 1000.0, histogram.getPercentile(99) / 1000.0,
+                histogram.getPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0);
+    }
+
+    /**
+     * Encode a request, send it reliably to the server it is routed to and decode the reply.
+     * A redirected request was not executed, it is sent again to the shard serving its account.
+     * @param helper Helper of the sending socket
+     * @param request Request
+     * @param buffer Receive buffer
+     * @return Reply
+     * @throws IOException If no reply arrived
+     */
+    private ServiceResponse send(SocketHelper helper, ServiceRequest request, byte[] buffer) throws IOException {
+        ServiceResponse response = send(helper, request, buffer, router.route(request));
+        for (int i = 0; i < MAX_REDIRECTS && response.getResponseCode() == REDIRECT; i++) {
+            redirects.incrementAndGet();
+            response = send(helper, request, buffer, router.redirect(response));
+        }
+        return response;
+    }
+
+    /**
+     * Encode a request, send it reliably and decode the reply
+     * @param helper Helper of the sending socket
+     * @param request Request
+     * @param buffer Receive buffer
+     * @param server Server address
+     * @return Reply
+     * @throws IOException If no reply arrived
+     */
+    private ServiceResponse send(SocketHelper helper, ServiceRequest request, byte[] buffer,
+                                 InetSocketAddress server) throws IOException {
+        Serializer serializer = new Serializer();
+        request.write(serializer);
+        DatagramPacket packet = new DatagramPacket(serializer.getBuffer(), serializer.getBufferLength(), server);
+        helper.sendReliably(packet, new DatagramPacket(buffer, buffer.length), request.getRequestType() == BALANCE_CHECK);
+        ServiceResponse response = new ServiceResponse();
+        response.read(new Deserializer(buffer));
+        return response;
+    }
+
+    private static String name(int index) {
+        return "load" + index;
+    }
+
+    /**
+     * One simulated client
+     */
+    private class VirtualClient implements Runnable {
+        private final long start;
+        private final long measureFrom;
+        private final long end;
+        private final long interval;
+        private final byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        private int requestID = 0;
+        private int monitorID = MONITOR_ID_BASE;
+        private long lastLsn = 0;
+
+        private VirtualClient(int index, long start, long measureFrom, long end) {
+            this.interval = rate > 0 ? (long) (clients * 1e9 / rate) : 0;
+            // spread the schedules of the clients over one interval
+            this.start = start + (clients > 0 ? interval * index / clients : 0);
+            this.measureFrom = measureFrom;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            try (DatagramSocket socket = new DatagramSocket(); DatagramSocket monitorSocket = new DatagramSocket()) {
+                SocketHelper helper = new SocketHelper(socket, maxRetries);
+                SocketHelper monitorHelper = new SocketHelper(monitorSocket, maxRetries);
+                Random random = ThreadLocalRandom.current();
+                long next = start;
+                while (true) {
+                    long intended;
+                    if (interval > 0) {
+                        intended = next;
+                        next += interval;
+                        long wait;
+                        while ((wait = intended - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    } else {
+                        while (System.nanoTime() < start) {
+                            LockSupport.parkNanos(start - System.nanoTime());
+                        }
+                        intended = System.nanoTime();
+                    }
+                    if (intended >= end) {
+                        break;
+                    }
+                    Operation operation = pick(random);
+                    ServiceRequest request;
+                    SocketHelper sender;
+                    if (operation == Operation.MONITOR) {
+                        request = build(operation, monitorID++, random);
+                        sender = monitorHelper;
+                    } else {
+                        request = build(operation, requestID++, random);
+                        sender = helper;
+                    }
+                    boolean measured = intended >= measureFrom;
+                    try {
+                        ServiceResponse response;
+                        InetSocketAddress replica = operation == Operation.CHECK ? router.routeRead() : null;
+                        if (replica != null) {
+                            request.setRequestLsn(lastLsn);
+                            response = send(sender, request, buffer, replica);
+                            if (measured) {
+                                replicaReads.incrementAndGet();
+                            }
+                            if (response.getResponseCode() != SUCCESS) {
+                                // the primary never saw the id, which it can reuse
+                                response = send(sender, request, buffer);
+                                if (measured) {
+                                    fallbacks.incrementAndGet();
+                                }
+                            }
+                        } else {
+                            response = send(sender, request, buffer);
+                        }
+                        lastLsn = Math.max(lastLsn, response.getResponseLsn());
+                        if (measured) {
+                            histograms[operation.ordinal()].record((System.nanoTime() - intended) / 1000);
+                            if (response.getResponseCode() != SUCCESS) {
+                                failures[operation.ordinal()].incrementAndGet();
+                            }
+                        }
+                    } catch (SocketTimeoutException e) {
+                        if (measured) {
+                            timeouts.incrementAndGet();
+                        }
+                    }
+                }
+                retransmissions.addAndGet(helper.getRetransmissionCount() + monitorHelper.getRetransmissionCount());
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Virtual client failed", e);
+            }
+        }
+
+        private Operation pick(Random random) {
+            int draw = random.nextInt(mixWeights[mixWeights.length - 1]);
+            int i = 0;
+            while (draw >= mixWeights[i]) {
+                i++;
+            }
+            return Operation.values()[i];
+        }
+
+        private int key(Random random) {
+            return zipf != null ? zipf.next(random) : random.nextInt(accountCount);
+        }
+
+        /**
+         * Build the request of an operation on random accounts
+         * @param operation Operation
+         * @param id Request id
+         * @param random Random source
+         * @return Request acknowledging every earlier reply
+         */
+        private ServiceRequest build(Operation operation, int id, Random random) {
+            int key = key(random);
+            int account = accounts[key];
+            ServiceRequest request;
+            switch (operation) {
+                case CREATE:
+                    request = new ServiceRequest(id, operation.type, "load", null, PASSWORD, INITIAL_BALANCE, null,
+                            BankAccount.Currency.SGD, null);
+                    break;
+                case DEPOSIT:
+                case WITHDRAW:
+                    request = new ServiceRequest(id, operation.type, name(key), account, PASSWORD,
+                            operation == Operation.DEPOSIT ? AMOUNT : -AMOUNT, null, BankAccount.Currency.SGD, null);
+                    break;
+                case CHECK:
+                    request = new ServiceRequest(id, operation.type, name(key), account, PASSWORD, null, null, null, null);
+                    break;
+                case TRANSFER:
+                    request = new ServiceRequest(id, operation.type, name(key), account, PASSWORD, AMOUNT,
+                            accounts[key(random)], null, null);
+                    break;
+                default:
+                    request = new ServiceRequest(id, operation.type, null, null, null, null, null, null, MONITOR_INTERVAL);
+                    request.setRequestMonitorAccounts(Collections.singletonList(account));
+                    break;
+            }
+            request.setRequestAck(id - 1);
+            return request;
+        }
+    }
+
+    /**
+     * Prints help message for providing input arguments
+     */
+    private static void help() {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp("LoadGenerator", options);
+        System.exit(0);
+    }
+}
@@ -2,23 +2,35 @@ package bankingsys.client;
 
 import bankingsys.io.Deserializer;
 import bankingsys.io.Serializer;
+import bankingsys.message.Amounts;
 import bankingsys.message.ServiceRequest;
 import bankingsys.message.ServiceResponse;
+import bankingsys.net.Endpoints;
+import bankingsys.net.ShardMap;
 import bankingsys.net.SocketHelper;
 import bankingsys.net.UnreliableDatagramSocket;
 import bankingsys.server.model.BankAccount;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.*;
 
 import static bankingsys.Constant.*;
+import static bankingsys.message.ServiceResponse.ResponseStatus.FAILURE;
+import static bankingsys.message.ServiceResponse.ResponseStatus.REDIRECT;
 import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
 
 /**
@@ -29,9 +41,16 @@ import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
  * - close Name AccountNumber Password
  * - deposit Name AccountNumber Password CurrencyType Amount
  * - withdraw Name AccountNumber Password CurrencyType Amount
- * - monitor Interval
+ * - monitor Interval [AccountNumber ...] (all accounts when none are given)
  * - check Name AccountNumber Password
  * - transfer Name AccountNumber Password TargetAccount Amount
+ * - batch (followed by one command per line, except monitor, and "end")
+ * - stats
+ * - rebalance ClusterFile (moves the accounts of the cluster to the placement of the file)
+ *
+ * With a cluster file, requests go to the shard owning their account, monitoring sessions
+ * are registered with the shards of the monitored accounts and server-stats asks every shard.
+ * A request redirected by a shard is sent again to the shard serving its account.
  */
 public class RequestSender {
 
@@ -39,12 +58,17 @@ public class RequestSender {
     private static Options options = new Options();
 
     private static Boolean simulation = false;
+    private static int maxRetries = MAX_RETRIES;
+    private static boolean hedging = false;
+    private static NetworkInterface multicastInterface = null;
 
-    private int clientPort;
-    private static InetAddress serverAddress;
+    private static ShardRouter router;
+    private static Endpoints endpoints = null;
     private DatagramSocket socket = null;
-    private byte[] buffer = new byte[BUFFER_SIZE];
+    private SocketHelper socketHelper;
+    private byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
     private Integer requestID = 0;
+    private long lastLsn = 0; // highest log position seen, for read-your-writes on backups
 
     /**
      * Parse input arguments and start the client
@@ -53,7 +77,12 @@ public class RequestSender {
     public static void main(String args[]) {
         options.addOption("h", "help", false, "Show help.");
         options.addOption("sim", "simulation", false, "Set mode to 'simulation' with error rate.");
-        options.addOption("s", "server", true, "Set server to connect to.");
+        options.addOption("s", "server", true, "Set server to connect to, or equivalent servers as host[:port],...");
+        options.addOption("r", "retries", true, "Set the number of retransmissions before a request times out.");
+        options.addOption("hg", "hedge", false, "Hedge balance checks with an early second copy.");
+        options.addOption("mi", "multicast-interface", true, "Network interface to receive multicast updates on, e.g. 'lo'.");
+        options.addOption("cl", "cluster", true, "File listing the shards of the cluster, replaces -server.");
+        options.addOption("rr", "read-replicas", true, "Backups of the server balance checks are sent to, as host:port,...");
         CommandLineParser parser = new DefaultParser();
 
         CommandLine cmd = null;
@@ -63,12 +92,19 @@ public class RequestSender {
             if (cmd.hasOption("h"))
                 help();
 
+            List<InetSocketAddress> servers = new ArrayList<>();
             if (cmd.hasOption("s")) {
                 logger.log(Level.INFO, "Connecting to server " + cmd.getOptionValue("s"));
-                serverAddress = InetAddress.getByName(cmd.getOptionValue("s"));
+                for (String server : cmd.getOptionValue("s").split(",")) {
+                    servers.add(server.contains(":") ? ShardMap.address(server)
+                            : new InetSocketAddress(InetAddress.getByName(server), SERVER_PORT));
+                }
             } else {
                 logger.log(Level.INFO, "No server address specified, using localhost");
-                serverAddress = InetAddress.getByName("localhost");
+                servers.add(new InetSocketAddress(InetAddress.getByName("localhost"), SERVER_PORT));
+            }
+            if (servers.size() > 1) {
+                endpoints = new Endpoints(servers);
             }
 
             if (cmd.hasOption("sim")) {
@@ -77,7 +113,34 @@ public class RequestSender {
                 simulation = true;
             }
 
-        } catch (ParseException e) {
+            if (cmd.hasOption("r")) {
+                logger.log(Level.INFO, "Using cli argument -retries=" + cmd.getOptionValue("r"));
+                maxRetries = Integer.parseInt(cmd.getOptionValue("r"));
+            }
+
+            if (cmd.hasOption("hg")) {
+                logger.log(Level.INFO, "Using cli argument -hedge");
+                hedging = true;
+            }
+
+            if (cmd.hasOption("mi")) {
+                logger.log(Level.INFO, "Using cli argument -multicast-interface=" + cmd.getOptionValue("mi"));
+                multicastInterface = NetworkInterface.getByName(cmd.getOptionValue("mi"));
+            }
+
+            if (cmd.hasOption("cl")) {
+                logger.log(Level.INFO, "Using cli argument -cluster=" + cmd.getOptionValue("cl"));
+                router = new ShardRouter(ShardMap.load(Paths.get(cmd.getOptionValue("cl"))));
+            } else {
+                router = new ShardRouter(servers.get(0));
+            }
+
+            if (cmd.hasOption("rr")) {
+                logger.log(Level.INFO, "Using cli argument -read-replicas=" + cmd.getOptionValue("rr"));
+                router.setReplicas(ShardRouter.parseAddresses(cmd.getOptionValue("rr")));
+            }
+
+        } catch (ParseException | IllegalArgumentException e) {
             logger.log(Level.SEVERE, "Failed to parse command line properties", e);
             help();
         } catch (IOException e) {
@@ -99,8 +162,9 @@ public class RequestSender {
             } else {
                 socket = new DatagramSocket();
             }
-            clientPort = socket.getLocalPort();
             socket.setSoTimeout(TIMEOUT);
+            socketHelper = new SocketHelper(socket, maxRetries);
+            socketHelper.setHedging(hedging);
             Scanner sc = new Scanner(System.in);
             while (true) {
                 try {
@@ -109,113 +173,59 @@ public class RequestSender {
                     String[] commandSplits = command.split(" ");
                     String commandType = commandSplits[0];
 
-                    ServiceRequest request = null;
-                    switch (commandType) {
-                        case "create":
-                            if (commandSplits[2].length() != PASSWORD_LENGTH) {
-                                logger.log(Level.SEVERE, "Password length must be " + PASSWORD_LENGTH);
-                                continue;
-                            }
-                            request = new ServiceRequest(
-                                    requestID,
-                                    ACCOUNT_CANCEL,
-                                    commandSplits[1],
-                                    null,
-                                    commandSplits[2],
-                                    Float.parseFloat(commandSplits[4]),
-                                    null,
-                                    BankAccount.Currency.valueOf(commandSplits[3]),
-                                    null);
-                            break;
-                        case "close":
-                            request = new ServiceRequest(
-                                    requestID,
-                                    ACCOUNT_CREATE,
-                                    commandSplits[1],
-                                    Integer.parseInt(commandSplits[2]),
-                                    commandSplits[3],
-                                    null,
-                                    null,
-                                    null,
-                                    null);
-                            break;
-                        case "deposit":
-                            request = new ServiceRequest(
-                                    requestID,
-                                    BALANCE_UPDATE,
-                                    commandSplits[1],
-                                    Integer.parseInt(commandSplits[2]),
-                                    commandSplits[3],
-                                    Float.parseFloat(commandSplits[5]),
-                                    null,
-                                    BankAccount.Currency.valueOf(commandSplits[4]),
-                                    null);
-                            break;
-                        case "withdraw":
-                            request = new ServiceRequest(
-                                    requestID,
-                                    BALANCE_UPDATE,
-                                    commandSplits[1],
-                                    Integer.parseInt(commandSplits[2]),
-                                    commandSplits[3],
-                                    -Float.parseFloat(commandSplits[5]),
-                                    null,
-                                    BankAccount.Currency.valueOf(commandSplits[4]),
-                                    null);
-                            break;
-                        case "monitor":
-                            request = new ServiceRequest(
-                                    requestID,
-                                    ACCOUNT_MONITOR,
-                                    null,
-                                    null,
-                                    null,
-                                    null,
-                                    null,
-                                    null,
-                                    Integer.parseInt(commandSplits[1]));
-                            break;
-                        case "check":
-                            request = new ServiceRequest(
-                                    requestID,
-                                    BALANCE_CHECK,
-                                    commandSplits[1],
-                                    Integer.parseInt(commandSplits[2]),
-                                    commandSplits[3],
-                                    null,
-                                    null,
-                                    null,
-                                    null);
-                            break;
-                        case "transfer":
-                            request = new ServiceRequest(
-                                    requestID,
-                                    TRANSFER,
-                                    commandSplits[1],
-                                    Integer.parseInt(commandSplits[2]),
-                                    commandSplits[3],
-                                    Float.parseFloat(commandSplits[5]),
-                                    Integer.parseInt(commandSplits[4]),
-                                    null,
-                                    null);
-                            break;
-                        case "exit":
-                            return;
-
+                    if (commandType.equals("exit")) {
+                        return;
                     }
+                    if (commandType.equals("stats")) {
+                        printStats();
+                        continue;
+                    }
+                    if (commandType.equals("batch")) {
+                        runBatch(sc);
+                        continue;
+                    }
+                    if (commandType.equals("rebalance")) {
+                        rebalance(commandSplits[1]);
+                        continue;
+                    }
+                    ServiceRequest request = parseCommand(commandSplits);
 
-                    if (request != null) {
-                        Serializer serializer = new Serializer();
-                        request.write(serializer);
-
-                        DatagramPacket packet = new DatagramPacket(serializer.getBuffer(), serializer.getBufferLength(),
-                                serverAddress, SERVER_PORT);
-
-                        ServiceResponse response = sendRequest(packet);
-                        if (request.getRequestType() == ACCOUNT_MONITOR && response.getResponseCode() == SUCCESS) {
-                            startMonitoring(Integer.parseInt(commandSplits[1]));
+                    if (request != null && request.getRequestType() == BALANCE_CHECK) {
+                        checkBalance(request);
+                    } else if (request != null) {
+                        Collection<InetSocketAddress> servers;
+                        if (request.getRequestType() == ACCOUNT_MONITOR) {
+                            servers = router.owners(request.getRequestMonitorAccounts());
+                        } else if (request.getRequestType() == STATS) {
+                            servers = router.getServers();
+                        } else {
+                            servers = Collections.singleton(router.route(request));
+                        }
+                        int sessions = 0;
+                        ServiceResponse multicastSession = null;
+                        InetSocketAddress multicastServer = null;
+                        for (InetSocketAddress server : servers) {
+                            ServiceResponse response = send(request, server);
+                            if (request.getRequestType() == ACCOUNT_MONITOR && response != null
+                                    && response.getResponseCode() == SUCCESS) {
+                                if (response.getResponseGroup().isEmpty()) {
+                                    sessions++;
+                                } else {
+                                    multicastSession = response;
+                                    multicastServer = server;
+                                }
+                            }
+                        }
+                        if (multicastSession != null && sessions == 0 && servers.size() == 1) {
+                            startMulticastMonitoring(Integer.parseInt(commandSplits[1]), multicastServer,
+                                    multicastSession.getResponseGroup(), multicastSession.getResponseSequence(),
+                                    request.getRequestMonitorAccounts());
+                        } else if (sessions > 0) {
+                            if (multicastSession != null) {
+                                System.out.println("Updates of shards publishing to a multicast group are not followed");
+                            }
+                            startMonitoring(Integer.parseInt(commandSplits[1]), sessions);
                         }
-                        requestID++;
                     } else {
                         logger.log(Level.SEVERE, "Command parse error.");
                     }
@@ -233,74 +243,456 @@ public class RequestSender {
         }
     }
 
+    /**
+     * Send a balance check to a backup if there are some, asking for read-your-writes with
+     * the highest LSN seen so far, and to the server if the backup can't answer. A backup
+     * fails checks while it is behind, including checks on accounts it doesn't know yet.
+     * @param request Balance check
+     */
+    private void checkBalance(ServiceRequest request) {
+        request.setRequestLsn(lastLsn);
+        InetSocketAddress replica = router.routeRead();
+        if (replica != null) {
+            ServiceResponse response = send(request, replica);
+            if (response != null && response.getResponseCode() == SUCCESS) {
+                return;
+            }
+            System.out.println("Backup " + replica + " couldn't answer, asking the server");
+        }
+        send(request, router.route(request));
+    }
+
+    /**
+     * Send a request to a server with the next request id and wait for the response,
+     * following the redirects of shards not serving its account
+     * @param request Request
+     * @param server Server address
+     * @return Response received, null if the request timed out
+     */
+    private ServiceResponse send(ServiceRequest request, InetSocketAddress server) {
+        ServiceResponse response = null;
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+            request.setRequestID(requestID);
+            // requests are sent one at a time, so every earlier reply has been received
+            request.setRequestAck(requestID - 1);
+            requestID++;
+            Serializer serializer = new Serializer();
+            request.write(serializer);
+            DatagramPacket packet = new DatagramPacket(serializer.getBuffer(), serializer.getBufferLength(), server);
+            response = sendRequest(packet, request.getRequestType() == BALANCE_CHECK);
+            if (response == null || response.getResponseCode() != REDIRECT) {
+                break;
+            }
+            server = router.redirect(response);
+        }
+        return response;
+    }
+
+    /**
+     * Tell every shard of the current and of the new placement to move the accounts to the
+     * new placement, and route by it from now on
+     * @param path File of the new placement
+     * @throws IOException If the file can't be read
+     */
+    private void rebalance(String path) throws IOException {
+        ShardMap current = router.getPlacement();
+        if (current == null) {
+            logger.log(Level.SEVERE, "Rebalancing needs a cluster file");
+            return;
+        }
+        ShardMap next = ShardMap.load(Paths.get(path));
+        Set<InetSocketAddress> servers = new LinkedHashSet<>(router.getServers());
+        for (ShardMap.Shard shard : next.getShards()) {
+            servers.add(shard.getAddress());
+        }
+        for (InetSocketAddress server : servers) {
+            System.out.println(server + ":");
+            send(ServiceRequest.rebalance(requestID, current.describe(), next.describe()), server);
+        }
+        router.update(next);
+    }
+
+    /**
+     * Parse a command into a request
+     * @param commandSplits Command split on spaces
+     * @return Request carrying the current request id, null if the command is unknown
+     */
+    private ServiceRequest parseCommand(String[] commandSplits) {
+        String commandType = commandSplits[0];
+        ServiceRequest request = null;
+        switch (commandType) {
+            case "create":
+                if (commandSplits[2].length() != PASSWORD_LENGTH) {
+                    logger.log(Level.SEVERE, "Password length must be " + PASSWORD_LENGTH);
+                    return null;
+                }
+                request = new ServiceRequest(
+                        requestID,
+                        ACCOUNT_CANCEL,
+                        commandSplits[1],
+                        null,
+                        commandSplits[2],
+                        Amounts.parse(commandSplits[4]),
+                        null,
+                        BankAccount.Currency.valueOf(commandSplits[3]),
+                        null);
+                break;
+            case "close":
+                request = new ServiceRequest(
+                        requestID,
+                        ACCOUNT_CREATE,
+                        commandSplits[1],
+                        Integer.parseInt(commandSplits[2]),
+                        commandSplits[3],
+                        null,
+                        null,
+                        null,
+                        null);
+                break;
+            case "deposit":
+                request = new ServiceRequest(
+                        requestID,
+                        BALANCE_UPDATE,
+                        commandSplits[1],
+                        Integer.parseInt(commandSplits[2]),
+                        commandSplits[3],
+                        Amounts.parse(commandSplits[5]),
+                        null,
+                        BankAccount.Currency.valueOf(commandSplits[4]),
+                        null);
+                break;
+            case "withdraw":
+                request = new ServiceRequest(
+                        requestID,
+                        BALANCE_UPDATE,
+                        commandSplits[1],
+                        Integer.parseInt(commandSplits[2]),
+                        commandSplits[3],
+                        -Amounts.parse(commandSplits[5]),
+                        null,
+                        BankAccount.Currency.valueOf(commandSplits[4]),
+                        null);
+                break;
+            case "monitor":
+                request = new ServiceRequest(
+                        requestID,
+                        ACCOUNT_MONITOR,
+                        null,
+                        null,
+                        null,
+                        null,
+                        null,
+                        null,
+                        Integer.parseInt(commandSplits[1]));
+                List<Integer> accounts = new ArrayList<>();
+                for (int i = 2; i < commandSplits.length; i++) {
+                    accounts.add(Integer.parseInt(commandSplits[i]));
+                }
+                request.setRequestMonitorAccounts(accounts);
+                break;
+            case "check":
+                request = new ServiceRequest(
+                        requestID,
+                        BALANCE_CHECK,
+                        commandSplits[1],
+                        Integer.parseInt(commandSplits[2]),
+                        commandSplits[3],
+                        null,
+                        null,
+                        null,
+                        null);
+                break;
+            case "transfer":
+                request = new ServiceRequest(
+                        requestID,
+                        TRANSFER,
+                        commandSplits[1],
+                        Integer.parseInt(commandSplits[2]),
+                        commandSplits[3],
+                        Amounts.parse(commandSplits[5]),
+                        Integer.parseInt(commandSplits[4]),
+                        null,
+                        null);
+                break;
+            case "server-stats":
+                request = ServiceRequest.stats(requestID);
+                break;
+        }
+        return request;
+    }
+
+    /**
+     * Read commands until "end" and send them as batch requests
+     * @param sc Scanner reading user input
+     */
+    private void runBatch(Scanner sc) {
+        // one batch per shard, as a batch is sent to a single shard
+        Map<InetSocketAddress, BatchBuilder> builders = new LinkedHashMap<>();
+        while (true) {
+            System.out.print("batch> ");
+            String[] commandSplits = sc.nextLine().split(" ");
+            if (commandSplits[0].equals("end")) {
+                break;
+            }
+            ServiceRequest request = commandSplits[0].equals("monitor") ? null : parseCommand(commandSplits);
+            if (request == null) {
+                logger.log(Level.SEVERE, "Command parse error, not added to the batch.");
+                continue;
+            }
+            builders.computeIfAbsent(router.route(request), server -> new BatchBuilder()).add(request);
+        }
+        for (BatchBuilder builder : builders.values()) {
+            sendBatch(builder);
+        }
+    }
+
+    /**
+     * Send batch requests one datagram at a time and print every response
+     * @param builder Builder holding the requests to send, of a single shard in a cluster
+     * @return Responses of all requests, in order
+     */
+    public List<ServiceResponse> sendBatch(BatchBuilder builder) {
+        List<ServiceResponse> responses = new ArrayList<>();
+        for (ServiceRequest batch : builder.build(requestID)) {
+            requestID = batch.getRequestID() + batch.getRequestBatch().size() + 1;
+            // requests are sent one batch at a time, so every earlier reply has been received
+            for (ServiceRequest request : batch.getRequestBatch()) {
+                request.setRequestAck(batch.getRequestID() - 1);
+            }
+            batch.setRequestAck(batch.getRequestID() - 1);
+            Serializer serializer = new Serializer();
+            batch.write(serializer);
+            DatagramPacket packet = new DatagramPacket(serializer.getBuffer(), serializer.getBufferLength(),
+                    router.route(batch));
+            ServiceResponse response = sendRequest(packet, false);
+            if (response != null && response.getResponseBatch() != null) {
+                for (ServiceResponse entry : response.getResponseBatch()) {
+                    System.out.println(entry.getResponseCode() + "\n" + entry.getResponseMessage());
+                }
+                responses.addAll(response.getResponseBatch());
+            }
+        }
+        return responses;
+    }
+
     /**
      * Helper function to send a request and obtain a response
      * @param packet Request to send
-     * @return Response received
+     * @param idempotent Whether the request may be hedged
+     * @return Response received, null if the request timed out
      */
-    private ServiceResponse sendRequest(DatagramPacket packet) {
+    private ServiceResponse sendRequest(DatagramPacket packet, boolean idempotent) {
         DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
         try {
-            SocketHelper.sendReliably(socket, packet, reply);
+            // a request for one of the equivalent servers may go to any of them
+            if (endpoints != null && endpoints.find(packet.getSocketAddress()) != null) {
+                socketHelper.sendReliably(packet, reply, idempotent, endpoints);
+            } else {
+                socketHelper.sendReliably(packet, reply, idempotent);
+            }
             Deserializer deserializer = new Deserializer(buffer);
             ServiceResponse response = new ServiceResponse();
             response.read(deserializer);
-            System.out.println(response.getResponseCode() + "\n" + response.getResponseMessage());
+            if (response.getResponseCode() == REDIRECT) {
+                System.out.println("Redirected to " + response.getRedirectAddress());
+            } else {
+                System.out.println(response.getResponseCode() + "\n" + response.getResponseMessage());
+            }
+            lastLsn = Math.max(lastLsn, response.getResponseLsn());
+            if (response.getResponseBatch() != null) {
+                for (ServiceResponse entry : response.getResponseBatch()) {
+                    lastLsn = Math.max(lastLsn, entry.getResponseLsn());
+                }
+            }
             return response;
+        } catch (SocketTimeoutException e) {
+            System.out.println("Request timed out, it may or may not have been executed");
         } catch (Exception e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * Print the retransmission counters of the session
+     */
+    private void printStats() {
+        System.out.println("Requests: " + socketHelper.getRequestCount()
+                + "\nRetransmissions: " + socketHelper.getRetransmissionCount()
+                + "\nHedges: " + socketHelper.getHedgeCount()
+                + "\nTimeouts: " + socketHelper.getTimeoutCount()
+                + "\nStale replies: " + socketHelper.getStaleReplyCount());
+        if (endpoints != null) {
+            System.out.println(endpoints.report());
+        } else {
+            System.out.println("Smoothed RTT: " + socketHelper.getEstimator().getSmoothedRtt() + " ms"
+                    + "\nTimeout: " + socketHelper.getEstimator().getTimeout(0) + " ms");
+        }
+    }
+
     /**
      * Function for handling the monitoring session, keeps listening for
-     * server callbacks
+     * server callbacks until the interval is over or the servers end it
      * @param duration The monitoring interval
+     * @param sessions Number of servers the session is registered with
      */
-    private void startMonitoring(int duration) {
+    private void startMonitoring(int duration, int sessions) {
+        long end = System.currentTimeMillis() + duration * 1000L;
         try {
-            // create a timer to terminate monitoring after the interval
-            Timer timer = new Timer();
-            timer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    try {
-                        DatagramSocket socket = new DatagramSocket();
-                        ServiceResponse response = new ServiceResponse(END_MONITOR, SUCCESS,
-                                null, "Monitoring finished", null);
-                        Serializer serializer = new Serializer();
-                        response.write(serializer);
-                        InetAddress address = InetAddress.getByName("localhost");
-                        DatagramPacket packet = new DatagramPacket(serializer.getBuffer(),
-                                serializer.getBufferLength(), address, clientPort);
-                        socket.send(packet);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-
-                }
-            }, duration * 1000);
-            // start monitoring
-            socket.setSoTimeout(0);
             while (true) {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                // the receive timeout ends the session when the interval is over
+                socket.setSoTimeout((int) remaining);
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
                 Deserializer deserializer = new Deserializer(buffer);
                 ServiceResponse response = new ServiceResponse();
                 response.read(deserializer);
                 logger.log(Level.INFO, "Type: " + response.getResponseType());
                 logger.log(Level.INFO, "Type: " + response.getResponseMessage());
                 if (response.getResponseType() == END_MONITOR) {
-                    socket.setSoTimeout(TIMEOUT);
-                    return;
+                    System.out.println(response.getResponseMessage());
+                    if (--sessions == 0) {
+                        break;
+                    }
+                    continue;
                 }
                 System.out.println("Update: Account No. " + response.getResponseAccount() +
-                        " now has balance " + response.getResponseAmount());
+                        " now has balance " + balance(response) + " (" + response.getResponseMessage() + ")");
             }
+            socket.setSoTimeout(TIMEOUT);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        System.out.println("Monitoring finished");
+    }
+
+    /**
+     * Function for handling a multicast monitoring session, listens to the group the server
+     * publishes updates to until the interval is over. Updates lost on the way are detected
+     * from gaps in their sequence numbers and asked for over unicast. Updates are filtered by
+     * the account carried in the callback, so a transfer shows for its source account.
+     * @param duration The monitoring interval
+     * @param server Server the session is registered with, asked for missed updates
+     * @param group Group the updates are published to, as "address:port"
+     * @param sequence Sequence number of the first update of the session
+     * @param accounts Monitored accounts, empty for all accounts
+     */
+    private void startMulticastMonitoring(int duration, InetSocketAddress server, String group, int sequence,
+                                          List<Integer> accounts) {
+        String[] groupSplits = group.split(":");
+        long end = System.currentTimeMillis() + duration * 1000L;
+        int expected = sequence;
+        byte[] data = new byte[MAX_DATAGRAM_SIZE];
+        try (MulticastSocket multicastSocket = new MulticastSocket(Integer.parseInt(groupSplits[1]))) {
+            InetSocketAddress groupAddress = new InetSocketAddress(InetAddress.getByName(groupSplits[0]),
+                    Integer.parseInt(groupSplits[1]));
+            multicastSocket.joinGroup(groupAddress, multicastInterface);
+            while (true) {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                multicastSocket.setSoTimeout((int) remaining);
+                DatagramPacket packet = new DatagramPacket(data, data.length);
+                try {
+                    multicastSocket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                Deserializer deserializer = new Deserializer(data);
+                int received = deserializer.readInt();
+                if (received > expected) {
+                    expected = resync(server, expected, received, accounts);
+                }
+                // updates resent by a resync may arrive late from the group as well
+                if (received < expected) {
+                    continue;
+                }
+                ServiceResponse update = new ServiceResponse();
+                update.read(deserializer);
+                printUpdate(update, accounts);
+                expected = received + 1;
+            }
+            multicastSocket.leaveGroup(groupAddress, multicastInterface);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Monitoring finished");
+    }
+
+    /**
+     * Ask the server for the multicast updates missed by a monitoring session and print them
+     * @param server Server the session is registered with
+     * @param from Sequence number of the first missed update
+     * @param until Sequence number of the update received after the gap
+     * @param accounts Monitored accounts, empty for all accounts
+     * @return Sequence number of the next update to print
+     */
+    private int resync(InetSocketAddress server, int from, int until, List<Integer> accounts) {
+        while (from < until) {
+            ServiceRequest request = ServiceRequest.resync(requestID, from);
+            request.setRequestAck(requestID - 1);
+            requestID++;
+            Serializer serializer = new Serializer();
+            request.write(serializer);
+            DatagramPacket packet = new DatagramPacket(serializer.getBuffer(), serializer.getBufferLength(),
+                    server);
+            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+            try {
+                socketHelper.sendReliably(packet, reply, true);
+            } catch (IOException e) {
+                System.out.println("Resync failed, updates " + from + " to " + (until - 1) + " are lost");
+                return until;
+            }
+            ServiceResponse response = new ServiceResponse();
+            response.read(new Deserializer(buffer));
+            if (response.getResponseType() != MONITOR_RESYNC || response.getResponseSequence() == null) {
+                System.out.println(response.getResponseMessage());
+                return until;
+            }
+            if (response.getResponseCode() == FAILURE) {
+                System.out.println(response.getResponseMessage());
+            }
+            List<ServiceResponse> updates = response.getResponseBatch();
+            if (updates.isEmpty()) {
+                return until;
+            }
+            for (ServiceResponse update : updates) {
+                printUpdate(update, accounts);
+            }
+            from = response.getResponseSequence() + updates.size();
+        }
+        return from;
+    }
+
+    /**
+     * Print a monitoring update unless it is about an account that isn't monitored
+     * @param update Callback sent by the server
+     * @param accounts Monitored accounts, empty for all accounts
+     */
+    private void printUpdate(ServiceResponse update, List<Integer> accounts) {
+        if (!accounts.isEmpty() && !accounts.contains(update.getResponseAccount())) {
+            return;
+        }
+        System.out.println("Update: Account No. " + update.getResponseAccount() +
+                " now has balance " + balance(update) + " (" + update.getResponseMessage() + ")");
+    }
+
+    /**
+     * Balance carried by a monitoring update
+     * @param update Update
+     * @return Decimal balance, "-" for updates without balance such as closed accounts
+     */
+    private static String balance(ServiceResponse update) {
+        return update.getResponseAmount() != null ? Amounts.format(update.getResponseAmount()) : "-";
     }
 
     /**
@@ -0,0 +1,213 @@
+package bankingsys.client;
+
+import bankingsys.message.ServiceRequest;
+import bankingsys.message.ServiceResponse;
+import bankingsys.net.ShardMap;
+import bankingsys.net.ShardMap.Shard;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static bankingsys.Constant.*;
+
+/**
+ * Picks the server a request is sent to: the single server, or in a cluster the shard owning
+ * the account of the request. Requests without an account, such as account creations, are
+ * spread over the shards in turn. A batch goes to the shard of its first request on an
+ * account, so a batch should only hold requests of one shard. Requests on an account no
+ * shard owns go to any shard, which answers that the account does not exist. A single
+ * server may have read-only backups, balance checks can then be sent to them in turn with
+ * the server as the fallback.
+ *
+ * A shard answers a request on an account it doesn't serve with a redirect to the shard
+ * serving it, together with the placement the shard knows. The router adopts a placement
+ * with a higher epoch than its own, so that the accounts moved by a rebalancing are routed
+ * to their new shards from then on. Thread-safe.
+ */
+public class ShardRouter {
+
+    private final InetSocketAddress server;
+    private volatile ShardMap shards;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private volatile List<InetSocketAddress> replicas = Collections.emptyList();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    /**
+     * Create a router sending every request to one server
+     * @param server Server address
+     */
+    public ShardRouter(InetSocketAddress server) {
+        this.server = server;
+        this.shards = null;
+    }
+
+    /**
+     * Create a router for a cluster
+     * @param shards Partition of the cluster
+     */
+    public ShardRouter(ShardMap shards) {
+        this.server = null;
+        this.shards = shards;
+    }
+
+    /**
+     * Server a request is sent to
+     * @param request Request
+     * @return Server address
+     */
+    public InetSocketAddress route(ServiceRequest request) {
+        ShardMap current = shards;
+        if (current == null) {
+            return server;
+        }
+        if (hasAccount(request.getRequestType())) {
+            return owner(current, request.getRequestAccount());
+        }
+        switch (request.getRequestType()) {
+            case ACCOUNT_MONITOR:
+                List<Integer> accounts = request.getRequestMonitorAccounts();
+                return accounts == null || accounts.isEmpty() ? next(current) : owner(current, accounts.get(0));
+            case BATCH:
+                for (ServiceRequest entry : request.getRequestBatch()) {
+                    if (hasAccount(entry.getRequestType())) {
+                        return owner(current, entry.getRequestAccount());
+                    }
+                }
+                return next(current);
+            default:
+                return next(current);
+        }
+    }
+
+    /**
+     * Follow a redirect, adopting the placement it carries if it is newer
+     * @param response Response of a shard
+     * @return Address of the shard to send the request to, null if the response is no redirect
+     */
+    public InetSocketAddress redirect(ServiceResponse response) {
+        String address = response.getRedirectAddress();
+        if (address == null) {
+            return null;
+        }
+        String ring = response.getRedirectRing();
+        if (ring != null) {
+            try {
+                if (shards != null && ShardMap.epochOf(ring) > shards.getEpoch()) {
+                    update(ShardMap.parse(ring));
+                }
+            } catch (IllegalArgumentException e) {
+                // a malformed placement is ignored, the redirect alone is still followed
+            }
+        }
+        return ShardMap.address(address);
+    }
+
+    /**
+     * Route by a newer placement of the cluster
+     * @param placement Placement, ignored unless its epoch is higher than the current one
+     */
+    public synchronized void update(ShardMap placement) {
+        if (shards != null && placement.getEpoch() > shards.getEpoch()) {
+            shards = placement;
+        }
+    }
+
+    /**
+     * Placement the requests are routed by
+     * @return Current placement, null for a single server
+     */
+    public ShardMap getPlacement() {
+        return shards;
+    }
+
+    /**
+     * Backup a balance check may be sent to, in turn
+     * @return Backup address, null without backups
+     */
+    public InetSocketAddress routeRead() {
+        List<InetSocketAddress> current = replicas;
+        if (current.isEmpty()) {
+            return null;
+        }
+        return current.get(Math.floorMod(nextReplica.getAndIncrement(), current.size()));
+    }
+
+    /**
+     * Send balance checks to read-only backups of the server
+     * @param replicas Backup addresses, empty to read from the server only
+     */
+    public void setReplicas(List<InetSocketAddress> replicas) {
+        if (shards != null && !replicas.isEmpty()) {
+            throw new IllegalArgumentException("Backups are not supported in a cluster");
+        }
+        this.replicas = new ArrayList<>(replicas);
+    }
+
+    /**
+     * Parse a list of addresses written as host:port,host:port
+     * @param addresses Comma separated addresses
+     * @return Socket addresses
+     */
+    public static List<InetSocketAddress> parseAddresses(String addresses) {
+        List<InetSocketAddress> parsed = new ArrayList<>();
+        for (String address : addresses.split(",")) {
+            parsed.add(ShardMap.address(address.trim()));
+        }
+        return parsed;
+    }
+
+    /**
+     * Servers holding some accounts, e.g. to register a monitoring session with all of them
+     * @param accounts Account numbers, null or empty for all accounts
+     * @return Server addresses, without duplicates
+     */
+    public Set<InetSocketAddress> owners(List<Integer> accounts) {
+        ShardMap current = shards;
+        if (current == null) {
+            return Collections.singleton(server);
+        }
+        Set<InetSocketAddress> owners = new LinkedHashSet<>();
+        if (accounts == null || accounts.isEmpty()) {
+            owners.addAll(getServers());
+        } else {
+            for (Integer account : accounts) {
+                owners.add(owner(current, account));
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * Every server, one per shard in a cluster
+     * @return Server addresses
+     */
+    public List<InetSocketAddress> getServers() {
+        ShardMap current = shards;
+        if (current == null) {
+            return Collections.singletonList(server);
+        }
+        List<InetSocketAddress> servers = new ArrayList<>(current.size());
+        for (Shard shard : current.getShards()) {
+            servers.add(shard.getAddress());
+        }
+        return servers;
+    }
+
+    private static boolean hasAccount(char type) {
+        return type == ACCOUNT_CREATE || type == BALANCE_CHECK || type == BALANCE_UPDATE || type == TRANSFER;
+    }
+
+    private InetSocketAddress owner(ShardMap current, int account) {
+        Shard shard = current.shardOf(account);
+        return shard != null ? shard.getAddress() : next(current);
+    }
+
+    private InetSocketAddress next(ShardMap current) {
+        return current.getShard(Math.floorMod(nextShard.getAndIncrement(), current.size())).getAddress();
+    }
+}
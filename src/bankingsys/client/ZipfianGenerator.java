@@ -0,0 +1,56 @@
+package bankingsys.client;
+
+import java.util.Random;
+
+/**
+ * Draws ranks in [0, n) following a Zipfian distribution, rank 0 being the most frequent,
+ * with the method of Gray et al., "Quickly Generating Billion-Record Synthetic Databases"
+ * (as in YCSB). The normalization constant is computed once in O(n), each draw takes
+ * constant time.
+ */
+public class ZipfianGenerator {
+
+    private final int items;
+    private final double theta;
+    private final double alpha;
+    private final double zetaN;
+    private final double eta;
+
+    /**
+     * Create a generator
+     * @param items Number of ranks
+     * @param theta Skew, 0 is uniform, 0.99 is the usual "hot keys" skew, must differ from 1
+     */
+    public ZipfianGenerator(int items, double theta) {
+        this.items = items;
+        this.theta = theta;
+        this.zetaN = zeta(items, theta);
+        this.alpha = 1 / (1 - theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+    }
+
+    /**
+     * Draw a rank
+     * @param random Random source of the calling thread
+     * @return Rank in [0, items)
+     */
+    public int next(Random random) {
+        double u = random.nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < 1 + Math.pow(0.5, theta)) {
+            return Math.min(1, items - 1);
+        }
+        return Math.min(items - 1, (int) (items * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    private static double zeta(int n, double theta) {
+        double sum = 0;
+        for (int i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
@@ -1,19 +1,42 @@
 package bankingsys.io;
 
+import java.nio.ByteBuffer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 /**
  * Class for deserialization
+ *
+ * A deserializer can be pointed at the next message with {@link #reset(ByteBuffer)}, so one
+ * instance serves any number of messages. Decoding allocates nothing apart from the
+ * returned strings.
  */
 public class Deserializer {
-    private byte[] buffer;
-    private int bufferPosition;
+    private ByteBuffer buffer;
+    private char[] chars = new char[64]; // scratch space for decoding strings from direct buffers
 
     /**
      * Create a deserializer with a byte array
      * @param inputBuffer Bytes to be deserialized
      */
     public Deserializer(byte[] inputBuffer) {
+        buffer = ByteBuffer.wrap(inputBuffer);
+    }
+
+    /**
+     * Create a deserializer reading a byte buffer in place, from its position to its limit
+     * @param inputBuffer Bytes to be deserialized, heap or direct
+     */
+    public Deserializer(ByteBuffer inputBuffer) {
+        buffer = inputBuffer;
+    }
+
+    /**
+     * Start reading another message
+     * @param inputBuffer Bytes to be deserialized, from its position to its limit
+     */
+    public void reset(ByteBuffer inputBuffer) {
         buffer = inputBuffer;
-        bufferPosition = 0;
     }
 
     /**
@@ -21,9 +44,7 @@ public class Deserializer {
      * @return Deserialized char
      */
     public char readChar() {
-        char c = (char) buffer[bufferPosition];
-        bufferPosition += 1;
-        return c;
+        return (char) (buffer.get() & 0xFF);
     }
 
     /**
@@ -31,12 +52,15 @@ public class Deserializer {
      * @return Deserialized integer
      */
     public int readInt() {
-        int val = (buffer[bufferPosition] << 24) & 0xFF000000 |
-                (buffer[bufferPosition + 1] << 16) & 0x00FF0000 |
-                (buffer[bufferPosition + 2] << 8) & 0x0000FF00 |
-                buffer[bufferPosition + 3] & 0x000000FF;
-        bufferPosition += 4;
-        return val;
+        return buffer.getInt();
+    }
+
+    /**
+     * Deserialize a long from the buffer
+     * @return Deserialized long
+     */
+    public long readLong() {
+        return buffer.getLong();
     }
 
     /**
@@ -49,15 +73,58 @@ public class Deserializer {
     }
 
     /**
-     * Deserialize a string from the buffer
+     * Deserialize a UTF-8 string from the buffer
      * @return Deserialized string
      */
     public String readString() {
         int stringLength = readInt();
-        byte[] stringBuffer = new byte[stringLength];
-        System.arraycopy(buffer, bufferPosition, stringBuffer, 0, stringLength);
-        String str = new String(stringBuffer);
-        bufferPosition += stringLength;
+        String str;
+        if (buffer.hasArray()) {
+            str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), stringLength, UTF_8);
+            buffer.position(buffer.position() + stringLength);
+        } else {
+            str = decodeDirect(stringLength);
+        }
         return str;
     }
+
+    /**
+     * Copy raw bytes out of the buffer
+     * @param length Number of bytes
+     * @return Copied bytes
+     */
+    public byte[] readBytes(int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decode UTF-8 bytes from a direct buffer into the scratch chars
+     * @param byteLength Number of encoded bytes
+     * @return Decoded string
+     */
+    private String decodeDirect(int byteLength) {
+        if (chars.length < byteLength) {
+            chars = new char[Math.max(byteLength, chars.length * 2)];
+        }
+        int end = buffer.position() + byteLength;
+        int count = 0;
+        while (buffer.position() < end) {
+            int b = buffer.get();
+            if (b >= 0) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                chars[count++] = (char) ((b & 0x1F) << 6 | buffer.get() & 0x3F);
+            } else if ((b & 0xF0) == 0xE0) {
+                chars[count++] = (char) ((b & 0x0F) << 12 | (buffer.get() & 0x3F) << 6 | buffer.get() & 0x3F);
+            } else {
+                int codePoint = (b & 0x07) << 18 | (buffer.get() & 0x3F) << 12 |
+                        (buffer.get() & 0x3F) << 6 | buffer.get() & 0x3F;
+                chars[count++] = Character.highSurrogate(codePoint);
+                chars[count++] = Character.lowSurrogate(codePoint);
+            }
+        }
+        return new String(chars, 0, count);
+    }
 }
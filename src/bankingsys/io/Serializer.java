@@ -1,18 +1,68 @@
 package bankingsys.io;
 
+import java.nio.ByteBuffer;
+
 /**
  * Class for serialization
+ *
+ * A serializer can be reused for any number of messages by calling {@link #reset()}, its
+ * buffer grows geometrically and is kept between messages so that encoding allocates
+ * nothing once the buffer has reached the size of the largest message.
  */
 public class Serializer {
-    private byte[] buffer; // maintains the byte array
-    private int bufferLength; // maintains the current buffer position
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final ThreadLocal<Serializer> threadSerializer = ThreadLocal.withInitial(Serializer::new);
+
+    private ByteBuffer buffer; // maintains the bytes, its position is the current buffer length
+    private boolean growable; // whether the buffer is owned by the serializer and may be replaced
 
     /**
      * Creates a serializer with an empty internal buffer
      */
     public Serializer() {
-        buffer = new byte[4];
-        bufferLength = 0;
+        buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+        growable = true;
+    }
+
+    /**
+     * Creates a serializer writing into a given buffer from its current position, e.g. a
+     * direct buffer that is handed to a channel afterwards
+     * @param target Buffer to write into, it is not grown
+     */
+    public Serializer(ByteBuffer target) {
+        reset(target);
+    }
+
+    /**
+     * Return the serializer of the current thread, reset and ready for a new message. The
+     * returned serializer must not be kept beyond encoding and sending the message.
+     * @return Serializer owned by the current thread
+     */
+    public static Serializer forCurrentThread() {
+        Serializer serializer = threadSerializer.get();
+        serializer.reset();
+        return serializer;
+    }
+
+    /**
+     * Discard the serialized bytes, keeping the buffer for the next message
+     */
+    public void reset() {
+        if (!growable) {
+            buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+            growable = true;
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Discard the serialized bytes and write the next message into a given buffer
+     * @param target Buffer to write into from its current position, it is not grown
+     */
+    public void reset(ByteBuffer target) {
+        buffer = target;
+        growable = false;
     }
 
     /**
@@ -21,8 +71,7 @@ public class Serializer {
      */
     public void writeChar(char c) {
         extendBuffer(1);
-        buffer[bufferLength] = (byte) (c & 0xFF);
-        bufferLength += 1;
+        buffer.put((byte) (c & 0xFF));
     }
 
     /**
@@ -31,11 +80,16 @@ public class Serializer {
      */
     public void writeInt(int input) {
         extendBuffer(4);
-        buffer[bufferLength] = (byte) (input >> 24 & 0xFF);
-        buffer[bufferLength + 1] = (byte) (input >> 16 & 0xFF);
-        buffer[bufferLength + 2] = (byte) (input >> 8 & 0xFF);
-        buffer[bufferLength + 3] = (byte) (input & 0xFF);
-        bufferLength += 4;
+        buffer.putInt(input);
+    }
+
+    /**
+     * Serialize a long into the buffer
+     * @param input Long to be serialized
+     */
+    public void writeLong(long input) {
+        extendBuffer(8);
+        buffer.putLong(input);
     }
 
     /**
@@ -48,15 +102,56 @@ public class Serializer {
     }
 
     /**
-     * Serialize a string into the buffer
+     * Serialize a string into the buffer as its UTF-8 byte length followed by its UTF-8 bytes
      * @param input String to be serialized
      */
     public void writeString(String input) {
-        writeInt(input.length());
-        extendBuffer(input.length());
-        byte[] stringByte = input.getBytes();
-        System.arraycopy(stringByte, 0, buffer, bufferLength, input.length());
-        bufferLength += input.length();
+        int length = utf8Length(input);
+        writeInt(length);
+        extendBuffer(length);
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < input.length() &&
+                    Character.isLowSurrogate(input.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, input.charAt(++i));
+                buffer.put((byte) (0xF0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else {
+                if (Character.isSurrogate(c)) {
+                    c = '?'; // unpaired surrogate, same replacement as String.getBytes
+                }
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Copy already serialized bytes into the buffer
+     * @param input Serialized bytes
+     */
+    public void writeBytes(byte[] input) {
+        extendBuffer(input.length);
+        buffer.put(input);
+    }
+
+    /**
+     * Copy part of an array of already serialized bytes into the buffer
+     * @param input Serialized bytes
+     * @param offset Offset of the first byte to copy
+     * @param length Number of bytes to copy
+     */
+    public void writeBytes(byte[] input, int offset, int length) {
+        extendBuffer(length);
+        buffer.put(input, offset, length);
     }
 
     /**
@@ -64,7 +159,7 @@ public class Serializer {
      * @return Internal buffer
      */
     public byte[] getBuffer() {
-        return buffer;
+        return buffer.array();
     }
 
     /**
@@ -72,18 +167,65 @@ public class Serializer {
      * @return Length of the internal buffer
      */
     public int getBufferLength() {
-        return bufferLength;
+        return buffer.position();
+    }
+
+    /**
+     * Return a copy of the serialized bytes
+     * @return Serialized bytes
+     */
+    public byte[] toByteArray() {
+        return toByteArray(0);
+    }
+
+    /**
+     * Return a copy of the bytes serialized from an offset on
+     * @param from Offset of the first byte to copy
+     * @return Serialized bytes
+     */
+    public byte[] toByteArray(int from) {
+        byte[] bytes = new byte[buffer.position() - from];
+        ByteBuffer view = buffer.duplicate();
+        view.flip();
+        view.position(from);
+        view.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Number of bytes of the UTF-8 encoding of a string
+     * @param input String to measure
+     * @return Encoded length
+     */
+    static int utf8Length(String input) {
+        int length = 0;
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < input.length() &&
+                    Character.isLowSurrogate(input.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
     }
 
     /**
-     * Increase the buffer size if necessary
+     * Increase the buffer size if necessary, at least doubling it
      * @param len Number of bytes needed
      */
     private void extendBuffer(int len) {
-        int newLength = bufferLength + len;
-        if (newLength > buffer.length) {
-            byte[] newBuffer = new byte[newLength];
-            System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
+        int newLength = buffer.position() + len;
+        if (newLength > buffer.capacity() && growable) {
+            ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(newLength, buffer.capacity() * 2));
+            buffer.flip();
+            newBuffer.put(buffer);
             buffer = newBuffer;
         }
     }
@@ -0,0 +1,55 @@
+package bankingsys.message;
+
+import java.math.BigDecimal;
+
+import static bankingsys.Constant.MINOR_UNITS;
+
+/**
+ * Conversions of amounts and balances, which are longs counting minor units (cents) of
+ * the account currency. Floats only remain on the wire of clients predating fixed-point
+ * amounts and in logs and snapshots written by earlier servers.
+ */
+public class Amounts {
+
+    private static final int SCALE = Integer.toString(MINOR_UNITS).length() - 1;
+
+    private Amounts() {
+    }
+
+    /**
+     * Parse a decimal amount typed by a user, e.g. "12.34"
+     * @param amount Decimal amount with at most two decimals
+     * @return Amount in minor units
+     * @throws ArithmeticException If the amount has more decimals than minor units allow
+     */
+    public static long parse(String amount) {
+        return new BigDecimal(amount).movePointRight(SCALE).longValueExact();
+    }
+
+    /**
+     * Format an amount as a decimal, e.g. "12.34"
+     * @param amount Amount in minor units
+     * @return Decimal amount
+     */
+    public static String format(long amount) {
+        return BigDecimal.valueOf(amount, SCALE).toPlainString();
+    }
+
+    /**
+     * Convert a float amount of a float-format client, log or snapshot
+     * @param amount Amount in major units
+     * @return Amount in minor units, rounded to the nearest one
+     */
+    public static long fromFloat(float amount) {
+        return Math.round((double) amount * MINOR_UNITS);
+    }
+
+    /**
+     * Convert an amount for a float-format client
+     * @param amount Amount in minor units
+     * @return Amount in major units
+     */
+    public static float toFloat(long amount) {
+        return (float) ((double) amount / MINOR_UNITS);
+    }
+}
@@ -0,0 +1,291 @@
+package bankingsys.message;
+
+import bankingsys.io.Deserializer;
+import bankingsys.server.model.BankAccount.Currency;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static bankingsys.Constant.*;
+
+/**
+ * Flyweight, read-only view of an encoded request message.
+ *
+ * Wrapping a buffer only records where each field starts, fields are read from the buffer
+ * when their getter is called. Numeric fields are returned unboxed and never allocate,
+ * string fields are decoded on every call. A view is reused for every request handled by
+ * a thread and is only valid until it wraps the next request. The wire layout is the one
+ * written by {@link ServiceRequest#write}.
+ */
+public class RequestView {
+
+    private static final Currency[] CURRENCIES = Currency.values();
+    private static final int ABSENT = -1;
+
+    private final Deserializer deserializer = new Deserializer(ByteBuffer.allocate(0));
+    private ByteBuffer buffer;
+    private int start;
+    private int nameOffset;
+    private int accountOffset;
+    private int passwordOffset;
+    private int amountOffset;
+    private int currencyOffset;
+    private int targetAccountOffset;
+    private int delayOffset;
+    private int batchOffset;
+    private int sequenceOffset;
+    private int lsnOffset;
+    private int ringOffset;
+    private int end;
+    private RequestView entry; // used to find the end of batch entries
+
+    private InetAddress address;
+    private int port;
+
+    /**
+     * Point the view at the request starting at the position of a buffer. The position of
+     * the buffer is left unchanged.
+     * @param request Buffer holding an encoded request
+     * @return This view
+     */
+    public RequestView wrap(ByteBuffer request) {
+        return wrap(request, request.position());
+    }
+
+    /**
+     * Point the view at the request starting at an offset of a buffer
+     * @param request Buffer holding an encoded request
+     * @param offset Absolute offset of the request
+     * @return This view
+     */
+    public RequestView wrap(ByteBuffer request, int offset) {
+        buffer = request;
+        start = offset;
+        nameOffset = accountOffset = passwordOffset = amountOffset = ABSENT;
+        currencyOffset = targetAccountOffset = delayOffset = batchOffset = sequenceOffset = lsnOffset = ringOffset = ABSENT;
+        layout();
+        return this;
+    }
+
+    /**
+     * Record the offset of every field of the wrapped request
+     */
+    private void layout() {
+        int offset = start + 9; // type, id and ack
+        switch (requestType()) {
+            case ACCOUNT_CREATE:
+            case BALANCE_CHECK:
+                nameOffset = offset;
+                accountOffset = offset = skipString(offset);
+                passwordOffset = offset += 4;
+                offset = skipString(offset);
+                if (requestType() == BALANCE_CHECK && fixedPoint()) {
+                    lsnOffset = offset;
+                    offset += 8;
+                }
+                break;
+            case ACCOUNT_CANCEL:
+                nameOffset = offset;
+                passwordOffset = offset = skipString(offset);
+                amountOffset = offset = skipString(offset);
+                currencyOffset = offset += amountSize();
+                offset += 4;
+                break;
+            case ACCOUNT_MONITOR:
+                delayOffset = offset;
+                offset += 8 + 4 * buffer.getInt(offset + 4);
+                break;
+            case BALANCE_UPDATE:
+            case TRANSFER:
+                nameOffset = offset;
+                accountOffset = offset = skipString(offset);
+                passwordOffset = offset += 4;
+                amountOffset = offset = skipString(offset);
+                offset += amountSize();
+                if (requestType() == BALANCE_UPDATE) {
+                    currencyOffset = offset;
+                } else {
+                    targetAccountOffset = offset;
+                }
+                offset += 4;
+                break;
+            case BATCH:
+                int count = buffer.getInt(offset);
+                batchOffset = offset += 4;
+                if (entry == null) {
+                    entry = new RequestView();
+                }
+                for (int i = 0; i < count; i++) {
+                    offset += entry.wrap(buffer, offset).length();
+                }
+                break;
+            case MONITOR_RESYNC:
+                sequenceOffset = offset;
+                offset += 4;
+                break;
+            case REBALANCE:
+                ringOffset = offset;
+                offset = skipString(skipString(offset));
+                break;
+        }
+        end = offset;
+    }
+
+    /**
+     * Set the client the request was received from
+     * @param address Client address
+     * @param port Client port
+     */
+    public void setSender(InetAddress address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    public char requestType() {
+        return (char) (buffer.get(start) & ~FIXED_POINT & 0xFF);
+    }
+
+    /**
+     * Whether amounts are longs in minor units, otherwise the request comes from a client of
+     * the float format, which expects floats in the reply as well. That format already has
+     * the ack field and response ids, requests of the original protocol are misread.
+     * @return Whether the request is fixed-point
+     */
+    public boolean fixedPoint() {
+        return (buffer.get(start) & FIXED_POINT) != 0;
+    }
+
+    public int requestID() {
+        return buffer.getInt(start + 1);
+    }
+
+    public int requestAck() {
+        return buffer.getInt(start + 5);
+    }
+
+    public int account() {
+        return buffer.getInt(accountOffset);
+    }
+
+    /**
+     * Amount of the request, converted from the float of a float-format client
+     * @return Amount in minor units
+     */
+    public long amount() {
+        return fixedPoint() ? buffer.getLong(amountOffset) : Amounts.fromFloat(buffer.getFloat(amountOffset));
+    }
+
+    public int targetAccount() {
+        return buffer.getInt(targetAccountOffset);
+    }
+
+    public Currency currency() {
+        return CURRENCIES[buffer.getInt(currencyOffset)];
+    }
+
+    public int delay() {
+        return buffer.getInt(delayOffset);
+    }
+
+    /**
+     * Sequence number of the first multicast update a resync request asks for
+     * @return Sequence number
+     */
+    public int sequence() {
+        return buffer.getInt(sequenceOffset);
+    }
+
+    /**
+     * LSN a balance check must be answered at least as of, for read-your-writes on a replica
+     * @return Log sequence number, 0 if the request carries none
+     */
+    public long lsn() {
+        return lsnOffset == ABSENT ? 0 : buffer.getLong(lsnOffset);
+    }
+
+    /**
+     * Placement a rebalance request moves the accounts from
+     * @return Text of the placement
+     */
+    public String ring() {
+        return readString(ringOffset);
+    }
+
+    /**
+     * Placement a rebalance request moves the accounts to
+     * @return Text of the placement
+     */
+    public String targetRing() {
+        return readString(skipString(ringOffset));
+    }
+
+    /**
+     * Accounts a monitoring request subscribes to
+     * @return Account numbers, empty for all accounts
+     */
+    public int[] monitorAccounts() {
+        int[] accounts = new int[buffer.getInt(delayOffset + 4)];
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = buffer.getInt(delayOffset + 8 + 4 * i);
+        }
+        return accounts;
+    }
+
+    /**
+     * Number of requests carried by a batch request
+     * @return Number of batch entries
+     */
+    public int batchCount() {
+        return buffer.getInt(batchOffset - 4);
+    }
+
+    /**
+     * Offset of the first request carried by a batch request, every entry is followed by
+     * the next one
+     * @return Absolute offset of the first batch entry
+     */
+    public int firstBatchOffset() {
+        return batchOffset;
+    }
+
+    public String name() {
+        return readString(nameOffset);
+    }
+
+    public String password() {
+        return readString(passwordOffset);
+    }
+
+    public InetAddress address() {
+        return address;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    /**
+     * Number of bytes taken by the request
+     * @return Encoded length
+     */
+    public int length() {
+        return end - start;
+    }
+
+    private int amountSize() {
+        return fixedPoint() ? 8 : 4;
+    }
+
+    private String readString(int offset) {
+        int position = buffer.position();
+        buffer.position(offset);
+        deserializer.reset(buffer);
+        String value = deserializer.readString();
+        buffer.position(position);
+        return value;
+    }
+
+    private int skipString(int offset) {
+        return offset + 4 + buffer.getInt(offset);
+    }
+}
@@ -0,0 +1,230 @@
+package bankingsys.message;
+
+import bankingsys.io.Serializer;
+import bankingsys.message.ServiceResponse.ResponseStatus;
+
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import static bankingsys.Constant.*;
+import static bankingsys.message.ServiceResponse.ResponseStatus.FAILURE;
+import static bankingsys.message.ServiceResponse.ResponseStatus.REDIRECT;
+import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
+
+/**
+ * Writes response messages straight into a serializer without building ServiceResponse
+ * objects. The wire layout is the one read by {@link ServiceResponse#read}. A writer is
+ * reused for every response produced by a thread.
+ */
+public class ResponseWriter {
+    private Serializer serializer;
+    private ResponseStatus status;
+    private int requestID;
+    private int account;
+    private String message;
+    private boolean fixedPoint = true;
+    private LongSupplier lsnSource = () -> 0;
+
+    /**
+     * Set where the LSN carried by responses on an account comes from, read when the
+     * response is written, i.e. after the request was applied
+     * @param lsnSource Current position of the log, on a replica the applied one
+     * @return This writer
+     */
+    public ResponseWriter setLsnSource(LongSupplier lsnSource) {
+        this.lsnSource = lsnSource;
+        return this;
+    }
+
+    /**
+     * Start writing a new fixed-point response, after the bytes already in the serializer
+     * @param target Serializer receiving the response
+     * @param requestID Id of the request being answered, echoed in the response
+     * @return This writer
+     */
+    public ResponseWriter reset(Serializer target, int requestID) {
+        return reset(target, requestID, true);
+    }
+
+    /**
+     * Start writing a new response, after the bytes already in the serializer
+     * @param target Serializer receiving the response
+     * @param requestID Id of the request being answered, echoed in the response
+     * @param fixedPoint Whether amounts are written as longs in minor units, otherwise as
+     *                   floats for a float-format client
+     * @return This writer
+     */
+    public ResponseWriter reset(Serializer target, int requestID, boolean fixedPoint) {
+        serializer = target;
+        this.fixedPoint = fixedPoint;
+        status = null;
+        account = 0;
+        message = null;
+        this.requestID = requestID;
+        return this;
+    }
+
+    /**
+     * Write a successful response carrying an account and its balance
+     * @param type Response type
+     * @param account Response account number
+     * @param amount Response account balance in minor units
+     * @param message Response message
+     */
+    public void success(char type, int account, long amount, String message) {
+        write(type, SUCCESS, account, amount, message);
+    }
+
+    /**
+     * Write a successful response without account data
+     * @param type Response type
+     * @param message Response message
+     */
+    public void success(char type, String message) {
+        write(type, SUCCESS, 0, 0, message);
+    }
+
+    /**
+     * Write a failed response
+     * @param type Response type
+     * @param message Response message
+     */
+    public void failure(char type, String message) {
+        write(type, FAILURE, 0, 0, message);
+    }
+
+    /**
+     * Write a redirect to the shard serving the account of the request
+     * @param type Response type
+     * @param address Client address of the shard as "host:port"
+     * @param ring Text of the placement the redirecting shard runs with, for the client to
+     *             refresh its routing
+     */
+    public void redirect(char type, String address, String ring) {
+        write(type, REDIRECT, 0, 0, address + "\n" + ring);
+    }
+
+    /**
+     * Write a successful monitoring registration
+     * @param group Multicast group carrying the updates as "address:port", empty if they are sent to the client
+     * @param sequence Sequence number of the next multicast update
+     * @param message Response message
+     */
+    public void monitor(String group, int sequence, String message) {
+        status = SUCCESS;
+        account = 0;
+        this.message = message;
+        writeType(ACCOUNT_MONITOR);
+        serializer.writeInt(requestID);
+        serializer.writeInt(SUCCESS.ordinal());
+        serializer.writeString(group);
+        serializer.writeInt(sequence);
+        serializer.writeString(message);
+    }
+
+    /**
+     * Write a resync response carrying already encoded multicast updates
+     * @param code Failure if updates before the first one are no longer available
+     * @param first Sequence number of the first update
+     * @param updates Encoded updates, in sequence order
+     * @param message Response message
+     */
+    public void resync(ResponseStatus code, int first, List<byte[]> updates, String message) {
+        status = code;
+        account = 0;
+        this.message = message;
+        writeType(MONITOR_RESYNC);
+        serializer.writeInt(requestID);
+        serializer.writeInt(code.ordinal());
+        serializer.writeInt(first);
+        serializer.writeInt(updates.size());
+        for (byte[] update : updates) {
+            serializer.writeBytes(update);
+        }
+        serializer.writeString(message);
+    }
+
+    /**
+     * Write the header of a batch response, the responses of the batch follow
+     * @param count Number of responses in the batch
+     */
+    public void beginBatch(int count) {
+        writeType(BATCH);
+        serializer.writeInt(requestID);
+        serializer.writeInt(SUCCESS.ordinal());
+        serializer.writeInt(count);
+    }
+
+    /**
+     * Write the end of a batch response
+     * @param message Response message of the batch
+     */
+    public void endBatch(String message) {
+        serializer.writeString(message);
+        status = SUCCESS;
+        this.message = message;
+    }
+
+    /**
+     * Account carried by the written response
+     * @return Account number, 0 if the response carries none
+     */
+    public int getAccount() {
+        return account;
+    }
+
+    /**
+     * Message of the written response
+     * @return Response message, null if nothing was written yet
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Status of the written response
+     * @return Response status, null if nothing was written yet
+     */
+    public ResponseStatus getStatus() {
+        return status;
+    }
+
+    private void write(char type, ResponseStatus code, int account, long amount, String message) {
+        status = code;
+        this.account = account;
+        this.message = message;
+        writeType(type);
+        serializer.writeInt(requestID);
+        serializer.writeInt(code.ordinal());
+        switch (type) {
+            case ACCOUNT_CANCEL:
+            case BALANCE_CHECK:
+            case BALANCE_UPDATE:
+            case TRANSFER:
+                if (code == SUCCESS) {
+                    serializer.writeInt(account);
+                    if (fixedPoint) {
+                        serializer.writeLong(amount);
+                        serializer.writeLong(lsnSource.getAsLong());
+                    } else {
+                        serializer.writeFloat(Amounts.toFloat(amount));
+                    }
+                }
+                break;
+            case MONITOR_RESYNC:
+                // read whatever the status: a failure carries no sequence and no updates
+                serializer.writeInt(0);
+                serializer.writeInt(0);
+                break;
+            case BATCH:
+                // a rejected nested batch is answered with no responses
+                serializer.writeInt(0);
+                break;
+        }
+        serializer.writeString(message);
+    }
+
+    private void writeType(char type) {
+        serializer.writeChar(fixedPoint ? (char) (type | FIXED_POINT) : type);
+    }
+}
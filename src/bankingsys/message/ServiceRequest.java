@@ -6,6 +6,8 @@ import bankingsys.io.Serializer;
 import bankingsys.server.model.BankAccount.Currency;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 import static bankingsys.Constant.*;
 
@@ -15,15 +17,22 @@ import static bankingsys.Constant.*;
 public class ServiceRequest implements Serializable {
 
     private Integer requestID;
+    private Integer requestAck = -1;
     private Character requestType;
     private String requestName;
     private Integer requestAccount;
     private String requestPassword;
-    private Float requestAmount;
+    private Long requestAmount;
     private Integer requestTargetAccount;
     private Currency requestCurrency;
     private InetAddress requestAddress;
     private Integer requestDelay;
+    private List<Integer> requestMonitorAccounts;
+    private List<ServiceRequest> requestBatch;
+    private Integer requestSequence;
+    private long requestLsn = 0;
+    private String requestRing;
+    private String requestTargetRing;
 
     public int getRequestDelay() {
         return requestDelay;
@@ -48,13 +57,13 @@ public class ServiceRequest implements Serializable {
      * @param requestName Request account name
      * @param requestAccount Request account number
      * @param requestPassword Request account password
-     * @param requestAmount Request amount
+     * @param requestAmount Request amount in minor units
      * @param requestTargetAccount Request target account number
      * @param requestCurrency Request currency
      * @param requestDelay Request monitoring interval
      */
     public ServiceRequest(Integer requestID, Character requestType, String requestName,
-                          Integer requestAccount, String requestPassword, Float requestAmount,
+                          Integer requestAccount, String requestPassword, Long requestAmount,
                           Integer requestTargetAccount, Currency requestCurrency, Integer requestDelay) {
         this.requestID = requestID;
         this.requestType = requestType;
@@ -67,6 +76,84 @@ public class ServiceRequest implements Serializable {
         this.requestDelay = requestDelay;
     }
 
+    /**
+     * Construct a batch request message
+     * @param requestID Request id of the batch
+     * @param requestBatch Requests carried by the batch, each with its own request id
+     * @return Batch request
+     */
+    public static ServiceRequest batch(Integer requestID, List<ServiceRequest> requestBatch) {
+        ServiceRequest request = new ServiceRequest(requestID, BATCH, null, null, null, null, null, null, null);
+        request.requestBatch = requestBatch;
+        return request;
+    }
+
+    /**
+     * Construct a request for the multicast monitoring updates from a sequence number on
+     * @param requestID Request id
+     * @param requestSequence Sequence number of the first missing update
+     * @return Resync request
+     */
+    public static ServiceRequest resync(Integer requestID, int requestSequence) {
+        ServiceRequest request = new ServiceRequest(requestID, MONITOR_RESYNC, null, null, null, null, null, null, null);
+        request.requestSequence = requestSequence;
+        return request;
+    }
+
+    /**
+     * Construct a request for the metrics of the server
+     * @param requestID Request id
+     * @return Stats request
+     */
+    public static ServiceRequest stats(Integer requestID) {
+        return new ServiceRequest(requestID, STATS, null, null, null, null, null, null, null);
+    }
+
+    /**
+     * Construct a request telling a shard to move its accounts from one placement to another
+     * @param requestID Request id
+     * @param ring Text of the placement the cluster runs with
+     * @param targetRing Text of the placement to move to, with a higher epoch
+     * @return Rebalance request
+     */
+    public static ServiceRequest rebalance(Integer requestID, String ring, String targetRing) {
+        ServiceRequest request = new ServiceRequest(requestID, REBALANCE, null, null, null, null, null, null, null);
+        request.requestRing = ring;
+        request.requestTargetRing = targetRing;
+        return request;
+    }
+
+    /**
+     * Construct a request of a coordinating shard asking the shard of a target account to
+     * prepare the deposit half of a transfer
+     * @param transaction Transaction number, unique for the coordinator
+     * @param coordinator Incarnation of the coordinating shard
+     * @param targetAccount Target account number
+     * @param amount Amount to deposit in minor units
+     * @param currency Currency of the source account
+     * @return Prepare request
+     */
+    public static ServiceRequest prepare(Integer transaction, int coordinator, int targetAccount, long amount,
+                                         Currency currency) {
+        ServiceRequest request = new ServiceRequest(transaction, SHARD_PREPARE, null, targetAccount, null, amount,
+                null, currency, null);
+        request.requestSequence = coordinator;
+        return request;
+    }
+
+    /**
+     * Construct a request of a coordinating shard telling the outcome of a prepared transfer
+     * @param transaction Transaction number of the prepare request
+     * @param decision SHARD_COMMIT or SHARD_ABORT
+     * @param coordinator Incarnation of the coordinating shard
+     * @return Decision request
+     */
+    public static ServiceRequest decision(Integer transaction, char decision, int coordinator) {
+        ServiceRequest request = new ServiceRequest(transaction, decision, null, null, null, null, null, null, null);
+        request.requestSequence = coordinator;
+        return request;
+    }
+
     public Integer getRequestID() {
         return requestID;
     }
@@ -75,6 +162,18 @@ public class ServiceRequest implements Serializable {
         this.requestID = requestID;
     }
 
+    public int getRequestAck() {
+        return requestAck;
+    }
+
+    /**
+     * Piggyback the highest request id up to which the client received every reply
+     * @param requestAck Highest acknowledged request id, -1 if none
+     */
+    public void setRequestAck(int requestAck) {
+        this.requestAck = requestAck;
+    }
+
     public InetAddress getRequestAddress() {
         return requestAddress;
     }
@@ -99,7 +198,7 @@ public class ServiceRequest implements Serializable {
         return requestPassword;
     }
 
-    public float getRequestAmount() {
+    public long getRequestAmount() {
         return requestAmount;
     }
 
@@ -111,77 +210,198 @@ public class ServiceRequest implements Serializable {
         return requestCurrency;
     }
 
+    public List<ServiceRequest> getRequestBatch() {
+        return requestBatch;
+    }
+
+    public int getRequestSequence() {
+        return requestSequence;
+    }
+
+    public long getRequestLsn() {
+        return requestLsn;
+    }
+
+    /**
+     * Ask a replica for read-your-writes: a balance check is only answered by a replica that
+     * applied the log up to the LSN
+     * @param requestLsn Highest LSN carried by a response the client received, 0 for any
+     */
+    public void setRequestLsn(long requestLsn) {
+        this.requestLsn = requestLsn;
+    }
+
+    public String getRequestRing() {
+        return requestRing;
+    }
+
+    public String getRequestTargetRing() {
+        return requestTargetRing;
+    }
+
+    public List<Integer> getRequestMonitorAccounts() {
+        return requestMonitorAccounts;
+    }
+
+    /**
+     * Restrict a monitoring request to some accounts
+     * @param requestMonitorAccounts Accounts to monitor, null or empty to monitor all accounts
+     */
+    public void setRequestMonitorAccounts(List<Integer> requestMonitorAccounts) {
+        this.requestMonitorAccounts = requestMonitorAccounts;
+    }
+
     @Override
     public void write(Serializer serializer) {
-        serializer.writeChar(requestType);
+        serializer.writeChar((char) (requestType | FIXED_POINT));
         serializer.writeInt(requestID);
+        serializer.writeInt(requestAck);
         switch (requestType) {
             case ACCOUNT_CREATE:
             case BALANCE_CHECK:
                 serializer.writeString(requestName);
                 serializer.writeInt(requestAccount);
                 serializer.writeString(requestPassword);
+                if (requestType == BALANCE_CHECK) {
+                    serializer.writeLong(requestLsn);
+                }
                 break;
             case ACCOUNT_CANCEL:
                 serializer.writeString(requestName);
                 serializer.writeString(requestPassword);
-                serializer.writeFloat(requestAmount);
+                serializer.writeLong(requestAmount);
                 serializer.writeInt(requestCurrency.ordinal());
                 break;
             case ACCOUNT_MONITOR:
                 serializer.writeInt(requestDelay);
+                // no accounts stands for all accounts
+                if (requestMonitorAccounts == null) {
+                    serializer.writeInt(0);
+                } else {
+                    serializer.writeInt(requestMonitorAccounts.size());
+                    for (Integer account : requestMonitorAccounts) {
+                        serializer.writeInt(account);
+                    }
+                }
                 break;
             case BALANCE_UPDATE:
                 serializer.writeString(requestName);
                 serializer.writeInt(requestAccount);
                 serializer.writeString(requestPassword);
-                serializer.writeFloat(requestAmount);
+                serializer.writeLong(requestAmount);
                 serializer.writeInt(requestCurrency.ordinal());
                 break;
             case TRANSFER:
                 serializer.writeString(requestName);
                 serializer.writeInt(requestAccount);
                 serializer.writeString(requestPassword);
-                serializer.writeFloat(requestAmount);
+                serializer.writeLong(requestAmount);
                 serializer.writeInt(requestTargetAccount);
                 break;
+            case BATCH:
+                serializer.writeInt(requestBatch.size());
+                for (ServiceRequest request : requestBatch) {
+                    request.write(serializer);
+                }
+                break;
+            case MONITOR_RESYNC:
+            case SHARD_COMMIT:
+            case SHARD_ABORT:
+                serializer.writeInt(requestSequence);
+                break;
+            case REBALANCE:
+                serializer.writeString(requestRing);
+                serializer.writeString(requestTargetRing);
+                break;
+            case SHARD_PREPARE:
+                serializer.writeInt(requestSequence);
+                serializer.writeInt(requestAccount);
+                serializer.writeLong(requestAmount);
+                serializer.writeInt(requestCurrency.ordinal());
+                break;
         }
     }
 
     @Override
     public void read(Deserializer deserializer) {
-        requestType = deserializer.readChar();
+        char type = deserializer.readChar();
+        boolean fixedPoint = (type & FIXED_POINT) != 0;
+        requestType = (char) (type & ~FIXED_POINT);
         requestID = deserializer.readInt();
+        requestAck = deserializer.readInt();
         switch (requestType) {
             case ACCOUNT_CREATE:
             case BALANCE_CHECK:
                 requestName = deserializer.readString();
                 requestAccount = deserializer.readInt();
                 requestPassword = deserializer.readString();
+                // float-format clients send no LSN
+                if (requestType == BALANCE_CHECK && fixedPoint) {
+                    requestLsn = deserializer.readLong();
+                }
                 break;
             case ACCOUNT_CANCEL:
                 requestName = deserializer.readString();
                 requestPassword = deserializer.readString();
-                requestAmount = deserializer.readFloat();
+                requestAmount = readAmount(deserializer, fixedPoint);
                 requestCurrency = Currency.values()[deserializer.readInt()];
                 break;
             case ACCOUNT_MONITOR:
                 requestDelay = deserializer.readInt();
+                int accounts = deserializer.readInt();
+                requestMonitorAccounts = new ArrayList<>(accounts);
+                for (int i = 0; i < accounts; i++) {
+                    requestMonitorAccounts.add(deserializer.readInt());
+                }
                 break;
             case BALANCE_UPDATE:
                 requestName = deserializer.readString();
                 requestAccount = deserializer.readInt();
                 requestPassword = deserializer.readString();
-                requestAmount = deserializer.readFloat();
+                requestAmount = readAmount(deserializer, fixedPoint);
                 requestCurrency = Currency.values()[deserializer.readInt()];
                 break;
             case TRANSFER:
                 requestName = deserializer.readString();
                 requestAccount = deserializer.readInt();
                 requestPassword = deserializer.readString();
-                requestAmount = deserializer.readFloat();
+                requestAmount = readAmount(deserializer, fixedPoint);
                 requestTargetAccount = deserializer.readInt();
                 break;
+            case BATCH:
+                int count = deserializer.readInt();
+                requestBatch = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    ServiceRequest request = new ServiceRequest();
+                    request.read(deserializer);
+                    requestBatch.add(request);
+                }
+                break;
+            case MONITOR_RESYNC:
+            case SHARD_COMMIT:
+            case SHARD_ABORT:
+                requestSequence = deserializer.readInt();
+                break;
+            case REBALANCE:
+                requestRing = deserializer.readString();
+                requestTargetRing = deserializer.readString();
+                break;
+            case SHARD_PREPARE:
+                requestSequence = deserializer.readInt();
+                requestAccount = deserializer.readInt();
+                requestAmount = deserializer.readLong();
+                requestCurrency = Currency.values()[deserializer.readInt()];
+                break;
         }
     }
+
+    /**
+     * Read an amount in the encoding of the request
+     * @param deserializer Deserializer positioned on the amount
+     * @param fixedPoint Whether the amount is a long in minor units, otherwise a float of a float-format client
+     * @return Amount in minor units
+     */
+    private static long readAmount(Deserializer deserializer, boolean fixedPoint) {
+        return fixedPoint ? deserializer.readLong() : Amounts.fromFloat(deserializer.readFloat());
+    }
 }
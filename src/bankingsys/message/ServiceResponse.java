@@ -4,6 +4,8 @@ import bankingsys.io.Deserializer;
 import bankingsys.io.Serializable;
 import bankingsys.io.Serializer;
 
+import java.util.ArrayList;
+import java.util.List;
 
 import static bankingsys.Constant.*;
 import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
@@ -15,14 +17,20 @@ public class ServiceResponse implements Serializable {
 
     public enum ResponseStatus {
         SUCCESS,
-        FAILURE;
+        FAILURE,
+        REDIRECT; // the account is served by another shard, see getRedirectAddress()
     }
 
     private Character responseType;
+    private Integer responseID = -1;
     private ResponseStatus responseCode;
     private Integer responseAccount;
     private String responseMessage;
-    private Float responseAmount;
+    private Long responseAmount;
+    private List<ServiceResponse> responseBatch;
+    private String responseGroup;
+    private Integer responseSequence;
+    private long responseLsn = 0;
 
     public ServiceResponse() {}
 
@@ -32,10 +40,10 @@ public class ServiceResponse implements Serializable {
      * @param responseCode Response code
      * @param responseAccount Response account number
      * @param responseMessage Response message
-     * @param responseAmount Response account balance
+     * @param responseAmount Response account balance in minor units
      */
     public ServiceResponse(Character responseType, ResponseStatus responseCode,
-                           Integer responseAccount, String responseMessage, Float responseAmount) {
+                           Integer responseAccount, String responseMessage, Long responseAmount) {
         this.responseType = responseType;
         this.responseCode = responseCode;
         this.responseAccount = responseAccount;
@@ -43,6 +51,30 @@ public class ServiceResponse implements Serializable {
         this.responseAmount = responseAmount;
     }
 
+    /**
+     * Construct a batch response message
+     * @param responseBatch Responses to the requests of the batch, in request order
+     * @param responseMessage Response message
+     * @return Batch response
+     */
+    public static ServiceResponse batch(List<ServiceResponse> responseBatch, String responseMessage) {
+        ServiceResponse response = new ServiceResponse(BATCH, SUCCESS, null, responseMessage, null);
+        response.responseBatch = responseBatch;
+        return response;
+    }
+
+    /**
+     * Id of the request this response answers, -1 for messages not answering a request
+     * @return Request id
+     */
+    public Integer getResponseID() {
+        return responseID;
+    }
+
+    public void setResponseID(Integer responseID) {
+        this.responseID = responseID;
+    }
+
     public Character getResponseType() {
         return responseType;
     }
@@ -59,26 +91,104 @@ public class ServiceResponse implements Serializable {
         return responseMessage;
     }
 
-    public Float getResponseAmount() {
+    /**
+     * Balance carried by the response
+     * @return Balance in minor units
+     */
+    public Long getResponseAmount() {
         return responseAmount;
     }
 
+    /**
+     * Position in the log of the primary the response reflects, to be passed back for
+     * read-your-writes
+     * @return Log sequence number, 0 if the response carries none
+     */
+    public long getResponseLsn() {
+        return responseLsn;
+    }
+
+    /**
+     * Shard to send the request to again, from a redirect response
+     * @return Client address of the shard as "host:port", null if the response is no redirect
+     */
+    public String getRedirectAddress() {
+        if (responseCode != ResponseStatus.REDIRECT) {
+            return null;
+        }
+        int newline = responseMessage.indexOf('\n');
+        return newline < 0 ? responseMessage : responseMessage.substring(0, newline);
+    }
+
+    /**
+     * Placement of the accounts the shard answering with a redirect runs with
+     * @return Text of the placement, null if the response carries none
+     */
+    public String getRedirectRing() {
+        if (responseCode != ResponseStatus.REDIRECT) {
+            return null;
+        }
+        int newline = responseMessage.indexOf('\n');
+        return newline < 0 ? null : responseMessage.substring(newline + 1);
+    }
+
+    public List<ServiceResponse> getResponseBatch() {
+        return responseBatch;
+    }
+
+    /**
+     * Multicast group carrying the updates of a monitoring registration
+     * @return Group address and port as "address:port", empty if updates are sent to the client
+     */
+    public String getResponseGroup() {
+        return responseGroup;
+    }
+
+    /**
+     * Sequence number of the next multicast update of a monitoring registration, or of the
+     * first update carried by a resync response
+     * @return Sequence number
+     */
+    public Integer getResponseSequence() {
+        return responseSequence;
+    }
+
     @Override
     public void write(Serializer serializer) {
-        serializer.writeChar(responseType);
+        serializer.writeChar((char) (responseType | FIXED_POINT));
+        serializer.writeInt(responseID);
         serializer.writeInt(responseCode.ordinal());
         switch (responseType) {
             case ACCOUNT_CREATE:
-            case ACCOUNT_MONITOR:
             case END_MONITOR:
                 break;
+            case ACCOUNT_MONITOR:
+                if (responseCode == SUCCESS) {
+                    serializer.writeString(responseGroup);
+                    serializer.writeInt(responseSequence);
+                }
+                break;
             case ACCOUNT_CANCEL:
             case BALANCE_CHECK:
             case BALANCE_UPDATE:
             case TRANSFER:
                 if (responseCode == SUCCESS) {
                     serializer.writeInt(responseAccount);
-                    serializer.writeFloat(responseAmount);
+                    serializer.writeLong(responseAmount);
+                    serializer.writeLong(responseLsn);
+                }
+                break;
+            case BATCH:
+                serializer.writeInt(responseBatch.size());
+                for (ServiceResponse response : responseBatch) {
+                    response.write(serializer);
+                }
+                break;
+            case MONITOR_RESYNC:
+                serializer.writeInt(responseSequence);
+                serializer.writeInt(responseBatch.size());
+                for (ServiceResponse response : responseBatch) {
+                    response.write(serializer);
                 }
                 break;
         }
@@ -87,7 +197,11 @@ public class ServiceResponse implements Serializable {
 
     @Override
     public void read(Deserializer deserializer) {
-        responseType = deserializer.readChar();
+        char type = deserializer.readChar();
+        // servers answer float-format clients with float amounts
+        boolean fixedPoint = (type & FIXED_POINT) != 0;
+        responseType = (char) (type & ~FIXED_POINT);
+        responseID = deserializer.readInt();
         responseCode = ResponseStatus.values()[deserializer.readInt()];
         switch (responseType) {
             case ACCOUNT_CANCEL:
@@ -96,10 +210,42 @@ public class ServiceResponse implements Serializable {
             case TRANSFER:
                 if (responseCode == SUCCESS) {
                     responseAccount = deserializer.readInt();
-                    responseAmount = deserializer.readFloat();
+                    responseAmount = fixedPoint ? deserializer.readLong()
+                            : Amounts.fromFloat(deserializer.readFloat());
+                    if (fixedPoint) {
+                        responseLsn = deserializer.readLong();
+                    }
+                }
+                break;
+            case ACCOUNT_MONITOR:
+                if (responseCode == SUCCESS) {
+                    responseGroup = deserializer.readString();
+                    responseSequence = deserializer.readInt();
                 }
                 break;
+            case MONITOR_RESYNC:
+                responseSequence = deserializer.readInt();
+                // the updates are read like a batch
+                readBatch(deserializer);
+                break;
+            case BATCH:
+                readBatch(deserializer);
+                break;
         }
         this.responseMessage = deserializer.readString();
     }
+
+    /**
+     * Read the count and the nested responses of a batch
+     * @param deserializer Deserializer positioned on the count
+     */
+    private void readBatch(Deserializer deserializer) {
+        int count = deserializer.readInt();
+        responseBatch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ServiceResponse response = new ServiceResponse();
+            response.read(deserializer);
+            responseBatch.add(response);
+        }
+    }
 }
@@ -0,0 +1,47 @@
+package bankingsys.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Fixed-size pool of direct byte buffers, to be used by a single thread
+ */
+public class BufferPool {
+    private final ArrayDeque<ByteBuffer> buffers;
+
+    /**
+     * Create a pool and allocate all of its buffers
+     * @param count Number of buffers
+     * @param bufferSize Capacity of each buffer
+     */
+    public BufferPool(int count, int bufferSize) {
+        buffers = new ArrayDeque<>(count);
+        for (int i = 0; i < count; i++) {
+            buffers.push(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    /**
+     * Take a cleared buffer from the pool
+     * @return A buffer, null if the pool is exhausted
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool
+     * @param buffer Buffer previously acquired from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        buffers.push(buffer);
+    }
+
+    public int available() {
+        return buffers.size();
+    }
+}
@@ -0,0 +1,202 @@
+package bankingsys.net;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static bankingsys.Constant.*;
+
+/**
+ * Equivalent servers a client can send any request to, e.g. one server reachable on several
+ * addresses or a primary and the address it is restarted on, ranked by recent latency.
+ *
+ * Every endpoint has its own round trip time estimator for its retransmission timeout, a
+ * smoothed latency in microseconds for the ranking and a window of its latest round trips
+ * whose 95th percentile is the delay after which an idempotent request is hedged to the next
+ * endpoint. An endpoint that let a request time out is ranked last for a while, and a small
+ * share of the requests goes to a random endpoint so that the latency of the others stays
+ * known. Thread-safe.
+ */
+public class Endpoints {
+
+    private static final long SUSPECT_TIME = 5000;
+    private static final int EXPLORE_ONE_IN = 20;
+    private static final int WINDOW = 256;
+    private static final int MIN_SAMPLES = 16;
+    private static final double HEDGE_PERCENTILE = 95;
+    private static final double ALPHA = 1.0 / 8;
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+
+    /**
+     * Create a set of endpoints
+     * @param addresses Server addresses, at least one
+     */
+    public Endpoints(List<InetSocketAddress> addresses) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("No endpoint");
+        }
+        for (InetSocketAddress address : addresses) {
+            endpoints.add(new Endpoint(address));
+        }
+    }
+
+    /**
+     * Endpoints in the order a request tries them: endpoints that recently timed out last,
+     * then by smoothed latency, endpoints without samples first so that each gets measured.
+     * Now and then a random endpoint is moved to the front.
+     * @return Ranked endpoints
+     */
+    public List<Endpoint> rank() {
+        long now = System.currentTimeMillis();
+        Endpoint[] ranked = endpoints.toArray(new Endpoint[0]);
+        // latencies change concurrently, so they are read once before sorting
+        double[] keys = new double[ranked.length];
+        for (int i = 0; i < ranked.length; i++) {
+            keys[i] = ranked[i].isSuspect(now) ? Double.MAX_VALUE : ranked[i].getSmoothedLatency();
+        }
+        // insertion sort, there are a few endpoints
+        for (int i = 1; i < ranked.length; i++) {
+            for (int j = i; j > 0 && keys[j] < keys[j - 1]; j--) {
+                double key = keys[j];
+                keys[j] = keys[j - 1];
+                keys[j - 1] = key;
+                Endpoint endpoint = ranked[j];
+                ranked[j] = ranked[j - 1];
+                ranked[j - 1] = endpoint;
+            }
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (ranked.length > 1 && random.nextInt(EXPLORE_ONE_IN) == 0) {
+            int explored = random.nextInt(ranked.length);
+            Endpoint endpoint = ranked[explored];
+            ranked[explored] = ranked[0];
+            ranked[0] = endpoint;
+        }
+        return Arrays.asList(ranked);
+    }
+
+    /**
+     * Endpoint of an address
+     * @param address Socket address, e.g. the one a reply came from
+     * @return Endpoint, null if the address is none of the endpoints
+     */
+    public Endpoint find(SocketAddress address) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.address.equals(address)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    /**
+     * Report of the latency of every endpoint
+     * @return One line per endpoint
+     */
+    public String report() {
+        long now = System.currentTimeMillis();
+        StringBuilder builder = new StringBuilder();
+        for (Endpoint endpoint : endpoints) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(endpoint.address)
+                    .append(": latency=").append(String.format("%.3f", endpoint.getSmoothedLatency() / 1000))
+                    .append(" ms hedge-delay=").append(endpoint.getHedgeDelay())
+                    .append(" ms samples=").append(endpoint.getSampleCount())
+                    .append(endpoint.isSuspect(now) ? " timed out recently" : "");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * One server address with its latency statistics
+     */
+    public static class Endpoint {
+        private final InetSocketAddress address;
+        private final RttEstimator estimator = new RttEstimator(TIMEOUT, MIN_TIMEOUT, MAX_TIMEOUT);
+        // guarded by this
+        private LatencyHistogram window = new LatencyHistogram();
+        private double smoothedLatency = 0;
+        private long samples = 0;
+        private long hedgeDelay = -1;
+        private volatile long suspectUntil = 0;
+
+        private Endpoint(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * Round trip time estimator giving the retransmission timeouts of the endpoint
+         * @return Estimator
+         */
+        public RttEstimator getEstimator() {
+            return estimator;
+        }
+
+        /**
+         * Add a round trip time sample, only to be taken from a copy the endpoint received once
+         * @param micros Measured round trip time in microseconds
+         */
+        public void sample(long micros) {
+            estimator.sample(micros / 1000);
+            suspectUntil = 0;
+            synchronized (this) {
+                smoothedLatency = samples == 0 ? micros : (1 - ALPHA) * smoothedLatency + ALPHA * micros;
+                samples++;
+                window.record(micros);
+                if (window.getCount() % MIN_SAMPLES == 0) {
+                    hedgeDelay = Math.max(1, (window.getPercentile(HEDGE_PERCENTILE) + 999) / 1000);
+                }
+                if (window.getCount() == WINDOW) {
+                    window = new LatencyHistogram();
+                }
+            }
+        }
+
+        /**
+         * Rank the endpoint last for a while, after a request to it timed out
+         */
+        public void failed() {
+            suspectUntil = System.currentTimeMillis() + SUSPECT_TIME;
+        }
+
+        /**
+         * Delay after which an idempotent request sent to the endpoint is hedged, the 95th
+         * percentile of its latest round trips
+         * @return Delay in milliseconds, the estimate of the estimator before enough samples
+         */
+        public synchronized long getHedgeDelay() {
+            return hedgeDelay >= 0 ? hedgeDelay : estimator.getHedgeDelay();
+        }
+
+        /**
+         * Smoothed round trip time used for ranking
+         * @return Latency in microseconds, 0 before the first sample
+         */
+        public synchronized double getSmoothedLatency() {
+            return smoothedLatency;
+        }
+
+        public synchronized long getSampleCount() {
+            return samples;
+        }
+
+        private boolean isSuspect(long now) {
+            return now < suspectUntil;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package bankingsys.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with a bounded relative error, in the style of HdrHistogram.
+ *
+ * Values are counted in log-linear buckets: values below 128 exactly, larger values in
+ * 64 sub-buckets per power of two, so a recorded value is reported at most 1/64 (1.6%)
+ * above its true value while the histogram spans the whole long range in a few thousand
+ * counters. Recording takes constant time and is thread-safe, percentiles are read from
+ * a consistent enough view while recording goes on.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+    private static final int COUNTERS = (64 - SUB_BUCKET_BITS + 2) * HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(COUNTERS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Count a value
+     * @param value Value to count, negative values count as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry until the maximum is at least the value
+        }
+    }
+
+    /**
+     * Add the counts of another histogram
+     * @param other Histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < COUNTERS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        total.addAndGet(other.total.get());
+        sum.addAndGet(other.sum.get());
+        long otherMax = other.max.get();
+        long current;
+        while (otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax)) {
+            // retry until the maximum is at least the other maximum
+        }
+    }
+
+    /**
+     * Value below or at which a percentage of the counted values lie
+     * @param percentile Percentage between 0 and 100
+     * @return Highest value of the bucket the percentile falls in, 0 if nothing was counted
+     */
+    public long getPercentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < COUNTERS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = total.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * Bucket of a value: the magnitude selects a power of two, the top bits of the value
+     * select the sub-bucket within it
+     * @param value Non-negative value
+     * @return Counter index
+     */
+    private static int index(long value) {
+        int magnitude = 64 - Long.numberOfLeadingZeros(value | ((1 << SUB_BUCKET_BITS) - 1)) - SUB_BUCKET_BITS;
+        return magnitude * HALF_SUB_BUCKETS + (int) (value >>> magnitude);
+    }
+
+    /**
+     * Highest value counted in a bucket
+     * @param index Counter index
+     * @return Highest value of the bucket
+     */
+    private static long highestValue(int index) {
+        if (index < 2 * HALF_SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = index / HALF_SUB_BUCKETS - 1;
+        long subBucket = index - magnitude * HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+}
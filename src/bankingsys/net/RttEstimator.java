@@ -0,0 +1,85 @@
+package bankingsys.net;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Round trip time estimator computing retransmission timeouts as in RFC 6298
+ *
+ * The timeout is the smoothed round trip time plus four times its mean deviation, clamped
+ * to [minTimeout, maxTimeout]. Retransmissions back off exponentially from it with random
+ * jitter, so clients that lost replies together do not retry in lockstep.
+ */
+public class RttEstimator {
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+
+    private final long minTimeout;
+    private final long maxTimeout;
+    private double smoothedRtt = -1;
+    private double rttVariance;
+    private long timeout;
+
+    /**
+     * Create an estimator without samples
+     * @param initialTimeout Timeout in milliseconds used until the first sample
+     * @param minTimeout Lower bound of the timeout in milliseconds
+     * @param maxTimeout Upper bound of the timeout and of its backoff in milliseconds
+     */
+    public RttEstimator(long initialTimeout, long minTimeout, long maxTimeout) {
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+        this.timeout = initialTimeout;
+    }
+
+    /**
+     * Add a round trip time sample, only to be taken from requests that were sent once
+     * @param rtt Measured round trip time in milliseconds
+     */
+    public synchronized void sample(long rtt) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2.0;
+        } else {
+            rttVariance = (1 - BETA) * rttVariance + BETA * Math.abs(smoothedRtt - rtt);
+            smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * rtt;
+        }
+        timeout = clamp((long) Math.ceil(smoothedRtt + 4 * rttVariance));
+    }
+
+    /**
+     * Return the timeout of a transmission
+     * @param attempt Number of earlier transmissions of the same request
+     * @return Timeout in milliseconds, drawn uniformly from the backed off range for retransmissions
+     */
+    public synchronized long getTimeout(int attempt) {
+        if (attempt == 0) {
+            return timeout;
+        }
+        long backoff = timeout << Math.min(attempt, 16);
+        long ceiling = Math.min(maxTimeout, backoff);
+        // equal jitter: at least half of the backed off timeout, the rest drawn at random
+        return clamp(ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1));
+    }
+
+    /**
+     * Return the delay after which an idempotent request is hedged, a round trip time that
+     * most replies beat but well below the retransmission timeout
+     * @return Delay in milliseconds, -1 before the first sample
+     */
+    public synchronized long getHedgeDelay() {
+        return smoothedRtt < 0 ? -1 : Math.max(1, (long) Math.ceil(smoothedRtt + 2 * rttVariance));
+    }
+
+    /**
+     * Return the smoothed round trip time
+     * @return Smoothed round trip time in milliseconds, -1 before the first sample
+     */
+    public synchronized double getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    private long clamp(long value) {
+        return Math.max(minTimeout, Math.min(maxTimeout, value));
+    }
+}
@@ -0,0 +1,381 @@
+package bankingsys.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Placement of the accounts on the shards of a cluster, read from a file shared by the
+ * servers and the clients. Accounts are either partitioned in ranges, each line describing
+ * one shard as
+ *
+ *   index first-account last-account host:port host:peer-port
+ *
+ * with shards owning disjoint, inclusive ranges of account numbers, or placed by consistent
+ * hashing, each line describing one shard as
+ *
+ *   index host:port host:peer-port
+ *
+ * Every shard then has a number of virtual nodes on a hash ring, set by a line
+ * "virtual-nodes N", and owns the accounts hashing between the previous virtual node and
+ * one of its own. A shard joining or leaving the ring only moves the accounts of the ring
+ * segments it takes or gives up, spread over all the other shards. A line "epoch N"
+ * numbers the maps of a cluster whose shards change, a newer map replaces an older one.
+ *
+ * Clients send the requests on an account to the first address of the shard owning it,
+ * shards run transfers and move accounts between them over the peer addresses. Empty
+ * lines and lines starting with '#' are ignored.
+ */
+public class ShardMap {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 64;
+
+    private final List<Shard> shards;
+    private final Shard[] byRange;
+    private final long epoch;
+    private final int virtualNodes; // 0 for range partitions
+    private final int[] ring;       // sorted positions of the virtual nodes
+    private final Shard[] ringOwners;
+
+    /**
+     * Create a map partitioning the accounts in ranges
+     * @param shards Shards, indexed from 0 in list order
+     * @throws IllegalArgumentException If shard indexes don't follow the list or ranges overlap
+     */
+    public ShardMap(List<Shard> shards) {
+        this(shards, 0, 0);
+    }
+
+    /**
+     * Create a map
+     * @param shards Shards, indexed from 0 in list order
+     * @param epoch Version of the map in its cluster
+     * @param virtualNodes Virtual nodes per shard on the hash ring, 0 to partition in ranges
+     * @throws IllegalArgumentException If shard indexes don't follow the list or ranges overlap
+     */
+    public ShardMap(List<Shard> shards, long epoch, int virtualNodes) {
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.epoch = epoch;
+        this.virtualNodes = virtualNodes;
+        for (int i = 0; i < shards.size(); i++) {
+            if (shards.get(i).index != i) {
+                throw new IllegalArgumentException("Shard " + shards.get(i).index + " listed at position " + i);
+            }
+        }
+        if (virtualNodes > 0) {
+            this.byRange = null;
+            long[] nodes = new long[shards.size() * virtualNodes];
+            for (Shard shard : shards) {
+                for (int v = 0; v < virtualNodes; v++) {
+                    // position in the high half, shard index in the low half breaks ties
+                    nodes[shard.index * virtualNodes + v] = (long) position(shard, v) << 32 | shard.index;
+                }
+            }
+            Arrays.sort(nodes);
+            this.ring = new int[nodes.length];
+            this.ringOwners = new Shard[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                ring[i] = (int) (nodes[i] >> 32);
+                ringOwners[i] = shards.get((int) nodes[i]);
+            }
+            return;
+        }
+        this.ring = null;
+        this.ringOwners = null;
+        this.byRange = shards.toArray(new Shard[0]);
+        Arrays.sort(byRange, Comparator.comparingInt(Shard::getFirstAccount));
+        for (int i = 0; i < byRange.length; i++) {
+            if (byRange[i].firstAccount < 0 || byRange[i].lastAccount < byRange[i].firstAccount) {
+                throw new IllegalArgumentException("Invalid account range of shard " + byRange[i].index);
+            }
+            if (i > 0 && byRange[i].firstAccount <= byRange[i - 1].lastAccount) {
+                throw new IllegalArgumentException("Shards " + byRange[i - 1].index + " and " + byRange[i].index
+                        + " overlap");
+            }
+        }
+    }
+
+    /**
+     * Read a map from a file
+     * @param path File listing the shards
+     * @return Map
+     * @throws IOException If the file can't be read
+     * @throws IllegalArgumentException If a line is malformed or the shards are inconsistent
+     */
+    public static ShardMap load(Path path) throws IOException {
+        return parse(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a map from its text, e.g. the one of {@link #describe()} received from a server
+     * @param text Lines of a map file
+     * @return Map
+     * @throws IllegalArgumentException If a line is malformed or the shards are inconsistent
+     */
+    public static ShardMap parse(String text) {
+        List<Shard> shards = new ArrayList<>();
+        long epoch = 0;
+        int virtualNodes = -1;
+        boolean hashed = false;
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length == 2 && fields[0].equals("epoch")) {
+                epoch = Long.parseLong(fields[1]);
+            } else if (fields.length == 2 && fields[0].equals("virtual-nodes")) {
+                virtualNodes = Integer.parseInt(fields[1]);
+            } else if (fields.length == 3 && (shards.isEmpty() || hashed)) {
+                hashed = true;
+                shards.add(new Shard(Integer.parseInt(fields[0]), address(fields[1]), address(fields[2])));
+            } else if (fields.length == 5 && !hashed) {
+                shards.add(new Shard(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                        Integer.parseInt(fields[2]), address(fields[3]), address(fields[4])));
+            } else {
+                throw new IllegalArgumentException("Malformed shard line '" + line + "'");
+            }
+        }
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("No shard in the map");
+        }
+        if (hashed) {
+            return new ShardMap(shards, epoch, virtualNodes > 0 ? virtualNodes : DEFAULT_VIRTUAL_NODES);
+        }
+        return new ShardMap(shards, epoch, 0);
+    }
+
+    /**
+     * Epoch of a map text without parsing the shards
+     * @param text Lines of a map file
+     * @return Epoch, 0 if the text sets none
+     * @throws IllegalArgumentException If the epoch line is malformed
+     */
+    public static long epochOf(String text) {
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.startsWith("epoch")) {
+                return Long.parseLong(line.substring("epoch".length()).trim());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Text of the map, read back by {@link #parse(String)}
+     * @return Lines of a map file
+     */
+    public String describe() {
+        StringBuilder builder = new StringBuilder("epoch ").append(epoch).append('\n');
+        if (isHashed()) {
+            builder.append("virtual-nodes ").append(virtualNodes).append('\n');
+        }
+        for (Shard shard : shards) {
+            builder.append(shard.index).append(' ');
+            if (!isHashed()) {
+                builder.append(shard.firstAccount).append(' ').append(shard.lastAccount).append(' ');
+            }
+            builder.append(format(shard.address)).append(' ').append(format(shard.peerAddress)).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Shard owning an account number
+     * @param accountNumber Account number
+     * @return Shard, null if no shard owns the number
+     */
+    public Shard shardOf(int accountNumber) {
+        if (isHashed()) {
+            // first virtual node at or after the hash of the account, wrapping around
+            int index = Arrays.binarySearch(ring, hash(accountNumber));
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return ringOwners[index == ring.length ? 0 : index];
+        }
+        int low = 0;
+        int high = byRange.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Shard shard = byRange[middle];
+            if (accountNumber < shard.firstAccount) {
+                high = middle - 1;
+            } else if (accountNumber > shard.lastAccount) {
+                low = middle + 1;
+            } else {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    public Shard getShard(int index) {
+        return shards.get(index);
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    /**
+     * Version of the map, a cluster moving accounts to a new map raises it
+     * @return Epoch, 0 if the file sets none
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Whether accounts are placed by consistent hashing rather than in ranges
+     * @return True for a hash ring
+     */
+    public boolean isHashed() {
+        return virtualNodes > 0;
+    }
+
+    /**
+     * Shard serving clients on an address
+     * @param address Client address of a shard
+     * @return Shard, null if no shard of the map has the address
+     */
+    public Shard find(InetSocketAddress address) {
+        for (Shard shard : shards) {
+            if (shard.address.equals(address)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse an address written as host:port
+     * @param hostAndPort Address
+     * @return Socket address
+     * @throws IllegalArgumentException If the port is missing or not a number
+     */
+    public static InetSocketAddress address(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Missing port in '" + hostAndPort + "'");
+        }
+        return new InetSocketAddress(hostAndPort.substring(0, colon),
+                Integer.parseInt(hostAndPort.substring(colon + 1)));
+    }
+
+    /**
+     * Write an address as host:port, with the host as it was given
+     * @param address Socket address
+     * @return Address
+     */
+    public static String format(InetSocketAddress address) {
+        return address.getHostString() + ":" + address.getPort();
+    }
+
+    /**
+     * Position of a virtual node of a shard on the ring, derived from the shard address so
+     * that it doesn't depend on the other shards
+     * @param shard Shard
+     * @param virtualNode Index of the virtual node
+     * @return Ring position
+     */
+    private static int position(Shard shard, int virtualNode) {
+        CRC32 crc = new CRC32();
+        crc.update((format(shard.address) + "#" + virtualNode).getBytes(StandardCharsets.UTF_8));
+        return hash((int) crc.getValue());
+    }
+
+    /**
+     * Spread a number over the ring, the finalizer of MurmurHash3
+     * @param value Account number or virtual node checksum
+     * @return Ring position
+     */
+    private static int hash(int value) {
+        int h = value;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * One shard of the cluster
+     */
+    public static class Shard {
+        private final int index;
+        private final int firstAccount;
+        private final int lastAccount;
+        private final InetSocketAddress address;
+        private final InetSocketAddress peerAddress;
+
+        /**
+         * Describe a shard
+         * @param index Index of the shard
+         * @param firstAccount First account number owned by the shard
+         * @param lastAccount Last account number owned by the shard
+         * @param address Address the shard serves clients on
+         * @param peerAddress Address the shard serves other shards on
+         */
+        public Shard(int index, int firstAccount, int lastAccount, InetSocketAddress address,
+                     InetSocketAddress peerAddress) {
+            this.index = index;
+            this.firstAccount = firstAccount;
+            this.lastAccount = lastAccount;
+            this.address = address;
+            this.peerAddress = peerAddress;
+        }
+
+        /**
+         * Describe a shard placed on a hash ring, without an account range
+         * @param index Index of the shard
+         * @param address Address the shard serves clients on
+         * @param peerAddress Address the shard serves other shards on
+         */
+        public Shard(int index, InetSocketAddress address, InetSocketAddress peerAddress) {
+            this(index, -1, -1, address, peerAddress);
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getFirstAccount() {
+            return firstAccount;
+        }
+
+        public int getLastAccount() {
+            return lastAccount;
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public InetSocketAddress getPeerAddress() {
+            return peerAddress;
+        }
+
+        @Override
+        public String toString() {
+            if (firstAccount < 0) {
+                return "shard " + index + " at " + address;
+            }
+            return "shard " + index + " [" + firstAccount + ", " + lastAccount + "] at " + address;
+        }
+    }
+}
@@ -1,39 +1,282 @@
 package bankingsys.net;
 
+import bankingsys.net.Endpoints.Endpoint;
+
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static bankingsys.Constant.*;
+
 /**
  * A helper class to implement at-most-once and at-least-once semantics
+ *
+ * Requests are retransmitted on an adaptive timeout with exponential backoff until a reply
+ * arrives or the retry budget runs out. Idempotent requests can be hedged: a second copy is
+ * sent once a typical round trip time has passed without a reply, before the full timeout.
+ * With several equivalent {@link Endpoints}, requests go to the fastest one and hedges to
+ * the next one.
  */
 public class SocketHelper {
 
     private static final Logger logger = Logger.getLogger(SocketHelper.class.getName());
 
+    private final DatagramSocket socket;
+    private final RttEstimator estimator;
+    private final int maxRetries;
+    private boolean hedging = false;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retransmissions = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong staleReplies = new AtomicLong();
+
     /**
-     * Send the given package and return the received reply package
+     * Create a helper with the default timeout bounds
      * @param socket Socket used for sending
+     * @param maxRetries Number of retransmissions before giving up
+     */
+    public SocketHelper(DatagramSocket socket, int maxRetries) {
+        this(socket, new RttEstimator(TIMEOUT, MIN_TIMEOUT, MAX_TIMEOUT), maxRetries);
+    }
+
+    /**
+     * Create a helper
+     * @param socket Socket used for sending
+     * @param estimator Round trip time estimator providing the timeouts
+     * @param maxRetries Number of retransmissions before giving up
+     */
+    public SocketHelper(DatagramSocket socket, RttEstimator estimator, int maxRetries) {
+        this.socket = socket;
+        this.estimator = estimator;
+        this.maxRetries = maxRetries;
+    }
+
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Send the given package and return the received reply package
+     *
+     * Replies whose request id differs from the one of the sent packet are late replies of
+     * earlier requests and are dropped.
      * @param packetToSend Packet to be sent
      * @param packetToReceive Packet to be received
+     * @param idempotent Whether the request may be hedged
+     * @throws SocketTimeoutException If no reply arrived within the retry budget
+     * @throws IOException If the socket is closed
+     */
+    public void sendReliably(DatagramPacket packetToSend, DatagramPacket packetToReceive, boolean idempotent)
+            throws IOException {
+        requests.incrementAndGet();
+        int requestID = readID(packetToSend.getData(), packetToSend.getOffset());
+        long hedgeDelay = hedging && idempotent ? estimator.getHedgeDelay() : -1;
+        byte[] buffer = packetToReceive.getData();
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            if (attempt > 0) {
+                retransmissions.incrementAndGet();
+                logger.log(Level.WARNING, "Retransmitting request " + requestID + ", attempt " + attempt);
+            }
+            long sentAt = System.currentTimeMillis();
+            long deadline = sentAt + estimator.getTimeout(attempt);
+            long hedgeAt = hedgeDelay >= 0 && attempt == 0 ? sentAt + hedgeDelay : -1;
+            boolean hedged = false;
+            transmit(packetToSend);
+            while (true) {
+                long now = System.currentTimeMillis();
+                long wakeUp = hedgeAt >= 0 ? hedgeAt : deadline;
+                if (now >= wakeUp) {
+                    if (hedgeAt < 0) {
+                        break;
+                    }
+                    hedges.incrementAndGet();
+                    transmit(packetToSend);
+                    hedged = true;
+                    hedgeAt = -1;
+                    continue;
+                }
+                socket.setSoTimeout((int) (wakeUp - now));
+                packetToReceive.setData(buffer);
+                try {
+                    socket.receive(packetToReceive);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (readID(buffer, packetToReceive.getOffset()) != requestID) {
+                    staleReplies.incrementAndGet();
+                    continue;
+                }
+                // only replies to a single transmission give an unambiguous sample (Karn's algorithm)
+                if (attempt == 0 && !hedged) {
+                    estimator.sample(System.currentTimeMillis() - sentAt);
+                }
+                return;
+            }
+        }
+        timeouts.incrementAndGet();
+        logger.log(Level.SEVERE, "Timeout on request " + requestID + " after " + maxRetries + " retransmissions.");
+        throw new SocketTimeoutException("No reply to request " + requestID);
+    }
+
+    /**
+     * Send a request to the fastest of several equivalent servers and return the reply
+     *
+     * A request that is not idempotent is only ever retransmitted to the endpoint it was
+     * first sent to, whose reply cache then keeps at-most-once semantics. An idempotent
+     * request is hedged to the next endpoint once the 95th percentile round trip of the first
+     * one has passed without a reply, and retransmitted to the endpoints in turn. An endpoint
+     * is sampled when it answers a copy it received only once, and the endpoints that received
+     * a copy of a request that timed out are suspected.
+     * @param packetToSend Packet to be sent, its address is set to the endpoint of each copy
+     * @param packetToReceive Packet to be received
+     * @param idempotent Whether the request may be hedged and sent to several endpoints
+     * @param endpoints Equivalent servers
+     * @return Endpoint whose reply was received
+     * @throws SocketTimeoutException If no reply arrived within the retry budget
+     * @throws IOException If the socket is closed
      */
-    public static void sendReliably(DatagramSocket socket, DatagramPacket packetToSend, DatagramPacket packetToReceive) {
-        Boolean done = false;
-        while (!done) {
-            try{
-                socket.send(packetToSend);
-                socket.receive(packetToReceive);
-            } catch (SocketTimeoutException e) {
-                logger.log(Level.SEVERE, "Timeout on receive.");
-                continue;
-            } catch (IOException e) {
-                logger.log(Level.SEVERE, "Send or receive error on sending request.");
-                continue;
+    public Endpoint sendReliably(DatagramPacket packetToSend, DatagramPacket packetToReceive, boolean idempotent,
+                                 Endpoints endpoints) throws IOException {
+        requests.incrementAndGet();
+        int requestID = readID(packetToSend.getData(), packetToSend.getOffset());
+        List<Endpoint> ranked = endpoints.rank();
+        Endpoint first = ranked.get(0);
+        Endpoint second = ranked.get(Math.min(1, ranked.size() - 1));
+        long hedgeDelay = hedging && idempotent ? first.getHedgeDelay() : -1;
+        long[] sentAt = new long[ranked.size()];
+        int[] copies = new int[ranked.size()];
+        byte[] buffer = packetToReceive.getData();
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            int target = idempotent ? attempt % ranked.size() : 0;
+            if (attempt > 0) {
+                retransmissions.incrementAndGet();
+                logger.log(Level.WARNING, "Retransmitting request " + requestID + " to "
+                        + ranked.get(target).getAddress() + ", attempt " + attempt);
+            }
+            long now = System.currentTimeMillis();
+            long deadline = now + ranked.get(target).getEstimator().getTimeout(attempt);
+            long hedgeAt = hedgeDelay >= 0 && attempt == 0 ? now + hedgeDelay : -1;
+            transmit(packetToSend, ranked, target, sentAt, copies);
+            while (true) {
+                now = System.currentTimeMillis();
+                long wakeUp = hedgeAt >= 0 ? hedgeAt : deadline;
+                if (now >= wakeUp) {
+                    if (hedgeAt < 0) {
+                        break;
+                    }
+                    hedges.incrementAndGet();
+                    transmit(packetToSend, ranked, ranked.indexOf(second), sentAt, copies);
+                    hedgeAt = -1;
+                    continue;
+                }
+                socket.setSoTimeout((int) (wakeUp - now));
+                packetToReceive.setData(buffer);
+                try {
+                    socket.receive(packetToReceive);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (readID(buffer, packetToReceive.getOffset()) != requestID) {
+                    staleReplies.incrementAndGet();
+                    continue;
+                }
+                int from = indexOf(ranked, packetToReceive.getSocketAddress());
+                if (from < 0) {
+                    return ranked.get(target);
+                }
+                // only replies to a single copy give an unambiguous sample (Karn's algorithm)
+                if (copies[from] == 1) {
+                    ranked.get(from).sample((System.nanoTime() - sentAt[from]) / 1000);
+                }
+                return ranked.get(from);
             }
-            done = true;
         }
+        timeouts.incrementAndGet();
+        for (int i = 0; i < ranked.size(); i++) {
+            if (copies[i] > 0) {
+                ranked.get(i).failed();
+            }
+        }
+        logger.log(Level.SEVERE, "Timeout on request " + requestID + " after " + maxRetries + " retransmissions.");
+        throw new SocketTimeoutException("No reply to request " + requestID);
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getRetransmissionCount() {
+        return retransmissions.get();
+    }
+
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public long getStaleReplyCount() {
+        return staleReplies.get();
+    }
+
+    public RttEstimator getEstimator() {
+        return estimator;
+    }
+
+    /**
+     * Send a packet, a failed send is handled like a lost datagram
+     * @param packet Packet to be sent
+     */
+    private void transmit(DatagramPacket packet) {
+        try {
+            socket.send(packet);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Send error on sending request.");
+        }
+    }
+
+    /**
+     * Send a copy of a request to one of the endpoints
+     * @param packet Packet to be sent
+     * @param endpoints Endpoints of the request
+     * @param index Index of the endpoint receiving the copy
+     * @param sentAt Nano time of the last copy sent to each endpoint
+     * @param copies Number of copies sent to each endpoint
+     */
+    private void transmit(DatagramPacket packet, List<Endpoint> endpoints, int index, long[] sentAt, int[] copies) {
+        packet.setSocketAddress(endpoints.get(index).getAddress());
+        sentAt[index] = System.nanoTime();
+        copies[index]++;
+        transmit(packet);
+    }
+
+    private static int indexOf(List<Endpoint> endpoints, SocketAddress address) {
+        for (int i = 0; i < endpoints.size(); i++) {
+            if (endpoints.get(i).getAddress().equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read the request id following the type byte of a request or a reply
+     * @param data Packet data
+     * @param offset Offset of the message
+     * @return Request id
+     */
+    private static int readID(byte[] data, int offset) {
+        return (data[offset + 1] & 0xFF) << 24 | (data[offset + 2] & 0xFF) << 16
+                | (data[offset + 3] & 0xFF) << 8 | (data[offset + 4] & 0xFF);
     }
 }
@@ -0,0 +1,239 @@
+package bankingsys.server;
+
+import bankingsys.io.Serializer;
+import bankingsys.message.ServiceResponse;
+import bankingsys.server.model.Client;
+import bankingsys.server.model.MonitoringClients;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static bankingsys.Constant.END_MONITOR;
+import static bankingsys.message.ServiceResponse.ResponseStatus.FAILURE;
+
+/**
+ * Delivers monitoring callbacks on a dedicated thread, off the request path.
+ *
+ * Every subscriber has a bounded queue of pending updates keyed by the accounts it monitors:
+ * an update of an account that is still queued replaces the queued one, so a subscriber gets
+ * the latest balance of an account at most once per coalescing window. An update touching
+ * two monitored accounts, such as a transfer, is queued under both and sent once, so that a
+ * later update of one of them doesn't replace the only report of the other. A queue is sent one window
+ * after its first update. A subscriber whose queue overflows is disconnected, i.e. its
+ * monitoring ends and it is told so, instead of holding up the other subscribers.
+ */
+public class CallbackDispatcher {
+
+    private static final Logger logger = Logger.getLogger(CallbackDispatcher.class.getName());
+
+    private final MonitoringClients clients;
+    private final BiConsumer<byte[], Client> sender;
+    private final int queueCapacity;
+    private final long window;
+    private final byte[] farewell;
+
+    // guarded by this
+    private final HashMap<Client, Subscriber> queues = new HashMap<>();
+    private final ArrayDeque<Subscriber> due = new ArrayDeque<>(); // in due time order, the window is fixed
+    private int depth = 0;
+    private int peakDepth = 0;
+    private long offered = 0;
+    private long coalesced = 0;
+    private long sent = 0;
+    private long disconnected = 0;
+
+    /**
+     * Create a dispatcher
+     * @param clients Subscription index, disconnected subscribers are removed from it
+     * @param sender Sends an encoded callback to a client
+     * @param queueCapacity Maximum number of accounts with a pending update per subscriber
+     * @param window Milliseconds during which updates of a subscriber are coalesced
+     */
+    public CallbackDispatcher(MonitoringClients clients, BiConsumer<byte[], Client> sender,
+                              int queueCapacity, long window) {
+        this.clients = clients;
+        this.sender = sender;
+        this.queueCapacity = queueCapacity;
+        this.window = window;
+        Serializer serializer = new Serializer();
+        ServiceResponse response = new ServiceResponse(END_MONITOR, FAILURE, null,
+                "Monitoring ended, too many pending updates", null);
+        response.setResponseID(0);
+        response.write(serializer);
+        this.farewell = serializer.toByteArray();
+    }
+
+    /**
+     * Start the dispatcher thread
+     */
+    public void start() {
+        Thread thread = new Thread(this::run, "callback-dispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a callback for the clients monitoring the accounts a request touched
+     * @param callback Encoded successful response
+     * @param account Account touched by the request
+     * @param otherAccount Other account touched by the request, or the same account
+     */
+    public void dispatch(byte[] callback, int account, int otherAccount) {
+        clients.forEachSubscriber(account, otherAccount, client -> offer(client, account, otherAccount, callback));
+    }
+
+    /**
+     * Queue an update for one subscriber
+     * @param client Subscriber
+     * @param account Account the update is about
+     * @param otherAccount Other account the update is about, or the same account
+     * @param callback Encoded update
+     */
+    private void offer(Client client, int account, int otherAccount, byte[] callback) {
+        synchronized (this) {
+            offered++;
+            Subscriber subscriber = queues.get(client);
+            if (subscriber == null) {
+                subscriber = new Subscriber(client, System.currentTimeMillis() + window);
+                queues.put(client, subscriber);
+                due.add(subscriber);
+                notifyAll();
+            }
+            boolean replaced = false;
+            if (clients.isMonitoring(client, account)) {
+                replaced = queue(subscriber, account, callback);
+            }
+            if (otherAccount != account && clients.isMonitoring(client, otherAccount)) {
+                replaced |= queue(subscriber, otherAccount, callback);
+            }
+            if (replaced) {
+                coalesced++;
+            }
+            peakDepth = Math.max(peakDepth, subscriber.updates.size());
+            if (subscriber.updates.size() <= queueCapacity) {
+                return;
+            }
+            // the subscriber stays in the due queue to be sent the farewell
+            queues.remove(client);
+            depth -= subscriber.updates.size();
+            subscriber.updates.clear();
+            subscriber.disconnected = true;
+            disconnected++;
+        }
+        clients.removeFromClients(client);
+        logger.log(Level.WARNING, "Disconnected monitoring client " + client + ", more than "
+                + queueCapacity + " pending updates");
+    }
+
+    /**
+     * Queue an update of one account, the dispatcher must be locked
+     * @param subscriber Pending updates of the subscriber
+     * @param account Account the update is queued under
+     * @param callback Encoded update
+     * @return Whether a pending update of the account was replaced
+     */
+    private boolean queue(Subscriber subscriber, int account, byte[] callback) {
+        // a replacing update moves to the end, so that the updates are sent in the order they happened
+        if (subscriber.updates.remove(account) != null) {
+            subscriber.updates.put(account, callback);
+            return true;
+        }
+        subscriber.updates.put(account, callback);
+        depth++;
+        return false;
+    }
+
+    /**
+     * Main loop of the dispatcher thread
+     */
+    private void run() {
+        while (true) {
+            Subscriber subscriber;
+            synchronized (this) {
+                try {
+                    while (due.isEmpty() || due.peek().dueAt > System.currentTimeMillis()) {
+                        if (due.isEmpty()) {
+                            wait();
+                        } else {
+                            wait(Math.max(1, due.peek().dueAt - System.currentTimeMillis()));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                subscriber = due.poll();
+                if (!subscriber.disconnected) {
+                    // updates arriving from now on start a new queue
+                    queues.remove(subscriber.client);
+                    depth -= subscriber.updates.size();
+                }
+            }
+            if (subscriber.disconnected) {
+                sender.accept(farewell, subscriber.client);
+                continue;
+            }
+            // an update queued under two accounts is sent once
+            Set<byte[]> updates = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (byte[] update : subscriber.updates.values()) {
+                if (updates.add(update)) {
+                    sender.accept(update, subscriber.client);
+                }
+            }
+            synchronized (this) {
+                sent += updates.size();
+            }
+        }
+    }
+
+    /**
+     * Number of updates waiting to be sent
+     * @return Pending updates over all subscribers
+     */
+    public synchronized int getQueueDepth() {
+        return depth;
+    }
+
+    /**
+     * Fraction of the queued updates that replaced a pending update of the same account
+     * @return Coalescing ratio between 0 and 1
+     */
+    public synchronized double getCoalescingRatio() {
+        return offered == 0 ? 0 : coalesced / (double) offered;
+    }
+
+    /**
+     * Log the dispatcher metrics and start a new peak queue depth period
+     */
+    public void logMetrics() {
+        String metrics;
+        synchronized (this) {
+            metrics = String.format("Callbacks: offered=%d coalesced=%d (%.1f%%) sent=%d depth=%d peak=%d "
+                            + "disconnected=%d", offered, coalesced, 100 * getCoalescingRatio(), sent, depth,
+                    peakDepth, disconnected);
+            peakDepth = 0;
+        }
+        logger.log(Level.INFO, metrics);
+    }
+
+    /**
+     * Pending updates of one subscriber
+     */
+    private static class Subscriber {
+        private final Client client;
+        private final long dueAt;
+        private final LinkedHashMap<Integer, byte[]> updates = new LinkedHashMap<>();
+        private boolean disconnected = false;
+
+        private Subscriber(Client client, long dueAt) {
+            this.client = client;
+            this.dueAt = dueAt;
+        }
+    }
+}
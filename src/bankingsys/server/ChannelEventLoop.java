@@ -0,0 +1,177 @@
+package bankingsys.server;
+
+import bankingsys.io.Serializer;
+import bankingsys.net.BufferPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static bankingsys.Constant.BUFFER_SIZE;
+import static bankingsys.Constant.MAX_DATAGRAM_SIZE;
+
+/**
+ * Non-blocking transport for the server built on a DatagramChannel and a Selector.
+ *
+ * Every wakeup drains up to a batch of datagrams. Each request is decoded straight from a
+ * direct receive buffer and its reply is encoded straight into a pooled direct buffer, the
+ * replies of the batch are then flushed together. When the channel can't take more
+ * replies the loop waits for it to become writable and stops reading until the backlog
+ * is flushed, so a slow network applies backpressure instead of growing a queue.
+ *
+ * Other threads sending on the channel, e.g. callbacks and replies released once logged,
+ * hand a datagram the full channel didn't take to the loop, which sends it after the
+ * replies already queued. This backlog is bounded, a datagram beyond it is dropped.
+ */
+public class ChannelEventLoop {
+
+    private static final Logger logger = Logger.getLogger(ChannelEventLoop.class.getName());
+    private static final int MAX_HANDED_IN = 4096;
+
+    private final RequestReceiver server;
+    private final DatagramChannel channel;
+    private final int batchSize;
+    private final BufferPool pool;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ArrayDeque<PendingReply> pending = new ArrayDeque<>();
+    private final Serializer serializer = new Serializer(receiveBuffer);
+    private final ConcurrentLinkedQueue<PendingReply> handedIn = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger handedInCount = new AtomicInteger(); // handed in and not sent yet
+    private final Selector selector;
+
+    /**
+     * Create an event loop
+     * @param server Server whose processing logic handles the requests
+     * @param channel Bound datagram channel
+     * @param batchSize Maximum number of datagrams handled per wakeup
+     * @throws IOException If the selector can't be opened
+     */
+    public ChannelEventLoop(RequestReceiver server, DatagramChannel channel, int batchSize) throws IOException {
+        this.server = server;
+        this.channel = channel;
+        this.batchSize = batchSize;
+        this.pool = new BufferPool(batchSize, MAX_DATAGRAM_SIZE);
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Run the event loop until the channel is closed
+     * @throws IOException Channel error
+     */
+    public void run() throws IOException {
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        while (channel.isOpen()) {
+            selector.select();
+            selector.selectedKeys().clear();
+            if (takeHandedIn() || key.isWritable()) {
+                flush();
+            }
+            if (key.isReadable() && pending.isEmpty()) {
+                drain();
+                flush();
+            }
+            key.interestOps(pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Queue a datagram another thread couldn't send because the channel was full, safe to
+     * call from any thread
+     * @param datagram Datagram, not reused by the caller
+     * @param address Destination
+     * @return Whether the datagram was queued, false if the backlog is full and it is dropped
+     */
+    public boolean enqueue(ByteBuffer datagram, InetSocketAddress address) {
+        if (handedInCount.incrementAndGet() > MAX_HANDED_IN) {
+            handedInCount.decrementAndGet();
+            return false;
+        }
+        handedIn.add(new PendingReply(datagram, address, false));
+        selector.wakeup();
+        return true;
+    }
+
+    /**
+     * Move the datagrams handed in by other threads behind the queued replies
+     * @return Whether a datagram was moved
+     */
+    private boolean takeHandedIn() {
+        boolean taken = false;
+        PendingReply reply;
+        while ((reply = handedIn.poll()) != null) {
+            pending.add(reply);
+            taken = true;
+        }
+        return taken;
+    }
+
+    /**
+     * Receive and process up to a batch of datagrams, queueing their replies
+     * @throws IOException Channel error
+     */
+    private void drain() throws IOException {
+        for (int i = 0; i < batchSize; i++) {
+            receiveBuffer.clear();
+            InetSocketAddress from = (InetSocketAddress) channel.receive(receiveBuffer);
+            if (from == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            ByteBuffer reply = pool.acquire();
+            serializer.reset(reply);
+            try {
+                if (server.processRequest(receiveBuffer, from.getAddress(), from.getPort(), serializer)) {
+                    reply.flip();
+                    pending.add(new PendingReply(reply, from, true));
+                    continue;
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Failure on processing request", e);
+            }
+            pool.release(reply);
+        }
+    }
+
+    /**
+     * Send queued replies until the queue is empty or the channel is full
+     * @throws IOException Channel error
+     */
+    private void flush() throws IOException {
+        while (!pending.isEmpty()) {
+            PendingReply reply = pending.peek();
+            if (channel.send(reply.buffer, reply.address) == 0) {
+                return;
+            }
+            pending.poll();
+            if (reply.pooled) {
+                pool.release(reply.buffer);
+            } else {
+                handedInCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * An encoded reply waiting to be sent
+     */
+    private static class PendingReply {
+        private final ByteBuffer buffer;
+        private final InetSocketAddress address;
+        private final boolean pooled;
+
+        private PendingReply(ByteBuffer buffer, InetSocketAddress address, boolean pooled) {
+            this.buffer = buffer;
+            this.address = address;
+            this.pooled = pooled;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package bankingsys.server;
+
+import bankingsys.message.ResponseWriter;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static bankingsys.Constant.BUFFER_SIZE;
+import static bankingsys.message.ServiceResponse.ResponseStatus.FAILURE;
+import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
+
+/**
+ * Publishes monitoring callbacks once to a multicast group instead of once per client.
+ *
+ * Every update is sent as a sequence number followed by the encoded callback, so clients
+ * filter the accounts they monitor themselves and detect lost updates from gaps in the
+ * sequence. The last updates are kept to answer resync requests, which clients send over
+ * unicast to get the updates they missed.
+ */
+public class MulticastPublisher {
+
+    private static final Logger logger = Logger.getLogger(MulticastPublisher.class.getName());
+    // resync replies have to fit the send buffer of the nio transport
+    private static final int RESYNC_BYTES = BUFFER_SIZE / 2;
+
+    private final MulticastSocket socket;
+    private final InetSocketAddress group;
+    private final byte[][] history;
+    private int next = 0; // guarded by this
+
+    /**
+     * Create a publisher
+     * @param group Multicast group address and port
+     * @param networkInterface Interface to publish on, null for the default one
+     * @param history Number of updates kept for resyncs
+     * @throws IOException If the socket can't be opened
+     */
+    public MulticastPublisher(InetSocketAddress group, NetworkInterface networkInterface, int history)
+            throws IOException {
+        this.group = group;
+        this.history = new byte[history][];
+        socket = new MulticastSocket();
+        socket.setTimeToLive(1);
+        if (networkInterface != null) {
+            socket.setNetworkInterface(networkInterface);
+        }
+    }
+
+    /**
+     * Publish an update to the group with the next sequence number
+     * @param callback Encoded successful response
+     */
+    public synchronized void publish(byte[] callback) {
+        int sequence = next++;
+        history[sequence % history.length] = callback;
+        ByteBuffer datagram = ByteBuffer.allocate(4 + callback.length);
+        datagram.putInt(sequence);
+        datagram.put(callback);
+        try {
+            socket.send(new DatagramPacket(datagram.array(), datagram.capacity(), group));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failure on publishing update " + sequence, e);
+        }
+    }
+
+    /**
+     * Write the kept updates from a sequence number on, as many as fit one reply. The reply
+     * fails if some of the asked updates are no longer kept, it then starts at the oldest one.
+     * @param from Sequence number of the first missing update
+     * @param response Writer for the reply
+     */
+    public synchronized void resync(int from, ResponseWriter response) {
+        int oldest = Math.max(0, next - history.length);
+        int first = Math.max(from, oldest);
+        List<byte[]> updates = new ArrayList<>();
+        int bytes = 0;
+        for (int sequence = first; sequence < next; sequence++) {
+            byte[] update = history[sequence % history.length];
+            if (bytes + update.length > RESYNC_BYTES) {
+                break;
+            }
+            bytes += update.length;
+            updates.add(update);
+        }
+        if (from < oldest) {
+            response.resync(FAILURE, first, updates,
+                    "Updates " + from + " to " + (oldest - 1) + " are no longer available");
+        } else {
+            response.resync(SUCCESS, first, updates, "Resent " + updates.size() + " updates");
+        }
+    }
+
+    /**
+     * Sequence number the next update will be published with
+     * @return Sequence number
+     */
+    public synchronized int getSequence() {
+        return next;
+    }
+
+    /**
+     * Group the updates are published to
+     * @return Group address and port as "address:port"
+     */
+    public String getGroup() {
+        return group.getAddress().getHostAddress() + ":" + group.getPort();
+    }
+}
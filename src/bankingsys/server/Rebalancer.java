@@ -0,0 +1,402 @@
+package bankingsys.server;
+
+import bankingsys.io.Serializer;
+import bankingsys.net.ShardMap;
+import bankingsys.net.ShardMap.Shard;
+import bankingsys.server.store.AccountStore;
+import bankingsys.server.store.WriteAheadLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.IntPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Moves accounts between the shards of a cluster while they keep serving requests.
+ *
+ * A shard losing accounts to another shard connects to its peer port over TCP and hands
+ * them off in three steps:
+ * 1. copy: the moving accounts are sent as account records, read from the store without
+ *    stopping it, after taking the LSN of the log;
+ * 2. catch up: the log from that LSN on is streamed, the receiving shard applies the
+ *    records on the moving accounts and logs them in its own log. Records hold absolute
+ *    balances, so a record already reflected in the copy is harmless. Rounds are repeated
+ *    while the shards keep mutating the accounts, until the remaining tail is small;
+ * 3. cut over: transfers towards the moving accounts are refused until the prepared ones
+ *    are decided, requests are paused on the losing shard, the last records are made
+ *    durable and streamed, and once the receiving shard made them durable the accounts are
+ *    served by it. Requests on them are redirected from then on.
+ *
+ * Only the cut over stops writes, for the time of the last round trip and two log forces.
+ * A handoff broken before the cut over is started again from the copy, the receiving shard
+ * drops what it applied of the broken one first.
+ *
+ * Stream layout: epoch (8) and client address of the losing shard, answered with a status
+ * byte, then frames of kind 'R' with a length (4) and log bytes, which may cut records, and
+ * a final 'E' answered with a status byte.
+ */
+public class Rebalancer {
+
+    private static final Logger logger = Logger.getLogger(Rebalancer.class.getName());
+
+    private static final int CHUNK_SIZE = 64 << 10;
+    private static final long CUTOVER_THRESHOLD = 16 << 10; // bytes of log left when writes pause
+    private static final long RETRY_DELAY = 500;
+    private static final long DRAIN_TIMEOUT = 2000;
+    private static final long DURABLE_TIMEOUT = 5000;
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final int READ_TIMEOUT = 10000;
+
+    private static final byte RECORDS = 'R';
+    private static final byte END = 'E';
+    private static final byte REFUSED = 0;
+    private static final byte ACCEPTED = 1;
+    private static final byte DONE = 2;
+
+    private final ShardPeer peer;
+    private final AccountStore accounts;
+    private final Path logPath;
+    private final WriteAheadLog log;
+    private ServerSocket serverSocket = null;
+    private final AtomicLong copied = new AtomicLong();
+    private final AtomicLong shipped = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong maxPause = new AtomicLong();
+
+    /**
+     * Create a rebalancer
+     * @param peer Peer of the shard, telling which accounts move
+     * @param accounts Accounts of the shard
+     * @param logPath Write-ahead log file, read by every handoff on its own
+     * @param log Write-ahead log of the shard
+     */
+    public Rebalancer(ShardPeer peer, AccountStore accounts, Path logPath, WriteAheadLog log) {
+        this.peer = peer;
+        this.accounts = accounts;
+        this.logPath = logPath;
+        this.log = log;
+    }
+
+    /**
+     * Open the handoff port and start accepting the handoffs of other shards
+     * @param port TCP port, the number of the UDP peer port
+     * @throws IOException If the port can't be opened
+     */
+    public void start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 16, InetAddress.getByName("0.0.0.0"));
+        logger.log(Level.INFO, "Accepting account handoffs on 0.0.0.0:" + port);
+        Thread acceptThread = new Thread(this::accept, "handoff-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Hand off the accounts moving to a shard in the background, retried until it completes
+     * @param destination Shard of the next placement
+     * @param from Placement the accounts move from
+     * @param to Placement the accounts move to
+     */
+    public void handOff(Shard destination, ShardMap from, ShardMap to) {
+        Thread handOffThread = new Thread(() -> {
+            while (!peer.isHandedOff(destination.getAddress()) && peer.getNextPlacement() == to) {
+                try {
+                    stream(destination, from, to);
+                } catch (IOException | UncheckedIOException e) {
+                    logger.log(Level.WARNING, "Handoff to " + destination.getAddress() + " failed, retrying: "
+                            + e.getMessage());
+                    try {
+                        Thread.sleep(RETRY_DELAY);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "handoff-" + destination.getAddress());
+        handOffThread.setDaemon(true);
+        handOffThread.start();
+    }
+
+    /**
+     * Remove an account given away from the store, and from the log so that it doesn't
+     * come back on recovery
+     * @param accountNumber Account number
+     */
+    void dropped(int accountNumber) {
+        accounts.remove(accountNumber);
+        log.accountClosed(accountNumber);
+    }
+
+    /**
+     * Report of the accounts moved so far
+     * @return One line, e.g. "copied=1000 shipped=65536 applied=1000 max-pause=12 ms"
+     */
+    public String report() {
+        return "copied=" + copied.get() + " shipped=" + shipped.get() + " applied=" + applied.get()
+                + " max-pause=" + maxPause.get() + " ms";
+    }
+
+    /**
+     * Run one handoff of the accounts moving to a shard
+     * @param destination Shard the accounts move to
+     * @param from Placement the accounts move from
+     * @param to Placement the accounts move to
+     * @throws IOException If the connection breaks or the shard refuses the handoff
+     * @throws InterruptedException If the thread is interrupted
+     */
+    private void stream(Shard destination, ShardMap from, ShardMap to) throws IOException, InterruptedException {
+        InetSocketAddress self = peer.getAddress();
+        IntPredicate moving = accountNumber -> from.shardOf(accountNumber).getAddress().equals(self)
+                && to.shardOf(accountNumber).getAddress().equals(destination.getAddress());
+        try (Socket socket = new Socket();
+             FileChannel file = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            socket.connect(destination.getPeerAddress(), CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE + 5));
+            out.writeLong(to.getEpoch());
+            out.writeUTF(ShardMap.format(self));
+            out.flush();
+            byte status = in.readByte();
+            if (status == DONE) {
+                peer.handedOff(destination.getAddress());
+                return;
+            }
+            if (status != ACCEPTED) {
+                throw new IOException("not moving to epoch " + to.getEpoch() + " yet");
+            }
+            long start = System.currentTimeMillis();
+
+            // copy
+            long position = log.getAppendedLsn();
+            Serializer records = new Serializer();
+            CRC32 checksum = new CRC32();
+            long[] count = new long[1];
+            accounts.forEach((accountNumber, name, password, currency, balance) -> {
+                if (moving.test(accountNumber)) {
+                    WriteAheadLog.encodeAccount(records, checksum, accountNumber, name, password, currency, balance);
+                    count[0]++;
+                    if (records.getBufferLength() >= CHUNK_SIZE) {
+                        try {
+                            writeFrame(out, records.getBuffer(), records.getBufferLength());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        records.reset();
+                    }
+                }
+            });
+            writeFrame(out, records.getBuffer(), records.getBufferLength());
+            copied.addAndGet(count[0]);
+            logger.log(Level.INFO, "Copied " + count[0] + " accounts to " + destination.getAddress()
+                    + ", catching up from log position " + position);
+
+            // catch up
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            long durable = log.getDurableLsn();
+            while (durable - position > CUTOVER_THRESHOLD) {
+                position = ship(file, out, chunk, position, durable);
+                out.flush();
+                durable = log.getDurableLsn();
+            }
+
+            // cut over
+            InetSocketAddress address = destination.getAddress();
+            peer.freeze(address);
+            Lock lock = peer.getRequestLock().writeLock();
+            long paused;
+            try {
+                long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+                while (peer.hasPrepared(moving)) {
+                    if (System.currentTimeMillis() > deadline) {
+                        throw new IOException("transfers towards the moving accounts still prepared");
+                    }
+                    Thread.sleep(1);
+                }
+                lock.lock();
+                paused = System.currentTimeMillis();
+                try {
+                    long end = log.getAppendedLsn();
+                    if (!log.awaitDurable(end, DURABLE_TIMEOUT)) {
+                        throw new IOException("log not durable in time");
+                    }
+                    ship(file, out, chunk, position, end);
+                    out.writeByte(END);
+                    out.flush();
+                    if (in.readByte() != DONE) {
+                        throw new IOException("handoff not acknowledged");
+                    }
+                    // the destination serves the accounts now, no request may be applied here
+                    // between the release of the lock and the handoff being recorded
+                    peer.handedOff(address);
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                peer.thaw(address);
+            }
+            long now = System.currentTimeMillis();
+            maxPause.accumulateAndGet(now - paused, Math::max);
+            logger.log(Level.INFO, "Handed off " + count[0] + " accounts to " + address + " in " + (now - start)
+                    + " ms, requests paused for " + (now - paused) + " ms");
+        }
+    }
+
+    /**
+     * Stream a range of the durable log
+     * @param file Log file
+     * @param out Stream to the receiving shard
+     * @param chunk Buffer the log is read into
+     * @param position Offset of the first byte to send
+     * @param end Offset after the last byte to send, durable
+     * @return Offset after the last byte sent
+     * @throws IOException If the log can't be read or the stream breaks
+     */
+    private long ship(FileChannel file, DataOutputStream out, ByteBuffer chunk, long position, long end)
+            throws IOException {
+        while (position < end) {
+            chunk.clear();
+            chunk.limit((int) Math.min(CHUNK_SIZE, end - position));
+            while (chunk.hasRemaining()) {
+                if (file.read(chunk, position + chunk.position()) < 0) {
+                    throw new EOFException("Log ends before its durable LSN");
+                }
+            }
+            writeFrame(out, chunk.array(), chunk.limit());
+            position += chunk.limit();
+            shipped.addAndGet(chunk.limit());
+        }
+        return position;
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] bytes, int length) throws IOException {
+        if (length > 0) {
+            out.writeByte(RECORDS);
+            out.writeInt(length);
+            out.write(bytes, 0, length);
+        }
+    }
+
+    /**
+     * Main loop of the accept thread, each handoff is received by a thread of its own
+     */
+    private void accept() {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread receiveThread = new Thread(() -> receive(socket), "handoff-" + socket.getRemoteSocketAddress());
+                receiveThread.setDaemon(true);
+                receiveThread.start();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failure on accepting a handoff", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Receive the accounts another shard hands off to this shard
+     * @param socket Connection of the shard
+     */
+    private void receive(Socket socket) {
+        Set<Integer> created = new HashSet<>();
+        InetSocketAddress source = null;
+        boolean complete = false;
+        try (Socket connection = socket) {
+            connection.setTcpNoDelay(true);
+            connection.setSoTimeout(READ_TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            long epoch = in.readLong();
+            source = ShardMap.address(in.readUTF());
+            ShardMap from = peer.getPlacement();
+            ShardMap to = peer.getNextPlacement();
+            if (peer.isReceived(source)) {
+                out.writeByte(DONE);
+                out.flush();
+                return;
+            }
+            if (to == null || to.getEpoch() != epoch || from.find(source) == null) {
+                out.writeByte(REFUSED);
+                out.flush();
+                return;
+            }
+            out.writeByte(ACCEPTED);
+            out.flush();
+            InetSocketAddress self = peer.getAddress();
+            InetSocketAddress sender = source;
+            IntPredicate accepted = accountNumber -> {
+                if (!from.shardOf(accountNumber).getAddress().equals(sender)
+                        || !to.shardOf(accountNumber).getAddress().equals(self)) {
+                    return false;
+                }
+                created.add(accountNumber);
+                return true;
+            };
+            // holds the start of a record cut by the end of a frame
+            ByteBuffer records = ByteBuffer.allocate(CHUNK_SIZE);
+            byte kind;
+            while ((kind = in.readByte()) == RECORDS) {
+                int length = in.readInt();
+                if (records.remaining() < length) {
+                    ByteBuffer larger = ByteBuffer.allocate(records.position() + length);
+                    records.flip();
+                    larger.put(records);
+                    records = larger;
+                }
+                in.readFully(records.array(), records.position(), length);
+                records.position(records.position() + length);
+                records.flip();
+                WriteAheadLog.applyStream(records, accounts, accepted, log);
+                records.compact();
+            }
+            if (kind != END || records.position() > 0) {
+                throw new IOException("Handoff ends within a record");
+            }
+            // the accounts are served here once the source hears back, they must survive a crash
+            if (!log.awaitDurable(log.getAppendedLsn(), DURABLE_TIMEOUT)) {
+                throw new IOException("Log not durable in time");
+            }
+            applied.addAndGet(created.size());
+            peer.received(source);
+            complete = true;
+            out.writeByte(DONE);
+            out.flush();
+            logger.log(Level.INFO, "Received " + created.size() + " accounts from " + source);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Handoff from " + (source != null ? source : socket.getRemoteSocketAddress())
+                    + " broken: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!complete) {
+                // the source starts over, accounts it closed meanwhile must not linger here
+                for (int accountNumber : created) {
+                    dropped(accountNumber);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package bankingsys.server;
+
+import bankingsys.server.store.AccountStore;
+import bankingsys.server.store.WriteAheadLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Backup following the log streamed by a {@link ReplicationSource} and applying it to its
+ * own store, asynchronously from the primary.
+ *
+ * A backup serves balance checks with bounded staleness: it only answers while it caught
+ * up with the primary within the staleness bound, i.e. applied a frame up to the durable
+ * LSN the frame was stamped with. A client asking for read-your-writes passes the highest
+ * LSN it saw, and the backup only answers once it applied the log up to there. Other
+ * clients see the state of the primary at most the staleness bound plus a network delay
+ * ago, and the records of a transfer are applied one account after the other.
+ *
+ * A backup starts empty and receives the whole log. On a broken connection it reconnects
+ * and resumes from the LSN it reached.
+ */
+public class Replica {
+
+    private static final Logger logger = Logger.getLogger(Replica.class.getName());
+
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final long RECONNECT_DELAY = 1000;
+    // frames come at least every heartbeat interval from a live primary
+    private static final int READ_TIMEOUT = (int) (20 * ReplicationSource.HEARTBEAT_INTERVAL);
+
+    private final InetSocketAddress primary;
+    private final AccountStore accounts;
+    private final long maxStaleness;
+    private volatile long appliedLsn = 0;
+    private volatile long primaryLsn = 0;  // durable LSN of the primary as of the last frame
+    private volatile long caughtUpAt = 0;  // when the primary was last caught up with
+
+    /**
+     * Create a backup
+     * @param primary Replication address of the primary
+     * @param accounts Store the log is applied to
+     * @param maxStaleness Milliseconds since the backup last caught up after which it stops
+     *                     serving balance checks
+     */
+    public Replica(InetSocketAddress primary, AccountStore accounts, long maxStaleness) {
+        this.primary = primary;
+        this.accounts = accounts;
+        this.maxStaleness = maxStaleness;
+    }
+
+    /**
+     * Start following the primary in the background
+     */
+    public void start() {
+        Thread replicaThread = new Thread(this::run, "replica");
+        replicaThread.setDaemon(true);
+        replicaThread.start();
+    }
+
+    /**
+     * Check whether a balance check can be answered
+     * @param lsn LSN the client saw, 0 for any
+     * @return True if the backup is fresh enough and applied the log up to the LSN
+     */
+    public boolean canServe(long lsn) {
+        return lsn <= appliedLsn && System.currentTimeMillis() - caughtUpAt <= maxStaleness;
+    }
+
+    /**
+     * LSN up to which the log of the primary is applied
+     * @return Offset after the last applied record
+     */
+    public long getAppliedLsn() {
+        return appliedLsn;
+    }
+
+    /**
+     * Report of the replication lag
+     * @return One line, e.g. "replica of /10.0.0.1:9000: applied=4096 lag=128 bytes, 3 ms"
+     */
+    public String report() {
+        long staleness = caughtUpAt == 0 ? -1 : System.currentTimeMillis() - caughtUpAt;
+        return "replica of " + primary + ": applied=" + appliedLsn + " lag=" + (primaryLsn - appliedLsn)
+                + " bytes, " + staleness + " ms";
+    }
+
+    /**
+     * Main loop of the replica thread
+     */
+    private void run() {
+        while (true) {
+            try {
+                follow();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Lost the primary " + primary + ": " + e.getMessage());
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Connect to the primary and apply the log it streams until the connection breaks
+     * @throws IOException If the connection breaks or the stream is corrupt
+     */
+    private void follow() throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(primary, CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeLong(appliedLsn);
+            out.flush();
+            logger.log(Level.INFO, "Following " + primary + " from " + appliedLsn);
+            // holds the start of a record cut by the end of a frame
+            ByteBuffer records = ByteBuffer.allocate(1 << 16);
+            while (true) {
+                long durable = in.readLong();
+                int length = in.readInt();
+                if (records.remaining() < length) {
+                    ByteBuffer larger = ByteBuffer.allocate(records.position() + length);
+                    records.flip();
+                    larger.put(records);
+                    records = larger;
+                }
+                in.readFully(records.array(), records.position(), length);
+                records.position(records.position() + length);
+                records.flip();
+                WriteAheadLog.applyStream(records, accounts);
+                appliedLsn += records.position();
+                records.compact();
+                primaryLsn = durable;
+                if (appliedLsn >= durable) {
+                    caughtUpAt = System.currentTimeMillis();
+                }
+                out.writeLong(appliedLsn);
+                out.flush();
+            }
+        }
+    }
+}
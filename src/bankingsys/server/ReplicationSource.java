@@ -0,0 +1,172 @@
+package bankingsys.server;
+
+import bankingsys.server.store.WriteAheadLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams the write-ahead log of a primary to its backups over TCP.
+ *
+ * A backup connects and sends the LSN it applied the log up to, the primary then sends the
+ * log from there on and keeps following it. Only durable records are shipped, so a backup
+ * never holds a mutation a crash of the primary could lose. Every round sends what became
+ * durable since the previous one, in frames stamped with the durable LSN the round runs up
+ * to: a backup that applied a frame up to its stamp was up to date when the frame was sent.
+ * An empty frame is sent after a heartbeat interval without records. Backups answer every
+ * frame with the LSN they applied, which gives the replication lag.
+ *
+ * Frame layout: durable LSN (8), length (4), log bytes. The stream starts on a record but
+ * frames may cut records.
+ */
+public class ReplicationSource {
+
+    private static final Logger logger = Logger.getLogger(ReplicationSource.class.getName());
+
+    private static final int CHUNK_SIZE = 64 << 10;
+    static final long HEARTBEAT_INTERVAL = 100;
+
+    private final Path logPath;
+    private final WriteAheadLog log;
+    private final CopyOnWriteArrayList<Backup> backups = new CopyOnWriteArrayList<>();
+    private ServerSocket serverSocket = null;
+
+    /**
+     * Create a source
+     * @param logPath Write-ahead log file, read by every backup stream on its own
+     * @param log Write-ahead log of the primary
+     */
+    public ReplicationSource(Path logPath, WriteAheadLog log) {
+        this.logPath = logPath;
+        this.log = log;
+    }
+
+    /**
+     * Open the replication port and start accepting backups
+     * @param port TCP port backups connect to
+     * @throws IOException If the port can't be opened
+     */
+    public void start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 16, InetAddress.getByName("0.0.0.0"));
+        logger.log(Level.INFO, "Streaming the log to backups on 0.0.0.0:" + port);
+        Thread acceptThread = new Thread(this::accept, "replication-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Report of the position of every backup
+     * @return One line, e.g. "replication: durable=4096 backups=1 /10.0.0.2:40112 lag=128"
+     */
+    public String report() {
+        long durable = log.getDurableLsn();
+        StringBuilder builder = new StringBuilder("replication: durable=").append(durable)
+                .append(" backups=").append(backups.size());
+        for (Backup backup : backups) {
+            builder.append(' ').append(backup.socket.getRemoteSocketAddress())
+                    .append(" lag=").append(durable - backup.applied);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Main loop of the accept thread, each backup is streamed to by a thread of its own
+     */
+    private void accept() {
+        while (true) {
+            try {
+                Backup backup = new Backup(serverSocket.accept());
+                Thread streamThread = new Thread(() -> stream(backup),
+                        "replication-" + backup.socket.getRemoteSocketAddress());
+                streamThread.setDaemon(true);
+                streamThread.start();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failure on accepting a backup", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stream the log to one backup until it disconnects
+     * @param backup Connected backup
+     */
+    private void stream(Backup backup) {
+        backups.add(backup);
+        try (Socket socket = backup.socket;
+             FileChannel file = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE + 12));
+            long position = in.readLong();
+            backup.applied = position;
+            if (position > log.getDurableLsn()) {
+                logger.log(Level.SEVERE, "Backup " + socket.getRemoteSocketAddress() + " claims LSN " + position
+                        + " beyond the log, it must be restarted empty");
+                return;
+            }
+            logger.log(Level.INFO, "Streaming the log from " + position + " to " + socket.getRemoteSocketAddress());
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            while (true) {
+                long durable = log.getDurableLsn();
+                if (position == durable) {
+                    out.writeLong(durable);
+                    out.writeInt(0);
+                }
+                while (position < durable) {
+                    chunk.clear();
+                    chunk.limit((int) Math.min(CHUNK_SIZE, durable - position));
+                    while (chunk.hasRemaining()) {
+                        if (file.read(chunk, position + chunk.position()) < 0) {
+                            throw new EOFException("Log ends before its durable LSN");
+                        }
+                    }
+                    out.writeLong(durable);
+                    out.writeInt(chunk.limit());
+                    out.write(chunk.array(), 0, chunk.limit());
+                    position += chunk.limit();
+                }
+                out.flush();
+                // acknowledgements are read without blocking the stream
+                while (in.available() >= 8) {
+                    backup.applied = in.readLong();
+                }
+                log.awaitDurable(position + 1, HEARTBEAT_INTERVAL);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Backup " + backup.socket.getRemoteSocketAddress() + " disconnected: "
+                    + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            backups.remove(backup);
+        }
+    }
+
+    /**
+     * Connection of a backup
+     */
+    private static class Backup {
+        private final Socket socket;
+        private volatile long applied; // last LSN the backup acknowledged
+
+        private Backup(Socket socket) {
+            this.socket = socket;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package bankingsys.server;
+
+import bankingsys.io.Deserializer;
+import bankingsys.io.Serializer;
+import bankingsys.server.model.Client;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded duplicate-suppression cache for at-most-once invocation.
+ *
+ * Every client has a sliding window of its most recent encoded replies. Clients piggyback
+ * the highest request id up to which they have received every reply, replies up to that
+ * id are dropped since the client will never retransmit those requests. Clients are kept
+ * in least recently used order and are evicted when idle for longer than the TTL, by a
+ * periodic sweep, or when the cache holds too many clients.
+ *
+ * The client passed to a lookup may be a key the caller reuses for every request, the
+ * cache stores a copy of it.
+ */
+public class ReplyCache {
+
+    /**
+     * Result of looking up a request in the cache
+     */
+    public enum Status {
+        NEW,       // the request has to be executed
+        DUPLICATE, // the request was executed, its reply is cached
+        STALE      // the request was executed but its reply is gone, it must not run again
+    }
+
+    private final int windowSize;
+    private final long ttl;
+    private final int maxClients;
+    private final LinkedHashMap<Client, Window> windows;
+
+    private long evictedClients = 0;
+
+    /**
+     * Create a reply cache
+     * @param windowSize Maximum number of replies kept per client
+     * @param ttl Milliseconds after which an idle client is evicted
+     * @param maxClients Maximum number of clients kept
+     */
+    public ReplyCache(int windowSize, long ttl, int maxClients) {
+        this.windowSize = windowSize;
+        this.ttl = ttl;
+        this.maxClients = maxClients;
+        this.windows = new LinkedHashMap<Client, Window>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Client, Window> eldest) {
+                if (size() > ReplyCache.this.maxClients) {
+                    evictedClients++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Look up a request, dropping the replies the client has acknowledged
+     * @param client Client sending the request
+     * @param requestID Id of the request
+     * @param ackID Highest id up to which the client received every reply
+     * @return Whether the request is new, a duplicate with a cached reply or a stale duplicate
+     */
+    public synchronized Status lookup(Client client, int requestID, int ackID) {
+        long now = System.currentTimeMillis();
+        Window window = windows.get(client);
+        if (window == null) {
+            window = new Window(windowSize);
+            windows.put(new Client(client.getClientAddress(), client.getClientPort()), window);
+        }
+        window.lastSeen = now;
+        window.acknowledge(ackID);
+        if (window.get(requestID) != null) {
+            return Status.DUPLICATE;
+        }
+        return requestID <= window.evictedUpTo ? Status.STALE : Status.NEW;
+    }
+
+    /**
+     * Return the cached reply of a request
+     * @param client Client sending the request
+     * @param requestID Id of the request
+     * @return Encoded reply, null if not cached
+     */
+    public synchronized byte[] getReply(Client client, int requestID) {
+        Window window = windows.get(client);
+        return window == null ? null : window.get(requestID);
+    }
+
+    /**
+     * Cache the encoded reply of an executed request
+     * @param client Client sending the request
+     * @param requestID Id of the request
+     * @param reply Encoded reply
+     */
+    public synchronized void putReply(Client client, int requestID, byte[] reply) {
+        Window window = windows.get(client);
+        if (window == null) {
+            window = new Window(windowSize);
+            window.lastSeen = System.currentTimeMillis();
+            windows.put(new Client(client.getClientAddress(), client.getClientPort()), window);
+        }
+        window.put(requestID, reply);
+    }
+
+    /**
+     * Encode the cached replies for a snapshot. The cache is locked per client, not for the
+     * whole encoding.
+     * @param out Serializer receiving the cache
+     */
+    public void writeTo(Serializer out) {
+        List<Map.Entry<Client, Window>> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(windows.entrySet());
+        }
+        out.writeInt(entries.size());
+        for (Map.Entry<Client, Window> entry : entries) {
+            byte[] address = entry.getKey().getClientAddress().getAddress();
+            out.writeInt(address.length);
+            out.writeBytes(address);
+            out.writeInt(entry.getKey().getClientPort());
+            Window window = entry.getValue();
+            synchronized (this) {
+                out.writeInt(window.ackedUpTo);
+                out.writeInt(window.evictedUpTo);
+                int count = 0;
+                for (byte[] reply : window.replies) {
+                    count += reply != null ? 1 : 0;
+                }
+                out.writeInt(count);
+                for (int slot = 0; slot < window.ids.length; slot++) {
+                    if (window.replies[slot] != null) {
+                        out.writeInt(window.ids[slot]);
+                        out.writeInt(window.replies[slot].length);
+                        out.writeBytes(window.replies[slot]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the replies of a snapshot encoded by {@link #writeTo(Serializer)}, clients count as
+     * seen now
+     * @param in Deserializer positioned on the cache
+     * @throws UnknownHostException If a client address is malformed
+     */
+    public synchronized void readFrom(Deserializer in) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        int clients = in.readInt();
+        for (int i = 0; i < clients; i++) {
+            InetAddress address = InetAddress.getByAddress(in.readBytes(in.readInt()));
+            Client client = new Client(address, in.readInt());
+            Window window = new Window(windowSize);
+            window.lastSeen = now;
+            window.ackedUpTo = in.readInt();
+            window.evictedUpTo = in.readInt();
+            int count = in.readInt();
+            for (int j = 0; j < count; j++) {
+                int requestID = in.readInt();
+                window.put(requestID, in.readBytes(in.readInt()));
+            }
+            windows.put(client, window);
+        }
+    }
+
+    public synchronized int getClientCount() {
+        return windows.size();
+    }
+
+    public synchronized long getEvictedClientCount() {
+        return evictedClients;
+    }
+
+    /**
+     * Evict clients that have been idle for longer than the TTL, run periodically on the
+     * timing wheel of the server
+     */
+    public synchronized void expire() {
+        expire(System.currentTimeMillis());
+    }
+
+    /**
+     * Evict clients that have been idle for longer than the TTL
+     * @param now Current time in milliseconds
+     */
+    private void expire(long now) {
+        Iterator<Window> iterator = windows.values().iterator();
+        while (iterator.hasNext()) {
+            // iteration is in least recently used order, so stop at the first live client
+            if (now - iterator.next().lastSeen <= ttl) {
+                break;
+            }
+            iterator.remove();
+            evictedClients++;
+        }
+    }
+
+    /**
+     * Ring of the most recent replies of one client, indexed by request id
+     */
+    private static class Window {
+        private final int[] ids;
+        private final byte[][] replies;
+        private int ackedUpTo = -1;
+        private int evictedUpTo = -1; // every request up to this id was executed and is gone
+        private long lastSeen;
+
+        private Window(int size) {
+            ids = new int[size];
+            replies = new byte[size][];
+        }
+
+        private byte[] get(int requestID) {
+            int slot = slot(requestID);
+            return replies[slot] != null && ids[slot] == requestID ? replies[slot] : null;
+        }
+
+        private void put(int requestID, byte[] reply) {
+            int slot = slot(requestID);
+            if (replies[slot] != null) {
+                evictedUpTo = Math.max(evictedUpTo, ids[slot]);
+            }
+            ids[slot] = requestID;
+            replies[slot] = reply;
+        }
+
+        private void acknowledge(int ackID) {
+            if (ackID <= ackedUpTo) {
+                return;
+            }
+            // only the slots of ids in (ackedUpTo, ackID] can hold acknowledged replies
+            int from = Math.max(ackedUpTo + 1, ackID - ids.length + 1);
+            for (int id = from; id <= ackID; id++) {
+                int slot = slot(id);
+                if (replies[slot] != null && ids[slot] <= ackID) {
+                    replies[slot] = null;
+                }
+            }
+            ackedUpTo = ackID;
+            evictedUpTo = Math.max(evictedUpTo, ackID);
+        }
+
+        private int slot(int requestID) {
+            return Math.floorMod(requestID, ids.length);
+        }
+    }
+}
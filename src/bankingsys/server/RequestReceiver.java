@@ -1,26 +1,54 @@
 package bankingsys.server;
-import bankingsys.io.Deserializer;
 import bankingsys.io.Serializer;
-import bankingsys.message.ServiceRequest;
+import bankingsys.message.Amounts;
+import bankingsys.message.RequestView;
+import bankingsys.message.ResponseWriter;
 import bankingsys.message.ServiceResponse;
+import bankingsys.net.ShardMap;
+import bankingsys.net.ShardMap.Shard;
 import bankingsys.net.UnreliableDatagramSocket;
 import bankingsys.server.handler.*;
-import bankingsys.server.model.BankAccount;
 import bankingsys.server.model.Client;
 import bankingsys.server.model.MonitoringClients;
+import bankingsys.server.store.AccountException;
+import bankingsys.server.store.AccountStore;
+import bankingsys.server.store.ConcurrentAccountStore;
+import bankingsys.server.store.OffHeapAccountStore;
+import bankingsys.server.store.WriteAheadLog;
+import bankingsys.server.store.WriteAheadLog.FsyncPolicy;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.*;
 
+import static bankingsys.Constant.ACCOUNT_CANCEL;
+import static bankingsys.Constant.ACCOUNT_CREATE;
+import static bankingsys.Constant.ACCOUNT_MONITOR;
+import static bankingsys.Constant.BALANCE_CHECK;
+import static bankingsys.Constant.BALANCE_UPDATE;
+import static bankingsys.Constant.BATCH;
 import static bankingsys.Constant.BUFFER_SIZE;
+import static bankingsys.Constant.MONITOR_RESYNC;
 import static bankingsys.Constant.SERVER_PORT;
+import static bankingsys.Constant.STATS;
+import static bankingsys.Constant.TRANSFER;
+import static bankingsys.message.ServiceResponse.ResponseStatus.REDIRECT;
 import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
 
 /**
@@ -28,19 +56,78 @@ import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
  */
 public class RequestReceiver {
 
-    private HashMap <Integer, BankAccount> accountDatabase = new HashMap<>();
+    private AccountStore accountDatabase;
     private MonitoringClients clients = new MonitoringClients();
-    private HashMap<Client, HashMap<Integer, ServiceResponse>> clientsLog = new HashMap<>();
+    private ReplyCache replyCache = null;
+    private WriteAheadLog log = null;
+    private CallbackDispatcher callbacks = null;
+    private MulticastPublisher multicast = null;
+    private ShardPeer shardPeer = null;
+    private ReplicationSource replicationSource = null;
+    private Replica replica = null;
+    private int port = SERVER_PORT;
+    private final TimingWheel timers = new TimingWheel(TIMER_TICK, TIMER_WHEEL_SIZE);
+    private final ServerMetrics metrics = new ServerMetrics();
+    private Path statsPath = null;
+    private final AtomicInteger nextAccountNumber = new AtomicInteger();
+    private HashMap<Character, ServiceHandler> handlerMap = new HashMap<>();
     private DatagramSocket socket = null;
-    private Deserializer deserializer = null;
-    private Serializer serializer = null;
+    private DatagramChannel channel = null;
+    private ChannelEventLoop eventLoop = null;
     private byte[] receiveBuffer = new byte[BUFFER_SIZE];
+    private WorkerPool workerPool = null;
+    private RingPipeline ringPipeline = null;
+    private ThreadLocal<RequestView> requestViews = ThreadLocal.withInitial(RequestView::new);
+    // reply cache lookup key of the request being handled, copied by the cache when stored
+    private ThreadLocal<Client> clientKeys = ThreadLocal.withInitial(() -> new Client(null, 0));
+    private ThreadLocal<RequestView> batchEntryViews = ThreadLocal.withInitial(RequestView::new);
+    private ThreadLocal<ResponseWriter> responseWriters =
+            ThreadLocal.withInitial(() -> new ResponseWriter().setLsnSource(this::currentLsn));
 
     private static final Logger logger = Logger.getLogger(RequestReceiver.class.getName());
     private static Options options = new Options();
 
     private static Boolean simulation = false;
 
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final int METRICS_INTERVAL = 10000;
+    private static final int STATS_FILE_LENGTH = 1 << 16;
+    private static final int MAX_ALLOCATION_PROBES = 1 << 20;
+    private static final int DEFAULT_CACHE_WINDOW = 64;
+    private static final long DEFAULT_CACHE_TTL = 600000;
+    private static final int DEFAULT_CACHE_CLIENTS = 100000;
+    private static final int DEFAULT_BATCH_SIZE = 64;
+    private static final int DEFAULT_RING_SIZE = 1024;
+    private static final int DEFAULT_SENDERS = 1;
+    private static final long DEFAULT_FSYNC_INTERVAL = 5;
+    private static final long DEFAULT_SNAPSHOT_INTERVAL = 300000;
+    private static final long DEFAULT_MAX_STALENESS = 1000;
+    private static final long DEFAULT_MONITOR_WINDOW = 10;
+    private static final int DEFAULT_MONITOR_QUEUE = 1024;
+    private static final int DEFAULT_MULTICAST_HISTORY = 1024;
+    private static final long TIMER_TICK = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
+    private static final long CACHE_SWEEP_INTERVAL = 1000;
+
+    /**
+     * Create a server
+     * @param accountDatabase Storage engine for the accounts
+     */
+    public RequestReceiver(AccountStore accountDatabase) {
+        this(accountDatabase, null);
+    }
+
+    /**
+     * Create a server ready to process requests, without opening a socket
+     * @param accountDatabase Storage engine for the accounts
+     * @param replyCache Reply cache for at-most-once invocation, null for at-least-once
+     */
+    RequestReceiver(AccountStore accountDatabase, ReplyCache replyCache) {
+        this.accountDatabase = accountDatabase;
+        this.replyCache = replyCache;
+        registerHandlers();
+    }
+
     /**
      * Parse input arguments and starts the server
      * @param args CLI arguments
@@ -48,10 +135,67 @@ public class RequestReceiver {
     public static void main(String[] args) {
         //Arguments Handle
         Boolean atMostOnce = false;
+        int workers = 0;
+        int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        AccountStore accountDatabase = new ConcurrentAccountStore();
+        int cacheWindow = DEFAULT_CACHE_WINDOW;
+        long cacheTtl = DEFAULT_CACHE_TTL;
+        int cacheClients = DEFAULT_CACHE_CLIENTS;
+        boolean nio = false;
+        boolean ring = false;
+        int batchSize = DEFAULT_BATCH_SIZE;
+        int ringSize = DEFAULT_RING_SIZE;
+        int senders = DEFAULT_SENDERS;
+        String logPath = null;
+        FsyncPolicy fsyncPolicy = FsyncPolicy.GROUP;
+        long fsyncInterval = DEFAULT_FSYNC_INTERVAL;
+        String snapshotPath = null;
+        long monitorWindow = DEFAULT_MONITOR_WINDOW;
+        int monitorQueue = DEFAULT_MONITOR_QUEUE;
+        InetSocketAddress multicastGroup = null;
+        NetworkInterface multicastInterface = null;
+        int multicastHistory = DEFAULT_MULTICAST_HISTORY;
+        long snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+        String statsPath = null;
+        ShardMap shardMap = null;
+        int shardIndex = -1;
+        boolean joining = false;
+        int port = SERVER_PORT;
+        int replicationPort = -1;
+        InetSocketAddress primary = null;
+        long maxStaleness = DEFAULT_MAX_STALENESS;
 
         options.addOption("h", "help", false, "Show help.");
         options.addOption("m", "mode", true, "Set mode to 'at-least-once' or 'at-most-once'.");
         options.addOption("sim", "simulation", false, "Set mode to 'simulation' with error rate.");
+        options.addOption("w", "workers", true, "Number of worker threads, 0 handles requests on the receive thread.");
+        options.addOption("q", "queue", true, "Maximum number of pending requests per worker.");
+        options.addOption("st", "store", true, "Set account storage to 'heap' (default) or 'off-heap'.");
+        options.addOption("cw", "cache-window", true, "Number of replies cached per client in at-most-once mode.");
+        options.addOption("ct", "cache-ttl", true, "Seconds after which an idle client's replies are dropped.");
+        options.addOption("cc", "cache-clients", true, "Maximum number of clients with cached replies.");
+        options.addOption("t", "transport", true, "Set transport to 'socket' (default), 'nio' or 'ring'.");
+        options.addOption("b", "batch", true, "Maximum number of datagrams handled per wakeup with the nio transport, per stage with the ring transport.");
+        options.addOption("rs", "ring-size", true, "Number of slots of the ring transport, a power of two.");
+        options.addOption("sd", "senders", true, "Number of threads sending replies with the ring transport.");
+        options.addOption("l", "log", true, "Write-ahead log file, accounts are recovered from it on start.");
+        options.addOption("fs", "fsync", true, "Set log fsync policy to 'always', 'group' (default) or 'periodic'.");
+        options.addOption("fi", "fsync-interval", true, "Milliseconds between log forces with the periodic policy.");
+        options.addOption("sn", "snapshot", true, "Snapshot file, loaded on start and rewritten periodically, needs -log.");
+        options.addOption("si", "snapshot-interval", true, "Seconds between snapshots.");
+        options.addOption("mw", "monitor-window", true, "Milliseconds during which monitoring callbacks are coalesced.");
+        options.addOption("mq", "monitor-queue", true, "Maximum number of pending callbacks per monitoring client.");
+        options.addOption("mc", "multicast", true, "Publish monitoring callbacks to a multicast group, as address:port.");
+        options.addOption("mi", "multicast-interface", true, "Network interface to publish multicast callbacks on, e.g. 'lo'.");
+        options.addOption("mh", "multicast-history", true, "Number of multicast callbacks kept for resync requests.");
+        options.addOption("sf", "stats-file", true, "File the server metrics are written to every 10 seconds.");
+        options.addOption("cl", "cluster", true, "File listing the shards of the cluster, needs -shard.");
+        options.addOption("sh", "shard", true, "Index of the shard served by this process in the cluster file.");
+        options.addOption("jo", "join", false, "Join a running cluster, accounts are served once they are moved here.");
+        options.addOption("p", "port", true, "Port requests are served on, ignored in a cluster.");
+        options.addOption("rp", "replication-port", true, "Stream the log to backups connecting on this TCP port, needs -log.");
+        options.addOption("rf", "replicate-from", true, "Serve as a read-only backup of the primary at host:replication-port.");
+        options.addOption("ms", "max-staleness", true, "Milliseconds a backup serves balance checks after it last caught up.");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = null;
         try {
@@ -74,66 +218,296 @@ public class RequestReceiver {
                 help();
             }
 
-        } catch (ParseException e) {
+            if (cmd.hasOption("w")) {
+                logger.log(Level.INFO, "Using cli argument -workers=" + cmd.getOptionValue("w"));
+                workers = Integer.parseInt(cmd.getOptionValue("w"));
+            }
+
+            if (cmd.hasOption("q")) {
+                logger.log(Level.INFO, "Using cli argument -queue=" + cmd.getOptionValue("q"));
+                queueCapacity = Integer.parseInt(cmd.getOptionValue("q"));
+            }
+
+            if (cmd.hasOption("st")) {
+                logger.log(Level.INFO, "Using cli argument -store=" + cmd.getOptionValue("st"));
+                if (cmd.getOptionValue("st").equals("off-heap"))
+                    accountDatabase = new OffHeapAccountStore();
+            }
+
+            if (cmd.hasOption("cw")) {
+                logger.log(Level.INFO, "Using cli argument -cache-window=" + cmd.getOptionValue("cw"));
+                cacheWindow = Integer.parseInt(cmd.getOptionValue("cw"));
+            }
+
+            if (cmd.hasOption("ct")) {
+                logger.log(Level.INFO, "Using cli argument -cache-ttl=" + cmd.getOptionValue("ct"));
+                cacheTtl = Long.parseLong(cmd.getOptionValue("ct")) * 1000;
+            }
+
+            if (cmd.hasOption("cc")) {
+                logger.log(Level.INFO, "Using cli argument -cache-clients=" + cmd.getOptionValue("cc"));
+                cacheClients = Integer.parseInt(cmd.getOptionValue("cc"));
+            }
+
+            if (cmd.hasOption("t")) {
+                logger.log(Level.INFO, "Using cli argument -transport=" + cmd.getOptionValue("t"));
+                if (cmd.getOptionValue("t").equals("nio"))
+                    nio = true;
+                if (cmd.getOptionValue("t").equals("ring"))
+                    ring = true;
+            }
+
+            if (cmd.hasOption("b")) {
+                logger.log(Level.INFO, "Using cli argument -batch=" + cmd.getOptionValue("b"));
+                batchSize = Integer.parseInt(cmd.getOptionValue("b"));
+            }
+
+            if (cmd.hasOption("rs")) {
+                logger.log(Level.INFO, "Using cli argument -ring-size=" + cmd.getOptionValue("rs"));
+                ringSize = Integer.parseInt(cmd.getOptionValue("rs"));
+            }
+
+            if (cmd.hasOption("sd")) {
+                logger.log(Level.INFO, "Using cli argument -senders=" + cmd.getOptionValue("sd"));
+                senders = Integer.parseInt(cmd.getOptionValue("sd"));
+            }
+
+            if (cmd.hasOption("l")) {
+                logger.log(Level.INFO, "Using cli argument -log=" + cmd.getOptionValue("l"));
+                logPath = cmd.getOptionValue("l");
+            }
+
+            if (cmd.hasOption("fs")) {
+                logger.log(Level.INFO, "Using cli argument -fsync=" + cmd.getOptionValue("fs"));
+                fsyncPolicy = FsyncPolicy.valueOf(cmd.getOptionValue("fs").toUpperCase());
+            }
+
+            if (cmd.hasOption("fi")) {
+                logger.log(Level.INFO, "Using cli argument -fsync-interval=" + cmd.getOptionValue("fi"));
+                fsyncInterval = Long.parseLong(cmd.getOptionValue("fi"));
+            }
+
+            if (cmd.hasOption("sn")) {
+                logger.log(Level.INFO, "Using cli argument -snapshot=" + cmd.getOptionValue("sn"));
+                snapshotPath = cmd.getOptionValue("sn");
+                if (!cmd.hasOption("l")) {
+                    logger.log(Level.SEVERE, "Snapshots need a write-ahead log");
+                    help();
+                }
+            }
+
+            if (cmd.hasOption("si")) {
+                logger.log(Level.INFO, "Using cli argument -snapshot-interval=" + cmd.getOptionValue("si"));
+                snapshotInterval = Long.parseLong(cmd.getOptionValue("si")) * 1000;
+            }
+
+            if (cmd.hasOption("mw")) {
+                logger.log(Level.INFO, "Using cli argument -monitor-window=" + cmd.getOptionValue("mw"));
+                monitorWindow = Long.parseLong(cmd.getOptionValue("mw"));
+            }
+
+            if (cmd.hasOption("mq")) {
+                logger.log(Level.INFO, "Using cli argument -monitor-queue=" + cmd.getOptionValue("mq"));
+                monitorQueue = Integer.parseInt(cmd.getOptionValue("mq"));
+            }
+
+            if (cmd.hasOption("mc")) {
+                logger.log(Level.INFO, "Using cli argument -multicast=" + cmd.getOptionValue("mc"));
+                String[] group = cmd.getOptionValue("mc").split(":");
+                multicastGroup = new InetSocketAddress(InetAddress.getByName(group[0]), Integer.parseInt(group[1]));
+            }
+
+            if (cmd.hasOption("mi")) {
+                logger.log(Level.INFO, "Using cli argument -multicast-interface=" + cmd.getOptionValue("mi"));
+                multicastInterface = NetworkInterface.getByName(cmd.getOptionValue("mi"));
+            }
+
+            if (cmd.hasOption("mh")) {
+                logger.log(Level.INFO, "Using cli argument -multicast-history=" + cmd.getOptionValue("mh"));
+                multicastHistory = Integer.parseInt(cmd.getOptionValue("mh"));
+            }
+
+            if (cmd.hasOption("sf")) {
+                logger.log(Level.INFO, "Using cli argument -stats-file=" + cmd.getOptionValue("sf"));
+                statsPath = cmd.getOptionValue("sf");
+            }
+
+            if (cmd.hasOption("cl")) {
+                logger.log(Level.INFO, "Using cli argument -cluster=" + cmd.getOptionValue("cl"));
+                shardMap = ShardMap.load(Paths.get(cmd.getOptionValue("cl")));
+                if (!cmd.hasOption("sh")) {
+                    logger.log(Level.SEVERE, "Missing shard option");
+                    help();
+                }
+                if (ring) {
+                    logger.log(Level.SEVERE, "The ring transport can't serve a shard of a cluster");
+                    help();
+                }
+            }
+
+            if (cmd.hasOption("sh")) {
+                logger.log(Level.INFO, "Using cli argument -shard=" + cmd.getOptionValue("sh"));
+                shardIndex = Integer.parseInt(cmd.getOptionValue("sh"));
+            }
+
+            if (cmd.hasOption("jo")) {
+                logger.log(Level.INFO, "Using cli argument -join");
+                joining = true;
+                if (!cmd.hasOption("cl") || !cmd.hasOption("l")) {
+                    logger.log(Level.SEVERE, "Joining needs a cluster file and a write-ahead log");
+                    help();
+                }
+            }
+
+            if (cmd.hasOption("p")) {
+                logger.log(Level.INFO, "Using cli argument -port=" + cmd.getOptionValue("p"));
+                port = Integer.parseInt(cmd.getOptionValue("p"));
+            }
+
+            if (cmd.hasOption("rp")) {
+                logger.log(Level.INFO, "Using cli argument -replication-port=" + cmd.getOptionValue("rp"));
+                replicationPort = Integer.parseInt(cmd.getOptionValue("rp"));
+                if (!cmd.hasOption("l")) {
+                    logger.log(Level.SEVERE, "Replication needs a write-ahead log");
+                    help();
+                }
+            }
+
+            if (cmd.hasOption("rf")) {
+                logger.log(Level.INFO, "Using cli argument -replicate-from=" + cmd.getOptionValue("rf"));
+                String[] address = cmd.getOptionValue("rf").split(":");
+                primary = new InetSocketAddress(InetAddress.getByName(address[0]), Integer.parseInt(address[1]));
+                if (cmd.hasOption("l") || cmd.hasOption("cl")) {
+                    logger.log(Level.SEVERE, "A backup keeps no log of its own and can't be part of a cluster");
+                    help();
+                }
+            }
+
+            if (cmd.hasOption("ms")) {
+                logger.log(Level.INFO, "Using cli argument -max-staleness=" + cmd.getOptionValue("ms"));
+                maxStaleness = Long.parseLong(cmd.getOptionValue("ms"));
+            }
+
+        } catch (ParseException | IllegalArgumentException | IOException e) {
             logger.log(Level.SEVERE, "Failed to parse command line properties", e);
             help();
         }
 
-        new RequestReceiver().run(atMostOnce);
+        RequestReceiver server = new RequestReceiver(accountDatabase,
+                atMostOnce ? new ReplyCache(cacheWindow, cacheTtl, cacheClients) : null);
+        server.timers.start();
+        server.port = port;
+        if (shardMap != null) {
+            server.shardPeer = new ShardPeer(server, server.accountDatabase, shardMap, shardIndex, joining);
+            server.port = server.shardPeer.getShard().getAddress().getPort();
+            if (!shardMap.isHashed()) {
+                server.nextAccountNumber.set(server.shardPeer.getShard().getFirstAccount());
+            }
+            logger.log(Level.INFO, "Serving " + server.shardPeer.getShard());
+        }
+        if (statsPath != null) {
+            server.statsPath = Paths.get(statsPath);
+        }
+        if (atMostOnce) {
+            server.timers.scheduleRepeated(server.replyCache::expire, Math.min(cacheTtl, CACHE_SWEEP_INTERVAL));
+        }
+        server.callbacks = new CallbackDispatcher(server.clients, server::sendCallback, monitorQueue, monitorWindow);
+        server.callbacks.start();
+        if (multicastGroup != null) {
+            try {
+                server.multicast = new MulticastPublisher(multicastGroup, multicastInterface, multicastHistory);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to open the multicast socket", e);
+                return;
+            }
+            logger.log(Level.INFO, "Publishing monitoring callbacks to " + server.multicast.getGroup());
+        }
+        if (logPath != null) {
+            try {
+                server.recover(Paths.get(logPath), fsyncPolicy, fsyncInterval,
+                        snapshotPath != null ? Paths.get(snapshotPath) : null);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to recover the accounts", e);
+                return;
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(server.log::close));
+            if (snapshotPath != null) {
+                server.startSnapshots(Paths.get(snapshotPath), snapshotInterval);
+            }
+        }
+        if (replicationPort >= 0) {
+            server.replicationSource = new ReplicationSource(Paths.get(logPath), server.log);
+            try {
+                server.replicationSource.start(replicationPort);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to open the replication port", e);
+                return;
+            }
+        }
+        if (primary != null) {
+            server.replica = new Replica(primary, server.accountDatabase, maxStaleness);
+            server.registerReplicaHandlers();
+            server.replica.start();
+        }
+        if (server.shardPeer != null) {
+            try {
+                server.shardPeer.start();
+                if (logPath != null) {
+                    server.shardPeer.enableRebalancing(Paths.get(logPath), server.log);
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to open the peer socket", e);
+                return;
+            }
+        }
+        if (nio) {
+            if (simulation || workers > 0) {
+                logger.log(Level.WARNING, "The nio transport ignores -sim and -workers");
+            }
+            server.runChannel(batchSize);
+        } else if (ring) {
+            if (simulation || workers > 0) {
+                logger.log(Level.WARNING, "The ring transport ignores -sim and -workers");
+            }
+            server.runRing(ringSize, batchSize, senders);
+        } else {
+            server.run(workers, queueCapacity);
+        }
     }
 
     /**
      * Main method of the server, accepts user request and reply with a response
-     * @param atMostOnce Whether at-most-once invocation is used
+     * @param workers Number of worker threads, 0 to process requests on the receive thread
+     * @param queueCapacity Maximum number of pending requests per worker
      */
-    private void run(boolean atMostOnce) {
-        HashMap<Character, ServiceHandler> handlerMap = new HashMap<>();
-        handlerMap.put('a', new AccountCancellationHandler(accountDatabase, this));
-        handlerMap.put('b', new AccountCreationHandler(accountDatabase, this));
-        handlerMap.put('c', new AccountMonitoringHandler(accountDatabase, this, clients));
-        handlerMap.put('d', new BalanceCheckHandler(accountDatabase, this));
-        handlerMap.put('e', new BalanceUpdateHandler(accountDatabase, this));
-        handlerMap.put('f', new TransferHandler(accountDatabase, this));
-
+    private void run(int workers, int queueCapacity) {
+        startMetricsLogging();
         try {
             InetAddress address = InetAddress.getByName("0.0.0.0");
             if (simulation) {
-                socket = new UnreliableDatagramSocket(SERVER_PORT, address);
+                socket = new UnreliableDatagramSocket(port, address);
             } else {
-                socket = new DatagramSocket(SERVER_PORT, address);
+                socket = new DatagramSocket(port, address);
+            }
+            logger.log(Level.INFO, "Start listening on 0.0.0.0:" + port);
+
+            if (workers > 0) {
+                workerPool = new WorkerPool(this, workers, queueCapacity);
+                workerPool.start();
+                logger.log(Level.INFO, "Processing requests with " + workers + " workers");
             }
-            logger.log(Level.INFO, "Start listening on 0.0.0.0:" + SERVER_PORT);
 
             while (true) {
-                // receive request and parse message
+                // receive request
                 DatagramPacket requestPacket =
                         new DatagramPacket(receiveBuffer, receiveBuffer.length);
                 socket.receive(requestPacket);
-                deserializer = new Deserializer(receiveBuffer);
-                ServiceRequest serviceRequest = new ServiceRequest();
-                serviceRequest.read(deserializer);
-                Character op = serviceRequest.getRequestType();
-                ServiceResponse response;
-
-                // Check client in logger. If not exist, register and logger a new client
-                Client tempClient = new Client(requestPacket.getAddress(),requestPacket.getPort());
-                Boolean registered = checkClient(tempClient);
-
-                if (atMostOnce && registered && checkRequestHistory(clientsLog.get(tempClient), serviceRequest.getRequestID())) {
-                    response = clientsLog.get(tempClient).get(serviceRequest.getRequestID());
-                    sendResponse(response, requestPacket.getAddress(), requestPacket.getPort());
+                if (workerPool == null) {
+                    processRequest(receiveBuffer, requestPacket.getAddress(), requestPacket.getPort());
                 } else {
-                    serviceRequest.setRequestAddress(requestPacket.getAddress());
-                    serviceRequest.setRequestPort(requestPacket.getPort());
-                    // handle the request
-                    response = handlerMap.get(op).handleRequest(serviceRequest, simulation);
-                    if (atMostOnce) {
-                        clientsLog.get(tempClient).put(serviceRequest.getRequestID(), response);
-                    }
-                    sendResponse(response, requestPacket.getAddress(), requestPacket.getPort());
-                    if (response.getResponseCode() == SUCCESS && op != 'c') {
-                        sendCallbacks(response);
-                    }
+                    // the receive buffer is reused, so workers get their own copy of the request
+                    byte[] data = Arrays.copyOf(receiveBuffer, requestPacket.getLength());
+                    workerPool.submit(data, requestPacket.getAddress(), requestPacket.getPort());
                 }
             }
         } catch (Exception e) {
@@ -146,19 +520,495 @@ public class RequestReceiver {
     }
 
     /**
-     * Helper function to send a response to a client
-     * @param response Response to be sent
+     * Main method of the server using the non-blocking channel transport
+     * @param batchSize Maximum number of datagrams handled per wakeup
+     */
+    private void runChannel(int batchSize) {
+        startMetricsLogging();
+        try {
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), port));
+            logger.log(Level.INFO, "Start listening on 0.0.0.0:" + port + " with the nio transport");
+            eventLoop = new ChannelEventLoop(this, channel, batchSize);
+            eventLoop.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Main method of the server using the ring transport, see {@link RingPipeline}
+     * @param ringSize Number of slots of the ring
+     * @param batchSize Maximum number of slots a stage takes at once
+     * @param senders Number of threads sending replies
+     */
+    private void runRing(int ringSize, int batchSize, int senders) {
+        startMetricsLogging();
+        try {
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), port));
+            ringPipeline = new RingPipeline(this, channel, accountDatabase, log, ringSize, batchSize, senders);
+            logger.log(Level.INFO, "Start listening on 0.0.0.0:" + port + " with the ring transport");
+            ringPipeline.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the latest snapshot if there is one, replay the log written after it and start logging
+     * @param logPath Write-ahead log file
+     * @param policy Fsync policy of the log
+     * @param interval Milliseconds between log forces with the periodic policy
+     * @param snapshotPath Snapshot file, null if snapshots are not used
+     * @throws IOException If the snapshot or the log can't be read
+     */
+    private void recover(Path logPath, FsyncPolicy policy, long interval, Path snapshotPath) throws IOException {
+        long start = System.currentTimeMillis();
+        long lsn = 0;
+        if (snapshotPath != null && Files.exists(snapshotPath)) {
+            Snapshot snapshot = Snapshot.load(snapshotPath, accountDatabase, replyCache,
+                    Runtime.getRuntime().availableProcessors());
+            lsn = snapshot.getLsn();
+            nextAccountNumber.set(Math.max(nextAccountNumber.get(), snapshot.getNextAccountNumber()));
+            logger.log(Level.INFO, "Loaded " + snapshot.getAccountCount() + " accounts from the snapshot in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+        log = WriteAheadLog.open(logPath, policy, interval, accountDatabase,
+                replyCache != null ? replyCache::putReply : null, lsn);
+        nextAccountNumber.set(Math.max(nextAccountNumber.get(), log.getNextAccountNumber()));
+        logger.log(Level.INFO, "Ready after " + (System.currentTimeMillis() - start) + " ms of recovery");
+    }
+
+    /**
+     * Periodically write a snapshot in the background
+     * @param path Snapshot file
+     * @param interval Milliseconds between snapshots
+     */
+    private void startSnapshots(Path path, long interval) {
+        Thread snapshotThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long start = System.currentTimeMillis();
+                // every record before this position is applied, later ones are replayed on top
+                long lsn = log.getAppendedLsn();
+                try {
+                    Snapshot snapshot = Snapshot.write(path, accountDatabase, replyCache, lsn, nextAccountNumber.get());
+                    logger.log(Level.INFO, "Snapshot of " + snapshot.getAccountCount() + " accounts at log position "
+                            + lsn + " written in " + (System.currentTimeMillis() - start) + " ms");
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Failure on writing the snapshot", e);
+                }
+            }
+        }, "snapshot");
+        snapshotThread.setDaemon(true);
+        snapshotThread.start();
+    }
+
+    private void registerHandlers() {
+        handlerMap.put('a', new AccountCancellationHandler(accountDatabase, this));
+        handlerMap.put('b', new AccountCreationHandler(accountDatabase, this));
+        handlerMap.put('c', new AccountMonitoringHandler(accountDatabase, this, clients));
+        handlerMap.put('d', new BalanceCheckHandler(accountDatabase, this));
+        handlerMap.put('e', new BalanceUpdateHandler(accountDatabase, this));
+        handlerMap.put('f', new TransferHandler(accountDatabase, this));
+        handlerMap.put('i', new MonitorResyncHandler(accountDatabase, this));
+        handlerMap.put('j', new StatsHandler(accountDatabase, this));
+        handlerMap.put('n', new RebalanceHandler(accountDatabase, this));
+    }
+
+    /**
+     * Refuse the requests a replica can't serve, balance checks and stats are still served
+     */
+    private void registerReplicaHandlers() {
+        ServiceHandler readOnly = new ReadOnlyHandler(accountDatabase, this);
+        for (char op : new char[] {'a', 'b', 'c', 'e', 'f', 'i', 'n'}) {
+            handlerMap.put(op, readOnly);
+        }
+    }
+
+    /**
+     * Process a request received on the socket and send the reply on the socket. Called
+     * either on the receive thread or on a worker thread, requests of the same client are
+     * never processed concurrently.
+     * @param data Request bytes
+     * @param address Client address
+     * @param port Client port
+     */
+    void processRequest(byte[] data, InetAddress address, int port) {
+        Serializer serializer = Serializer.forCurrentThread();
+        if (processRequest(ByteBuffer.wrap(data), address, port, serializer)) {
+            sendBytes(serializer.getBuffer(), serializer.getBufferLength(), address, port);
+        }
+    }
+
+    /**
+     * Handle a request and encode the reply, independently of the transport. A reply that
+     * has to wait for the log is sent by the log once durable.
+     * @param data Buffer holding the request from its position
+     * @param address Client address
+     * @param port Client port
+     * @param serializer Serializer to encode the reply into
+     * @return Whether a reply was encoded and has to be sent
+     */
+    boolean processRequest(ByteBuffer data, InetAddress address, int port, Serializer serializer) {
+        return handleRequest(data, address, port, serializer) && releaseWhenDurable(serializer, address, port);
+    }
+
+    /**
+     * Handle a request and encode the reply. The request is read in place through a
+     * flyweight view and the reply is written straight into the serializer, no request or
+     * response objects are created. The caller sends the reply once the mutations logged so
+     * far are durable.
+     * @param data Buffer holding the request from its position
      * @param address Client address
      * @param port Client port
+     * @param serializer Serializer to encode the reply into
+     * @return Whether a reply was encoded
      */
-    private void sendResponse(ServiceResponse response, InetAddress address, int port) {
-        // send response
-        serializer = new Serializer();
-        response.write(serializer);
-        DatagramPacket responsePacket =
-                new DatagramPacket(serializer.getBuffer(), serializer.getBufferLength(),
-                        address, port);
+    boolean handleRequest(ByteBuffer data, InetAddress address, int port, Serializer serializer) {
+        RequestView request = requestViews.get().wrap(data);
+        request.setSender(address, port);
+        Client client = replyCache != null ? clientKeys.get().reset(address, port) : null;
+        ResponseWriter response = responseWriters.get().reset(serializer, request.requestID(), request.fixedPoint());
+
+        if (request.requestType() != BATCH) {
+            return execute(request, client, serializer, response);
+        }
+
+        // execute every request of the batch in one pass, each one is deduplicated on its own
+        int count = request.batchCount();
+        int offset = request.firstBatchOffset();
+        RequestView entry = batchEntryViews.get();
+        response.beginBatch(count);
+        for (int i = 0; i < count; i++) {
+            entry.wrap(data, offset);
+            entry.setSender(address, port);
+            response.reset(serializer, entry.requestID(), entry.fixedPoint());
+            if (entry.requestType() == BATCH || !execute(entry, client, serializer, response)) {
+                response.failure(entry.requestType(), "Request not executed");
+            }
+            offset += entry.length();
+        }
+        response.endBatch("Batch of " + count + " requests handled");
+        return true;
+    }
+
+    /**
+     * Hold back an encoded reply until everything logged before it is durable, so a client
+     * never sees the effect of a mutation that a crash could lose. Reads wait as well, as
+     * they may have seen mutations of other clients that are not durable yet.
+     * @param serializer Serializer holding the reply
+     * @param address Client address
+     * @param port Client port
+     * @return Whether the reply can be sent right away, otherwise it is sent by the log
+     */
+    private boolean releaseWhenDurable(Serializer serializer, InetAddress address, int port) {
+        if (log == null) {
+            return true;
+        }
+        long lsn = log.getAppendedLsn();
+        if (lsn <= log.getDurableLsn()) {
+            return true;
+        }
+        byte[] reply = serializer.toByteArray();
+        log.whenDurable(lsn, () -> sendBytes(reply, reply.length, address, port));
+        return false;
+    }
+
+    /**
+     * Execute a single request and record its processing time
+     * @param request Request to execute
+     * @param client Client sending the request, null when at-most-once invocation is not used
+     * @param serializer Serializer receiving the reply
+     * @param response Writer for the reply
+     * @return Whether a reply was written
+     */
+    private boolean execute(RequestView request, Client client, Serializer serializer, ResponseWriter response) {
+        long start = System.nanoTime();
+        boolean replied = handle(request, client, serializer, response);
+        metrics.request(request.requestType(), System.nanoTime() - start);
+        return replied;
+    }
+
+    /**
+     * Execute a single request unless it is a duplicate, and append its reply to the serializer
+     * @param request Request to execute
+     * @param client Client sending the request, null when at-most-once invocation is not used
+     * @param serializer Serializer receiving the reply
+     * @param response Writer for the reply
+     * @return Whether a reply was written
+     */
+    private boolean handle(RequestView request, Client client, Serializer serializer, ResponseWriter response) {
+        char op = request.requestType();
+        int replyStart = serializer.getBufferLength();
+        if (client != null) {
+            switch (replyCache.lookup(client, request.requestID(), request.requestAck())) {
+                case DUPLICATE:
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.log(Level.FINE, "Request " + request.requestID() + " of " + client
+                                + " already handled, reply resent");
+                    }
+                    metrics.duplicate();
+                    serializer.writeBytes(replyCache.getReply(client, request.requestID()));
+                    return true;
+                case STALE:
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.log(Level.FINE, "Request " + request.requestID() + " of " + client
+                                + " already acknowledged, ignored");
+                    }
+                    metrics.stale();
+                    return false;
+                default:
+                    break;
+            }
+        }
+
+        // handle the request, in a cluster only while no handoff completes
+        Lock lock = shardPeer != null ? shardPeer.getRequestLock().readLock() : null;
+        if (lock != null) {
+            lock.lock();
+        }
         try {
+            if (!redirect(request, response)) {
+                handlerMap.get(op).handleRequest(request, response, simulation);
+            }
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+        if (response.getStatus() == REDIRECT) {
+            metrics.redirect();
+        } else if (response.getStatus() != SUCCESS) {
+            metrics.failure(op, response.getMessage());
+        }
+        byte[] reply = null;
+        if (client != null) {
+            reply = serializer.toByteArray(replyStart);
+            replyCache.putReply(client, request.requestID(), reply);
+            if (ringPipeline != null && log != null) {
+                ringPipeline.replyCached(client, request.requestID(), reply);
+            } else if (log != null) {
+                log.replyCached(client, request.requestID(), reply);
+            }
+        }
+        if (response.getStatus() == SUCCESS && op != ACCOUNT_MONITOR && op != MONITOR_RESYNC && op != STATS
+                && clients.hasClients()) {
+            byte[] callback = reply != null ? reply : serializer.toByteArray(replyStart);
+            // a created account is only known from the reply
+            int account = op == ACCOUNT_CANCEL ? response.getAccount() : request.account();
+            // the reply of a transfer carries the source, the target gets an update of its own
+            int targetAccount = op == TRANSFER ? request.targetAccount() : account;
+            byte[] targetCallback = op == TRANSFER ? transferUpdate(account, targetAccount, request.amount()) : null;
+            Runnable task = () -> {
+                sendCallbacks(callback, account, account);
+                if (targetCallback != null) {
+                    sendCallbacks(targetCallback, targetAccount, targetAccount);
+                }
+            };
+            if (ringPipeline != null) {
+                ringPipeline.defer(task);
+            } else if (log != null) {
+                log.whenDurable(log.getAppendedLsn(), task);
+            } else {
+                task.run();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Redirect a request on an account served by another shard of the cluster, with the
+     * placement this shard knows so that the client can refresh its routing
+     * @param request Request
+     * @param response Writer for the redirect
+     * @return Whether the request was redirected
+     */
+    private boolean redirect(RequestView request, ResponseWriter response) {
+        char op = request.requestType();
+        if (shardPeer == null || op != ACCOUNT_CREATE && op != BALANCE_CHECK && op != BALANCE_UPDATE && op != TRANSFER) {
+            return false;
+        }
+        Shard owner = shardPeer.ownerOf(request.account());
+        if (owner == null || owner.getAddress().equals(shardPeer.getAddress())) {
+            return false;
+        }
+        response.redirect(op, ShardMap.format(owner.getAddress()), shardPeer.describePlacement());
+        return true;
+    }
+
+    /**
+     * Periodically log the queue metrics of the worker pool and the callback dispatcher, and
+     * write the server metrics to the stats file if there is one
+     */
+    private void startMetricsLogging() {
+        Thread metricsThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(METRICS_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (workerPool != null) {
+                    workerPool.logMetrics();
+                }
+                if (ringPipeline != null) {
+                    ringPipeline.logMetrics();
+                }
+                callbacks.logMetrics();
+                if (statsPath != null) {
+                    try {
+                        ServerMetrics.dump(statsPath, reportMetrics(STATS_FILE_LENGTH));
+                    } catch (IOException e) {
+                        logger.log(Level.SEVERE, "Failure on writing the stats file", e);
+                    }
+                }
+            }
+        }, "metrics");
+        metricsThread.setDaemon(true);
+        metricsThread.start();
+    }
+
+    /**
+     * Report of the request counts and latencies, failures, duplicates, callbacks and queue depths
+     * @param maxLength Maximum number of characters of the report
+     * @return Report
+     */
+    public String reportMetrics(int maxLength) {
+        String replication = replica != null ? replica.report()
+                : replicationSource != null ? replicationSource.report() : null;
+        if (shardPeer != null) {
+            replication = replication != null ? replication + "\n" + shardPeer.report() : shardPeer.report();
+        }
+        return metrics.report(accountDatabase.size(), workerPool != null ? workerPool.getQueueDepths() : null,
+                callbacks != null ? callbacks.getQueueDepth() : 0, replication, maxLength);
+    }
+
+    /**
+     * Publisher of the monitoring callbacks
+     * @return Publisher, null if callbacks are sent to every monitoring client
+     */
+    public MulticastPublisher getMulticastPublisher() {
+        return multicast;
+    }
+
+    /**
+     * Timing wheel running the timeouts of the server
+     * @return Timing wheel
+     */
+    public TimingWheel getTimers() {
+        return timers;
+    }
+
+    public WorkerPool getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * Peer of the shard served by this server
+     * @return Peer, null if the server is not part of a cluster
+     */
+    public ShardPeer getShardPeer() {
+        return shardPeer;
+    }
+
+    /**
+     * Replica state of a backup
+     * @return Replica, null if the server is not a backup
+     */
+    public Replica getReplica() {
+        return replica;
+    }
+
+    /**
+     * Position of the log the state of the server reflects, carried by responses on an account
+     * @return Appended LSN of the log, applied LSN on a backup, 0 without a log
+     */
+    private long currentLsn() {
+        if (replica != null) {
+            return replica.getAppliedLsn();
+        }
+        if (ringPipeline != null && log != null) {
+            return ringPipeline.getLsn();
+        }
+        return log != null ? log.getAppendedLsn() : 0;
+    }
+
+    /**
+     * Hand out the number of a new account, never reusing the numbers of recovered accounts
+     * and staying within the range of the shard in a cluster. On a hash ring the numbers the
+     * shard doesn't serve are skipped.
+     * @return Account number, -1 if the shard has no number left
+     */
+    public int allocateAccountNumber() {
+        int accountNumber = nextAccountNumber.getAndIncrement();
+        if (shardPeer == null) {
+            return accountNumber;
+        }
+        for (int probe = 0; probe < MAX_ALLOCATION_PROBES && accountNumber >= 0; probe++) {
+            if (shardPeer.canAllocate(accountNumber)) {
+                return accountNumber;
+            }
+            // beyond the range of the shard, or joining and serving nothing yet
+            if (!shardPeer.getPlacement().isHashed() && !shardPeer.owns(accountNumber)
+                    || shardPeer.ownerOf(accountNumber) == null) {
+                return -1;
+            }
+            accountNumber = nextAccountNumber.getAndIncrement();
+        }
+        return -1;
+    }
+
+    /**
+     * Run a task once every mutation logged so far is durable, right away without a log
+     * @param task Task to run
+     */
+    void whenDurable(Runnable task) {
+        if (log == null) {
+            task.run();
+        } else {
+            log.whenDurable(log.getAppendedLsn(), task);
+        }
+    }
+
+    /**
+     * Helper function to send an encoded response to a client, on whichever transport is used
+     * @param reply Encoded response
+     * @param length Length of the encoded response
+     * @param address Client address
+     * @param port Client port
+     */
+    private void sendBytes(byte[] reply, int length, InetAddress address, int port) {
+        try {
+            if (channel != null) {
+                if (!sendOnChannel(ByteBuffer.wrap(reply, 0, length), new InetSocketAddress(address, port))) {
+                    metrics.dropped();
+                    logger.log(Level.FINE, "Reply to " + address + ":" + port + " dropped, the channel is full");
+                }
+                return;
+            }
+            DatagramPacket responsePacket = new DatagramPacket(reply, length, address, port);
             socket.send(responsePacket);
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Failure on sending reply");
@@ -166,59 +1016,113 @@ public class RequestReceiver {
     }
 
     /**
-     * Check whether a request has been handled before
-     * @param history Server history for a client
-     * @param id Id of request
-     * @return Whether a request has been handled
+     * Send a datagram on the non-blocking channel from a thread other than the event loop,
+     * queued behind the backlog of the loop if the channel is full
+     * @param datagram Datagram
+     * @param address Destination
+     * @return Whether the datagram was sent or queued, false if it was dropped
+     * @throws IOException Channel error
      */
-    private Boolean checkRequestHistory(HashMap<Integer, ServiceResponse> history, Integer id) {
-        if (history.containsKey(id)) {
-            System.out.println("Request already handled.");
+    private boolean sendOnChannel(ByteBuffer datagram, InetSocketAddress address) throws IOException {
+        if (channel.send(datagram, address) > 0) {
             return true;
-        } else {
-            System.out.println("New request.");
-            return false;
         }
+        return eventLoop != null && eventLoop.enqueue(datagram, address);
     }
 
     /**
-     * Check whether the server received request from a client before
-     * @param client Client to check
-     * @return Whether server received request from this client before
+     * Encode the update telling the clients monitoring the target of a transfer its balance
+     * @param sourceAccount Source account number
+     * @param targetAccount Target account number
+     * @param amount Transferred amount
+     * @return Encoded update, null if the target is served by another shard, which tells its
+     * own clients, or was closed meanwhile
      */
-    private Boolean checkClient(Client client) {
-        if (clientsLog.containsKey(client)) {
-            System.out.println("Client exists.");
-            return true;
+    private byte[] transferUpdate(int sourceAccount, int targetAccount, long amount) {
+        if (shardPeer != null && !shardPeer.owns(targetAccount)) {
+            return null;
+        }
+        try {
+            return encodeUpdate(targetAccount, accountDatabase.getBalance(targetAccount), amount, sourceAccount);
+        } catch (AccountException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Tell the clients monitoring an account about the credit of a transfer from another shard,
+     * once the credit is durable
+     * @param account Credited account number
+     * @param balance New balance of the account
+     * @param amount Credited amount
+     */
+    void transferReceived(int account, long balance, long amount) {
+        if (!clients.hasClients()) {
+            return;
+        }
+        byte[] update = encodeUpdate(account, balance, amount, null);
+        whenDurable(() -> sendCallbacks(update, account, account));
+    }
+
+    /**
+     * Encode a monitoring update for the target of a transfer
+     * @param account Target account number
+     * @param balance New balance of the target
+     * @param amount Transferred amount
+     * @param sourceAccount Source account number, null if it is served by another shard
+     * @return Encoded update
+     */
+    private static byte[] encodeUpdate(int account, long balance, long amount, Integer sourceAccount) {
+        ServiceResponse update = new ServiceResponse(TRANSFER, SUCCESS, account, "Received $" + Amounts.format(amount)
+                + (sourceAccount != null ? " from account no." + sourceAccount : " from another shard"), balance);
+        update.setResponseID(0);
+        Serializer serializer = new Serializer();
+        update.write(serializer);
+        return serializer.toByteArray();
+    }
+
+    /**
+     * Helper function to send a callback to the clients monitoring the accounts a request
+     * touched, published once when callbacks are multicast
+     * @param callback Encoded successful response to be sent
+     * @param account Account touched by the request
+     * @param otherAccount Other account touched by the request, or the same account
+     */
+    private void sendCallbacks(byte[] callback, int account, int otherAccount) {
+        if (multicast != null) {
+            multicast.publish(callback);
+            metrics.callbackSent();
         } else {
-            clientsLog.put(client,new HashMap<>());
-            System.out.println("Client registered.");
-            return false;
+            callbacks.dispatch(callback, account, otherAccount);
         }
     }
 
     /**
-     * Helper function to send callback to all registered clients
-     * @param response Callback to be sent
+     * Helper function to send a callback to one monitoring client
+     * @param callback Encoded successful response to be sent
+     * @param client Monitoring client
      */
-    private void sendCallbacks(ServiceResponse response) {
-        System.out.println("Sending callbacks");
-        if (response.getResponseCode() == SUCCESS) {
-            for (Client client : clients.getClients()) {
-                DatagramPacket callbackPacket =
-                        new DatagramPacket(serializer.getBuffer(), serializer.getBufferLength(),
-                                client.getClientAddress(), client.getClientPort());
-                try {
-                    if (simulation) {
-                        UnreliableDatagramSocket local = (UnreliableDatagramSocket) socket;
-                        local.sendWithoutFailure(callbackPacket);
-                    } else {
-                        socket.send(callbackPacket);
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+    private void sendCallback(byte[] callback, Client client) {
+        DatagramPacket callbackPacket =
+                new DatagramPacket(callback, callback.length,
+                        client.getClientAddress(), client.getClientPort());
+        try {
+            if (channel != null) {
+                if (!sendOnChannel(ByteBuffer.wrap(callback), new InetSocketAddress(
+                        client.getClientAddress(), client.getClientPort()))) {
+                    metrics.dropped();
+                    logger.log(Level.FINE, "Callback to " + client + " dropped, the channel is full");
+                    return;
                 }
+            } else if (simulation) {
+                UnreliableDatagramSocket local = (UnreliableDatagramSocket) socket;
+                local.sendWithoutFailure(callbackPacket);
+            } else {
+                socket.send(callbackPacket);
             }
+            metrics.callbackSent();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -0,0 +1,504 @@
+package bankingsys.server;
+
+import bankingsys.io.Serializer;
+import bankingsys.server.model.BankAccount.Currency;
+import bankingsys.server.model.Client;
+import bankingsys.server.store.AccountStore;
+import bankingsys.server.store.MutationListener;
+import bankingsys.server.store.WriteAheadLog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import static bankingsys.Constant.BUFFER_SIZE;
+
+/**
+ * Execution mode in the style of the LMAX disruptor: requests flow through a ring of
+ * preallocated slots, each stage of the pipeline running on its own thread and following
+ * the stage before it by sequence number.
+ *
+ * - The receive thread reads datagrams straight into the request buffers of free slots.
+ * - One business logic thread runs the handlers on every slot in order, so requests never
+ *   contend for an account. The store is only mutated by this thread, the mutations it
+ *   reports are encoded as log records into the slot instead of taking the lock of the log,
+ *   and the reply is encoded into the slot by the response writer.
+ * - The journal thread appends the records of the handled slots to the log.
+ * - Sender threads send the replies of the handled slots and run their callbacks once the
+ *   records up to the slot are durable, each sender taking every n-th slot.
+ *
+ * Every stage takes all the slots available to it, up to a batch, and publishes its
+ * sequence once per batch: the receive thread drains the socket, the journal appends the
+ * records of the batch under one lock of the log and the senders wait once for the batch
+ * to be durable. A slot is reused once the journal and every sender are past it, so a full
+ * ring stops the receive thread and the socket buffer absorbs the backlog.
+ *
+ * The slots, their buffers and the sequences are allocated up front, the pipeline itself
+ * allocates nothing per request. A stage without work spins briefly, then parks until the
+ * stage it follows publishes.
+ *
+ * The log position carried by replies is counted by the logic thread, which assumes that
+ * the pipeline is the only writer of the log, i.e. the server is not a shard of a cluster.
+ */
+public class RingPipeline implements MutationListener {
+
+    private static final Logger logger = Logger.getLogger(RingPipeline.class.getName());
+
+    private static final int SPIN_TRIES = 200;
+    private static final long PARK_NANOS = 1000000;
+    private static final long DURABLE_TIMEOUT = 1000;
+
+    private final RequestReceiver server;
+    private final DatagramChannel channel;
+    private final WriteAheadLog log;
+    private final int batchSize;
+    private final Slot[] slots;
+    private final int mask;
+
+    // published positions of the stages, each the sequence of the last slot the stage is done with
+    private final Sequence received = new Sequence();
+    private final Sequence handled = new Sequence();
+    private final Sequence journaled = new Sequence();
+    private final Sequence[] sent;
+    private final Sequence[] receivedBarrier;
+    private final Sequence[] handledBarrier;
+    private final Sequence[] releaseBarrier; // every stage a slot has to pass before it is reused
+    private Stage[] stages;
+
+    private Thread logicThread;
+    private Slot current = null;               // slot being handled, logic thread only
+    private long lsn;                          // log position after the captured records, logic thread only
+    private final CRC32 checksum = new CRC32(); // logic thread only
+    private final Serializer staging = new Serializer(); // journal thread only
+
+    /**
+     * Create a pipeline
+     * @param server Server whose processing logic handles the requests
+     * @param channel Bound datagram channel
+     * @param accounts Store of the server, its mutations are journaled by the pipeline
+     * @param log Log of the server, null without a log
+     * @param ringSize Number of slots, a power of two
+     * @param batchSize Maximum number of slots a stage takes at once
+     * @param senders Number of sender threads
+     */
+    public RingPipeline(RequestReceiver server, DatagramChannel channel, AccountStore accounts, WriteAheadLog log,
+                        int ringSize, int batchSize, int senders) {
+        if (Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("The ring size must be a power of two");
+        }
+        if (senders < 1) {
+            throw new IllegalArgumentException("The pipeline needs a sender");
+        }
+        this.server = server;
+        this.channel = channel;
+        this.log = log;
+        this.batchSize = Math.min(batchSize, ringSize);
+        this.slots = new Slot[ringSize];
+        this.mask = ringSize - 1;
+        for (int i = 0; i < ringSize; i++) {
+            slots[i] = new Slot();
+        }
+        sent = new Sequence[senders];
+        for (int i = 0; i < senders; i++) {
+            sent[i] = new Sequence();
+        }
+        receivedBarrier = new Sequence[] {received};
+        handledBarrier = new Sequence[] {handled};
+        if (log != null) {
+            releaseBarrier = new Sequence[senders + 1];
+            releaseBarrier[senders] = journaled;
+            lsn = log.getAppendedLsn();
+            accounts.setMutationListener(this);
+        } else {
+            releaseBarrier = new Sequence[senders];
+        }
+        System.arraycopy(sent, 0, releaseBarrier, 0, senders);
+    }
+
+    /**
+     * Start the stage threads and run the receive stage on the calling thread until the
+     * channel is closed
+     * @throws IOException Channel error
+     */
+    public void run() throws IOException {
+        ArrayList<Stage> created = new ArrayList<>();
+        Stage receiver = new Stage();
+        receiver.thread = Thread.currentThread();
+        created.add(receiver);
+        created.add(newStage("ring-logic", this::handleLoop));
+        logicThread = created.get(1).thread;
+        if (log != null) {
+            created.add(newStage("ring-journal", this::journalLoop));
+        }
+        for (int i = 0; i < sent.length; i++) {
+            int index = i;
+            created.add(newStage("ring-sender-" + i, stage -> sendLoop(stage, index)));
+        }
+        // every stage is known before any of them runs, publishers wake them from this array
+        stages = created.toArray(new Stage[0]);
+        for (int i = 1; i < stages.length; i++) {
+            stages[i].thread.start();
+        }
+
+        channel.configureBlocking(false);
+        Selector selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        long next = 0;
+        while (channel.isOpen()) {
+            // a slot is free once every stage releasing slots is past its previous turn
+            long last = Math.min(await(receiver, next - slots.length, releaseBarrier) + slots.length,
+                    next + batchSize - 1);
+            long filled = next - 1;
+            for (long sequence = next; sequence <= last; sequence++) {
+                Slot slot = slots[(int) sequence & mask];
+                slot.request.clear();
+                InetSocketAddress from = (InetSocketAddress) channel.receive(slot.request);
+                if (from == null) {
+                    break;
+                }
+                slot.request.flip();
+                slot.client = from;
+                filled = sequence;
+            }
+            if (filled < next) {
+                selector.select();
+                selector.selectedKeys().clear();
+                continue;
+            }
+            publish(received, filled);
+            next = filled + 1;
+        }
+    }
+
+    /**
+     * Defer a task of the request being handled until its reply is sent, e.g. sending the
+     * callbacks of a mutation once it is durable. Called by the logic thread.
+     * @param task Task run by the sender of the slot
+     */
+    public void defer(Runnable task) {
+        current.deferred.add(task);
+    }
+
+    /**
+     * Journal a reply cached for at-most-once invocation with the records of its request.
+     * Called by the logic thread.
+     * @param client Client the reply is for
+     * @param requestID Id of the request
+     * @param reply Encoded reply
+     */
+    public void replyCached(Client client, int requestID, byte[] reply) {
+        captured(WriteAheadLog.encodeReply(current.journal, checksum, client, requestID, reply));
+    }
+
+    /**
+     * Position of the log once the records captured so far are appended, carried by the
+     * replies. Called by the logic thread.
+     * @return Log sequence number
+     */
+    public long getLsn() {
+        return lsn;
+    }
+
+    /**
+     * Log the number of slots waiting in front of every stage
+     */
+    public void logMetrics() {
+        long in = received.get();
+        StringBuilder builder = new StringBuilder("Ring: size=").append(slots.length)
+                .append(" waiting for logic=").append(in - handled.get());
+        if (log != null) {
+            builder.append(" journal=").append(handled.get() - journaled.get());
+        }
+        for (int i = 0; i < sent.length; i++) {
+            builder.append(" sender ").append(i).append('=').append(handled.get() - sent[i].get());
+        }
+        logger.log(Level.INFO, builder.toString());
+    }
+
+    @Override
+    public void accountCreated(int accountNumber, String name, String password, Currency currency, long balance) {
+        if (Thread.currentThread() != logicThread) {
+            log.accountCreated(accountNumber, name, password, currency, balance);
+            return;
+        }
+        captured(WriteAheadLog.encodeAccount(current.journal, checksum, accountNumber, name, password,
+                currency, balance));
+    }
+
+    @Override
+    public void accountClosed(int accountNumber) {
+        if (Thread.currentThread() != logicThread) {
+            log.accountClosed(accountNumber);
+            return;
+        }
+        captured(WriteAheadLog.encodeClosed(current.journal, checksum, accountNumber));
+    }
+
+    @Override
+    public void balanceChanged(int accountNumber, long balance) {
+        if (Thread.currentThread() != logicThread) {
+            log.balanceChanged(accountNumber, balance);
+            return;
+        }
+        captured(WriteAheadLog.encodeBalance(current.journal, checksum, accountNumber, balance));
+    }
+
+    @Override
+    public void balancesTransferred(int sourceAccount, long sourceBalance, int targetAccount, long targetBalance) {
+        if (Thread.currentThread() != logicThread) {
+            log.balancesTransferred(sourceAccount, sourceBalance, targetAccount, targetBalance);
+            return;
+        }
+        captured(WriteAheadLog.encodeTransfer(current.journal, checksum, sourceAccount, sourceBalance,
+                targetAccount, targetBalance));
+    }
+
+    /**
+     * Count a record encoded into the slot being handled
+     * @param bytes Bytes of the record
+     */
+    private void captured(int bytes) {
+        current.records++;
+        lsn += bytes;
+    }
+
+    /**
+     * Main loop of the logic thread, handles the received slots in order
+     * @param self Stage of the thread
+     */
+    private void handleLoop(Stage self) {
+        long next = 0;
+        while (true) {
+            long last = Math.min(await(self, next, receivedBarrier), next + batchSize - 1);
+            for (long sequence = next; sequence <= last; sequence++) {
+                Slot slot = slots[(int) sequence & mask];
+                current = slot;
+                slot.journal.reset();
+                slot.records = 0;
+                slot.deferred.clear();
+                slot.reply.reset();
+                try {
+                    slot.replied = server.handleRequest(slot.request, slot.client.getAddress(), slot.client.getPort(),
+                            slot.reply);
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Failure on processing request", e);
+                    slot.replied = false;
+                }
+                slot.lsn = lsn;
+            }
+            current = null;
+            publish(handled, last);
+            next = last + 1;
+        }
+    }
+
+    /**
+     * Main loop of the journal thread, appends the records of the handled slots to the log
+     * @param self Stage of the thread
+     */
+    private void journalLoop(Stage self) {
+        long next = 0;
+        while (true) {
+            long last = Math.min(await(self, next, handledBarrier), next + batchSize - 1);
+            staging.reset();
+            int records = 0;
+            for (long sequence = next; sequence <= last; sequence++) {
+                Slot slot = slots[(int) sequence & mask];
+                staging.writeBytes(slot.journal.getBuffer(), 0, slot.journal.getBufferLength());
+                records += slot.records;
+            }
+            if (records > 0) {
+                long appended = log.appendRecords(staging.getBuffer(), 0, staging.getBufferLength(), records);
+                if (appended != slots[(int) last & mask].lsn) {
+                    logger.log(Level.WARNING, "The log was written outside the pipeline, replies carry stale positions");
+                }
+            }
+            publish(journaled, last);
+            next = last + 1;
+        }
+    }
+
+    /**
+     * Main loop of a sender thread, sends the replies of its share of the handled slots
+     * once their records are durable
+     * @param self Stage of the thread
+     * @param index Index of the sender
+     */
+    private void sendLoop(Stage self, int index) {
+        long next = 0;
+        while (true) {
+            long last = Math.min(await(self, next, handledBarrier), next + batchSize - 1);
+            if (log != null) {
+                // the positions of the slots only grow, the last one covers the batch
+                awaitDurable(slots[(int) last & mask].lsn);
+            }
+            for (long sequence = next; sequence <= last; sequence++) {
+                if (sequence % sent.length == index) {
+                    send(slots[(int) sequence & mask]);
+                }
+            }
+            publish(sent[index], last);
+            next = last + 1;
+        }
+    }
+
+    /**
+     * Send the reply of a slot and run its deferred tasks
+     * @param slot Handled slot
+     */
+    private void send(Slot slot) {
+        if (slot.replied) {
+            ByteBuffer reply = slot.replyBuffer();
+            try {
+                // the channel is non-blocking, a full socket buffer holds back this sender only
+                while (channel.send(reply, slot.client) == 0) {
+                    Thread.yield();
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failure on sending reply");
+            }
+        }
+        for (int i = 0; i < slot.deferred.size(); i++) {
+            try {
+                slot.deferred.get(i).run();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Failure on running a deferred task", e);
+            }
+        }
+    }
+
+    /**
+     * Wait until the log is durable up to a position, replies are held back for as long as
+     * the log fails
+     * @param position Log sequence number
+     */
+    private void awaitDurable(long position) {
+        try {
+            while (!log.awaitDurable(position, DURABLE_TIMEOUT)) {
+                logger.log(Level.WARNING, "Replies waiting for the log to be durable up to " + position);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait until every stage of a barrier is at least at a sequence
+     * @param self Waiting stage
+     * @param sequence Sequence waited for
+     * @param barrier Stages followed
+     * @return Lowest sequence of the barrier, at least the one waited for
+     */
+    private long await(Stage self, long sequence, Sequence[] barrier) {
+        int tries = 0;
+        long available;
+        while ((available = Sequence.min(barrier)) < sequence) {
+            if (tries < SPIN_TRIES) {
+                tries++;
+                Thread.yield();
+                continue;
+            }
+            self.parked = true;
+            // checked again after announcing the park, so a publish in between is not missed
+            if (Sequence.min(barrier) < sequence) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            self.parked = false;
+        }
+        return available;
+    }
+
+    /**
+     * Publish the position of a stage and wake the parked stages
+     * @param stage Sequence of the stage
+     * @param sequence Last slot the stage is done with
+     */
+    private void publish(Sequence stage, long sequence) {
+        stage.set(sequence);
+        for (Stage waiting : stages) {
+            if (waiting.parked) {
+                LockSupport.unpark(waiting.thread);
+            }
+        }
+    }
+
+    private static Stage newStage(String name, Consumer<Stage> loop) {
+        Stage stage = new Stage();
+        stage.thread = new Thread(() -> loop.accept(stage), name);
+        stage.thread.setDaemon(true);
+        return stage;
+    }
+
+    /**
+     * A request with everything the stages produce for it, reused for every turn of the ring
+     */
+    private static class Slot {
+        private final ByteBuffer request = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private InetSocketAddress client;
+        private final Serializer reply = new Serializer();
+        private ByteBuffer replyView = ByteBuffer.wrap(reply.getBuffer());
+        private boolean replied;
+        private final Serializer journal = new Serializer();
+        private int records;
+        private long lsn;
+        private final ArrayList<Runnable> deferred = new ArrayList<>();
+
+        /**
+         * View of the encoded reply for sending, rebuilt only when the reply buffer grew
+         * @return Buffer holding the reply from its position to its limit
+         */
+        private ByteBuffer replyBuffer() {
+            if (replyView.array() != reply.getBuffer()) {
+                replyView = ByteBuffer.wrap(reply.getBuffer());
+            }
+            replyView.limit(reply.getBufferLength());
+            replyView.position(0);
+            return replyView;
+        }
+    }
+
+    /**
+     * Thread of a stage, with the flag telling publishers to wake it
+     */
+    private static class Stage {
+        private Thread thread;
+        private volatile boolean parked = false;
+    }
+
+    /**
+     * Position of a stage in the ring, padded so that stages publishing concurrently don't
+     * share a cache line
+     */
+    private static class Sequence {
+        @SuppressWarnings("unused")
+        private long p1, p2, p3, p4, p5, p6, p7;
+        private volatile long value = -1;
+        @SuppressWarnings("unused")
+        private long q1, q2, q3, q4, q5, q6, q7;
+
+        private long get() {
+            return value;
+        }
+
+        private void set(long sequence) {
+            value = sequence;
+        }
+
+        private static long min(Sequence[] sequences) {
+            long min = Long.MAX_VALUE;
+            for (Sequence sequence : sequences) {
+                min = Math.min(min, sequence.value);
+            }
+            return min;
+        }
+    }
+}
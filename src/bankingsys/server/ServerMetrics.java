@@ -0,0 +1,202 @@
+package bankingsys.server;
+
+import bankingsys.net.LatencyHistogram;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Counters and latency histograms of the request processing.
+ *
+ * Recording stays off the shared cache lines: counters are LongAdders, which stripe under
+ * contention, and every processing thread records latencies into histograms of its own,
+ * merged only when a report is built. A request costs two clock reads and a few
+ * uncontended atomic increments.
+ */
+public class ServerMetrics {
+
+    private static final int OPCODES = 26; // request types are lower case letters
+    private static final int MAX_REASONS = 64;
+    private static final String OTHER_REASON = "other";
+
+    private final LongAdder[] failures = new LongAdder[OPCODES];
+    private final ConcurrentHashMap<String, LongAdder> reasons = new ConcurrentHashMap<>();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder redirects = new LongAdder();
+    private final LongAdder callbacks = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final List<LatencyHistogram[]> stripes = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<LatencyHistogram[]> latencies = ThreadLocal.withInitial(() -> {
+        LatencyHistogram[] stripe = new LatencyHistogram[OPCODES];
+        stripes.add(stripe);
+        return stripe;
+    });
+
+    public ServerMetrics() {
+        for (int i = 0; i < OPCODES; i++) {
+            failures[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Count a handled request
+     * @param type Request type
+     * @param nanos Processing time in nanoseconds
+     */
+    public void request(char type, long nanos) {
+        LatencyHistogram[] stripe = latencies.get();
+        int index = index(type);
+        LatencyHistogram histogram = stripe[index];
+        if (histogram == null) {
+            histogram = stripe[index] = new LatencyHistogram();
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Count a failed request
+     * @param type Request type
+     * @param reason Failure message sent to the client
+     */
+    public void failure(char type, String reason) {
+        failures[index(type)].increment();
+        LongAdder counter = reasons.get(reason);
+        if (counter == null) {
+            // messages are constants, the bound only guards against messages built per request
+            counter = reasons.size() < MAX_REASONS
+                    ? reasons.computeIfAbsent(reason, r -> new LongAdder())
+                    : reasons.computeIfAbsent(OTHER_REASON, r -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * Count a retransmitted request answered from the reply cache
+     */
+    public void duplicate() {
+        duplicates.increment();
+    }
+
+    /**
+     * Count a retransmitted request dropped as already acknowledged
+     */
+    public void stale() {
+        stale.increment();
+    }
+
+    /**
+     * Count a request redirected to the shard serving its account
+     */
+    public void redirect() {
+        redirects.increment();
+    }
+
+    /**
+     * Count a monitoring callback sent to a client or published to the multicast group
+     */
+    public void callbackSent() {
+        callbacks.increment();
+    }
+
+    /**
+     * Count a reply or callback dropped because the channel was full and its backlog too
+     */
+    public void dropped() {
+        dropped.increment();
+    }
+
+    /**
+     * Build a report of the metrics
+     * @param accounts Number of accounts in the store
+     * @param workerDepths Pending requests per worker, null without workers
+     * @param callbackDepth Pending monitoring callbacks
+     * @param replication Replication lag and placement of the accounts, null outside a
+     *                    cluster and without replication
+     * @param maxLength Maximum number of characters, the report is cut beyond
+     * @return Report, one line per group of metrics and per request type
+     */
+    public String report(int accounts, int[] workerDepths, int callbackDepth, String replication,
+                         int maxLength) {
+        StringBuilder builder = new StringBuilder();
+        long total = 0;
+        LatencyHistogram[] merged = new LatencyHistogram[OPCODES];
+        for (LatencyHistogram[] stripe : stripes) {
+            for (int i = 0; i < OPCODES; i++) {
+                if (stripe[i] != null) {
+                    if (merged[i] == null) {
+                        merged[i] = new LatencyHistogram();
+                    }
+                    merged[i].add(stripe[i]);
+                }
+            }
+        }
+        for (LatencyHistogram histogram : merged) {
+            total += histogram != null ? histogram.getCount() : 0;
+        }
+        builder.append("requests=").append(total)
+                .append(" duplicates=").append(duplicates.sum())
+                .append(" stale=").append(stale.sum())
+                .append(" redirects=").append(redirects.sum())
+                .append(" callbacks=").append(callbacks.sum())
+                .append(" dropped=").append(dropped.sum())
+                .append(" accounts=").append(accounts)
+                .append("\nqueues: callbacks=").append(callbackDepth);
+        if (workerDepths != null) {
+            for (int i = 0; i < workerDepths.length; i++) {
+                builder.append(" worker-").append(i).append('=').append(workerDepths[i]);
+            }
+        }
+        if (replication != null) {
+            builder.append('\n').append(replication);
+        }
+        for (int i = 0; i < OPCODES; i++) {
+            if (merged[i] != null) {
+                LatencyHistogram histogram = merged[i];
+                builder.append('\n').append((char) ('a' + i))
+                        .append(": n=").append(histogram.getCount())
+                        .append(" failed=").append(failures[i].sum())
+                        .append(" p50=").append(histogram.getPercentile(50) / 1000)
+                        .append(" p99=").append(histogram.getPercentile(99) / 1000)
+                        .append(" p99.9=").append(histogram.getPercentile(99.9) / 1000)
+                        .append(" max=").append(histogram.getMax() / 1000).append(" us");
+            }
+        }
+        Map<String, LongAdder> sorted = new TreeMap<>(reasons);
+        for (Map.Entry<String, LongAdder> reason : sorted.entrySet()) {
+            builder.append("\nfailure '").append(reason.getKey()).append("': ").append(reason.getValue().sum());
+        }
+        if (builder.length() > maxLength) {
+            builder.setLength(maxLength - 3);
+            builder.append("...");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Replace a file with a report, readers never see a partially written report
+     * @param path File to write
+     * @param report Report to write
+     * @throws IOException If the file can't be written
+     */
+    public static void dump(Path path, String report) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporary, (report + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, path, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    private static int index(char type) {
+        return Math.floorMod(type - 'a', OPCODES);
+    }
+}
@@ -0,0 +1,769 @@
+package bankingsys.server;
+
+import bankingsys.io.Deserializer;
+import bankingsys.io.Serializer;
+import bankingsys.message.Amounts;
+import bankingsys.message.ServiceRequest;
+import bankingsys.message.ServiceResponse;
+import bankingsys.net.ShardMap;
+import bankingsys.net.ShardMap.Shard;
+import bankingsys.net.SocketHelper;
+import bankingsys.server.model.BankAccount.Currency;
+import bankingsys.server.store.AccountException;
+import bankingsys.server.store.AccountException.Reason;
+import bankingsys.server.store.AccountStore;
+import bankingsys.server.store.WriteAheadLog;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static bankingsys.Constant.*;
+import static bankingsys.message.ServiceResponse.ResponseStatus.FAILURE;
+import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
+import static bankingsys.server.store.AccountException.Reason.*;
+
+/**
+ * Transfers between accounts of different shards, committed in two phases by the shard
+ * owning the source account.
+ *
+ * The coordinator first withdraws the amount from the source account, so it can't be spent
+ * twice, then asks the shard owning the target account to prepare. The participant checks
+ * that the target account exists and has the source currency and remembers its vote. On a
+ * yes the coordinator commits and the participant deposits the amount, otherwise, or if the
+ * participant doesn't answer, the coordinator aborts and deposits the amount back to the
+ * source. A decision the participant doesn't acknowledge within the retry budget is resent
+ * in the background until it does. A target account closed between the two phases fails the
+ * commit, and the amount goes back to the source.
+ *
+ * Shards talk over peer sockets of their own, served by a thread that never waits on another
+ * shard, so two shards coordinating transfers towards each other can't deadlock. A transfer
+ * is identified by a random incarnation number of the coordinator process and a transaction
+ * number. Decisions are not logged, a coordinator crashing between the two phases leaves the
+ * amount withdrawn and the participant prepared.
+ *
+ * The peer also knows which shard serves an account. On a hash ring the placement can be
+ * changed while the cluster runs: every shard is told the placement it runs with and the
+ * one to move to, and each shard losing accounts hands them off to each shard gaining some
+ * (see {@link Rebalancer}). An account moving between two shards is served by its old shard
+ * until the handoff between the two is complete, then by its new shard, other shards keep
+ * sending its transfers to the old shard, which votes that the account moved. A shard
+ * settles on the new placement once all its handoffs are done and drops the accounts it
+ * gave away.
+ */
+public class ShardPeer {
+
+    private static final Logger logger = Logger.getLogger(ShardPeer.class.getName());
+
+    private static final int PEER_RETRIES = 2;
+    private static final long RESEND_DELAY = 1000;
+    private static final long RESOLVED_TTL = 600000;
+
+    private enum State {
+        PREPARED,
+        COMMITTED,
+        ABORTED
+    }
+
+    private final RequestReceiver server;
+    private final AccountStore accounts;
+    private final Shard shard;
+    private final InetSocketAddress address; // identifies this shard in every placement
+    private volatile ShardMap shards;
+    private volatile ShardMap nextShards = null; // placement being moved to
+    private volatile boolean joining;
+    // shards the accounts moving from or to this shard have been handed off to or by
+    private final Set<InetSocketAddress> handedOff = ConcurrentHashMap.newKeySet();
+    private final Set<InetSocketAddress> received = ConcurrentHashMap.newKeySet();
+    // shards a handoff is being completed to, transfers towards their accounts are refused
+    private final Set<InetSocketAddress> freezing = ConcurrentHashMap.newKeySet();
+    // held shared by every request and exclusively while a handoff completes
+    private final ReentrantReadWriteLock requestLock = new ReentrantReadWriteLock();
+    private Rebalancer rebalancer = null;
+    private final int incarnation = new SecureRandom().nextInt();
+    private final AtomicInteger nextTransaction = new AtomicInteger();
+    // transfers this shard participates in, only changed on the peer thread apart from expiry
+    private final ConcurrentHashMap<Long, Transaction> transactions = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<Decision> undelivered = new LinkedBlockingQueue<>();
+    private final ThreadLocal<Channel> channels = ThreadLocal.withInitial(Channel::new);
+    private DatagramSocket socket = null;
+
+    /**
+     * Create the peer of a shard
+     * @param server Server of the shard
+     * @param accounts Accounts of the shard
+     * @param shards Partition of the cluster
+     * @param index Index of the shard in the partition
+     * @param joining Whether the shard joins a running cluster and serves no account until
+     *                it is told to rebalance to the partition
+     */
+    public ShardPeer(RequestReceiver server, AccountStore accounts, ShardMap shards, int index, boolean joining) {
+        this.server = server;
+        this.accounts = accounts;
+        this.shards = shards;
+        this.shard = shards.getShard(index);
+        this.address = shard.getAddress();
+        this.joining = joining;
+    }
+
+    /**
+     * Allow the placement to be changed, accounts are moved by streaming the log
+     * @param logPath Write-ahead log file of the shard
+     * @param log Write-ahead log of the shard, also logs the accounts moving in
+     * @throws IOException If the handoff port can't be opened
+     */
+    public void enableRebalancing(Path logPath, WriteAheadLog log) throws IOException {
+        rebalancer = new Rebalancer(this, accounts, logPath, log);
+        rebalancer.start(shard.getPeerAddress().getPort());
+    }
+
+    /**
+     * Open the peer socket and start serving other shards and resending decisions
+     * @throws IOException If the peer socket can't be opened
+     */
+    public void start() throws IOException {
+        socket = new DatagramSocket(shard.getPeerAddress().getPort(), InetAddress.getByName("0.0.0.0"));
+        logger.log(Level.INFO, "Serving other shards on 0.0.0.0:" + shard.getPeerAddress().getPort());
+        Thread peerThread = new Thread(this::serve, "shard-peer");
+        peerThread.setDaemon(true);
+        peerThread.start();
+        Thread resendThread = new Thread(this::resend, "shard-resend");
+        resendThread.setDaemon(true);
+        resendThread.start();
+    }
+
+    public Shard getShard() {
+        return shard;
+    }
+
+    /**
+     * Client address of this shard
+     * @return Address identifying the shard in every placement
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Check whether an account number is served by this shard
+     * @param accountNumber Account number
+     * @return True if this shard owns the number
+     */
+    public boolean owns(int accountNumber) {
+        Shard owner = ownerOf(accountNumber);
+        return owner != null && owner.getAddress().equals(address);
+    }
+
+    /**
+     * Shard serving an account number as far as this shard knows: while accounts move, the
+     * shard the account moves to once this shard gave it away or received it, otherwise the
+     * shard it moves from
+     * @param accountNumber Account number
+     * @return Shard, null if no shard owns the number or this shard is still joining
+     */
+    public Shard ownerOf(int accountNumber) {
+        if (joining) {
+            return null;
+        }
+        // read before the current placement, which is replaced first when settling
+        ShardMap next = nextShards;
+        Shard owner = shards.shardOf(accountNumber);
+        if (next == null || owner == null) {
+            return owner;
+        }
+        Shard nextOwner = next.shardOf(accountNumber);
+        if (nextOwner.getAddress().equals(owner.getAddress())
+                || owner.getAddress().equals(address) && handedOff.contains(nextOwner.getAddress())
+                || nextOwner.getAddress().equals(address) && received.contains(owner.getAddress())) {
+            return nextOwner;
+        }
+        return owner;
+    }
+
+    /**
+     * Check whether a new account can get a number: it must be served by this shard now and
+     * in the placement being moved to, and not be in use
+     * @param accountNumber Account number
+     * @return True if this shard may create the account
+     */
+    public boolean canAllocate(int accountNumber) {
+        ShardMap next = nextShards;
+        if (!owns(accountNumber) || next != null && !next.shardOf(accountNumber).getAddress().equals(address)) {
+            return false;
+        }
+        try {
+            accounts.getCurrency(accountNumber);
+            return false;
+        } catch (AccountException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Text of the newest placement this shard knows, sent with redirects
+     * @return Placement text
+     */
+    public String describePlacement() {
+        ShardMap next = nextShards;
+        return (next != null ? next : shards).describe();
+    }
+
+    /**
+     * Lock every request is handled under, shared, a handoff completes under the exclusive lock
+     * @return Read-write lock
+     */
+    public ReentrantReadWriteLock getRequestLock() {
+        return requestLock;
+    }
+
+    /**
+     * Start moving the accounts to a new placement, the request is repeated to every shard
+     * of both placements
+     * @param from Placement the cluster runs with
+     * @param to Placement to move to, with a higher epoch
+     * @return Message telling what the shard does
+     * @throws IllegalStateException If the shard can't move to the placement
+     */
+    public synchronized String rebalance(ShardMap from, ShardMap to) {
+        if (rebalancer == null) {
+            throw new IllegalStateException("Rebalancing needs a write-ahead log");
+        }
+        if (!from.isHashed() || !to.isHashed()) {
+            throw new IllegalStateException("Only accounts placed on a hash ring can be moved");
+        }
+        if (to.getEpoch() <= from.getEpoch()) {
+            throw new IllegalStateException("The new placement needs an epoch above " + from.getEpoch());
+        }
+        if (nextShards != null) {
+            if (nextShards.getEpoch() == to.getEpoch()) {
+                return "Already moving to epoch " + to.getEpoch();
+            }
+            throw new IllegalStateException("Moving to epoch " + nextShards.getEpoch() + " in progress");
+        }
+        if (!joining && shards.getEpoch() == to.getEpoch()) {
+            return "Already at epoch " + to.getEpoch();
+        }
+        if (shards.getEpoch() != (joining ? to.getEpoch() : from.getEpoch())) {
+            throw new IllegalStateException("Running with epoch " + shards.getEpoch());
+        }
+        if (from.find(address) == null && to.find(address) == null) {
+            throw new IllegalStateException("This shard is in neither placement");
+        }
+        handedOff.clear();
+        received.clear();
+        shards = from;
+        nextShards = to;
+        joining = false;
+        logger.log(Level.INFO, "Moving accounts from epoch " + from.getEpoch() + " to epoch " + to.getEpoch());
+        if (from.find(address) != null) {
+            for (Shard destination : to.getShards()) {
+                if (!destination.getAddress().equals(address)) {
+                    rebalancer.handOff(destination, from, to);
+                }
+            }
+        }
+        settleIfDone();
+        return "Moving accounts from epoch " + from.getEpoch() + " to epoch " + to.getEpoch();
+    }
+
+    /**
+     * Report of the placement and of the accounts being moved
+     * @return One line, e.g. "placement: epoch=2 moving-to=3 handed-off=1/2 received=0/2 ..."
+     */
+    public String report() {
+        ShardMap next = nextShards;
+        StringBuilder builder = new StringBuilder("placement: epoch=").append(shards.getEpoch());
+        if (joining) {
+            builder.append(" joining");
+        }
+        if (next != null) {
+            ShardMap current = shards;
+            builder.append(" moving-to=").append(next.getEpoch())
+                    .append(" handed-off=").append(handedOff.size()).append('/')
+                    .append(current.find(address) != null ? next.size() - (next.find(address) != null ? 1 : 0) : 0)
+                    .append(" received=").append(received.size()).append('/')
+                    .append(next.find(address) != null ? current.size() - (current.find(address) != null ? 1 : 0) : 0);
+        }
+        if (rebalancer != null) {
+            builder.append(' ').append(rebalancer.report());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Placement this shard runs with
+     * @return Current placement
+     */
+    ShardMap getPlacement() {
+        return shards;
+    }
+
+    /**
+     * Placement this shard moves to
+     * @return Next placement, null if no accounts are moving
+     */
+    ShardMap getNextPlacement() {
+        return nextShards;
+    }
+
+    boolean isHandedOff(InetSocketAddress destination) {
+        return handedOff.contains(destination);
+    }
+
+    boolean isReceived(InetSocketAddress source) {
+        return received.contains(source);
+    }
+
+    /**
+     * Record that the accounts moving to a shard are served by it from now on
+     * @param destination Client address of the shard
+     */
+    void handedOff(InetSocketAddress destination) {
+        handedOff.add(destination);
+        settleIfDone();
+    }
+
+    /**
+     * Record that the accounts moving from a shard are served by this shard from now on
+     * @param source Client address of the shard
+     */
+    void received(InetSocketAddress source) {
+        received.add(source);
+        settleIfDone();
+    }
+
+    /**
+     * Refuse to prepare transfers towards the accounts moving to a shard, so that the
+     * prepared ones can drain before the handoff completes
+     * @param destination Client address of the shard
+     */
+    void freeze(InetSocketAddress destination) {
+        freezing.add(destination);
+    }
+
+    void thaw(InetSocketAddress destination) {
+        freezing.remove(destination);
+    }
+
+    /**
+     * Check whether a prepared transfer deposits to one of some accounts
+     * @param accountNumbers Accounts
+     * @return True if a deposit is pending on one of the accounts
+     */
+    boolean hasPrepared(IntPredicate accountNumbers) {
+        for (Transaction transaction : transactions.values()) {
+            if (transaction.state == State.PREPARED && accountNumbers.test(transaction.account)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move to the next placement once every handoff from and to this shard is complete, and
+     * drop the accounts given away
+     */
+    private synchronized void settleIfDone() {
+        ShardMap current = shards;
+        ShardMap next = nextShards;
+        if (next == null) {
+            return;
+        }
+        if (current.find(address) != null) {
+            for (Shard destination : next.getShards()) {
+                if (!destination.getAddress().equals(address) && !handedOff.contains(destination.getAddress())) {
+                    return;
+                }
+            }
+        }
+        if (next.find(address) != null) {
+            for (Shard source : current.getShards()) {
+                if (!source.getAddress().equals(address) && !received.contains(source.getAddress())) {
+                    return;
+                }
+            }
+        }
+        shards = next;
+        nextShards = null;
+        List<Integer> moved = new ArrayList<>();
+        accounts.forEach((accountNumber, name, password, currency, balance) -> {
+            if (!owns(accountNumber)) {
+                moved.add(accountNumber);
+            }
+        });
+        for (int accountNumber : moved) {
+            rebalancer.dropped(accountNumber);
+        }
+        logger.log(Level.INFO, "Settled on epoch " + next.getEpoch() + ", dropped " + moved.size()
+                + " accounts served elsewhere");
+    }
+
+    /**
+     * Move an amount from an account of this shard to an account of another shard. Blocks
+     * the calling thread for up to two round trips to the other shard.
+     * @param sourceAccount Source account number, owned by this shard
+     * @param name Source account name
+     * @param password Source account password
+     * @param targetAccount Target account number, owned by another shard
+     * @param amount Amount to move
+     * @return New balance of the source account
+     * @throws AccountException If an account doesn't exist, the currencies differ, the source
+     * balance is not enough or the other shard doesn't answer
+     */
+    public long transfer(int sourceAccount, String name, String password, int targetAccount, long amount)
+            throws AccountException {
+        Shard target = ownerOf(targetAccount);
+        if (target == null) {
+            throw new AccountException(ACCOUNT_NOT_FOUND);
+        }
+        Currency currency = accounts.getCurrency(sourceAccount);
+        long balance = accounts.updateBalance(sourceAccount, name, password, -amount);
+        int transaction;
+        ServiceResponse vote;
+        for (int attempt = 0; ; attempt++) {
+            transaction = nextTransaction.getAndIncrement();
+            try {
+                vote = call(target, ServiceRequest.prepare(transaction, incarnation, targetAccount, amount, currency));
+            } catch (IOException e) {
+                // the participant may have prepared, it keeps the deposit pending until it hears the abort
+                undelivered.add(new Decision(target, transaction, SHARD_ABORT, sourceAccount, amount));
+                refund(sourceAccount, amount);
+                throw new AccountException(SHARD_UNAVAILABLE);
+            }
+            if (attempt > 0 || !ACCOUNT_MOVED.name().equals(vote.getResponseMessage())) {
+                break;
+            }
+            // the account was handed off before this shard heard of it, ask its new shard once
+            ShardMap next = nextShards;
+            Shard newOwner = (next != null ? next : shards).shardOf(targetAccount);
+            if (newOwner.getAddress().equals(target.getAddress())) {
+                break;
+            }
+            target = newOwner;
+        }
+        if (vote.getResponseCode() != SUCCESS) {
+            refund(sourceAccount, amount);
+            throw new AccountException(Reason.valueOf(vote.getResponseMessage()));
+        }
+        Decision commit = new Decision(target, transaction, SHARD_COMMIT, sourceAccount, amount);
+        try {
+            ServiceResponse acknowledgement = call(target, commit.request());
+            if (acknowledgement.getResponseCode() != SUCCESS && !forgotten(commit, acknowledgement)) {
+                refund(sourceAccount, amount);
+                throw new AccountException(Reason.valueOf(acknowledgement.getResponseMessage()));
+            }
+        } catch (IOException e) {
+            // the transfer is decided, the deposit lands once the participant hears the decision
+            undelivered.add(commit);
+        }
+        return balance;
+    }
+
+    /**
+     * Send a request to the peer socket of a shard and wait for its reply
+     * @param target Shard to ask
+     * @param request Request, identified by its transaction number
+     * @return Reply
+     * @throws IOException If no reply arrived within the retry budget
+     */
+    private ServiceResponse call(Shard target, ServiceRequest request) throws IOException {
+        Channel channel = channels.get();
+        Serializer serializer = new Serializer();
+        request.write(serializer);
+        DatagramPacket packet = new DatagramPacket(serializer.getBuffer(), serializer.getBufferLength(),
+                target.getPeerAddress());
+        channel.helper.sendReliably(packet, new DatagramPacket(channel.buffer, channel.buffer.length), false);
+        ServiceResponse response = new ServiceResponse();
+        response.read(new Deserializer(channel.buffer));
+        return response;
+    }
+
+    /**
+     * Deposit a withdrawn amount back to the source account of a failed transfer
+     * @param sourceAccount Source account number
+     * @param amount Withdrawn amount
+     */
+    private void refund(int sourceAccount, long amount) {
+        try {
+            accounts.deposit(sourceAccount, amount);
+        } catch (AccountException e) {
+            logger.log(Level.SEVERE, "Failure on returning $" + Amounts.format(amount) + " to account no."
+                    + sourceAccount + ", it was closed meanwhile");
+        }
+    }
+
+    /**
+     * Check whether the participant of a commit no longer knows the transaction, because it
+     * restarted or forgot the outcome. The deposit may have been applied and logged before,
+     * so the source is not refunded, which could credit the amount twice.
+     * @param commit Commit decision
+     * @param acknowledgement Failed acknowledgement of the participant
+     * @return True if the outcome of the transfer is unknown
+     */
+    private boolean forgotten(Decision commit, ServiceResponse acknowledgement) {
+        if (!TRANSACTION_UNKNOWN.name().equals(acknowledgement.getResponseMessage())) {
+            return false;
+        }
+        logger.log(Level.SEVERE, "Shard " + commit.target.getIndex() + " doesn't know transaction "
+                + commit.transaction + " anymore, the transfer of $" + Amounts.format(commit.amount)
+                + " from account no." + commit.sourceAccount + " is kept without a refund");
+        return true;
+    }
+
+    /**
+     * Main loop of the resend thread, delivers the decisions that timed out
+     */
+    private void resend() {
+        while (true) {
+            Decision decision;
+            try {
+                decision = undelivered.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                ServiceResponse acknowledgement = call(decision.target, decision.request());
+                if (decision.decision == SHARD_COMMIT && acknowledgement.getResponseCode() != SUCCESS
+                        && !forgotten(decision, acknowledgement)) {
+                    refund(decision.sourceAccount, decision.amount);
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Shard " + decision.target.getIndex() + " still unreachable, resending "
+                        + "the decision on transaction " + decision.transaction);
+                try {
+                    Thread.sleep(RESEND_DELAY);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                undelivered.add(decision);
+            }
+        }
+    }
+
+    /**
+     * Main loop of the peer thread, answers the prepare and decision requests of other shards
+     */
+    private void serve() {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            ServiceRequest request = new ServiceRequest();
+            try {
+                socket.receive(packet);
+                request.read(new Deserializer(buffer));
+            } catch (IOException e) {
+                continue;
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Malformed peer request dropped");
+                continue;
+            }
+            long key = (long) request.getRequestSequence() << 32 | (request.getRequestID() & 0xFFFFFFFFL);
+            ServiceResponse response;
+            switch (request.getRequestType()) {
+                case SHARD_PREPARE:
+                    response = prepare(key, request);
+                    break;
+                case SHARD_COMMIT:
+                    response = commit(key);
+                    break;
+                case SHARD_ABORT:
+                    response = abort(key);
+                    break;
+                default:
+                    continue;
+            }
+            response.setResponseID(request.getRequestID());
+            Serializer serializer = new Serializer();
+            response.write(serializer);
+            byte[] reply = serializer.toByteArray();
+            InetAddress address = packet.getAddress();
+            int port = packet.getPort();
+            // a committed deposit is only acknowledged once it can't be lost
+            server.whenDurable(() -> send(reply, address, port));
+        }
+    }
+
+    /**
+     * Vote on the deposit half of a transfer, repeating the vote for a retransmitted request
+     * @param key Transaction key
+     * @param request Prepare request
+     * @return Vote
+     */
+    private ServiceResponse prepare(long key, ServiceRequest request) {
+        Transaction transaction = transactions.get(key);
+        if (transaction == null) {
+            transaction = new Transaction(request.getRequestAccount(), request.getRequestAmount());
+            transactions.put(key, transaction);
+            try {
+                if (!owns(transaction.account)) {
+                    throw new AccountException(ACCOUNT_MOVED);
+                }
+                if (isFreezing(transaction.account)) {
+                    throw new AccountException(SHARD_UNAVAILABLE);
+                }
+                if (accounts.getCurrency(transaction.account) != request.getRequestCurrency()) {
+                    throw new AccountException(CURRENCY_MISMATCH);
+                }
+                transaction.state = State.PREPARED;
+            } catch (AccountException e) {
+                resolve(key, transaction, State.ABORTED, e.getReason());
+            }
+        }
+        return reply(SHARD_PREPARE, transaction);
+    }
+
+    /**
+     * Check whether an account moves to a shard a handoff is being completed to
+     * @param accountNumber Account number
+     * @return True if transfers towards the account must wait
+     */
+    private boolean isFreezing(int accountNumber) {
+        ShardMap next = nextShards;
+        return next != null && !freezing.isEmpty() && freezing.contains(next.shardOf(accountNumber).getAddress());
+    }
+
+    /**
+     * Deposit the amount of a prepared transfer
+     * @param key Transaction key
+     * @return Acknowledgement, a failure if the target account was closed since the vote or
+     * the transaction is unknown since a restart or its expiry
+     */
+    private ServiceResponse commit(long key) {
+        Transaction transaction = transactions.get(key);
+        if (transaction == null) {
+            return new ServiceResponse(SHARD_COMMIT, FAILURE, null, TRANSACTION_UNKNOWN.name(), null);
+        }
+        if (transaction.state == State.PREPARED) {
+            try {
+                long balance = accounts.deposit(transaction.account, transaction.amount);
+                resolve(key, transaction, State.COMMITTED, null);
+                server.transferReceived(transaction.account, balance, transaction.amount);
+            } catch (AccountException e) {
+                resolve(key, transaction, State.ABORTED, e.getReason());
+            }
+        }
+        return reply(SHARD_COMMIT, transaction);
+    }
+
+    /**
+     * Drop a prepared transfer. An abort overtaking its prepare request is remembered, so
+     * the late prepare request is voted down.
+     * @param key Transaction key
+     * @return Acknowledgement
+     */
+    private ServiceResponse abort(long key) {
+        Transaction transaction = transactions.get(key);
+        if (transaction == null) {
+            transaction = new Transaction(0, 0);
+            transactions.put(key, transaction);
+            resolve(key, transaction, State.ABORTED, SHARD_UNAVAILABLE);
+        } else if (transaction.state == State.PREPARED) {
+            resolve(key, transaction, State.ABORTED, SHARD_UNAVAILABLE);
+        }
+        return new ServiceResponse(SHARD_ABORT, SUCCESS, null, "Aborted", null);
+    }
+
+    /**
+     * Record the outcome of a transfer, forgotten once no retransmission can ask for it anymore
+     * @param key Transaction key
+     * @param transaction Transaction
+     * @param state COMMITTED or ABORTED
+     * @param reason Reason of an abort, null for a commit
+     */
+    private void resolve(long key, Transaction transaction, State state, Reason reason) {
+        transaction.state = state;
+        transaction.reason = reason;
+        server.getTimers().schedule(() -> transactions.remove(key), RESOLVED_TTL);
+    }
+
+    /**
+     * Reply telling the state of a transfer, a failure carries the name of its reason
+     * @param type Request type
+     * @param transaction Transaction
+     * @return Reply
+     */
+    private static ServiceResponse reply(char type, Transaction transaction) {
+        if (transaction.state == State.ABORTED) {
+            return new ServiceResponse(type, FAILURE, null, transaction.reason.name(), null);
+        }
+        return new ServiceResponse(type, SUCCESS, null, transaction.state.name(), null);
+    }
+
+    private void send(byte[] reply, InetAddress address, int port) {
+        try {
+            socket.send(new DatagramPacket(reply, reply.length, address, port));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failure on sending peer reply");
+        }
+    }
+
+    /**
+     * Deposit half of a transfer this shard participates in
+     */
+    private static class Transaction {
+        private final int account;
+        private final long amount;
+        private State state = null;
+        private Reason reason = null;
+
+        private Transaction(int account, long amount) {
+            this.account = account;
+            this.amount = amount;
+        }
+    }
+
+    /**
+     * Decision of a transfer this shard coordinates
+     */
+    private class Decision {
+        private final Shard target;
+        private final int transaction;
+        private final char decision;
+        private final int sourceAccount;
+        private final long amount;
+
+        private Decision(Shard target, int transaction, char decision, int sourceAccount, long amount) {
+            this.target = target;
+            this.transaction = transaction;
+            this.decision = decision;
+            this.sourceAccount = sourceAccount;
+            this.amount = amount;
+        }
+
+        private ServiceRequest request() {
+            return ServiceRequest.decision(transaction, decision, incarnation);
+        }
+    }
+
+    /**
+     * Socket of a thread coordinating transfers
+     */
+    private static class Channel {
+        private final SocketHelper helper;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        private Channel() {
+            try {
+                helper = new SocketHelper(new DatagramSocket(), PEER_RETRIES);
+            } catch (SocketException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package bankingsys.server;
+
+import bankingsys.io.Deserializer;
+import bankingsys.io.Serializer;
+import bankingsys.message.Amounts;
+import bankingsys.server.model.BankAccount.Currency;
+import bankingsys.server.store.AccountStore;
+import bankingsys.server.store.AccountVisitor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Image of the account store and the reply cache, taken without stopping request handling.
+ *
+ * Snapshots are fuzzy: the log position is recorded first and the store is scanned while
+ * requests keep mutating it, so the image may hold some of the mutations logged after that
+ * position, or one half of a transfer. Log records hold resulting balances, so replaying
+ * the log from the recorded position on top of the image restores the exact state.
+ *
+ * Accounts are written in segments of a fixed number of accounts, which are mapped and
+ * loaded in parallel. A snapshot is written to a temporary file and renamed over the
+ * previous one once forced, so a crash while writing leaves the previous snapshot in place.
+ *
+ * File layout: account segments, reply cache, segment table (count, then offset, length
+ * and account count per segment), footer (magic, next account number, log position,
+ * account count, offset of the reply cache, offset of the segment table). Balances are
+ * longs in minor units; snapshots of earlier servers, with float balances and their own
+ * magic number, are still loaded.
+ */
+public class Snapshot {
+
+    private static final int MAGIC = 0x534E5032; // "SNP2"
+    private static final int FLOAT_MAGIC = 0x534E4150; // "SNAP"
+    private static final int FOOTER_SIZE = 40;
+    private static final int SEGMENT_ENTRY_SIZE = 16;
+    private static final int SEGMENT_ACCOUNTS = 65536;
+
+    private final long lsn;
+    private final int nextAccountNumber;
+    private final long accountCount;
+
+    private Snapshot(long lsn, int nextAccountNumber, long accountCount) {
+        this.lsn = lsn;
+        this.nextAccountNumber = nextAccountNumber;
+        this.accountCount = accountCount;
+    }
+
+    /**
+     * Write a snapshot
+     * @param path Snapshot file, replaced atomically
+     * @param store Store to write
+     * @param cache Reply cache to write, null if at-most-once invocation is not used
+     * @param lsn Log position read before scanning, every record before it must be applied
+     * @param nextAccountNumber First account number not handed out, read after the log position
+     * @return Written snapshot
+     * @throws IOException If the file can't be written
+     */
+    public static Snapshot write(Path path, AccountStore store, ReplyCache cache, long lsn, int nextAccountNumber)
+            throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        SegmentWriter writer;
+        try (FileChannel channel = FileChannel.open(temporary, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            writer = new SegmentWriter(channel);
+            try {
+                store.forEach(writer);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.endSegment();
+
+            long cacheOffset = channel.position();
+            Serializer section = new Serializer();
+            if (cache != null) {
+                cache.writeTo(section);
+            } else {
+                section.writeInt(0);
+            }
+            writeFully(channel, ByteBuffer.wrap(section.getBuffer(), 0, section.getBufferLength()));
+
+            long tableOffset = channel.position();
+            ByteBuffer table = ByteBuffer.allocate(4 + writer.segments.size() * SEGMENT_ENTRY_SIZE);
+            table.putInt(writer.segments.size());
+            for (long[] segment : writer.segments) {
+                table.putLong(segment[0]);
+                table.putInt((int) segment[1]);
+                table.putInt((int) segment[2]);
+            }
+            table.flip();
+            writeFully(channel, table);
+
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            footer.putInt(MAGIC);
+            footer.putInt(nextAccountNumber);
+            footer.putLong(lsn);
+            footer.putLong(writer.total);
+            footer.putLong(cacheOffset);
+            footer.putLong(tableOffset);
+            footer.flip();
+            writeFully(channel, footer);
+            channel.force(true);
+        }
+        Files.move(temporary, path, REPLACE_EXISTING, ATOMIC_MOVE);
+        return new Snapshot(lsn, nextAccountNumber, writer.total);
+    }
+
+    /**
+     * Load a snapshot into an empty store, mapping the file and loading its segments in parallel
+     * @param path Snapshot file
+     * @param store Empty store receiving the accounts
+     * @param cache Reply cache receiving the cached replies, null to skip them
+     * @param threads Number of loading threads
+     * @return Loaded snapshot, giving the log position to replay from
+     * @throws IOException If the file can't be read or is malformed
+     */
+    public static Snapshot load(Path path, AccountStore store, ReplyCache cache, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            long size = channel.size();
+            if (size < FOOTER_SIZE) {
+                throw new IOException("Snapshot " + path + " is truncated");
+            }
+            ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - FOOTER_SIZE, FOOTER_SIZE);
+            int magic = footer.getInt();
+            if (magic != MAGIC && magic != FLOAT_MAGIC) {
+                throw new IOException("Snapshot " + path + " is malformed");
+            }
+            boolean floats = magic == FLOAT_MAGIC;
+            int nextAccountNumber = footer.getInt();
+            long lsn = footer.getLong();
+            long accountCount = footer.getLong();
+            long cacheOffset = footer.getLong();
+            long tableOffset = footer.getLong();
+
+            ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, tableOffset, size - FOOTER_SIZE - tableOffset);
+            int segmentCount = table.getInt();
+            ExecutorService loaders = Executors.newFixedThreadPool(threads);
+            List<Future<?>> loads = new ArrayList<>();
+            try {
+                for (int i = 0; i < segmentCount; i++) {
+                    long offset = table.getLong();
+                    int length = table.getInt();
+                    int accounts = table.getInt();
+                    ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                    loads.add(loaders.submit(() -> loadSegment(segment, accounts, floats, store)));
+                }
+                for (Future<?> load : loads) {
+                    load.get();
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("Failed to load snapshot " + path, e);
+            } finally {
+                loaders.shutdownNow();
+            }
+
+            if (cache != null) {
+                cache.readFrom(new Deserializer(channel.map(FileChannel.MapMode.READ_ONLY, cacheOffset,
+                        tableOffset - cacheOffset)));
+            }
+            return new Snapshot(lsn, nextAccountNumber, accountCount);
+        }
+    }
+
+    /**
+     * Log position the snapshot was taken at, the log is replayed from there
+     * @return Log sequence number
+     */
+    public long getLsn() {
+        return lsn;
+    }
+
+    public int getNextAccountNumber() {
+        return nextAccountNumber;
+    }
+
+    public long getAccountCount() {
+        return accountCount;
+    }
+
+    /**
+     * Create the accounts of one segment
+     * @param segment Mapped segment
+     * @param accounts Number of accounts in the segment
+     * @param floats Whether balances are floats, as written by earlier servers
+     * @param store Store receiving the accounts
+     */
+    private static void loadSegment(ByteBuffer segment, int accounts, boolean floats, AccountStore store) {
+        Deserializer in = new Deserializer(segment);
+        Currency[] currencies = Currency.values();
+        for (int i = 0; i < accounts; i++) {
+            int accountNumber = in.readInt();
+            Currency currency = currencies[in.readInt()];
+            long balance = floats ? Amounts.fromFloat(in.readFloat()) : in.readLong();
+            String name = in.readString();
+            String password = in.readString();
+            store.create(accountNumber, name, password, currency, balance);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    /**
+     * Visitor encoding accounts into segments and writing every full segment
+     */
+    private static class SegmentWriter implements AccountVisitor {
+        private final FileChannel channel;
+        private final Serializer segment = new Serializer();
+        private final List<long[]> segments = new ArrayList<>(); // offset, length, accounts
+        private int count = 0;
+        private long total = 0;
+
+        private SegmentWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void visit(int accountNumber, String name, String password, Currency currency, long balance) {
+            segment.writeInt(accountNumber);
+            segment.writeInt(currency.ordinal());
+            segment.writeLong(balance);
+            segment.writeString(name);
+            segment.writeString(password);
+            count++;
+            total++;
+            if (count == SEGMENT_ACCOUNTS) {
+                try {
+                    endSegment();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        /**
+         * Write the current segment if it holds accounts
+         * @throws IOException If the file can't be written
+         */
+        private void endSegment() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            segments.add(new long[]{channel.position(), segment.getBufferLength(), count});
+            writeFully(channel, ByteBuffer.wrap(segment.getBuffer(), 0, segment.getBufferLength()));
+            segment.reset();
+            count = 0;
+        }
+    }
+}
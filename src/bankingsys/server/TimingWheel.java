@@ -0,0 +1,236 @@
+package bankingsys.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel running the timeouts of the server on a single thread.
+ *
+ * The wheel is a ring of buckets, one per tick, each holding a doubly linked list of the
+ * timeouts due in that tick, so scheduling, cancelling and rescheduling take constant time
+ * whatever the number of pending timeouts. A timeout more than one turn away stays in its
+ * bucket until the turn it is due in. Timeouts fire at most one tick late. Tasks run on the
+ * wheel thread one after the other and must be short.
+ */
+public class TimingWheel {
+
+    private static final Logger logger = Logger.getLogger(TimingWheel.class.getName());
+
+    private final long tick;
+    private final int mask;
+    private final long startTime;
+
+    // guarded by this
+    private final Timeout[] buckets;
+    private long currentTick = 0; // next tick to be processed
+    private int pending = 0;
+
+    /**
+     * Create a timing wheel
+     * @param tick Milliseconds per tick, the resolution of the timeouts
+     * @param wheelSize Number of buckets, rounded up to a power of two
+     */
+    public TimingWheel(long tick, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tick = tick;
+        this.mask = size - 1;
+        this.buckets = new Timeout[size];
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Start the wheel thread
+     */
+    public void start() {
+        Thread thread = new Thread(this::run, "timing-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run a task once after a delay
+     * @param task Task to run on the wheel thread
+     * @param delay Milliseconds before the task runs
+     * @return Handle to cancel or reschedule the task
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        Timeout timeout = new Timeout(task, 0);
+        synchronized (this) {
+            insert(timeout, delay);
+        }
+        return timeout;
+    }
+
+    /**
+     * Run a task repeatedly, until it is cancelled
+     * @param task Task to run on the wheel thread
+     * @param period Milliseconds between two runs
+     * @return Handle to cancel the task
+     */
+    public Timeout scheduleRepeated(Runnable task, long period) {
+        Timeout timeout = new Timeout(task, period);
+        synchronized (this) {
+            insert(timeout, period);
+        }
+        return timeout;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * Main loop of the wheel thread, processing one bucket per tick
+     */
+    private void run() {
+        List<Timeout> expired = new ArrayList<>();
+        while (true) {
+            long wait;
+            synchronized (this) {
+                wait = startTime + currentTick * tick - System.currentTimeMillis();
+            }
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            synchronized (this) {
+                Timeout timeout = buckets[(int) (currentTick & mask)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.deadline <= currentTick) {
+                        unlink(timeout);
+                        expired.add(timeout);
+                    }
+                    timeout = next;
+                }
+                currentTick++;
+                for (Timeout repeated : expired) {
+                    if (repeated.period > 0) {
+                        insert(repeated, repeated.period);
+                    } else {
+                        repeated.expired = true;
+                    }
+                }
+            }
+            for (Timeout timeout : expired) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Timeout task failed", e);
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * Link a timeout into the bucket of its deadline (holding the lock)
+     * @param timeout Unlinked timeout
+     * @param delay Milliseconds from now
+     */
+    private void insert(Timeout timeout, long delay) {
+        long now = System.currentTimeMillis() - startTime;
+        // round up, a timeout never fires early
+        timeout.deadline = Math.max(currentTick, (now + delay + tick - 1) / tick);
+        int bucket = (int) (timeout.deadline & mask);
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        timeout.linked = true;
+        pending++;
+    }
+
+    /**
+     * Unlink a timeout from its bucket (holding the lock)
+     * @param timeout Linked timeout
+     */
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.linked = false;
+        pending--;
+    }
+
+    /**
+     * Handle of a scheduled task
+     */
+    public class Timeout {
+        private final Runnable task;
+        private final long period;
+        private long deadline; // tick the task is due in
+        private int bucket;
+        private Timeout prev;
+        private Timeout next;
+        private boolean linked = false;
+        private boolean expired = false;
+        private boolean cancelled = false;
+
+        private Timeout(Runnable task, long period) {
+            this.task = task;
+            this.period = period;
+        }
+
+        /**
+         * Cancel the task
+         * @return Whether the task was pending, false if it already ran or was cancelled
+         */
+        public boolean cancel() {
+            synchronized (TimingWheel.this) {
+                if (!linked) {
+                    return false;
+                }
+                unlink(this);
+                cancelled = true;
+                return true;
+            }
+        }
+
+        /**
+         * Move a pending task to a new delay, e.g. to renew a subscription
+         * @param delay Milliseconds from now
+         * @return Whether the task was pending and was moved, false if it already ran or was cancelled
+         */
+        public boolean reschedule(long delay) {
+            synchronized (TimingWheel.this) {
+                if (!linked) {
+                    return false;
+                }
+                unlink(this);
+                insert(this, delay);
+                return true;
+            }
+        }
+
+        /**
+         * Check whether a task scheduled to run once has been taken off the wheel to run
+         * @return Whether the task is running or ran
+         */
+        public boolean isExpired() {
+            synchronized (TimingWheel.this) {
+                return expired;
+            }
+        }
+
+        public boolean isCancelled() {
+            synchronized (TimingWheel.this) {
+                return cancelled;
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package bankingsys.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of worker threads that run request processing off the receive thread.
+ *
+ * Every worker owns its own queue and requests from the same client always go to the
+ * same worker, so requests of one client are processed in arrival order. A retransmitted
+ * request can therefore never run concurrently with its original, which keeps the
+ * at-most-once history of a client confined to a single thread.
+ */
+public class WorkerPool {
+
+    private static final Logger logger = Logger.getLogger(WorkerPool.class.getName());
+
+    private final RequestReceiver server;
+    private final ArrayBlockingQueue<Datagram>[] queues;
+    private final Thread[] workers;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong[] peakDepths;
+
+    /**
+     * Create a worker pool
+     * @param server Server whose processing logic is executed by the workers
+     * @param workerCount Number of worker threads
+     * @param queueCapacity Maximum number of pending requests per worker
+     */
+    @SuppressWarnings("unchecked")
+    public WorkerPool(RequestReceiver server, int workerCount, int queueCapacity) {
+        this.server = server;
+        this.queues = (ArrayBlockingQueue<Datagram>[]) new ArrayBlockingQueue<?>[workerCount];
+        this.workers = new Thread[workerCount];
+        this.peakDepths = new AtomicLong[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            queues[i] = new ArrayBlockingQueue<>(queueCapacity);
+            peakDepths[i] = new AtomicLong();
+            ArrayBlockingQueue<Datagram> queue = queues[i];
+            workers[i] = new Thread(() -> work(queue), "worker-" + i);
+            workers[i].setDaemon(true);
+        }
+    }
+
+    /**
+     * Start all worker threads
+     */
+    public void start() {
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Hand a received datagram to the worker responsible for its sender. The datagram is
+     * dropped if that worker's queue is full, the client will retransmit it.
+     * @param data Request bytes, owned by the pool from now on
+     * @param address Client address
+     * @param port Client port
+     * @return Whether the datagram was queued
+     */
+    public boolean submit(byte[] data, InetAddress address, int port) {
+        received.incrementAndGet();
+        int index = ((address.hashCode() * 31 + port) & 0x7FFFFFFF) % queues.length;
+        ArrayBlockingQueue<Datagram> queue = queues[index];
+        if (!queue.offer(new Datagram(data, address, port))) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int depth = queue.size();
+        AtomicLong peak = peakDepths[index];
+        long currentPeak = peak.get();
+        while (depth > currentPeak && !peak.compareAndSet(currentPeak, depth)) {
+            currentPeak = peak.get();
+        }
+        return true;
+    }
+
+    /**
+     * Main loop of a worker thread
+     * @param queue Queue served by this worker
+     */
+    private void work(ArrayBlockingQueue<Datagram> queue) {
+        while (true) {
+            Datagram datagram;
+            try {
+                datagram = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                server.processRequest(datagram.data, datagram.address, datagram.port);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Failure on processing request", e);
+            }
+        }
+    }
+
+    /**
+     * Current number of pending requests per worker queue
+     * @return Queue depth of each worker
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[queues.length];
+        for (int i = 0; i < queues.length; i++) {
+            depths[i] = queues[i].size();
+        }
+        return depths;
+    }
+
+    /**
+     * Highest queue depth observed per worker since the pool was started
+     * @return Peak queue depth of each worker
+     */
+    public long[] getPeakQueueDepths() {
+        long[] peaks = new long[peakDepths.length];
+        for (int i = 0; i < peakDepths.length; i++) {
+            peaks[i] = peakDepths[i].get();
+        }
+        return peaks;
+    }
+
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Log the queue metrics of the pool
+     */
+    public void logMetrics() {
+        StringBuilder builder = new StringBuilder("Worker queues: received=").append(received.get())
+                .append(" dropped=").append(dropped.get());
+        int[] depths = getQueueDepths();
+        long[] peaks = getPeakQueueDepths();
+        for (int i = 0; i < depths.length; i++) {
+            builder.append(" [").append(i).append(": depth=").append(depths[i])
+                    .append(" peak=").append(peaks[i]).append(']');
+        }
+        logger.log(Level.INFO, builder.toString());
+    }
+
+    /**
+     * A datagram waiting to be processed
+     */
+    private static class Datagram {
+        private final byte[] data;
+        private final InetAddress address;
+        private final int port;
+
+        private Datagram(byte[] data, InetAddress address, int port) {
+            this.data = data;
+            this.address = address;
+            this.port = port;
+        }
+    }
+}
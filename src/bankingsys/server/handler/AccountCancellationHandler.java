@@ -1,36 +1,29 @@
 package bankingsys.server.handler;
 
-import bankingsys.message.ServiceRequest;
-import bankingsys.message.ServiceResponse;
+import bankingsys.message.RequestView;
+import bankingsys.message.ResponseWriter;
 import bankingsys.server.RequestReceiver;
-import bankingsys.server.model.BankAccount;
-
-import java.util.HashMap;
+import bankingsys.server.store.AccountException;
+import bankingsys.server.store.AccountStore;
 
 import static bankingsys.Constant.*;
-import static bankingsys.message.ServiceResponse.ResponseStatus.FAILURE;
-import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
 
 /**
  * Handler for account cancellation
  */
 public class AccountCancellationHandler extends ServiceHandler {
 
-    public AccountCancellationHandler(HashMap<Integer, BankAccount> accounts, RequestReceiver server) {
+    public AccountCancellationHandler(AccountStore accounts, RequestReceiver server) {
         super(accounts, server);
     }
 
     @Override
-    public ServiceResponse handleRequest(ServiceRequest request, boolean simulation) {
-        ServiceResponse response;
-        if (authenticate(request)) {
-            if (accounts.containsKey(request.getRequestAccount())) {
-                accounts.remove(request.getRequestAccount());
-                response = new ServiceResponse(ACCOUNT_CREATE, SUCCESS, null, "Account closed", null);
-                return response;
-            }
+    public void handleRequest(RequestView request, ResponseWriter response, boolean simulation) {
+        try {
+            accounts.close(request.account(), request.name(), request.password());
+            response.success(ACCOUNT_CREATE, "Account closed");
+        } catch (AccountException e) {
+            response.failure(ACCOUNT_CREATE, "Account doesn't exist");
         }
-        response = new ServiceResponse(ACCOUNT_CREATE, FAILURE, null, "Account doesn't exist", null);
-        return response;
     }
 }
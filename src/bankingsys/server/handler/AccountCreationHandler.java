@@ -1,37 +1,34 @@
 package bankingsys.server.handler;
 
-import bankingsys.message.ServiceRequest;
-import bankingsys.message.ServiceResponse;
+import bankingsys.message.Amounts;
+import bankingsys.message.RequestView;
+import bankingsys.message.ResponseWriter;
 import bankingsys.server.RequestReceiver;
-import bankingsys.server.model.BankAccount;
-
-import java.util.HashMap;
+import bankingsys.server.store.AccountStore;
 
 import static bankingsys.Constant.ACCOUNT_CANCEL;
-import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
 
 /**
  * Handler for account creation
  */
 public class AccountCreationHandler extends ServiceHandler {
-    private int currentId = 0;
-
-    public AccountCreationHandler(HashMap<Integer, BankAccount> accounts, RequestReceiver server) {
+    public AccountCreationHandler(AccountStore accounts, RequestReceiver server) {
         super(accounts, server);
     }
 
 
     @Override
-    public ServiceResponse handleRequest(ServiceRequest request, boolean simulation) {
-        ServiceResponse response;
-        BankAccount newAccount = new BankAccount(currentId, request.getRequestName(),
-                request.getRequestPassword(), request.getRequestCurrency(), request.getRequestAmount());
-        accounts.put(newAccount.getAccountNumber(), newAccount);
-        ++currentId;
-        response = new ServiceResponse(ACCOUNT_CANCEL, SUCCESS, newAccount.getAccountNumber(),
-                "Account No." + Integer.toString(newAccount.getAccountNumber()) + " belonging to " + newAccount.getName() +
-                        " has been created with initial balance $" + Float.toString(newAccount.getBalance()),
-                newAccount.getBalance());
-        return response;
+    public void handleRequest(RequestView request, ResponseWriter response, boolean simulation) {
+        int accountNumber = server.allocateAccountNumber();
+        if (accountNumber < 0) {
+            response.failure(ACCOUNT_CANCEL, "No account number left in this shard.");
+            return;
+        }
+        String name = request.name();
+        long balance = request.amount();
+        accounts.create(accountNumber, name, request.password(), request.currency(), balance);
+        response.success(ACCOUNT_CANCEL, accountNumber, balance,
+                "Account No." + Integer.toString(accountNumber) + " belonging to " + name +
+                        " has been created with initial balance $" + Amounts.format(balance));
     }
 }
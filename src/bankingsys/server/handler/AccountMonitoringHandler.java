@@ -1,53 +1,72 @@
 package bankingsys.server.handler;
 
-import bankingsys.message.ServiceRequest;
-import bankingsys.message.ServiceResponse;
+import bankingsys.message.RequestView;
+import bankingsys.message.ResponseWriter;
+import bankingsys.server.MulticastPublisher;
 import bankingsys.server.RequestReceiver;
-import bankingsys.server.model.BankAccount;
+import bankingsys.server.TimingWheel.Timeout;
 import bankingsys.server.model.Client;
 import bankingsys.server.model.MonitoringClients;
+import bankingsys.server.store.AccountStore;
 
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Timer;
-import java.util.TimerTask;
-
-import static bankingsys.Constant.ACCOUNT_MONITOR;
-import static bankingsys.Constant.END_MONITOR;
-import static bankingsys.message.ServiceResponse.ResponseStatus.FAILURE;
-import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
 
 /**
- * Handler for registering monitoring clients
+ * Handler for registering monitoring clients. A client registering again while its
+ * registration is live renews it, with the new interval and accounts.
  */
 public class AccountMonitoringHandler extends ServiceHandler {
     private MonitoringClients clients;
+    private final HashMap<Client, Timeout> expiries = new HashMap<>(); // guarded by itself
 
-    public AccountMonitoringHandler(HashMap<Integer, BankAccount> accounts,
+    public AccountMonitoringHandler(AccountStore accounts,
                                     RequestReceiver server, MonitoringClients clients) {
         super(accounts, server);
         this.clients = clients;
     }
 
     @Override
-    public ServiceResponse handleRequest(ServiceRequest request, boolean simulation) {
-        ServiceResponse response;
+    public void handleRequest(RequestView request, ResponseWriter response, boolean simulation) {
         System.out.println("AccountMonitoringHandler called");
-        Client client = new Client(request.getRequestAddress(), request.getRequestPort());
-        if (!clients.isClientInSet(client)) {
-            clients.addClient(client);
-            Timer timer = new Timer();
-            timer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    clients.removeFromClients(client);
-                    System.out.println("Client removed");
-                }
-            }, request.getRequestDelay() * 1000);
-            response = new ServiceResponse(ACCOUNT_MONITOR, SUCCESS, null, "Monitoring callback registered", null);
+        Client client = new Client(request.address(), request.port());
+        int[] accounts = request.monitorAccounts();
+        long delay = request.delay() * 1000L;
+        boolean renewed;
+        synchronized (expiries) {
+            Timeout expiry = expiries.get(client);
+            // the client may have been disconnected by the dispatcher while its expiry was pending
+            renewed = clients.isClientInSet(client) && expiry != null && expiry.reschedule(delay);
+            if (expiry != null && !renewed) {
+                expiry.cancel();
+            }
+            clients.addClient(client, accounts);
+            if (!renewed) {
+                expiries.put(client, server.getTimers().schedule(() -> expire(client), delay));
+            }
+        }
+        String message = (renewed ? "Monitoring callback renewed" : "Monitoring callback registered")
+                + (accounts.length == 0 ? "" : " for " + accounts.length + " accounts");
+        MulticastPublisher publisher = server.getMulticastPublisher();
+        if (publisher != null) {
+            response.monitor(publisher.getGroup(), publisher.getSequence(), message + ", join " + publisher.getGroup());
         } else {
-            response = new ServiceResponse(ACCOUNT_MONITOR, FAILURE, null, "Monitoring callback already registered", null);
+            response.monitor("", 0, message);
+        }
+    }
+
+    /**
+     * Remove a client whose registration ran out, unless it was renewed meanwhile
+     * @param client Monitoring client
+     */
+    private void expire(Client client) {
+        synchronized (expiries) {
+            Timeout expiry = expiries.get(client);
+            if (expiry == null || !expiry.isExpired()) {
+                return;
+            }
+            expiries.remove(client);
+            clients.removeFromClients(client);
         }
-        return response;
+        System.out.println("Client removed");
     }
 }
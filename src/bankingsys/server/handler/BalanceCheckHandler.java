@@ -1,39 +1,40 @@
 package bankingsys.server.handler;
 
-import bankingsys.message.ServiceRequest;
-import bankingsys.message.ServiceResponse;
+import bankingsys.message.Amounts;
+import bankingsys.message.RequestView;
+import bankingsys.message.ResponseWriter;
+import bankingsys.server.Replica;
 import bankingsys.server.RequestReceiver;
-import bankingsys.server.model.BankAccount;
-
-import java.util.HashMap;
+import bankingsys.server.store.AccountException;
+import bankingsys.server.store.AccountStore;
 
 import static bankingsys.Constant.BALANCE_CHECK;
-import static bankingsys.message.ServiceResponse.ResponseStatus.FAILURE;
-import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
 
 /**
  * Handler for checking account balance
  */
 public class BalanceCheckHandler extends ServiceHandler {
 
-    public BalanceCheckHandler(HashMap<Integer, BankAccount> accounts, RequestReceiver server) {
+    public BalanceCheckHandler(AccountStore accounts, RequestReceiver server) {
         super(accounts, server);
     }
 
     @Override
-    public ServiceResponse handleRequest(ServiceRequest request, boolean simulation) {
-        ServiceResponse response;
-        if (authenticate(request)) {
-            if (accounts.containsKey(request.getRequestAccount())) {
-                BankAccount account = accounts.get(request.getRequestAccount());
-                response = new ServiceResponse(BALANCE_CHECK, SUCCESS, account.getAccountNumber(),
-                        "Account No." + Integer.toString(account.getAccountNumber()) + " belonging to " + account.getName() +
-                        " has a balance of $" + Float.toString(account.getBalance()),
-                        account.getBalance());
-                return response;
-            }
+    public void handleRequest(RequestView request, ResponseWriter response, boolean simulation) {
+        Replica replica = server.getReplica();
+        if (replica != null && !replica.canServe(request.lsn())) {
+            response.failure(BALANCE_CHECK, "Replica behind the primary, ask the primary");
+            return;
+        }
+        try {
+            int account = request.account();
+            String name = request.name();
+            long balance = accounts.getBalance(account, name, request.password());
+            response.success(BALANCE_CHECK, account, balance,
+                    "Account No." + Integer.toString(account) + " belonging to " + name +
+                    " has a balance of $" + Amounts.format(balance));
+        } catch (AccountException e) {
+            response.failure(BALANCE_CHECK, "Account doesn't exist");
         }
-        response = new ServiceResponse(BALANCE_CHECK, FAILURE, null, "Account doesn't exist", null);
-        return response;
     }
 }
@@ -1,45 +1,38 @@
 package bankingsys.server.handler;
 
-import bankingsys.message.ServiceRequest;
-import bankingsys.message.ServiceResponse;
+import bankingsys.message.Amounts;
+import bankingsys.message.RequestView;
+import bankingsys.message.ResponseWriter;
 import bankingsys.server.RequestReceiver;
-import bankingsys.server.model.BankAccount;
-
-import java.util.HashMap;
+import bankingsys.server.store.AccountException;
+import bankingsys.server.store.AccountStore;
 
 import static bankingsys.Constant.BALANCE_UPDATE;
-import static bankingsys.message.ServiceResponse.ResponseStatus.FAILURE;
-import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
 
 /**
  * Handler for updating account balance (deposit / withdraw)
  */
 public class BalanceUpdateHandler extends ServiceHandler {
 
-    public BalanceUpdateHandler(HashMap<Integer, BankAccount> accounts, RequestReceiver server) {
+    public BalanceUpdateHandler(AccountStore accounts, RequestReceiver server) {
         super(accounts, server);
     }
 
     @Override
-    public ServiceResponse handleRequest(ServiceRequest request, boolean simulation) {
-        ServiceResponse response;
-        if (authenticate(request)) {
-            if (accounts.containsKey(request.getRequestAccount())) {
-                BankAccount account = accounts.get(request.getRequestAccount());
-                float currentBalance = account.getBalance();
-                if (currentBalance + request.getRequestAmount() >= 0.0f) {
-                    account.setBalance(account.getBalance() + request.getRequestAmount());
-                    response = new ServiceResponse(BALANCE_UPDATE, SUCCESS, account.getAccountNumber(),
-                            "Account No." + Integer.toString(account.getAccountNumber()) + " belonging to " + account.getName() +
-                                    " has a new balance of $" + Float.toString(account.getBalance()),
-                            account.getBalance());
-                    return response;
-                }
-                response = new ServiceResponse(BALANCE_UPDATE, FAILURE, null, "Balance is not enough", null);
-                return response;
+    public void handleRequest(RequestView request, ResponseWriter response, boolean simulation) {
+        try {
+            int account = request.account();
+            String name = request.name();
+            long balance = accounts.updateBalance(account, name, request.password(), request.amount());
+            response.success(BALANCE_UPDATE, account, balance,
+                    "Account No." + Integer.toString(account) + " belonging to " + name +
+                            " has a new balance of $" + Amounts.format(balance));
+        } catch (AccountException e) {
+            if (e.getReason() == AccountException.Reason.INSUFFICIENT_BALANCE) {
+                response.failure(BALANCE_UPDATE, "Balance is not enough");
+            } else {
+                response.failure(BALANCE_UPDATE, "Account doesn't exist");
             }
         }
-        response = new ServiceResponse(BALANCE_UPDATE, FAILURE, null, "Account doesn't exist", null);
-        return response;
     }
 }
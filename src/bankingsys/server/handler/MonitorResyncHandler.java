@@ -0,0 +1,29 @@
+package bankingsys.server.handler;
+
+import bankingsys.message.RequestView;
+import bankingsys.message.ResponseWriter;
+import bankingsys.server.MulticastPublisher;
+import bankingsys.server.RequestReceiver;
+import bankingsys.server.store.AccountStore;
+
+import static bankingsys.Constant.MONITOR_RESYNC;
+
+/**
+ * Handler for resending the multicast monitoring updates a client missed
+ */
+public class MonitorResyncHandler extends ServiceHandler {
+
+    public MonitorResyncHandler(AccountStore accounts, RequestReceiver server) {
+        super(accounts, server);
+    }
+
+    @Override
+    public void handleRequest(RequestView request, ResponseWriter response, boolean simulation) {
+        MulticastPublisher publisher = server.getMulticastPublisher();
+        if (publisher == null) {
+            response.failure(MONITOR_RESYNC, "Monitoring updates are not multicast");
+            return;
+        }
+        publisher.resync(request.sequence(), response);
+    }
+}
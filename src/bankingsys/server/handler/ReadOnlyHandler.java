@@ -0,0 +1,22 @@
+package bankingsys.server.handler;
+
+import bankingsys.message.RequestView;
+import bankingsys.message.ResponseWriter;
+import bankingsys.server.RequestReceiver;
+import bankingsys.server.store.AccountStore;
+
+/**
+ * Handler refusing the requests a replica can't serve, i.e. mutations and monitoring, which
+ * go to the primary
+ */
+public class ReadOnlyHandler extends ServiceHandler {
+
+    public ReadOnlyHandler(AccountStore accounts, RequestReceiver server) {
+        super(accounts, server);
+    }
+
+    @Override
+    public void handleRequest(RequestView request, ResponseWriter response, boolean simulation) {
+        response.failure(request.requestType(), "Read-only replica, send the request to the primary");
+    }
+}
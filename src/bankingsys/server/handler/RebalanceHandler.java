@@ -0,0 +1,35 @@
+package bankingsys.server.handler;
+
+import bankingsys.message.RequestView;
+import bankingsys.message.ResponseWriter;
+import bankingsys.net.ShardMap;
+import bankingsys.server.RequestReceiver;
+import bankingsys.server.ShardPeer;
+import bankingsys.server.store.AccountStore;
+
+import static bankingsys.Constant.REBALANCE;
+
+/**
+ * Handler for moving the accounts of a cluster to a new placement
+ */
+public class RebalanceHandler extends ServiceHandler {
+
+    public RebalanceHandler(AccountStore accounts, RequestReceiver server) {
+        super(accounts, server);
+    }
+
+    @Override
+    public void handleRequest(RequestView request, ResponseWriter response, boolean simulation) {
+        ShardPeer peer = server.getShardPeer();
+        if (peer == null) {
+            response.failure(REBALANCE, "Not part of a cluster.");
+            return;
+        }
+        try {
+            response.success(REBALANCE, peer.rebalance(ShardMap.parse(request.ring()),
+                    ShardMap.parse(request.targetRing())));
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            response.failure(REBALANCE, e.getMessage());
+        }
+    }
+}
@@ -1,20 +1,18 @@
 package bankingsys.server.handler;
 
-import bankingsys.message.ServiceRequest;
-import bankingsys.message.ServiceResponse;
+import bankingsys.message.RequestView;
+import bankingsys.message.ResponseWriter;
 import bankingsys.server.RequestReceiver;
-import bankingsys.server.model.BankAccount;
-
-import java.util.HashMap;
+import bankingsys.server.store.AccountStore;
 
 /**
  * Abstract class to be inherited by all concrete service handlers
  */
 public abstract class ServiceHandler {
-    protected HashMap<Integer, BankAccount> accounts;
+    protected AccountStore accounts;
     protected RequestReceiver server;
 
-    public ServiceHandler(HashMap<Integer, BankAccount> accounts, RequestReceiver server) {
+    public ServiceHandler(AccountStore accounts, RequestReceiver server) {
         this.accounts = accounts;
         this.server = server;
     }
@@ -22,23 +20,8 @@ public abstract class ServiceHandler {
     /**
      * Method to he implemented by subclasses to handle various types of requests
      * @param request Request sent by a client
+     * @param response Writer for the response to be sent back to the client
      * @param simulation Whether there is simulated error
-     * @return Response to be sent back to the client
-     */
-    public abstract ServiceResponse handleRequest(ServiceRequest request, boolean simulation);
-
-    /**
-     * Authenticate the request based on name and password
-     * @param request Request sent by a client
-     * @return Whether authentication is successful
      */
-    protected boolean authenticate(ServiceRequest request) {
-        if (accounts.containsKey(request.getRequestAccount())) {
-            BankAccount account = accounts.get(request.getRequestAccount());
-            if (account.getPassword().equals(request.getRequestPassword()) &&
-                    account.getName().equals(request.getRequestName()))
-                return true;
-        }
-        return false;
-    }
+    public abstract void handleRequest(RequestView request, ResponseWriter response, boolean simulation);
 }
@@ -0,0 +1,27 @@
+package bankingsys.server.handler;
+
+import bankingsys.message.RequestView;
+import bankingsys.message.ResponseWriter;
+import bankingsys.server.RequestReceiver;
+import bankingsys.server.store.AccountStore;
+
+import static bankingsys.Constant.BUFFER_SIZE;
+import static bankingsys.Constant.STATS;
+
+/**
+ * Handler for reporting the metrics of the server
+ */
+public class StatsHandler extends ServiceHandler {
+
+    // the report is sent as the message of a single datagram
+    private static final int MAX_REPORT_LENGTH = BUFFER_SIZE - 64;
+
+    public StatsHandler(AccountStore accounts, RequestReceiver server) {
+        super(accounts, server);
+    }
+
+    @Override
+    public void handleRequest(RequestView request, ResponseWriter response, boolean simulation) {
+        response.success(STATS, server.reportMetrics(MAX_REPORT_LENGTH));
+    }
+}
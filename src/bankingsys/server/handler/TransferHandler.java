@@ -1,53 +1,56 @@
 package bankingsys.server.handler;
 
-import bankingsys.message.ServiceRequest;
-import bankingsys.message.ServiceResponse;
+import bankingsys.message.Amounts;
+import bankingsys.message.RequestView;
+import bankingsys.message.ResponseWriter;
 import bankingsys.server.RequestReceiver;
-import bankingsys.server.model.BankAccount;
-
-import java.util.HashMap;
+import bankingsys.server.ShardPeer;
+import bankingsys.server.store.AccountException;
+import bankingsys.server.store.AccountStore;
 
 import static bankingsys.Constant.TRANSFER;
-import static bankingsys.message.ServiceResponse.ResponseStatus.FAILURE;
-import static bankingsys.message.ServiceResponse.ResponseStatus.SUCCESS;
 
 /**
  * Handler for money transfer
  */
 public class TransferHandler extends ServiceHandler {
 
-    public TransferHandler(HashMap<Integer, BankAccount> accounts, RequestReceiver server) {
+    public TransferHandler(AccountStore accounts, RequestReceiver server) {
         super(accounts, server);
     }
 
     @Override
-    public ServiceResponse handleRequest(ServiceRequest request, boolean simulation) {
-        ServiceResponse response;
-        if (authenticate(request)) {
-            if (accounts.containsKey(request.getRequestAccount()) &&
-                    accounts.containsKey(request.getRequestTargetAccount())) {
-                BankAccount sourceAccount = accounts.get(request.getRequestAccount());
-                BankAccount targetAccount = accounts.get(request.getRequestTargetAccount());
-                if (sourceAccount.getCurrencyType() == targetAccount.getCurrencyType()) {
-                    if (sourceAccount.getBalance() - request.getRequestAmount() >= 0.0f) {
-                        sourceAccount.setBalance(sourceAccount.getBalance() - request.getRequestAmount());
-                        targetAccount.setBalance(targetAccount.getBalance() + request.getRequestAmount());
-                        response = new ServiceResponse(TRANSFER, SUCCESS, sourceAccount.getAccountNumber(),
-                                "Transferred $" + Float.toString(request.getRequestAmount()) +
-                                        " from account no." + Integer.toString(sourceAccount.getAccountNumber()) +
-                                        " to account no." + Integer.toString(targetAccount.getAccountNumber()),
-                                sourceAccount.getBalance());
-                    } else {
-                        response = new ServiceResponse(TRANSFER, FAILURE, null, "No enough balance.", null);
-                    }
-                    return response;
-                } else {
-                    response = new ServiceResponse(TRANSFER, FAILURE, null, "Target account currency type does not match.", null);
-                    return response;
-                }
+    public void handleRequest(RequestView request, ResponseWriter response, boolean simulation) {
+        try {
+            int account = request.account();
+            int targetAccount = request.targetAccount();
+            long amount = request.amount();
+            ShardPeer peer = server.getShardPeer();
+            long balance = peer != null && !peer.owns(targetAccount)
+                    ? peer.transfer(account, request.name(), request.password(), targetAccount, amount)
+                    : accounts.transfer(account, request.name(), request.password(), targetAccount, amount);
+            response.success(TRANSFER, account, balance,
+                    "Transferred $" + Amounts.format(amount) +
+                            " from account no." + Integer.toString(account) +
+                            " to account no." + Integer.toString(targetAccount));
+        } catch (AccountException e) {
+            switch (e.getReason()) {
+                case INSUFFICIENT_BALANCE:
+                    response.failure(TRANSFER, "No enough balance.");
+                    break;
+                case CURRENCY_MISMATCH:
+                    response.failure(TRANSFER, "Target account currency type does not match.");
+                    break;
+                case SHARD_UNAVAILABLE:
+                    response.failure(TRANSFER, "Shard of the target account unavailable, nothing was transferred.");
+                    break;
+                case ACCOUNT_MOVED:
+                    response.failure(TRANSFER, "Target account is moving between shards, nothing was transferred.");
+                    break;
+                default:
+                    response.failure(TRANSFER, "Account does not exist.");
+                    break;
             }
         }
-        response = new ServiceResponse(TRANSFER, FAILURE, null, "Account does not exist.", null);
-        return response;
     }
 }
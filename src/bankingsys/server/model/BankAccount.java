@@ -1,14 +1,17 @@
 package bankingsys.server.model;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * Class that stores bank account information
+ * Class that stores bank account information. The balance is a count of minor units
+ * (cents) in an atomic field, so it can be updated with compare-and-set without a lock.
  */
 public class BankAccount {
     private int accountNumber;
     private String name;
     private String password;
     private Currency currencyType;
-    private float balance;
+    private final AtomicLong balance;
 
     /**
      * Create a new bank account
@@ -16,14 +19,14 @@ public class BankAccount {
      * @param name Account name
      * @param password Account password
      * @param currencyType Account currency type
-     * @param balance Account initial balance
+     * @param balance Account initial balance in minor units
      */
-    public BankAccount(int accountNumber, String name, String password, Currency currencyType, float balance) {
+    public BankAccount(int accountNumber, String name, String password, Currency currencyType, long balance) {
         this.accountNumber = accountNumber;
         this.name = name;
         this.password = password;
         this.currencyType = currencyType;
-        this.balance = balance;
+        this.balance = new AtomicLong(balance);
     }
 
     /**
@@ -65,15 +68,30 @@ public class BankAccount {
         this.currencyType = currencyType;
     }
 
-    public float getBalance() {
-        return balance;
+    public long getBalance() {
+        return balance.get();
     }
 
-    public void setBalance(float balance) {
-        this.balance = balance;
+    public void setBalance(long balance) {
+        this.balance.set(balance);
     }
 
-    public void modifyBalance(float difference) {
-        this.balance += difference;
+    /**
+     * Set the balance if it still has an expected value
+     * @param expected Balance read before computing the new one
+     * @param balance New balance
+     * @return Whether the balance was set
+     */
+    public boolean compareAndSetBalance(long expected, long balance) {
+        return this.balance.compareAndSet(expected, balance);
+    }
+
+    /**
+     * Add an amount to the balance unconditionally
+     * @param difference Amount to add, negative to subtract
+     * @return New balance
+     */
+    public long addToBalance(long difference) {
+        return balance.addAndGet(difference);
     }
 }
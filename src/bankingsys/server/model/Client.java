@@ -3,7 +3,10 @@ package bankingsys.server.model;
 import java.net.InetAddress;
 
 /**
- * Class that represents a client
+ * Class that represents a client.
+ *
+ * A client can be a reusable key for lookups on the request path, see {@link #reset}; such
+ * a key is copied before it is stored in a map.
  */
 public class Client {
     private InetAddress clientAddress;
@@ -19,6 +22,19 @@ public class Client {
         this.clientPort = clientPort;
     }
 
+    /**
+     * Point a reusable lookup key at another client, without allocating. Never call it on a
+     * client stored in a map.
+     * @param clientAddress Address of client
+     * @param clientPort Port of client
+     * @return This client
+     */
+    public Client reset(InetAddress clientAddress, int clientPort) {
+        this.clientAddress = clientAddress;
+        this.clientPort = clientPort;
+        return this;
+    }
+
     public InetAddress getClientAddress() {
         return clientAddress;
     }
@@ -41,10 +57,7 @@ public class Client {
 
     @Override
     public int hashCode() {
-        StringBuffer buffer = new StringBuffer();
-        buffer.append(clientAddress);
-        buffer.append(clientPort);
-        return buffer.toString().hashCode();
+        return clientAddress.hashCode() * 31 + clientPort;
     }
 
     @Override
@@ -1,43 +1,132 @@
 package bankingsys.server.model;
 
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
- * A wrapper for a set of clients with synchronization on set operations
+ * Index of the clients monitoring account updates, by account number.
+ *
+ * A client monitors either a set of accounts or all accounts. Subscriptions change rarely
+ * and are looked up on every successful request, so lookups read immutable arrays without
+ * locking while subscription changes (synchronized) replace the arrays they touch.
  */
 public class MonitoringClients {
-    private HashSet<Client> clients = null;
+    private static final Client[] NONE = new Client[0];
 
-    public MonitoringClients() {
-        clients = new HashSet<>();
-    }
+    private final ConcurrentHashMap<Integer, Client[]> byAccount = new ConcurrentHashMap<>();
+    private volatile Client[] allAccounts = NONE;
+    private final HashMap<Client, int[]> subscriptions = new HashMap<>(); // guarded by this
+    private volatile int count = 0;
 
-    public HashSet<Client> getClients() {
-        return clients;
+    /**
+     * Check whether any client is monitoring
+     * @return Whether a client is registered
+     */
+    public boolean hasClients() {
+        return count > 0;
     }
 
     /**
-     * Remove a client from the set (synchronized)
+     * Remove a client from the index (synchronized)
      * @param clientToRemove Client to remove
      */
     public synchronized void removeFromClients(Client clientToRemove) {
-        clients.remove(clientToRemove);
+        int[] accounts = subscriptions.remove(clientToRemove);
+        if (accounts == null) {
+            return;
+        }
+        if (accounts.length == 0) {
+            allAccounts = without(allAccounts, clientToRemove);
+        }
+        for (int account : accounts) {
+            Client[] subscribers = without(byAccount.get(account), clientToRemove);
+            if (subscribers.length == 0) {
+                byAccount.remove(account);
+            } else {
+                byAccount.put(account, subscribers);
+            }
+        }
+        count = subscriptions.size();
     }
 
     /**
-     * Add a client to the set (synchronized)
+     * Add a client to the index, replacing its accounts if it is in the index (synchronized)
      * @param client Client to add
+     * @param accounts Accounts monitored by the client, empty for all accounts
      */
-    public synchronized void addClient(Client client) {
-        clients.add(client);
+    public synchronized void addClient(Client client, int[] accounts) {
+        removeFromClients(client);
+        int[] unique = Arrays.stream(accounts).distinct().toArray();
+        subscriptions.put(client, unique);
+        if (unique.length == 0) {
+            allAccounts = with(allAccounts, client);
+        }
+        for (int account : unique) {
+            byAccount.put(account, with(byAccount.getOrDefault(account, NONE), client));
+        }
+        count = subscriptions.size();
     }
 
     /**
-     * Check whether a client is in the set (synchronized)
+     * Check whether a client is in the index (synchronized)
      * @param client Client to check
-     * @return Whether client is in set
+     * @return Whether client is in the index
      */
     public synchronized boolean isClientInSet(Client client) {
-        return clients.contains(client);
+        return subscriptions.containsKey(client);
+    }
+
+    /**
+     * Check whether a client monitors an account, without locking
+     * @param client Client
+     * @param account Account number
+     * @return Whether the client monitors the account or all accounts
+     */
+    public boolean isMonitoring(Client client, int account) {
+        return contains(allAccounts, client) || contains(byAccount.getOrDefault(account, NONE), client);
+    }
+
+    /**
+     * Call an action once for every client monitoring one of two accounts
+     * @param account Account that changed
+     * @param otherAccount Other account that changed, e.g. the target of a transfer, or the same account
+     * @param action Action to call for each subscriber
+     */
+    public void forEachSubscriber(int account, int otherAccount, Consumer<Client> action) {
+        for (Client client : allAccounts) {
+            action.accept(client);
+        }
+        Client[] subscribers = byAccount.getOrDefault(account, NONE);
+        for (Client client : subscribers) {
+            action.accept(client);
+        }
+        if (otherAccount != account) {
+            for (Client client : byAccount.getOrDefault(otherAccount, NONE)) {
+                if (!contains(subscribers, client)) {
+                    action.accept(client);
+                }
+            }
+        }
+    }
+
+    private static Client[] with(Client[] clients, Client client) {
+        Client[] copy = Arrays.copyOf(clients, clients.length + 1);
+        copy[clients.length] = client;
+        return copy;
+    }
+
+    private static Client[] without(Client[] clients, Client client) {
+        return Arrays.stream(clients).filter(other -> !other.equals(client)).toArray(Client[]::new);
+    }
+
+    private static boolean contains(Client[] clients, Client client) {
+        for (Client other : clients) {
+            if (other.equals(client)) {
+                return true;
+            }
+        }
+        return false;
     }
 }
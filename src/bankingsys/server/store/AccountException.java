@@ -0,0 +1,36 @@
+package bankingsys.server.store;
+
+/**
+ * Exception thrown by an account store when an operation cannot be applied
+ */
+public class AccountException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Enum class for representing why an operation failed
+     */
+    public enum Reason {
+        ACCOUNT_NOT_FOUND,
+        INSUFFICIENT_BALANCE,
+        CURRENCY_MISMATCH,
+        SHARD_UNAVAILABLE,
+        ACCOUNT_MOVED,
+        TRANSACTION_UNKNOWN
+    }
+
+    private final Reason reason;
+
+    /**
+     * Create an exception for a failed operation
+     * @param reason Reason of the failure
+     */
+    public AccountException(Reason reason) {
+        super(reason.name());
+        this.reason = reason;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+}
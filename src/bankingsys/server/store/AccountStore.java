@@ -0,0 +1,133 @@
+package bankingsys.server.store;
+
+import bankingsys.server.model.BankAccount.Currency;
+
+/**
+ * Interface to be implemented by account storage engines shared by the service handlers.
+ *
+ * Every operation that takes a name and password authenticates and applies the operation
+ * in one step, implementations must make each operation atomic with respect to concurrent
+ * operations on the same accounts. Authentication failures are reported as
+ * {@link AccountException.Reason#ACCOUNT_NOT_FOUND}. Successful mutations are reported to
+ * the {@link MutationListener} while the affected accounts are still locked. Balances and
+ * amounts are longs counting minor units (cents).
+ */
+public interface AccountStore {
+
+    /**
+     * Number of accounts in the store
+     * @return Number of accounts
+     */
+    int size();
+
+    /**
+     * Add a new account
+     * @param accountNumber Account number
+     * @param name Account name
+     * @param password Account password
+     * @param currency Account currency type
+     * @param balance Account initial balance
+     */
+    void create(int accountNumber, String name, String password, Currency currency, long balance);
+
+    /**
+     * Remove an account
+     * @param accountNumber Account number
+     * @param name Account name
+     * @param password Account password
+     * @throws AccountException If the account doesn't exist
+     */
+    void close(int accountNumber, String name, String password) throws AccountException;
+
+    /**
+     * Read the balance of an account
+     * @param accountNumber Account number
+     * @param name Account name
+     * @param password Account password
+     * @return Current balance
+     * @throws AccountException If the account doesn't exist
+     */
+    long getBalance(int accountNumber, String name, String password) throws AccountException;
+
+    /**
+     * Add an amount (negative for withdrawals) to the balance of an account
+     * @param accountNumber Account number
+     * @param name Account name
+     * @param password Account password
+     * @param amount Amount to add
+     * @return New balance
+     * @throws AccountException If the account doesn't exist or the balance would become negative
+     */
+    long updateBalance(int accountNumber, String name, String password, long amount) throws AccountException;
+
+    /**
+     * Add an amount to the balance of an account without authentication, used to apply the
+     * halves of transfers between shards, the listener is notified
+     * @param accountNumber Account number
+     * @param amount Amount to add
+     * @return New balance
+     * @throws AccountException If the account doesn't exist or the balance would become negative
+     */
+    long deposit(int accountNumber, long amount) throws AccountException;
+
+    /**
+     * Read the balance of an account without authentication, e.g. to tell the clients
+     * monitoring it
+     * @param accountNumber Account number
+     * @return Balance of the account
+     * @throws AccountException If the account doesn't exist
+     */
+    long getBalance(int accountNumber) throws AccountException;
+
+    /**
+     * Read the currency of an account without authentication
+     * @param accountNumber Account number
+     * @return Currency type of the account
+     * @throws AccountException If the account doesn't exist
+     */
+    Currency getCurrency(int accountNumber) throws AccountException;
+
+    /**
+     * Move an amount from one account to another account of the same currency
+     * @param sourceAccount Source account number
+     * @param name Source account name
+     * @param password Source account password
+     * @param targetAccount Target account number
+     * @param amount Amount to move
+     * @return New balance of the source account
+     * @throws AccountException If an account doesn't exist, the currencies differ or the
+     * source balance is not enough
+     */
+    long transfer(int sourceAccount, String name, String password, int targetAccount, long amount)
+            throws AccountException;
+
+    /**
+     * Visit every account without stopping concurrent operations. Each account is visited in
+     * a consistent state, the accounts are not visited at a single point in time: accounts
+     * present during the whole call are visited once, accounts created or closed meanwhile
+     * may or may not be.
+     * @param visitor Visitor called for every account
+     */
+    void forEach(AccountVisitor visitor);
+
+    /**
+     * Register the listener notified of every successful mutation, replacing any previous one
+     * @param listener Listener, null to stop notifications
+     */
+    void setMutationListener(MutationListener listener);
+
+    /**
+     * Set the balance of an account without authentication, used to replay logged mutations.
+     * The listener is not notified.
+     * @param accountNumber Account number
+     * @param balance Balance to set, ignored if the account doesn't exist
+     */
+    void restoreBalance(int accountNumber, long balance);
+
+    /**
+     * Remove an account without authentication, used to replay logged mutations. The
+     * listener is not notified.
+     * @param accountNumber Account number, ignored if the account doesn't exist
+     */
+    void remove(int accountNumber);
+}
@@ -0,0 +1,19 @@
+package bankingsys.server.store;
+
+import bankingsys.server.model.BankAccount.Currency;
+
+/**
+ * Visitor receiving the accounts of a store, see {@link AccountStore#forEach(AccountVisitor)}
+ */
+public interface AccountVisitor {
+
+    /**
+     * Visit one account
+     * @param accountNumber Account number
+     * @param name Account name
+     * @param password Account password
+     * @param currency Account currency type
+     * @param balance Account balance in minor units
+     */
+    void visit(int accountNumber, String name, String password, Currency currency, long balance);
+}
@@ -0,0 +1,239 @@
+package bankingsys.server.store;
+
+import bankingsys.server.model.BankAccount;
+import bankingsys.server.model.BankAccount.Currency;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import static bankingsys.server.store.AccountException.Reason.*;
+
+/**
+ * Account store backed by a concurrent map with one lock per account.
+ *
+ * Lookups don't lock. Deposits and withdrawals apply to the atomic balance of the account
+ * with a compare-and-set loop that checks the new balance is not negative, so they take no
+ * lock, unless a mutation listener has to receive the new balances of an account in order.
+ * Closing and transfers lock the affected BankAccount objects, a transfer locks both
+ * accounts in account number order so two opposite transfers cannot deadlock. A closed
+ * account gets a sentinel balance before its lock is released, so an operation never
+ * applies to an account that was closed concurrently.
+ */
+public class ConcurrentAccountStore implements AccountStore {
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private final ConcurrentHashMap<Integer, BankAccount> accounts = new ConcurrentHashMap<>();
+    private volatile MutationListener listener = null;
+
+    @Override
+    public int size() {
+        return accounts.size();
+    }
+
+    @Override
+    public void create(int accountNumber, String name, String password, Currency currency, long balance) {
+        BankAccount account = new BankAccount(accountNumber, name, password, currency, balance);
+        // locked while it becomes visible, so no mutation of the account is reported before its creation
+        synchronized (account) {
+            accounts.put(accountNumber, account);
+            MutationListener listener = this.listener;
+            if (listener != null) {
+                listener.accountCreated(accountNumber, name, password, currency, balance);
+            }
+        }
+    }
+
+    @Override
+    public void close(int accountNumber, String name, String password) throws AccountException {
+        BankAccount account = authenticate(accountNumber, name, password);
+        synchronized (account) {
+            if (!accounts.remove(accountNumber, account)) {
+                throw new AccountException(ACCOUNT_NOT_FOUND);
+            }
+            account.setBalance(CLOSED);
+            MutationListener listener = this.listener;
+            if (listener != null) {
+                listener.accountClosed(accountNumber);
+            }
+        }
+    }
+
+    @Override
+    public long getBalance(int accountNumber, String name, String password) throws AccountException {
+        long balance = authenticate(accountNumber, name, password).getBalance();
+        if (balance == CLOSED) {
+            throw new AccountException(ACCOUNT_NOT_FOUND);
+        }
+        return balance;
+    }
+
+    @Override
+    public long updateBalance(int accountNumber, String name, String password, long amount)
+            throws AccountException {
+        return apply(authenticate(accountNumber, name, password), amount);
+    }
+
+    @Override
+    public long deposit(int accountNumber, long amount) throws AccountException {
+        return apply(find(accountNumber), amount);
+    }
+
+    @Override
+    public long getBalance(int accountNumber) throws AccountException {
+        long balance = find(accountNumber).getBalance();
+        if (balance == CLOSED) {
+            throw new AccountException(ACCOUNT_NOT_FOUND);
+        }
+        return balance;
+    }
+
+    @Override
+    public Currency getCurrency(int accountNumber) throws AccountException {
+        return find(accountNumber).getCurrencyType();
+    }
+
+    @Override
+    public long transfer(int sourceAccount, String name, String password, int targetAccount, long amount)
+            throws AccountException {
+        BankAccount source = authenticate(sourceAccount, name, password);
+        BankAccount target = accounts.get(targetAccount);
+        if (target == null) {
+            throw new AccountException(ACCOUNT_NOT_FOUND);
+        }
+        BankAccount first = sourceAccount <= targetAccount ? source : target;
+        BankAccount second = sourceAccount <= targetAccount ? target : source;
+        synchronized (first) {
+            synchronized (second) {
+                ensureOpen(source);
+                ensureOpen(target);
+                if (source.getCurrencyType() != target.getCurrencyType()) {
+                    throw new AccountException(CURRENCY_MISMATCH);
+                }
+                // deposits and withdrawals don't lock, so the balances still change concurrently
+                long sourceBalance = add(source, -amount);
+                long targetBalance = target.addToBalance(amount);
+                MutationListener listener = this.listener;
+                if (listener != null) {
+                    listener.balancesTransferred(sourceAccount, sourceBalance, targetAccount, targetBalance);
+                }
+                return sourceBalance;
+            }
+        }
+    }
+
+    @Override
+    public void forEach(AccountVisitor visitor) {
+        for (BankAccount account : accounts.values()) {
+            synchronized (account) {
+                long balance = account.getBalance();
+                if (balance != CLOSED) {
+                    visitor.visit(account.getAccountNumber(), account.getName(), account.getPassword(),
+                            account.getCurrencyType(), balance);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setMutationListener(MutationListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void restoreBalance(int accountNumber, long balance) {
+        BankAccount account = accounts.get(accountNumber);
+        if (account != null) {
+            synchronized (account) {
+                account.setBalance(balance);
+            }
+        }
+    }
+
+    @Override
+    public void remove(int accountNumber) {
+        accounts.remove(accountNumber);
+    }
+
+    /**
+     * Look up an account and check its name and password in a single map access
+     * @param accountNumber Account number
+     * @param name Account name
+     * @param password Account password
+     * @return The matching account
+     * @throws AccountException If no account matches
+     */
+    private BankAccount authenticate(int accountNumber, String name, String password) throws AccountException {
+        BankAccount account = accounts.get(accountNumber);
+        if (account == null || !account.getPassword().equals(password) || !account.getName().equals(name)) {
+            throw new AccountException(ACCOUNT_NOT_FOUND);
+        }
+        return account;
+    }
+
+    /**
+     * Look up an account without authentication
+     * @param accountNumber Account number
+     * @return The account
+     * @throws AccountException If there is no such account
+     */
+    private BankAccount find(int accountNumber) throws AccountException {
+        BankAccount account = accounts.get(accountNumber);
+        if (account == null) {
+            throw new AccountException(ACCOUNT_NOT_FOUND);
+        }
+        return account;
+    }
+
+    /**
+     * Add an amount to the balance of an account and notify the listener
+     * @param account Account to update
+     * @param amount Amount to add, negative for withdrawals
+     * @return New balance
+     * @throws AccountException If the account has been closed or the balance would become negative
+     */
+    private long apply(BankAccount account, long amount) throws AccountException {
+        MutationListener listener = this.listener;
+        if (listener == null) {
+            return add(account, amount);
+        }
+        // the lock keeps the notifications of the account in the order of its updates
+        synchronized (account) {
+            long newBalance = add(account, amount);
+            listener.balanceChanged(account.getAccountNumber(), newBalance);
+            return newBalance;
+        }
+    }
+
+    /**
+     * Check that a locked account has not been closed in the meantime
+     * @param account Account to check, its lock must be held
+     * @throws AccountException If the account has been closed
+     */
+    private void ensureOpen(BankAccount account) throws AccountException {
+        if (account.getBalance() == CLOSED) {
+            throw new AccountException(ACCOUNT_NOT_FOUND);
+        }
+    }
+
+    /**
+     * Add an amount to the balance of an account with a compare-and-set loop
+     * @param account Account to update
+     * @param amount Amount to add, negative for withdrawals
+     * @return New balance
+     * @throws AccountException If the account has been closed or the balance would become negative
+     */
+    private static long add(BankAccount account, long amount) throws AccountException {
+        while (true) {
+            long balance = account.getBalance();
+            if (balance == CLOSED) {
+                throw new AccountException(ACCOUNT_NOT_FOUND);
+            }
+            long newBalance = balance + amount;
+            if (newBalance < 0) {
+                throw new AccountException(INSUFFICIENT_BALANCE);
+            }
+            if (account.compareAndSetBalance(balance, newBalance)) {
+                return newBalance;
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package bankingsys.server.store;
+
+import bankingsys.server.model.BankAccount.Currency;
+
+/**
+ * Listener notified of every mutation applied to an account store.
+ *
+ * Stores call the listener while still holding the locks of the accounts involved, so the
+ * notifications of one account arrive in the order its mutations were applied. Listeners
+ * must not call back into the store.
+ */
+public interface MutationListener {
+
+    /**
+     * An account has been created
+     * @param accountNumber Account number
+     * @param name Account name
+     * @param password Account password
+     * @param currency Account currency type
+     * @param balance Account initial balance
+     */
+    void accountCreated(int accountNumber, String name, String password, Currency currency, long balance);
+
+    /**
+     * An account has been closed
+     * @param accountNumber Account number
+     */
+    void accountClosed(int accountNumber);
+
+    /**
+     * The balance of an account has changed
+     * @param accountNumber Account number
+     * @param balance New balance
+     */
+    void balanceChanged(int accountNumber, long balance);
+
+    /**
+     * An amount has been moved between two accounts, both balances changed atomically
+     * @param sourceAccount Source account number
+     * @param sourceBalance New balance of the source account
+     * @param targetAccount Target account number
+     * @param targetBalance New balance of the target account
+     */
+    void balancesTransferred(int sourceAccount, long sourceBalance, int targetAccount, long targetBalance);
+}
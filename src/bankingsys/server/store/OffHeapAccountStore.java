@@ -0,0 +1,621 @@
+package bankingsys.server.store;
+
+import bankingsys.server.model.BankAccount.Currency;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static bankingsys.server.store.AccountException.Reason.*;
+
+/**
+ * Account store that keeps accounts outside the Java heap, meant for tens of millions of accounts.
+ *
+ * Accounts are fixed-width records in a direct buffer, names and passwords are appended to
+ * a byte arena (one byte per char when every char fits, two otherwise). Account numbers are
+ * mapped to records by an open-addressing table of primitive ints, so an account costs no
+ * Java objects at all and lookups, authentication and balance updates don't allocate.
+ *
+ * Creating and closing accounts may resize the table, buffers or arena and take the
+ * structure lock exclusively. All other operations share the structure lock and lock the
+ * stripes of the accounts they touch; a transfer locks its two stripes in stripe order.
+ * Balances are longs in minor units and are updated under the stripe locks, as a direct
+ * buffer offers no compare-and-set on Java 8.
+ */
+public class OffHeapAccountStore implements AccountStore {
+
+    // record layout
+    private static final int ACCOUNT_NUMBER = 0;
+    private static final int CURRENCY = 4;
+    private static final int BALANCE = 8;
+    private static final int ARENA_OFFSET = 16;
+    private static final int NAME_LENGTH = 20;
+    private static final int PASSWORD_LENGTH = 22;
+    static final int RECORD_SIZE = 24;
+
+    // set in a stored string length when chars take two bytes
+    private static final int WIDE = 0x8000;
+    private static final int LENGTH_MASK = 0x7FFF;
+
+    // index slot states, other values are record index + 1
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+
+    private static final int STRIPES = 64;
+    private static final int VISIT_CHUNK = 1024;
+    private static final float MAX_LOAD = 0.6f;
+
+    private final ReentrantReadWriteLock structureLock = new ReentrantReadWriteLock();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    private int[] indexKeys;
+    private int[] indexRecords;
+    private int indexUsed = 0; // live and deleted slots
+
+    private ByteBuffer records;
+    private int recordCount = 0; // records ever handed out
+    private int[] freeRecords = new int[16];
+    private int freeCount = 0;
+
+    private ByteBuffer arena;
+    private int arenaGarbage = 0;
+
+    private int size = 0;
+
+    private volatile MutationListener listener = null;
+
+    public OffHeapAccountStore() {
+        this(1024);
+    }
+
+    /**
+     * Create a store sized for an expected number of accounts
+     * @param expectedAccounts Number of accounts to allocate room for
+     */
+    public OffHeapAccountStore(int expectedAccounts) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedAccounts / MAX_LOAD)) - 1) << 1;
+        indexKeys = new int[capacity];
+        indexRecords = new int[capacity];
+        records = ByteBuffer.allocateDirect(Math.max(16, expectedAccounts) * RECORD_SIZE);
+        arena = ByteBuffer.allocateDirect(Math.max(16, expectedAccounts) * 16);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public int size() {
+        structureLock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void create(int accountNumber, String name, String password, Currency currency, long balance) {
+        structureLock.writeLock().lock();
+        try {
+            int slot = findSlot(accountNumber);
+            int record;
+            if (indexRecords[slot] > 0) {
+                // replace an existing account
+                record = indexRecords[slot] - 1;
+                arenaGarbage += stringBytes(records.getShort(position(record) + NAME_LENGTH))
+                        + stringBytes(records.getShort(position(record) + PASSWORD_LENGTH));
+            } else {
+                record = allocateRecord();
+                slot = insertSlot(accountNumber);
+                indexRecords[slot] = record + 1;
+                size++;
+            }
+            int position = position(record);
+            records.putInt(position + ACCOUNT_NUMBER, accountNumber);
+            records.put(position + CURRENCY, (byte) currency.ordinal());
+            records.putLong(position + BALANCE, balance);
+            reserveArena(stringBytes(name) + stringBytes(password));
+            records.putInt(position + ARENA_OFFSET, arena.position());
+            records.putShort(position + NAME_LENGTH, appendString(name));
+            records.putShort(position + PASSWORD_LENGTH, appendString(password));
+            MutationListener listener = this.listener;
+            if (listener != null) {
+                listener.accountCreated(accountNumber, name, password, currency, balance);
+            }
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close(int accountNumber, String name, String password) throws AccountException {
+        structureLock.writeLock().lock();
+        try {
+            int slot = findSlot(accountNumber);
+            removeSlot(slot, authenticate(slot, name, password));
+            MutationListener listener = this.listener;
+            if (listener != null) {
+                listener.accountClosed(accountNumber);
+            }
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long getBalance(int accountNumber, String name, String password) throws AccountException {
+        structureLock.readLock().lock();
+        ReentrantLock stripe = stripe(accountNumber);
+        stripe.lock();
+        try {
+            int record = authenticate(findSlot(accountNumber), name, password);
+            return records.getLong(position(record) + BALANCE);
+        } finally {
+            stripe.unlock();
+            structureLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long updateBalance(int accountNumber, String name, String password, long amount)
+            throws AccountException {
+        structureLock.readLock().lock();
+        ReentrantLock stripe = stripe(accountNumber);
+        stripe.lock();
+        try {
+            return add(accountNumber, position(authenticate(findSlot(accountNumber), name, password)), amount);
+        } finally {
+            stripe.unlock();
+            structureLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long deposit(int accountNumber, long amount) throws AccountException {
+        structureLock.readLock().lock();
+        ReentrantLock stripe = stripe(accountNumber);
+        stripe.lock();
+        try {
+            return add(accountNumber, position(find(findSlot(accountNumber))), amount);
+        } finally {
+            stripe.unlock();
+            structureLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getBalance(int accountNumber) throws AccountException {
+        structureLock.readLock().lock();
+        ReentrantLock stripe = stripe(accountNumber);
+        stripe.lock();
+        try {
+            return records.getLong(position(find(findSlot(accountNumber))) + BALANCE);
+        } finally {
+            stripe.unlock();
+            structureLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Currency getCurrency(int accountNumber) throws AccountException {
+        structureLock.readLock().lock();
+        ReentrantLock stripe = stripe(accountNumber);
+        stripe.lock();
+        try {
+            return Currency.values()[records.get(position(find(findSlot(accountNumber))) + CURRENCY)];
+        } finally {
+            stripe.unlock();
+            structureLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long transfer(int sourceAccount, String name, String password, int targetAccount, long amount)
+            throws AccountException {
+        structureLock.readLock().lock();
+        ReentrantLock sourceStripe = stripe(sourceAccount);
+        ReentrantLock targetStripe = stripe(targetAccount);
+        // stripes are shared by many accounts, so they are ordered by stripe rather than account number
+        boolean sourceFirst = stripeIndex(sourceAccount) <= stripeIndex(targetAccount);
+        ReentrantLock first = sourceFirst ? sourceStripe : targetStripe;
+        ReentrantLock second = sourceFirst ? targetStripe : sourceStripe;
+        first.lock();
+        second.lock();
+        try {
+            int source = position(authenticate(findSlot(sourceAccount), name, password));
+            int targetRecord = indexRecords[findSlot(targetAccount)];
+            if (targetRecord <= 0) {
+                throw new AccountException(ACCOUNT_NOT_FOUND);
+            }
+            int target = position(targetRecord - 1);
+            if (records.get(source + CURRENCY) != records.get(target + CURRENCY)) {
+                throw new AccountException(CURRENCY_MISMATCH);
+            }
+            long sourceBalance = records.getLong(source + BALANCE);
+            if (sourceBalance - amount < 0) {
+                throw new AccountException(INSUFFICIENT_BALANCE);
+            }
+            records.putLong(source + BALANCE, sourceBalance - amount);
+            records.putLong(target + BALANCE, records.getLong(target + BALANCE) + amount);
+            MutationListener listener = this.listener;
+            if (listener != null) {
+                listener.balancesTransferred(sourceAccount, records.getLong(source + BALANCE),
+                        targetAccount, records.getLong(target + BALANCE));
+            }
+            return records.getLong(source + BALANCE);
+        } finally {
+            second.unlock();
+            first.unlock();
+            structureLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEach(AccountVisitor visitor) {
+        // records never move, so scanning them in chunks and letting creates and closes run
+        // between chunks can't skip an account that stays open
+        for (int from = 0; ; from += VISIT_CHUNK) {
+            structureLock.readLock().lock();
+            try {
+                if (from >= recordCount) {
+                    return;
+                }
+                int to = Math.min(recordCount, from + VISIT_CHUNK);
+                for (int record = from; record < to; record++) {
+                    visitRecord(record, visitor);
+                }
+            } finally {
+                structureLock.readLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void setMutationListener(MutationListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void restoreBalance(int accountNumber, long balance) {
+        structureLock.readLock().lock();
+        ReentrantLock stripe = stripe(accountNumber);
+        stripe.lock();
+        try {
+            int record = indexRecords[findSlot(accountNumber)];
+            if (record > 0) {
+                records.putLong(position(record - 1) + BALANCE, balance);
+            }
+        } finally {
+            stripe.unlock();
+            structureLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void remove(int accountNumber) {
+        structureLock.writeLock().lock();
+        try {
+            int slot = findSlot(accountNumber);
+            if (indexRecords[slot] > 0) {
+                removeSlot(slot, indexRecords[slot] - 1);
+            }
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Bytes of direct memory currently reserved by the store
+     * @return Reserved off-heap bytes
+     */
+    public long getOffHeapBytes() {
+        structureLock.readLock().lock();
+        try {
+            return (long) records.capacity() + arena.capacity();
+        } finally {
+            structureLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visit the account of a record if the record is in use, the structure lock must be held
+     * @param record Record index
+     * @param visitor Visitor to call
+     */
+    private void visitRecord(int record, AccountVisitor visitor) {
+        int position = position(record);
+        int accountNumber = records.getInt(position + ACCOUNT_NUMBER);
+        if (indexRecords[findSlot(accountNumber)] != record + 1) {
+            return; // free record
+        }
+        ReentrantLock stripe = stripe(accountNumber);
+        stripe.lock();
+        try {
+            int offset = records.getInt(position + ARENA_OFFSET);
+            short nameLength = records.getShort(position + NAME_LENGTH);
+            short passwordLength = records.getShort(position + PASSWORD_LENGTH);
+            String name = readString(offset, nameLength);
+            String password = readString(offset + stringBytes(nameLength), passwordLength);
+            visitor.visit(accountNumber, name, password, Currency.values()[records.get(position + CURRENCY)],
+                    records.getLong(position + BALANCE));
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Drop the account of an index slot, the structure lock must be held exclusively
+     * @param slot Index slot of the account
+     * @param record Record index of the account
+     */
+    private void removeSlot(int slot, int record) {
+        int position = position(record);
+        arenaGarbage += stringBytes(records.getShort(position + NAME_LENGTH))
+                + stringBytes(records.getShort(position + PASSWORD_LENGTH));
+        indexRecords[slot] = DELETED;
+        freeRecord(record);
+        size--;
+    }
+
+    /**
+     * Record of the account of an index slot, without authentication
+     * @param slot Index slot of the account
+     * @return Record index
+     * @throws AccountException If the slot holds no account
+     */
+    private int find(int slot) throws AccountException {
+        if (indexRecords[slot] <= 0) {
+            throw new AccountException(ACCOUNT_NOT_FOUND);
+        }
+        return indexRecords[slot] - 1;
+    }
+
+    /**
+     * Add an amount to the balance of a record and notify the listener, the stripe of the
+     * account must be locked
+     * @param accountNumber Account number
+     * @param position Position of the account record
+     * @param amount Amount to add, negative for withdrawals
+     * @return New balance
+     * @throws AccountException If the balance would become negative
+     */
+    private long add(int accountNumber, int position, long amount) throws AccountException {
+        long newBalance = records.getLong(position + BALANCE) + amount;
+        if (newBalance < 0) {
+            throw new AccountException(INSUFFICIENT_BALANCE);
+        }
+        records.putLong(position + BALANCE, newBalance);
+        MutationListener listener = this.listener;
+        if (listener != null) {
+            listener.balanceChanged(accountNumber, newBalance);
+        }
+        return newBalance;
+    }
+
+    /**
+     * Check the name and password of the account in an index slot
+     * @param slot Index slot of the account
+     * @param name Account name
+     * @param password Account password
+     * @return Record index of the account
+     * @throws AccountException If the slot holds no account or the credentials don't match
+     */
+    private int authenticate(int slot, String name, String password) throws AccountException {
+        if (indexRecords[slot] <= 0) {
+            throw new AccountException(ACCOUNT_NOT_FOUND);
+        }
+        int record = indexRecords[slot] - 1;
+        int position = position(record);
+        int offset = records.getInt(position + ARENA_OFFSET);
+        short nameLength = records.getShort(position + NAME_LENGTH);
+        if (!stringEquals(offset, nameLength, name) ||
+                !stringEquals(offset + stringBytes(nameLength), records.getShort(position + PASSWORD_LENGTH), password)) {
+            throw new AccountException(ACCOUNT_NOT_FOUND);
+        }
+        return record;
+    }
+
+    /**
+     * Find the slot holding an account number, or the empty slot ending its probe sequence
+     * @param accountNumber Account number
+     * @return Slot index
+     */
+    private int findSlot(int accountNumber) {
+        int mask = indexKeys.length - 1;
+        int slot = mix(accountNumber) & mask;
+        while (indexRecords[slot] != EMPTY &&
+                (indexRecords[slot] == DELETED || indexKeys[slot] != accountNumber)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Claim a slot for an account number that is not in the index, growing the index if needed
+     * @param accountNumber Account number
+     * @return Slot index, its key is already set
+     */
+    private int insertSlot(int accountNumber) {
+        if (indexUsed + 1 > indexKeys.length * MAX_LOAD) {
+            // rehash, doubling only when deleted slots alone can't make enough room
+            rehash(size + 1 > indexKeys.length * MAX_LOAD / 2 ? indexKeys.length * 2 : indexKeys.length);
+        }
+        int mask = indexKeys.length - 1;
+        int slot = mix(accountNumber) & mask;
+        while (indexRecords[slot] > 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (indexRecords[slot] == EMPTY) {
+            indexUsed++;
+        }
+        indexKeys[slot] = accountNumber;
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = indexKeys;
+        int[] oldRecords = indexRecords;
+        indexKeys = new int[capacity];
+        indexRecords = new int[capacity];
+        indexUsed = 0;
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldRecords[i] > 0) {
+                int slot = mix(oldKeys[i]) & mask;
+                while (indexRecords[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                indexKeys[slot] = oldKeys[i];
+                indexRecords[slot] = oldRecords[i];
+                indexUsed++;
+            }
+        }
+    }
+
+    private int allocateRecord() {
+        if (freeCount > 0) {
+            return freeRecords[--freeCount];
+        }
+        if ((recordCount + 1) * RECORD_SIZE > records.capacity()) {
+            records = grow(records, records.capacity() * 2);
+        }
+        return recordCount++;
+    }
+
+    private void freeRecord(int record) {
+        if (freeCount == freeRecords.length) {
+            int[] grown = new int[freeRecords.length * 2];
+            System.arraycopy(freeRecords, 0, grown, 0, freeCount);
+            freeRecords = grown;
+        }
+        freeRecords[freeCount++] = record;
+    }
+
+    /**
+     * Make room for a number of bytes in the arena, compacting or growing it if it is full
+     * @param bytes Number of bytes to be appended
+     */
+    private void reserveArena(int bytes) {
+        if (arena.remaining() < bytes) {
+            if (arenaGarbage > arena.position() / 2) {
+                compactArena();
+            }
+            if (arena.remaining() < bytes) {
+                arena = grow(arena, Math.max(arena.capacity() * 2, arena.position() + bytes));
+            }
+        }
+    }
+
+    /**
+     * Append a string to the arena, room must have been reserved
+     * @param value String to append
+     * @return Stored length of the string
+     */
+    private short appendString(String value) {
+        boolean wide = isWide(value);
+        for (int i = 0; i < value.length(); i++) {
+            if (wide) {
+                arena.putChar(value.charAt(i));
+            } else {
+                arena.put((byte) value.charAt(i));
+            }
+        }
+        return (short) (wide ? value.length() | WIDE : value.length());
+    }
+
+    /**
+     * Decode a string stored in the arena
+     * @param offset Arena offset of the string
+     * @param storedLength Stored length of the string
+     * @return Decoded string
+     */
+    private String readString(int offset, short storedLength) {
+        boolean wide = (storedLength & WIDE) != 0;
+        char[] chars = new char[storedLength & LENGTH_MASK];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = wide ? arena.getChar(offset + 2 * i) : (char) (arena.get(offset + i) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Rewrite the arena with only the strings of live accounts
+     */
+    private void compactArena() {
+        ByteBuffer compacted = ByteBuffer.allocateDirect(arena.capacity());
+        for (int i = 0; i < indexRecords.length; i++) {
+            if (indexRecords[i] > 0) {
+                int position = position(indexRecords[i] - 1);
+                int offset = records.getInt(position + ARENA_OFFSET);
+                int length = stringBytes(records.getShort(position + NAME_LENGTH))
+                        + stringBytes(records.getShort(position + PASSWORD_LENGTH));
+                records.putInt(position + ARENA_OFFSET, compacted.position());
+                for (int j = 0; j < length; j++) {
+                    compacted.put(arena.get(offset + j));
+                }
+            }
+        }
+        arena = compacted;
+        arenaGarbage = 0;
+    }
+
+    private boolean stringEquals(int offset, short storedLength, String value) {
+        boolean wide = (storedLength & WIDE) != 0;
+        int length = storedLength & LENGTH_MASK;
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = wide ? arena.getChar(offset + 2 * i) : (char) (arena.get(offset + i) & 0xFF);
+            if (c != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWide(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0xFF) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int stringBytes(String value) {
+        return isWide(value) ? value.length() * 2 : value.length();
+    }
+
+    private static int stringBytes(short storedLength) {
+        int length = storedLength & LENGTH_MASK;
+        return (storedLength & WIDE) != 0 ? length * 2 : length;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+        int position = buffer.position();
+        buffer.position(0);
+        grown.put(buffer);
+        grown.position(position);
+        buffer.position(position);
+        return grown;
+    }
+
+    private static int position(int record) {
+        return record * RECORD_SIZE;
+    }
+
+    private ReentrantLock stripe(int accountNumber) {
+        return stripes[stripeIndex(accountNumber)];
+    }
+
+    private static int stripeIndex(int accountNumber) {
+        return mix(accountNumber) & (STRIPES - 1);
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,767 @@
+package bankingsys.server.store;
+
+import bankingsys.io.Deserializer;
+import bankingsys.io.Serializer;
+import bankingsys.message.Amounts;
+import bankingsys.server.model.BankAccount.Currency;
+import bankingsys.server.model.Client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.IntPredicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of account mutations with group commit.
+ *
+ * The log listens to the store, which reports mutations while holding the locks of the
+ * accounts involved, so the records of an account are in the order its mutations were
+ * applied. Records hold the resulting state, i.e. new balances rather than amounts, so
+ * replaying a record that is already reflected in the store is harmless.
+ *
+ * Records are appended to an in-memory buffer and made durable according to the fsync
+ * policy. Log sequence numbers are file offsets: the LSN of a record is the offset right
+ * after it, and {@link #whenDurable(long, Runnable)} runs an action, e.g. sending a reply,
+ * once every record up to an LSN has been forced to disk.
+ *
+ * Besides mutations, the log holds the replies cached for at-most-once invocation, so a
+ * request executed before a crash is still answered from the cache after the restart.
+ *
+ * Records can also be encoded away from the log with the static encoders and appended in
+ * batches by {@link #appendRecords(byte[], int, int, int)}, e.g. by the journal stage of a
+ * pipeline whose business logic thread captures the mutations it applies.
+ *
+ * The durable part of the file is also the replication stream: backups receive its bytes
+ * from the LSN they reached and apply them with {@link #applyStream(ByteBuffer, AccountStore)}.
+ * Shards moving accounts to another shard ship the part of the stream on those accounts.
+ *
+ * Record layout: payload length (4), CRC32 of the payload (4), payload. A record torn by a
+ * crash fails its checksum and is truncated away on recovery, together with everything after it.
+ */
+public class WriteAheadLog implements MutationListener {
+
+    private static final Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+
+    /**
+     * When appended records are forced to disk
+     */
+    public enum FsyncPolicy {
+        ALWAYS,   // every record is forced before the mutation returns
+        GROUP,    // a flusher thread forces everything appended while the previous force ran
+        PERIODIC  // a flusher thread forces at a fixed interval
+    }
+
+    /**
+     * Receiver of the logged replies on recovery
+     */
+    public interface ReplySink {
+        void putReply(Client client, int requestID, byte[] reply);
+    }
+
+    // record types, balances are longs in minor units
+    private static final char CREATED = 'C';
+    private static final char CLOSED = 'x';
+    private static final char BALANCE = 'U';
+    private static final char TRANSFER = 'T';
+    private static final char REPLY = 'r';
+    // record types with float balances, written by earlier servers and still replayed
+    private static final char FLOAT_CREATED = 'c';
+    private static final char FLOAT_BALANCE = 'u';
+    private static final char FLOAT_TRANSFER = 't';
+
+    private static final int HEADER_SIZE = 8;
+    private static final long MAP_WINDOW = 256 << 20;
+
+    private final FileChannel channel;
+    private final FsyncPolicy policy;
+    private final long interval;
+    private final CRC32 crc = new CRC32();
+
+    // guarded by this
+    private Serializer pending = new Serializer();
+    private long appendedLsn;
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+    private boolean closed = false;
+    private long syncCount = 0;
+    private long recordCount = 0;
+
+    private Serializer writing = new Serializer(); // owned by the flusher
+    private volatile long durableLsn;
+    private final Object durableSignal = new Object(); // notified when durableLsn is raised
+    private volatile boolean failed = false;
+    private Thread flusher = null;
+    private int nextAccountNumber = 0;
+
+    private WriteAheadLog(FileChannel channel, FsyncPolicy policy, long interval, long end) {
+        this.channel = channel;
+        this.policy = policy;
+        this.interval = interval;
+        this.appendedLsn = end;
+        this.durableLsn = end;
+    }
+
+    /**
+     * Open a log, replay its records into a store and start logging the mutations of the store
+     * @param path Log file, created if missing
+     * @param policy Fsync policy
+     * @param interval Milliseconds between forces with the periodic policy
+     * @param store Store to recover and to log
+     * @param replies Receiver of the logged replies, null to skip them
+     * @param from LSN to replay from, e.g. the one of the snapshot the store was loaded from
+     * @return Log attached to the store
+     * @throws IOException If the file can't be read or written
+     */
+    public static WriteAheadLog open(Path path, FsyncPolicy policy, long interval, AccountStore store,
+                                     ReplySink replies, long from) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long start = System.currentTimeMillis();
+        if (channel.size() < from) {
+            logger.log(Level.WARNING, "The log ends before the snapshot position, records after the snapshot are lost");
+        }
+        int[] nextAccountNumber = new int[1];
+        long end = replay(channel, Math.min(from, channel.size()), store, replies, nextAccountNumber);
+        if (end < channel.size()) {
+            logger.log(Level.WARNING, "Truncating " + (channel.size() - end) + " bytes of torn records");
+            channel.truncate(end);
+        }
+        channel.position(end);
+        logger.log(Level.INFO, "Recovered " + store.size() + " accounts, replayed " + (end - Math.min(from, end))
+                + " bytes of log in " + (System.currentTimeMillis() - start) + " ms");
+
+        WriteAheadLog log = new WriteAheadLog(channel, policy, interval, end);
+        log.nextAccountNumber = nextAccountNumber[0];
+        if (policy != FsyncPolicy.ALWAYS) {
+            log.flusher = new Thread(log::flushLoop, "wal-flusher");
+            log.flusher.setDaemon(true);
+            log.flusher.start();
+        }
+        store.setMutationListener(log);
+        return log;
+    }
+
+    /**
+     * Apply the valid records of a log to a store
+     * @param channel Log file
+     * @param from Offset of the first record to apply
+     * @param store Store receiving the records
+     * @param replies Receiver of the logged replies, may be null
+     * @param nextAccountNumber Raised above every created account number
+     * @return Offset after the last valid record
+     * @throws IOException If the file can't be read
+     */
+    private static long replay(FileChannel channel, long from, AccountStore store, ReplySink replies,
+                               int[] nextAccountNumber) throws IOException {
+        long size = channel.size();
+        long position = from;
+        // mapped in windows, as a mapping can't exceed 2GB; a record cut by the end of a
+        // window is read again at the start of the next one
+        while (position < size) {
+            long window = Math.min(size - position, MAP_WINDOW);
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+            int valid = replayWindow(data, store, replies, nextAccountNumber);
+            position += valid;
+            if (valid == 0 || position + (window - valid) == size) {
+                break;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Apply the complete and valid records at the start of a mapped window of the log
+     * @param data Mapped window
+     * @param store Store receiving the records
+     * @param replies Receiver of the logged replies, may be null
+     * @param nextAccountNumber Raised above every created account number
+     * @return Bytes of the applied records
+     * @throws IOException If a record can't be applied
+     */
+    private static int replayWindow(MappedByteBuffer data, AccountStore store, ReplySink replies,
+                                    int[] nextAccountNumber) throws IOException {
+        Deserializer deserializer = new Deserializer(data);
+        CRC32 checksum = new CRC32();
+        int valid = 0;
+        while (data.remaining() >= HEADER_SIZE) {
+            int length = data.getInt();
+            int expected = data.getInt();
+            if (length <= 0 || length > data.remaining()) {
+                break;
+            }
+            ByteBuffer payload = data.slice();
+            payload.limit(length);
+            checksum.reset();
+            checksum.update(payload);
+            if ((int) checksum.getValue() != expected) {
+                break;
+            }
+            int end = data.position() + length;
+            if (!apply(deserializer, store, replies, nextAccountNumber)) {
+                break;
+            }
+            data.position(end);
+            valid = end;
+        }
+        return valid;
+    }
+
+    /**
+     * Apply one record to a store
+     * @param record Deserializer positioned on the payload of the record
+     * @param store Store receiving the record
+     * @param replies Receiver of the logged replies, may be null
+     * @param nextAccountNumber Raised above the created account number
+     * @return False if the record is malformed
+     * @throws IOException If a reply record holds a malformed client address
+     */
+    private static boolean apply(Deserializer record, AccountStore store, ReplySink replies,
+                                 int[] nextAccountNumber) throws IOException {
+        return apply(record, store, replies, nextAccountNumber, null, null);
+    }
+
+    /**
+     * Apply the records on some accounts to a store
+     * @param record Deserializer positioned on the payload of the record
+     * @param store Store receiving the record
+     * @param replies Receiver of the logged replies, may be null
+     * @param nextAccountNumber Raised above the created account number
+     * @param accepted Accounts whose records are applied, null for all
+     * @param relog Listener told of the balances and closings the store doesn't report, may be null
+     * @return False if the record is malformed
+     * @throws IOException If a reply record holds a malformed client address
+     */
+    private static boolean apply(Deserializer record, AccountStore store, ReplySink replies,
+                                 int[] nextAccountNumber, IntPredicate accepted, MutationListener relog)
+            throws IOException {
+        char type = record.readChar();
+        boolean floats = type == FLOAT_CREATED || type == FLOAT_BALANCE || type == FLOAT_TRANSFER;
+        int accountNumber;
+        switch (type) {
+            case CREATED:
+            case FLOAT_CREATED:
+                accountNumber = record.readInt();
+                String name = record.readString();
+                String password = record.readString();
+                Currency currency = Currency.values()[record.readInt()];
+                long balance = readBalance(record, floats);
+                if (accepted == null || accepted.test(accountNumber)) {
+                    store.create(accountNumber, name, password, currency, balance);
+                    nextAccountNumber[0] = Math.max(nextAccountNumber[0], accountNumber + 1);
+                }
+                return true;
+            case CLOSED:
+                accountNumber = record.readInt();
+                if (accepted == null || accepted.test(accountNumber)) {
+                    store.remove(accountNumber);
+                    if (relog != null) {
+                        relog.accountClosed(accountNumber);
+                    }
+                }
+                return true;
+            case BALANCE:
+            case FLOAT_BALANCE:
+                restoreBalance(record.readInt(), readBalance(record, floats), store, accepted, relog);
+                return true;
+            case TRANSFER:
+            case FLOAT_TRANSFER:
+                // the halves of a transfer may belong to different shards
+                restoreBalance(record.readInt(), readBalance(record, floats), store, accepted, relog);
+                restoreBalance(record.readInt(), readBalance(record, floats), store, accepted, relog);
+                return true;
+            case REPLY:
+                InetAddress address = InetAddress.getByAddress(record.readBytes(record.readInt()));
+                Client client = new Client(address, record.readInt());
+                int requestID = record.readInt();
+                byte[] reply = record.readBytes(record.readInt());
+                if (replies != null) {
+                    replies.putReply(client, requestID, reply);
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void restoreBalance(int accountNumber, long balance, AccountStore store, IntPredicate accepted,
+                                       MutationListener relog) {
+        if (accepted == null || accepted.test(accountNumber)) {
+            store.restoreBalance(accountNumber, balance);
+            if (relog != null) {
+                relog.balanceChanged(accountNumber, balance);
+            }
+        }
+    }
+
+    /**
+     * Apply the complete records at the start of a buffer of log streamed from a primary.
+     * Replies are skipped, a record cut by the end of the buffer is left for the next call.
+     * @param data Log bytes starting on a record, its position is moved past the applied records
+     * @param store Store receiving the records
+     * @throws IOException If a complete record is corrupt
+     */
+    public static void applyStream(ByteBuffer data, AccountStore store) throws IOException {
+        applyStream(data, store, null, null);
+    }
+
+    /**
+     * Apply the complete records on some accounts at the start of a buffer of log streamed
+     * from another shard, e.g. the accounts moving to this shard. Balances set and accounts
+     * removed are passed to a listener, as the store only reports created accounts.
+     * @param data Log bytes starting on a record, its position is moved past the applied records
+     * @param store Store receiving the records
+     * @param accepted Accounts whose records are applied, null for all
+     * @param relog Listener told of the balances and closings applied, e.g. the log of this
+     *              shard, null for none
+     * @throws IOException If a complete record is corrupt
+     */
+    public static void applyStream(ByteBuffer data, AccountStore store, IntPredicate accepted,
+                                   MutationListener relog) throws IOException {
+        Deserializer deserializer = new Deserializer(data);
+        CRC32 checksum = new CRC32();
+        int[] nextAccountNumber = new int[1];
+        while (data.remaining() >= HEADER_SIZE) {
+            int start = data.position();
+            int length = data.getInt(start);
+            if (length <= 0) {
+                throw new IOException("Malformed record length " + length);
+            }
+            if (length > data.remaining() - HEADER_SIZE) {
+                return;
+            }
+            data.position(start + HEADER_SIZE);
+            ByteBuffer payload = data.slice();
+            payload.limit(length);
+            checksum.reset();
+            checksum.update(payload);
+            if ((int) checksum.getValue() != data.getInt(start + 4)
+                    || !apply(deserializer, store, null, nextAccountNumber, accepted, relog)) {
+                throw new IOException("Corrupt record of " + length + " bytes");
+            }
+            data.position(start + HEADER_SIZE + length);
+        }
+    }
+
+    /**
+     * Append the record of an existing account to a buffer in the log format, e.g. to copy
+     * the account to another shard ahead of the log records following it
+     * @param records Buffer receiving the record
+     * @param checksum Checksum computing the header
+     * @param accountNumber Account number
+     * @param name Account name
+     * @param password Account password
+     * @param currency Account currency type
+     * @param balance Account balance
+     * @return Bytes of the record
+     */
+    public static int encodeAccount(Serializer records, CRC32 checksum, int accountNumber, String name,
+                                    String password, Currency currency, long balance) {
+        int start = beginRecord(records, CREATED);
+        records.writeInt(accountNumber);
+        records.writeString(name);
+        records.writeString(password);
+        records.writeInt(currency.ordinal());
+        records.writeLong(balance);
+        return HEADER_SIZE + sealRecord(records, checksum, start);
+    }
+
+    /**
+     * Append the record of a closed account to a buffer in the log format
+     * @param records Buffer receiving the record
+     * @param checksum Checksum computing the header
+     * @param accountNumber Account number
+     * @return Bytes of the record
+     */
+    public static int encodeClosed(Serializer records, CRC32 checksum, int accountNumber) {
+        int start = beginRecord(records, CLOSED);
+        records.writeInt(accountNumber);
+        return HEADER_SIZE + sealRecord(records, checksum, start);
+    }
+
+    /**
+     * Append the record of a new balance to a buffer in the log format
+     * @param records Buffer receiving the record
+     * @param checksum Checksum computing the header
+     * @param accountNumber Account number
+     * @param balance New balance
+     * @return Bytes of the record
+     */
+    public static int encodeBalance(Serializer records, CRC32 checksum, int accountNumber, long balance) {
+        int start = beginRecord(records, BALANCE);
+        records.writeInt(accountNumber);
+        records.writeLong(balance);
+        return HEADER_SIZE + sealRecord(records, checksum, start);
+    }
+
+    /**
+     * Append the record of a transfer to a buffer in the log format
+     * @param records Buffer receiving the record
+     * @param checksum Checksum computing the header
+     * @param sourceAccount Source account number
+     * @param sourceBalance New balance of the source account
+     * @param targetAccount Target account number
+     * @param targetBalance New balance of the target account
+     * @return Bytes of the record
+     */
+    public static int encodeTransfer(Serializer records, CRC32 checksum, int sourceAccount, long sourceBalance,
+                                     int targetAccount, long targetBalance) {
+        int start = beginRecord(records, TRANSFER);
+        records.writeInt(sourceAccount);
+        records.writeLong(sourceBalance);
+        records.writeInt(targetAccount);
+        records.writeLong(targetBalance);
+        return HEADER_SIZE + sealRecord(records, checksum, start);
+    }
+
+    /**
+     * Append the record of a cached reply to a buffer in the log format
+     * @param records Buffer receiving the record
+     * @param checksum Checksum computing the header
+     * @param client Client the reply is for
+     * @param requestID Id of the request
+     * @param reply Encoded reply
+     * @return Bytes of the record
+     */
+    public static int encodeReply(Serializer records, CRC32 checksum, Client client, int requestID, byte[] reply) {
+        byte[] address = client.getClientAddress().getAddress();
+        int start = beginRecord(records, REPLY);
+        records.writeInt(address.length);
+        records.writeBytes(address);
+        records.writeInt(client.getClientPort());
+        records.writeInt(requestID);
+        records.writeInt(reply.length);
+        records.writeBytes(reply);
+        return HEADER_SIZE + sealRecord(records, checksum, start);
+    }
+
+    private static long readBalance(Deserializer record, boolean floats) {
+        return floats ? Amounts.fromFloat(record.readFloat()) : record.readLong();
+    }
+
+    @Override
+    public void accountCreated(int accountNumber, String name, String password, Currency currency, long balance) {
+        synchronized (this) {
+            appended(encodeAccount(pending, crc, accountNumber, name, password, currency, balance), 1);
+        }
+    }
+
+    @Override
+    public void accountClosed(int accountNumber) {
+        synchronized (this) {
+            appended(encodeClosed(pending, crc, accountNumber), 1);
+        }
+    }
+
+    @Override
+    public void balanceChanged(int accountNumber, long balance) {
+        synchronized (this) {
+            appended(encodeBalance(pending, crc, accountNumber, balance), 1);
+        }
+    }
+
+    @Override
+    public void balancesTransferred(int sourceAccount, long sourceBalance, int targetAccount, long targetBalance) {
+        synchronized (this) {
+            appended(encodeTransfer(pending, crc, sourceAccount, sourceBalance, targetAccount, targetBalance), 1);
+        }
+    }
+
+    /**
+     * Log a reply cached for at-most-once invocation
+     * @param client Client the reply is for
+     * @param requestID Id of the request
+     * @param reply Encoded reply
+     */
+    public void replyCached(Client client, int requestID, byte[] reply) {
+        synchronized (this) {
+            appended(encodeReply(pending, crc, client, requestID, reply), 1);
+        }
+    }
+
+    /**
+     * Append records encoded by the static encoders, in one step for the whole batch
+     * @param records Buffer holding the records
+     * @param offset Offset of the first record
+     * @param length Bytes of the records
+     * @param count Number of records
+     * @return LSN of the last appended record
+     */
+    public long appendRecords(byte[] records, int offset, int length, int count) {
+        synchronized (this) {
+            pending.writeBytes(records, offset, length);
+            appended(length, count);
+            return appendedLsn;
+        }
+    }
+
+    /**
+     * Run an action once every record up to an LSN is durable, on the calling thread if it
+     * already is and on the flusher thread otherwise. Actions are never run after a write
+     * or force failed.
+     * @param lsn Log sequence number, e.g. {@link #getAppendedLsn()} when a reply was encoded
+     * @param action Action to run
+     */
+    public void whenDurable(long lsn, Runnable action) {
+        if (lsn <= durableLsn) {
+            action.run();
+            return;
+        }
+        synchronized (this) {
+            // the flusher raises durableLsn before taking the lock to release waiters
+            if (lsn > durableLsn) {
+                waiters.add(new Waiter(lsn, action));
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Wait until every record up to an LSN is durable, e.g. to ship it to backups
+     * @param lsn Log sequence number
+     * @param timeout Maximum milliseconds to wait
+     * @return Whether the LSN is durable
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public boolean awaitDurable(long lsn, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (durableSignal) {
+            while (durableLsn < lsn) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                durableSignal.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * LSN of the last appended record
+     * @return Offset after the last appended record
+     */
+    public synchronized long getAppendedLsn() {
+        return appendedLsn;
+    }
+
+    /**
+     * LSN up to which every record has been forced to disk
+     * @return Offset after the last durable record
+     */
+    public long getDurableLsn() {
+        return durableLsn;
+    }
+
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Account number following every account number ever created in the recovered log
+     * @return First free account number
+     */
+    public int getNextAccountNumber() {
+        return nextAccountNumber;
+    }
+
+    /**
+     * Force the remaining records to disk and close the file
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            if (flusher != null) {
+                flusher.join();
+            }
+            channel.close();
+        } catch (InterruptedException | IOException e) {
+            logger.log(Level.SEVERE, "Failure on closing the log", e);
+        }
+    }
+
+    /**
+     * Account for records written to the pending buffer, the lock must be held
+     * @param bytes Bytes of the records
+     * @param count Number of records
+     */
+    private void appended(int bytes, int count) {
+        appendedLsn += bytes;
+        recordCount += count;
+        if (policy == FsyncPolicy.ALWAYS) {
+            // forced while the store still holds the locks of the accounts being changed, so
+            // every update of those accounts waits for the disk; GROUP forces on its flusher
+            // thread after the locks are released
+            if (write(pending)) {
+                durableLsn = appendedLsn;
+                signalDurable();
+            }
+            pending.reset();
+        } else if (policy == FsyncPolicy.GROUP) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Start a record in a buffer
+     * @param records Buffer receiving the record
+     * @param type Record type
+     * @return Offset of the record in the buffer
+     */
+    private static int beginRecord(Serializer records, char type) {
+        int start = records.getBufferLength();
+        records.writeInt(0); // length and checksum are filled in once the payload is written
+        records.writeInt(0);
+        records.writeChar(type);
+        return start;
+    }
+
+    /**
+     * Fill in the header of the last record of a buffer
+     * @param records Buffer holding the record
+     * @param checksum Checksum computing the header
+     * @param start Offset of the record
+     * @return Payload length
+     */
+    private static int sealRecord(Serializer records, CRC32 checksum, int start) {
+        byte[] bytes = records.getBuffer();
+        int payload = start + HEADER_SIZE;
+        int length = records.getBufferLength() - payload;
+        checksum.reset();
+        checksum.update(bytes, payload, length);
+        ByteBuffer header = ByteBuffer.wrap(bytes, start, HEADER_SIZE);
+        header.putInt(length);
+        header.putInt((int) checksum.getValue());
+        return length;
+    }
+
+    /**
+     * Main loop of the flusher thread with the group and periodic policies
+     */
+    private void flushLoop() {
+        while (true) {
+            long target;
+            boolean last;
+            synchronized (this) {
+                try {
+                    if (policy == FsyncPolicy.PERIODIC) {
+                        if (!closed) {
+                            wait(interval);
+                        }
+                    } else {
+                        while (pending.getBufferLength() == 0 && !closed) {
+                            wait();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                last = closed;
+                // everything appended while the previous force ran is committed together
+                Serializer batch = pending;
+                pending = writing;
+                writing = batch;
+                target = appendedLsn;
+            }
+            if (writing.getBufferLength() > 0 && write(writing)) {
+                durableLsn = target;
+                signalDurable();
+                release(target);
+            }
+            writing.reset();
+            if (last) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write and force a buffer of records
+     * @param records Serializer holding the records
+     * @return Whether the records are durable
+     */
+    private boolean write(Serializer records) {
+        if (failed) {
+            return false;
+        }
+        try {
+            ByteBuffer data = ByteBuffer.wrap(records.getBuffer(), 0, records.getBufferLength());
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+            synchronized (this) {
+                syncCount++;
+            }
+            return true;
+        } catch (IOException e) {
+            // replies are held back forever rather than acknowledging lost mutations
+            failed = true;
+            logger.log(Level.SEVERE, "Failure on writing the log, replies are no longer released", e);
+            return false;
+        }
+    }
+
+    /**
+     * Wake the threads waiting in {@link #awaitDurable(long, long)}
+     */
+    private void signalDurable() {
+        synchronized (durableSignal) {
+            durableSignal.notifyAll();
+        }
+    }
+
+    /**
+     * Run the actions waiting for records up to an LSN
+     * @param lsn Durable log sequence number
+     */
+    private void release(long lsn) {
+        List<Runnable> ready = new ArrayList<>();
+        synchronized (this) {
+            while (!waiters.isEmpty() && waiters.peek().lsn <= lsn) {
+                ready.add(waiters.poll().action);
+            }
+        }
+        for (Runnable action : ready) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Failure on releasing a durable action", e);
+            }
+        }
+    }
+
+    /**
+     * Action waiting for an LSN to become durable
+     */
+    private static class Waiter implements Comparable<Waiter> {
+        private final long lsn;
+        private final Runnable action;
+
+        private Waiter(long lsn, Runnable action) {
+            this.lsn = lsn;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            return Long.compare(lsn, other.lsn);
+        }
+    }
+}